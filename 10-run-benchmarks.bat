@@ -0,0 +1,19 @@
+@echo off
+@setlocal enableextensions
+@cd /d "%~dp0"
+
+echo Installing Application
+cd password-app
+call mvn install -DskipTests
+cd ..
+
+echo Building Benchmarks
+cd password-bench
+call mvn clean package
+
+echo Running Benchmarks
+java -jar target/benchmarks.jar %*
+cd ..
+
+echo Operation Completed!
+pause
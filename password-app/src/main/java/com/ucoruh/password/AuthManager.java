@@ -6,6 +6,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -160,12 +162,123 @@ public class AuthManager {
 			return false;
 		}
 		
+		if (!changeMasterPassword(currentPassword, newPassword)) {
+			System.out.println("Could not re-wrap the vault key. Master password not changed.");
+			return false;
+		}
+		
+		System.out.println("Master password changed successfully.");
+		return true;
+	}
+	
+	/**
+	 * Change the master password to a new one without prompting.
+	 * Only the vault keys are re-wrapped; the entries stay as they are.
+	 * The caller must have verified the current password.
+	 * @param currentPassword The current master password in plain text.
+	 * @param newPassword The new master password.
+	 * @return true if the password and the vault keys were changed.
+	 */
+	public boolean changeMasterPassword(String currentPassword, String newPassword) {
+		if (!rewrapVaults(currentPassword, newPassword)) {
+			return false;
+		}
 		masterPassword = EncryptionUtil.hashString(newPassword);
 		saveMasterPassword();
-		System.out.println("Master password changed successfully.");
 		return true;
 	}
 	
+	/**
+	 * Wrap the data keys of the existing vaults with a new master password.
+	 * Every storage type whose vault exists is changed, so a vault of a type that is
+	 * not configured right now still opens with the new password; no vault is created.
+	 * If one of them fails, the ones already changed are wrapped with the current password again.
+	 * @param currentPassword The current master password.
+	 * @param newPassword The new master password.
+	 * @return true if every vault now opens with the new master password.
+	 */
+	private boolean rewrapVaults(String currentPassword, String newPassword) {
+		List<StorageType> changed = new ArrayList<>();
+		for (StorageType type : existingVaults()) {
+			if (!changeVaultKey(type, currentPassword, newPassword)) {
+				System.out.println("The " + type + " vault could not be re-wrapped.");
+				for (StorageType done : changed) {
+					changeVaultKey(done, newPassword, currentPassword);
+				}
+				return false;
+			}
+			changed.add(type);
+		}
+		return true;
+	}
+	
+	/**
+	 * Find the storage types whose default vault exists.
+	 * @return The storage types, in declaration order.
+	 */
+	private static List<StorageType> existingVaults() {
+		List<StorageType> types = new ArrayList<>();
+		for (StorageType type : StorageType.values()) {
+			if (PasswordStorageFactory.exists(type)) {
+				types.add(type);
+			}
+		}
+		return types;
+	}
+	
+	/**
+	 * Wrap the data key of one vault with a new master password.
+	 * @param type The storage type of the vault.
+	 * @param currentPassword The master password the vault opens with now.
+	 * @param newPassword The new master password.
+	 * @return true if the vault now opens with the new master password.
+	 */
+	private boolean changeVaultKey(StorageType type, String currentPassword, String newPassword) {
+		try (InterfacePasswordStorage vault = PasswordStorageFactory.create(type, currentPassword)) {
+			return vault.changeMasterPassword(newPassword);
+		}
+	}
+	
+	/**
+	 * Re-encrypt the vaults with new data keys after asking for the master password.
+	 * @param scanner The Scanner object for user input.
+	 * @return true if every vault was re-encrypted.
+	 */
+	public boolean rotateVaultKeys(Scanner scanner) {
+		System.out.print("Enter master password: ");
+		String password = scanner.nextLine();
+		String hashed = EncryptionUtil.hashString(password);
+		if (!masterPassword.equals(hashed) && !masterPassword.equals(password)) {
+			System.out.println("Incorrect master password.");
+			return false;
+		}
+		
+		if (!rotateVaultKeys(password)) {
+			System.out.println("Vault key rotation did not finish. Run it again to resume.");
+			return false;
+		}
+		
+		System.out.println("Vault keys rotated successfully.");
+		return true;
+	}
+	
+	/**
+	 * Re-encrypt the existing vaults with new data keys.
+	 * Every storage type whose vault exists is rotated; no vault is created.
+	 * The caller must have verified the password.
+	 * @param password The master password in plain text.
+	 * @return true if every vault was re-encrypted.
+	 */
+	public boolean rotateVaultKeys(String password) {
+		boolean rotated = true;
+		for (StorageType type : existingVaults()) {
+			try (InterfacePasswordStorage vault = PasswordStorageFactory.create(type, password)) {
+				rotated &= vault.rotateKey();
+			}
+		}
+		return rotated;
+	}
+	
 	/**
 	 * Display user-specific menu for authentication operations.
 	 * @param scanner The Scanner object for user input.
@@ -176,6 +289,7 @@ public class AuthManager {
 			System.out.println("\n==== USER AUTHENTICATION MENU ====");
 			System.out.println("1. Change Master Password");
 			System.out.println("2. Test Authentication");
+			System.out.println("3. Rotate Vault Key");
 			System.out.println("0. Back to Main Menu");
 			System.out.print("Your choice: ");
 			
@@ -196,6 +310,9 @@ public class AuthManager {
 							System.out.println("Authentication failed.");
 						}
 						break;
+					case 3:
+						rotateVaultKeys(scanner);
+						break;
 					case 0:
 						back = true;
 						break;
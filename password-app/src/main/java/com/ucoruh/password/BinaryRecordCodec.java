@@ -0,0 +1,457 @@
+package com.ucoruh.password;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * @file BinaryRecordCodec.java
+ * @class BinaryRecordCodec
+ * @brief Binary layout of the records of a password file
+ * @details A binary password file starts with a header of the magic bytes 0x89 'P'
+ * 'W' 'V' and a format version byte. The records follow back to back, each as
+ *
+ *     varint length | type | varint key version | ciphertext
+ *
+ * where the length counts the bytes after it. The plaintext of a put record holds
+ * the service, username and password, each as a varint byte count followed by the
+ * UTF-8 bytes, so fields may contain commas or line breaks. The plaintext of a
+ * tombstone is the UTF-8 service name. Varints store 7 bits per byte, low bits first.
+ *
+ * A sealed file (format version 3) encrypts its records together instead of one by
+ * one. After the header comes a key check record, an encrypted marker that tells
+ * whether a key fits the file, and then chunk records. The ciphertext of a chunk is
+ * sealed with AES-GCM (see SessionKey.seal()) and its plaintext holds up to
+ * SEALED_CHUNK_BYTES of put and tombstone records in the layout above, with key
+ * version PLAIN and the body in plaintext. The last chunk of each write has the type
+ * LAST_CHUNK instead of CHUNK, and every chunk is sealed together with its type and
+ * its offset in the file, so chunks cannot be moved, repeated or left out unnoticed.
+ *
+ * Files that do not start with the magic bytes use the text format of earlier
+ * versions, one Base64 record per line.
+ */
+public final class BinaryRecordCodec {
+    /**
+     * @brief Format version written after the magic bytes; the text format counts as 1
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    /**
+     * @brief Format version of a sealed file
+     */
+    public static final int SEALED_FORMAT_VERSION = 3;
+
+    /**
+     * @brief Plaintext bytes a sealed chunk holds before a new chunk is started
+     */
+    public static final int SEALED_CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * @brief Key version of the records inside a sealed chunk, whose bodies are not encrypted on their own
+     */
+    public static final int PLAIN = 0;
+
+    /**
+     * @brief Record type of a stored entry
+     */
+    public static final byte PUT = 1;
+
+    /**
+     * @brief Record type of a deleted entry
+     */
+    public static final byte TOMBSTONE = 2;
+
+    /**
+     * @brief Record type of the key check record that opens a sealed file
+     */
+    public static final byte KEY_CHECK = 3;
+
+    /**
+     * @brief Record type of a sealed chunk that more chunks of the same write follow
+     */
+    public static final byte CHUNK = 4;
+
+    /**
+     * @brief Record type of the sealed chunk that ends a write
+     */
+    public static final byte LAST_CHUNK = 5;
+
+    /**
+     * @brief Bytes that open a binary password file
+     * @details The first byte is not valid in the text format, so the formats cannot be mixed up.
+     */
+    private static final byte[] MAGIC = { (byte) 0x89, 'P', 'W', 'V' };
+
+    /**
+     * @brief Length of the file header in bytes
+     */
+    public static final int HEADER_LENGTH = MAGIC.length + 1;
+
+    /**
+     * @brief Largest record length accepted when reading
+     */
+    static final int MAX_RECORD_LENGTH = 1 << 24;
+
+    /**
+     * @brief Most bytes an int varint can take
+     */
+    private static final int MAX_VARINT_BYTES = 5;
+
+    /**
+     * @brief Utility class; not instantiated
+     */
+    private BinaryRecordCodec() {
+    }
+
+    /**
+     * @brief Returns the header of a new binary file
+     *
+     * @return byte[] The magic bytes and the format version
+     */
+    public static byte[] header() {
+        return header(FORMAT_VERSION);
+    }
+
+    /**
+     * @brief Returns the header of a new binary file of a given format version
+     *
+     * @param formatVersion FORMAT_VERSION or SEALED_FORMAT_VERSION
+     * @return byte[] The magic bytes and the format version
+     */
+    public static byte[] header(int formatVersion) {
+        return ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).put((byte) formatVersion).array();
+    }
+
+    /**
+     * @brief Returns the length of the record that starts at an offset
+     *
+     * @param bytes The array that holds the record
+     * @param offset Where the record starts
+     * @return int The length of the record, its length prefix included
+     * @throws IllegalArgumentException If the record is malformed or runs past the end of the array
+     */
+    public static int recordLength(byte[] bytes, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, bytes.length - offset);
+        int length;
+        try {
+            length = getVarint(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed record", e);
+        }
+        if (length < 2 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed record");
+        }
+        return buffer.position() - offset + length;
+    }
+
+    /**
+     * @brief Reads the format version from the start of a file
+     *
+     * @param head The first bytes of the file, from the buffer position on; not consumed
+     * @return int The format version, or 1 if the bytes are not a binary header
+     */
+    public static int formatVersion(ByteBuffer head) {
+        if (head.remaining() < HEADER_LENGTH) {
+            return 1;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head.get(head.position() + i) != MAGIC[i]) {
+                return 1;
+            }
+        }
+        return head.get(head.position() + MAGIC.length) & 0xFF;
+    }
+
+    /**
+     * @brief Returns the number of bytes a value takes as varint
+     *
+     * @param value A non-negative value
+     * @return int The encoded size, 1 to 5
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @brief Writes a varint
+     *
+     * @param buffer The buffer to write to
+     * @param value A non-negative value
+     */
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @brief Reads a varint
+     *
+     * @param buffer The buffer to read from
+     * @return int The value
+     * @throws BufferUnderflowException If the buffer ends inside the varint
+     * @throws IllegalArgumentException If the varint is longer than an int allows
+     */
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_BYTES; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    throw new IllegalArgumentException("Malformed varint");
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * @brief Encodes the plaintext of a put record
+     *
+     * @param service The service name
+     * @param username The username
+     * @param password The password
+     * @return byte[] The three fields with their lengths
+     */
+    public static byte[] encodeEntry(String service, String username, String password) {
+        byte[] s = service.getBytes(StandardCharsets.UTF_8);
+        byte[] u = username.getBytes(StandardCharsets.UTF_8);
+        byte[] p = password.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(varintSize(s.length) + s.length
+                + varintSize(u.length) + u.length + varintSize(p.length) + p.length);
+        putVarint(buffer, s.length);
+        buffer.put(s);
+        putVarint(buffer, u.length);
+        buffer.put(u);
+        putVarint(buffer, p.length);
+        buffer.put(p);
+        return buffer.array();
+    }
+
+    /**
+     * @brief Decodes the plaintext of a put record
+     * @details The only allocations are the three strings and the entry.
+     *
+     * @param plaintext The decrypted record body
+     * @return Password The entry
+     * @throws IllegalArgumentException If the fields do not fill the plaintext exactly
+     */
+    public static Password decodeEntry(byte[] plaintext) {
+        ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+        try {
+            String service = getString(buffer);
+            String username = getString(buffer);
+            String password = getString(buffer);
+            if (buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Malformed entry");
+            }
+            return new Password(service, username, password);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed entry", e);
+        }
+    }
+
+    /**
+     * @brief Reads a length-prefixed UTF-8 string
+     *
+     * @param buffer A heap buffer positioned at the length
+     * @return String The string
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed entry");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * @brief Frames a ciphertext as a record
+     *
+     * @param type PUT or TOMBSTONE
+     * @param keyVersion Version of the key that made the ciphertext
+     * @param ciphertext The encrypted body
+     * @return byte[] The record as stored in the file
+     */
+    public static byte[] encodeRecord(byte type, int keyVersion, byte[] ciphertext) {
+        int length = 1 + varintSize(keyVersion) + ciphertext.length;
+        ByteBuffer buffer = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(buffer, length);
+        buffer.put(type);
+        putVarint(buffer, keyVersion);
+        buffer.put(ciphertext);
+        return buffer.array();
+    }
+
+    /**
+     * @brief Returns the type of a record
+     *
+     * @param record The record as stored
+     * @return byte PUT or TOMBSTONE
+     */
+    public static byte type(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        getVarint(buffer);
+        return buffer.get();
+    }
+
+    /**
+     * @brief Returns the version of the key that encrypted a record
+     *
+     * @param record The record as stored
+     * @return int The key version
+     */
+    public static int keyVersion(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        getVarint(buffer);
+        buffer.get();
+        return getVarint(buffer);
+    }
+
+    /**
+     * @brief Returns where the ciphertext of a record starts
+     *
+     * @param record The record as stored
+     * @return int The offset of the ciphertext; it runs to the end of the record
+     */
+    public static int ciphertextOffset(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        getVarint(buffer);
+        buffer.get();
+        getVarint(buffer);
+        return buffer.position();
+    }
+
+    /**
+     * @brief Returns the ciphertext of a record in the text form used by KeyRing
+     *
+     * @param record The record as stored
+     * @return String The tagged Base64 ciphertext
+     */
+    public static String toText(byte[] record) {
+        int offset = ciphertextOffset(record);
+        ByteBuffer ciphertext = ByteBuffer.wrap(record, offset, record.length - offset);
+        return KeyRing.tag(keyVersion(record),
+                new String(Base64.getEncoder().encode(ciphertext).array(), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @brief Reads the records of a binary file one by one
+     * @details A record cut off at the end of the file, as left by an interrupted
+     * write, ends the file; end() then tells where the complete records stop.
+     */
+    public static final class Reader {
+        /**
+         * @brief The file, positioned after the header
+         */
+        private final ReadableByteChannel channel;
+
+        /**
+         * @brief Bytes read from the channel but not yet returned
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        /**
+         * @brief File offset just past the last complete record
+         */
+        private long end;
+
+        /**
+         * @brief Whether the channel is exhausted
+         */
+        private boolean eof;
+
+        /**
+         * @brief Creates a reader
+         *
+         * @param channel The file, positioned at the first record
+         * @param start File offset of the first record
+         */
+        public Reader(ReadableByteChannel channel, long start) {
+            this.channel = channel;
+            this.end = start;
+            buffer.flip();
+        }
+
+        /**
+         * @brief Returns the file offset just past the last complete record read
+         *
+         * @return long The offset where the next record starts
+         */
+        public long end() {
+            return end;
+        }
+
+        /**
+         * @brief Reads the next record
+         *
+         * @return byte[] The record as stored, or null at the end of the file
+         * @throws IOException If the file cannot be read or a record length is invalid
+         */
+        public byte[] next() throws IOException {
+            fill(MAX_VARINT_BYTES);
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+            int start = buffer.position();
+            int length;
+            try {
+                length = getVarint(buffer);
+            } catch (BufferUnderflowException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed record at offset " + end, e);
+            }
+            if (length < 2 || length > MAX_RECORD_LENGTH) {
+                throw new IOException("Malformed record at offset " + end);
+            }
+            buffer.position(start);
+            byte[] record = new byte[varintSize(length) + length];
+            int buffered = Math.min(record.length, buffer.remaining());
+            buffer.get(record, 0, buffered);
+            ByteBuffer rest = ByteBuffer.wrap(record, buffered, record.length - buffered);
+            while (rest.hasRemaining()) {
+                if (channel.read(rest) < 0) {
+                    eof = true;
+                    return null;
+                }
+            }
+            end += record.length;
+            return record;
+        }
+
+        /**
+         * @brief Reads from the channel until the buffer holds some bytes or the file ends
+         *
+         * @param wanted Number of bytes to have available if the file has them
+         * @throws IOException If the file cannot be read
+         */
+        private void fill(int wanted) throws IOException {
+            if (buffer.remaining() >= wanted || eof) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < wanted) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
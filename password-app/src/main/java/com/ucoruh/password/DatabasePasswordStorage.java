@@ -1,63 +1,1207 @@
 package com.ucoruh.password;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * @brief SQLite-based implementation of password storage.
  *
  * This class uses an SQLite database to store, retrieve, update, and delete password entries.
- * All sensitive data is encrypted before storing in the database.
+ * All sensitive data is encrypted before storing in the database, with the vault data key
+ * that the vault_meta table keeps wrapped by the master password (see VaultKey). The service
+ * name is encrypted too; rows are found by a blind index, a keyed HMAC of Password.key() of
+ * the name, so lookups ignore case as in the other storages, and the ciphertext is kept
+ * as raw bytes in BLOB columns. search() finds services by a fragment of their name through
+ * an FTS5 index of keyed hashes of the name's three-character runs. Databases in the
+ * original layout, with plaintext service names and Base64 text columns, are converted
+ * when opened. A single long-lived connection is opened on first use and the fixed SQL
+ * statements are prepared once and reused; call close() to release them. The connection
+ * is tuned with a SqliteProfile, which puts the database in write-ahead logging mode.
  */
 public class DatabasePasswordStorage implements InterfacePasswordStorage {
+	/**
+	 * @brief File name of the SQLite database.
+	 */
+	private static final String DB_FILE = "passwords.db";
+	
 	/**
 	 * @brief The database URL for the SQLite connection.
 	 *
 	 * This static final field holds the connection URL used to connect to the SQLite database.
 	 */
-	private static final String DB_URL = "jdbc:sqlite:passwords.db";
+	private static final String DB_URL = "jdbc:sqlite:" + DB_FILE;
+	
+	/**
+	 * @brief Number of rows sent to the database per executeBatch() call.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	
+	/**
+	 * @brief Version of the database layout, kept in PRAGMA user_version.
+	 *
+	 * Version 0 is the original layout: the service name in plaintext as the key and
+	 * Base64 ciphertext in TEXT columns. Version 2 stores raw ciphertext in BLOB
+	 * columns and looks entries up by a blind index of the exact service name.
+	 * Version 3 indexes Password.key() of the name, so lookups ignore case. Version 4
+	 * adds the search tokens of the name and the service_search full-text index.
+	 */
+	static final int SCHEMA_VERSION = 4;
+	
+	/** @brief Version of the layout whose blind index is case-sensitive. */
+	private static final int EXACT_INDEX_VERSION = 2;
+	
+	/** @brief Number of HMAC bytes kept in the blind index. */
+	private static final int SERVICE_HASH_BYTES = 16;
+	
+	/** @brief Number of HMAC bytes kept in a search token. */
+	private static final int GRAM_TOKEN_BYTES = 8;
+	
+	/**
+	 * @brief Creates the passwords table.
+	 *
+	 * service_hash is a keyed HMAC of the lowercased service name with a unique index, so
+	 * a lookup is a single index probe without decrypting anything, and two names that
+	 * differ only in case cannot both be stored. service_grams holds the search tokens
+	 * of the name (see serviceGrams). All encrypted columns of a row use the data key
+	 * of key_version.
+	 */
+	private static final String SQL_CREATE_TABLE = """
+		CREATE TABLE IF NOT EXISTS passwords (
+			service_hash BLOB NOT NULL UNIQUE,
+			key_version INTEGER NOT NULL,
+			service BLOB NOT NULL,
+			username BLOB NOT NULL,
+			password BLOB NOT NULL,
+			service_grams TEXT NOT NULL DEFAULT ''
+		)
+		""";
+	
+	/**
+	 * @brief Creates the full-text index over the search tokens.
+	 *
+	 * It is an external content FTS5 table: it keeps only the index and reads
+	 * service_grams from the passwords table, kept in sync by SQL_CREATE_SEARCH_TRIGGERS.
+	 */
+	private static final String SQL_CREATE_SEARCH = """
+		CREATE VIRTUAL TABLE IF NOT EXISTS service_search
+		USING fts5(service_grams, content = 'passwords', content_rowid = 'rowid')
+		""";
+	
+	/** @brief Keep service_search in sync with inserts, deletes and token changes of the passwords table. */
+	private static final String[] SQL_CREATE_SEARCH_TRIGGERS = {
+		"""
+		CREATE TRIGGER IF NOT EXISTS passwords_search_insert AFTER INSERT ON passwords BEGIN
+			INSERT INTO service_search(rowid, service_grams) VALUES (new.rowid, new.service_grams);
+		END
+		""",
+		"""
+		CREATE TRIGGER IF NOT EXISTS passwords_search_delete AFTER DELETE ON passwords BEGIN
+			INSERT INTO service_search(service_search, rowid, service_grams) VALUES ('delete', old.rowid, old.service_grams);
+		END
+		""",
+		"""
+		CREATE TRIGGER IF NOT EXISTS passwords_search_update AFTER UPDATE OF service_grams ON passwords BEGIN
+			INSERT INTO service_search(service_search, rowid, service_grams) VALUES ('delete', old.rowid, old.service_grams);
+			INSERT INTO service_search(rowid, service_grams) VALUES (new.rowid, new.service_grams);
+		END
+		"""
+	};
+	
+	/** @brief Rebuilds service_search from the passwords table. */
+	private static final String SQL_REBUILD_SEARCH = "INSERT INTO service_search(service_search) VALUES ('rebuild')";
+	
+	/** @brief Adds the search tokens to a table in layout version 2 or 3. */
+	private static final String SQL_ADD_GRAMS = "ALTER TABLE passwords ADD COLUMN service_grams TEXT NOT NULL DEFAULT ''";
+	
+	/** @brief Reads the entries whose tokens match a full-text query, best ranked first. */
+	private static final String SQL_SEARCH = """
+		SELECT p.service_hash, p.key_version, p.service, p.username, p.password
+		FROM service_search s JOIN passwords p ON p.rowid = s.rowid
+		WHERE service_search MATCH ? ORDER BY s.rank LIMIT ? OFFSET ?
+		""";
+	
+	/** @brief Creates the table that holds vault metadata such as the wrapped data key. */
+	private static final String SQL_CREATE_META = """
+		CREATE TABLE IF NOT EXISTS vault_meta (
+			name TEXT PRIMARY KEY,
+			value TEXT NOT NULL
+		)
+		""";
+	
+	/** @brief Name of the vault_meta row that holds the wrapped data key. */
+	private static final String META_DATA_KEY = "data_key";
+	
+	/** @brief Name of the vault_meta row that holds the blind index key, encrypted with the data key. */
+	private static final String META_INDEX_KEY = "index_key";
+	
+	/** @brief Reads one metadata value. */
+	private static final String SQL_SELECT_META = "SELECT value FROM vault_meta WHERE name = ?";
+	
+	/** @brief Stores one metadata value. */
+	private static final String SQL_UPSERT_META = """
+		INSERT INTO vault_meta(name, value) VALUES(?, ?)
+		ON CONFLICT(name) DO UPDATE SET value = excluded.value
+		""";
+	
+	/** @brief Stores one metadata value unless another connection stored it first. */
+	private static final String SQL_INSERT_META = "INSERT INTO vault_meta(name, value) VALUES(?, ?) ON CONFLICT(name) DO NOTHING";
+	
+	/** @brief Reads one encrypted value to test keys against. */
+	private static final String SQL_SAMPLE = "SELECT key_version, username FROM passwords LIMIT 1";
+	
+	/** @brief Reads one encrypted value of a database in the original layout. */
+	private static final String SQL_SAMPLE_V0 = "SELECT username FROM passwords LIMIT 1";
+	
+	/** @brief Checks whether a service exists. */
+	private static final String SQL_EXISTS = "SELECT 1 FROM passwords WHERE service_hash = ?";
+	
+	/** @brief Inserts a new entry. */
+	private static final String SQL_INSERT = "INSERT INTO passwords(service_hash, key_version, service, username, password, service_grams) VALUES(?, ?, ?, ?, ?, ?)";
+	
+	/** @brief Reads one entry. */
+	private static final String SQL_SELECT_ONE = "SELECT service_hash, key_version, service, username, password FROM passwords WHERE service_hash = ?";
+	
+	/** @brief Reads all entries. */
+	private static final String SQL_SELECT_ALL = "SELECT service_hash, key_version, service, username, password FROM passwords";
+	
+	/** @brief Counts the entries. */
+	private static final String SQL_COUNT = "SELECT COUNT(*) FROM passwords";
+	
+	/** @brief Reads a page of entries in blind index order, using its index. */
+	private static final String SQL_SELECT_PAGE = "SELECT service_hash, key_version, service, username, password FROM passwords ORDER BY service_hash LIMIT ? OFFSET ?";
+	
+	/** @brief Reads the first keyset page, in blind index order. */
+	private static final String SQL_SELECT_FIRST = "SELECT service_hash, key_version, service, username, password FROM passwords ORDER BY service_hash LIMIT ?";
+	
+	/** @brief Reads the keyset page that follows a blind index value, using its index. */
+	private static final String SQL_SELECT_AFTER = "SELECT service_hash, key_version, service, username, password FROM passwords WHERE service_hash > ? ORDER BY service_hash LIMIT ?";
+	
+	/** @brief Deletes one entry. */
+	private static final String SQL_DELETE = "DELETE FROM passwords WHERE service_hash = ?";
+	
+	/** @brief Reads the blind index and the stored ciphertext of every row, without decrypting anything. */
+	private static final String SQL_SELECT_SERVICES = "SELECT service_hash, service, username, password FROM passwords";
+	
+	/** @brief Reads the counter that SQLite bumps when another connection commits. */
+	private static final String SQL_DATA_VERSION = "PRAGMA data_version";
+	
+	/** @brief Inserts an entry or replaces the stored one with the same service. */
+	private static final String SQL_UPSERT = """
+		INSERT INTO passwords(service_hash, key_version, service, username, password, service_grams) VALUES(?, ?, ?, ?, ?, ?)
+		ON CONFLICT(service_hash) DO UPDATE SET key_version = excluded.key_version, service = excluded.service,
+			username = excluded.username, password = excluded.password, service_grams = excluded.service_grams
+		""";
+	
+	/** @brief Reads the first batch of rows that do not use the given key version. */
+	private static final String SQL_ROTATE_FIRST = """
+		SELECT service_hash, key_version, service, username, password FROM passwords
+		WHERE key_version <> ? ORDER BY service_hash LIMIT ?
+		""";
 	
+	/** @brief Reads the next batch of rows that do not use the given key version. */
+	private static final String SQL_ROTATE_NEXT = """
+		SELECT service_hash, key_version, service, username, password FROM passwords
+		WHERE key_version <> ? AND service_hash > ? ORDER BY service_hash LIMIT ?
+		""";
+	
+	/** @brief Replaces a re-encrypted entry unless it changed since it was read. */
+	private static final String SQL_ROTATE_UPDATE = """
+		UPDATE passwords SET key_version = ?, service = ?, username = ?, password = ?
+		WHERE service_hash = ? AND key_version = ? AND username = ? AND password = ?
+		""";
+	
+	/** @brief Moves a table in the original layout out of the way. */
+	private static final String SQL_RENAME_V0 = "ALTER TABLE passwords RENAME TO passwords_v0";
+	
+	/** @brief Reads the rows of a table in the original layout. */
+	private static final String SQL_SELECT_V0 = "SELECT service, username, password FROM passwords_v0";
+	
+	/** @brief Drops a converted table in the original layout. */
+	private static final String SQL_DROP_V0 = "DROP TABLE passwords_v0";
+	
+	/** @brief Reads the service names of a table whose index is rebuilt, oldest first. */
+	private static final String SQL_SELECT_V2 = "SELECT rowid, key_version, service FROM passwords ORDER BY rowid";
+	
+	/** @brief Deletes a row that a case-insensitive blind index has no room for. */
+	private static final String SQL_DELETE_ROW = "DELETE FROM passwords WHERE rowid = ?";
+	
+	/** @brief Replaces the blind index and search tokens of a row. */
+	private static final String SQL_REHASH_ROW = "UPDATE passwords SET service_hash = ?, service_grams = ? WHERE rowid = ?";
+	
+	/** @brief Source of blind index keys. */
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	/**
+	 * @brief The master password that unwraps the data key.
+	 */
+	private String masterPassword;
+	
+	/**
+	 * @brief Settings applied to each connection this storage opens.
+	 */
+	private final SqliteProfile profile;
+	
+	/**
+	 * @brief The vault data keys, unwrapped on first use.
+	 *
+	 * Volatile because pipeline threads read it; it is always unwrapped before they start.
+	 */
+	private volatile KeyRing keys;
+	
+	/**
+	 * @brief HMAC keyed with the blind index key, loaded on first use.
+	 */
+	private Mac serviceIndex;
+	
+	/**
+	 * @brief Whether the passwords table is still in the original layout, before it is converted.
+	 */
+	private boolean originalLayout;
+	
+	/**
+	 * @brief Whether the blind index or search tokens predate SCHEMA_VERSION, before they are rebuilt.
+	 */
+	private boolean staleIndex;
+	
+	/**
+	 * @brief Pipeline that decrypts rows in readAll.
+	 */
+	private DecryptionPipeline pipeline = DecryptionPipeline.defaults();
+	
+	/**
+	 * @brief Writer thread that commits put and remove calls in groups.
+	 */
+	private volatile GroupCommitWriter writer = new GroupCommitWriter("sqlite-writer",
+			GroupCommitWriter.DEFAULT_BATCH_SIZE, GroupCommitWriter.DEFAULT_LATENCY_BUDGET_MICROS, this::commitGroup);
+	
+	/**
+	 * @brief The long-lived connection, opened on first use.
+	 */
+	private Connection connection;
+	
+	/**
+	 * @brief Prepared statements of the current connection, keyed by their SQL.
+	 */
+	private final Map<String, PreparedStatement> statements = new HashMap<>();
+	
+	/**
+	 * @brief Counter bumped by each write through this storage and each change seen from outside.
+	 */
+	private long generation;
+	
+	/**
+	 * @brief Last value read from PRAGMA data_version, or -1 if none yet.
+	 */
+	private long dataVersion = -1;
+
+	/**
+	 * @brief Constructs a DatabasePasswordStorage object and initializes the database.
+	 *
+	 * The connection uses the profile selected with the password.sqlite.profile system
+	 * property, BALANCED by default.
+	 * 
+	 * @param masterPassword The master password for encryption/decryption.
+	 */
+	public DatabasePasswordStorage(String masterPassword) {
+		this(masterPassword, SqliteProfile.configured());
+	}
+
+	/**
+	 * @brief Constructs a DatabasePasswordStorage object with a connection profile and initializes the database.
+	 *
+	 * @param masterPassword The master password for encryption/decryption.
+	 * @param profile Settings applied to each connection.
+	 */
+	public DatabasePasswordStorage(String masterPassword, SqliteProfile profile) {
+		this.masterPassword = masterPassword;
+		this.profile = Objects.requireNonNull(profile);
+		createTableIfNotExists();
+	}
+
+	/**
+	 * @brief Sets the pipeline that decrypts rows in readAll.
+	 *
+	 * @param pipeline The pipeline to use.
+	 */
+	public synchronized void setDecryptionPipeline(DecryptionPipeline pipeline) {
+		this.pipeline = Objects.requireNonNull(pipeline);
+	}
+
+	/**
+	 * @brief Sets how put and remove calls are grouped into transactions.
+	 *
+	 * Writes already queued are committed with the previous settings first.
+	 *
+	 * @param batchSize Maximum number of calls per transaction.
+	 * @param latencyBudgetMicros How long the first call of a group waits for others, in microseconds.
+	 */
+	public void setGroupCommit(int batchSize, long latencyBudgetMicros) {
+		GroupCommitWriter previous = writer;
+		writer = new GroupCommitWriter("sqlite-writer", batchSize, latencyBudgetMicros, this::commitGroup);
+		previous.flush();
+	}
+
+	/**
+	 * @brief Returns the vault data keys, unwrapping them on first use.
+	 *
+	 * @return The data keys.
+	 * @throws SQLException If the keys cannot be read or stored, or the master password
+	 *         does not open the vault.
+	 */
+	private KeyRing keys() throws SQLException {
+		KeyRing ring = keys;
+		if (ring == null) {
+			ring = VaultKey.unlock(new MetaTable(), masterPassword);
+			if (ring == null) {
+				throw new SQLException("The master password does not open this vault");
+			}
+			keys = ring;
+		}
+		return ring;
+	}
+
+	/**
+	 * @brief Returns the blind index of a service name.
+	 *
+	 * The index key is random and kept in vault_meta, encrypted with the data key, so a
+	 * key rotation does not change the index. It is created when a vault first needs it.
+	 * The name is normalized with Password.key() first, so the index ignores case.
+	 * Must be called with the storage lock held.
+	 *
+	 * @param service The service name.
+	 * @return The truncated HMAC of the normalized name.
+	 * @throws SQLException If the index key cannot be read, created or decrypted.
+	 */
+	private byte[] serviceHash(String service) throws SQLException {
+		byte[] key = Password.key(service).getBytes(StandardCharsets.UTF_8);
+		return Arrays.copyOf(indexMac().doFinal(key), SERVICE_HASH_BYTES);
+	}
+
+	/**
+	 * @brief Returns the search tokens of a service name.
+	 *
+	 * Every run of three characters of Password.key() of the name becomes a token: the
+	 * hex form of its HMAC under the blind index key, so the full-text index holds no
+	 * readable text. A name shorter than three characters has no tokens. Equal runs give
+	 * equal tokens, so the index reveals which names share runs, but not the runs.
+	 *
+	 * @param service The service name.
+	 * @return The distinct tokens, separated by spaces.
+	 * @throws SQLException If the index key cannot be read.
+	 */
+	private String serviceGrams(String service) throws SQLException {
+		String key = Password.key(service);
+		Set<String> tokens = new LinkedHashSet<>();
+		for (int i = 0; i + SearchIndex.GRAM <= key.length(); i++) {
+			tokens.add(gramToken(key.substring(i, i + SearchIndex.GRAM)));
+		}
+		return String.join(" ", tokens);
+	}
+
+	/**
+	 * @brief Returns the search token of one run of characters.
+	 *
+	 * @param gram The run of characters.
+	 * @return The hex form of its truncated HMAC.
+	 * @throws SQLException If the index key cannot be read.
+	 */
+	private String gramToken(String gram) throws SQLException {
+		// The prefix keeps tokens apart from the blind index of a three-character name
+		byte[] mac = indexMac().doFinal(("\0" + gram).getBytes(StandardCharsets.UTF_8));
+		return HexFormat.of().formatHex(mac, 0, GRAM_TOKEN_BYTES);
+	}
+
+	/**
+	 * @brief Returns the HMAC keyed with the blind index key, loading it on first use.
+	 *
+	 * @return The HMAC.
+	 * @throws SQLException If the index key cannot be read, created or decrypted.
+	 */
+	private Mac indexMac() throws SQLException {
+		if (serviceIndex == null) {
+			KeyRing ring = keys();
+			String stored = loadMeta(META_INDEX_KEY);
+			if (stored == null) {
+				storeMeta(SQL_INSERT_META, META_INDEX_KEY, newIndexKey(ring));
+				stored = loadMeta(META_INDEX_KEY);
+			}
+			byte[] key;
+			try {
+				key = decryptIndexKey(ring, stored);
+			} catch (SQLException e) {
+				try (ResultSet rs = statement(SQL_COUNT).executeQuery()) {
+					if (rs.next() && rs.getInt(1) > 0) {
+						throw e;
+					}
+				}
+				// The data key of an emptied vault was replaced; so is its index key
+				String replaced = newIndexKey(ring);
+				storeMeta(SQL_UPSERT_META, META_INDEX_KEY, replaced);
+				key = decryptIndexKey(ring, replaced);
+			}
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(key, "HmacSHA256"));
+				serviceIndex = mac;
+			} catch (GeneralSecurityException e) {
+				throw new SQLException("HMAC-SHA256 is not available", e);
+			}
+		}
+		return serviceIndex;
+	}
+
+	/**
+	 * @brief Creates a random blind index key.
+	 *
+	 * @param ring The data keys.
+	 * @return The key encrypted with the current data key, as stored in vault_meta.
+	 * @throws SQLException If the key cannot be encrypted.
+	 */
+	private static String newIndexKey(KeyRing ring) throws SQLException {
+		byte[] key = new byte[VaultKey.KEY_BYTES];
+		RANDOM.nextBytes(key);
+		try {
+			return ring.encrypt(Base64.getEncoder().encodeToString(key));
+		} catch (GeneralSecurityException e) {
+			throw new SQLException("Could not encrypt the service index key", e);
+		}
+	}
+
+	/**
+	 * @brief Decrypts a stored blind index key.
+	 *
+	 * @param ring The data keys.
+	 * @param stored The key as stored in vault_meta.
+	 * @return The key.
+	 * @throws SQLException If the key cannot be decrypted.
+	 */
+	private static byte[] decryptIndexKey(KeyRing ring, String stored) throws SQLException {
+		try {
+			return Base64.getDecoder().decode(ring.decrypt(stored));
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			throw new SQLException("The master password does not unlock the service index", e);
+		}
+	}
+
+	/**
+	 * @brief Reads one vault_meta value.
+	 *
+	 * @param name The name of the value.
+	 * @return The value, or null if it is not stored.
+	 * @throws SQLException If the table cannot be read.
+	 */
+	private String loadMeta(String name) throws SQLException {
+		PreparedStatement select = statement(SQL_SELECT_META);
+		select.setString(1, name);
+		try (ResultSet rs = select.executeQuery()) {
+			return rs.next() ? rs.getString(1) : null;
+		}
+	}
+
+	/**
+	 * @brief Writes one vault_meta value.
+	 *
+	 * @param sql SQL_UPSERT_META, or SQL_INSERT_META to keep a value already stored.
+	 * @param name The name of the value.
+	 * @param value The value.
+	 * @throws SQLException If the table cannot be written.
+	 */
+	private void storeMeta(String sql, String name, String value) throws SQLException {
+		PreparedStatement upsert = statement(sql);
+		upsert.setString(1, name);
+		upsert.setString(2, value);
+		upsert.executeUpdate();
+	}
+
+	/**
+	 * @brief One row of the passwords table, still encrypted.
+	 */
+	private static final class Row {
+		/** @brief The blind index of the service name. */
+		final byte[] serviceHash;
+		/** @brief Version of the data key of the encrypted columns. */
+		final int keyVersion;
+		/** @brief The encrypted service name. */
+		final byte[] service;
+		/** @brief The encrypted username. */
+		final byte[] username;
+		/** @brief The encrypted password. */
+		final byte[] password;
+
+		/**
+		 * @brief Reads the current row of a query that selects all columns.
+		 *
+		 * @param rs The result set, positioned on a row.
+		 * @throws SQLException If the row cannot be read.
+		 */
+		Row(ResultSet rs) throws SQLException {
+			serviceHash = rs.getBytes("service_hash");
+			keyVersion = rs.getInt("key_version");
+			service = rs.getBytes("service");
+			username = rs.getBytes("username");
+			password = rs.getBytes("password");
+		}
+
+		/**
+		 * @brief Returns the stamp of this version of the row (see stamp()).
+		 *
+		 * @return The stamp.
+		 */
+		Object stamp() {
+			return DatabasePasswordStorage.stamp(service, username, password);
+		}
+	}
+
+	/**
+	 * @brief Returns the token Password.markStored() records for one version of a row.
+	 *
+	 * The token is the stored ciphertext, so it differs as soon as the row is written
+	 * again by any connection, and only an entry that still matches the row is skipped.
+	 *
+	 * @param service The encrypted service name.
+	 * @param username The encrypted username.
+	 * @param password The encrypted password.
+	 * @return The stamp.
+	 */
+	private static Object stamp(byte[] service, byte[] username, byte[] password) {
+		return List.of(ByteBuffer.wrap(service), ByteBuffer.wrap(username), ByteBuffer.wrap(password));
+	}
+
+	/**
+	 * @brief Creates an entry whose password stays encrypted until it is read.
+	 *
+	 * The entry is marked as matching the row. The password is checked up front, so a
+	 * damaged row is skipped like one whose username cannot be read, instead of failing
+	 * whoever reads its password later.
+	 *
+	 * @param row The stored row.
+	 * @param ring The data keys.
+	 * @return The entry.
+	 * @throws GeneralSecurityException If a column of the row cannot be decrypted.
+	 */
+	private static Password lazy(Row row, KeyRing ring) throws GeneralSecurityException {
+		SessionKey key = ring.keyFor(row.keyVersion);
+		if (!key.decrypts(row.password)) {
+			throw new GeneralSecurityException("Could not decrypt the password");
+		}
+		Password p = new LazyPassword(text(key, row.service), text(key, row.username), row.password, key);
+		p.markStored(row.stamp());
+		return p;
+	}
+
+	/**
+	 * @brief Decrypts a text column.
+	 *
+	 * @param key The data key of the row.
+	 * @param ciphertext The stored value.
+	 * @return The text.
+	 * @throws GeneralSecurityException If decryption fails.
+	 */
+	private static String text(SessionKey key, byte[] ciphertext) throws GeneralSecurityException {
+		return new String(key.decrypt(ciphertext), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @brief Encrypts a text column.
+	 *
+	 * @param key The data key of the row.
+	 * @param text The text.
+	 * @return The value to store.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	private static byte[] bytes(SessionKey key, String text) throws GeneralSecurityException {
+		return key.encrypt(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @brief Binds the columns of a row encrypted with the current key.
+	 *
+	 * @param pstmt SQL_INSERT or SQL_UPSERT.
+	 * @param p The entry.
+	 * @param ring The data keys.
+	 * @return The stamp of the row once it is written (see stamp()).
+	 * @throws SQLException If the index key cannot be read.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	private Object bindEntry(PreparedStatement pstmt, Password p, KeyRing ring)
+			throws SQLException, GeneralSecurityException {
+		SessionKey key = ring.currentKey();
+		// Entries loaded lazily still hold the stored ciphertext, if it uses the current key
+		byte[] password = p.ciphertextFor(key);
+		if (password == null) {
+			password = bytes(key, p.getPassword());
+		}
+		byte[] service = bytes(key, p.getService());
+		byte[] username = bytes(key, p.getUsername());
+		pstmt.setBytes(1, serviceHash(p.getService()));
+		pstmt.setInt(2, ring.currentVersion());
+		pstmt.setBytes(3, service);
+		pstmt.setBytes(4, username);
+		pstmt.setBytes(5, password);
+		pstmt.setString(6, serviceGrams(p.getService()));
+		return stamp(service, username, password);
+	}
+
+	/**
+	 * @brief The vault_meta table as a VaultKey header.
+	 */
+	private final class MetaTable implements VaultKey.Header<SQLException> {
+		@Override
+		public String load() throws SQLException {
+			return loadMeta(META_DATA_KEY);
+		}
+
+		@Override
+		public void save(String header) throws SQLException {
+			storeMeta(SQL_UPSERT_META, META_DATA_KEY, header);
+		}
+
+		@Override
+		public String sampleRecord() throws SQLException {
+			if (originalLayout) {
+				try (ResultSet rs = statement(SQL_SAMPLE_V0).executeQuery()) {
+					return rs.next() ? rs.getString(1) : null;
+				}
+			}
+			try (ResultSet rs = statement(SQL_SAMPLE).executeQuery()) {
+				// In the tagged text form the key file headers use
+				return rs.next() ? KeyRing.tag(rs.getInt(1), Base64.getEncoder().encodeToString(rs.getBytes(2))) : null;
+			}
+		}
+	}
+
+	/**
+	 * @brief Wraps the vault data key with a new master password.
+	 *
+	 * Only the data_key row of vault_meta is rewritten.
+	 *
+	 * @param newMasterPassword The new master password.
+	 * @return true on success; false if the key cannot be unwrapped or written.
+	 */
+	@Override
+	public synchronized boolean changeMasterPassword(String newMasterPassword) {
+		try {
+			if (!VaultKey.rewrap(new MetaTable(), masterPassword, newMasterPassword)) {
+				return false;
+			}
+			masterPassword = newMasterPassword;
+			return true;
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Re-encrypts the vault with a new data key.
+	 *
+	 * Rotates in batches of VaultKey.ROTATION_BATCH_SIZE rows.
+	 *
+	 * @return true if every entry now uses the new key.
+	 */
+	@Override
+	public boolean rotateKey() {
+		return rotateKey(VaultKey.ROTATION_BATCH_SIZE);
+	}
+
+	/**
+	 * @brief Re-encrypts the vault with a new data key, batch by batch.
+	 *
+	 * A new key version is added to vault_meta first, so rows written while the
+	 * rotation runs already use it. The rows whose key_version is older are then read
+	 * in blind index order, a batch at a time; they are re-encrypted on the decryption
+	 * pipeline and written back in one transaction per batch. Only this connection is
+	 * blocked, and only while a batch is written. An interrupted rotation resumes with
+	 * the rows it did not reach, as the others already carry the new version. A final
+	 * pass re-encrypts rows that other connections wrote with an old key meanwhile;
+	 * then the blind index key is encrypted with the new key and the old keys are dropped.
+	 * The blind index itself does not change.
+	 *
+	 * @param batchSize Number of rows per batch.
+	 * @return true if every entry now uses the new key; false if the master password
+	 *         does not unlock the vault or some entries could not be re-encrypted.
+	 * @throws IllegalArgumentException If batchSize is less than 1.
+	 */
+	public boolean rotateKey(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		try {
+			synchronized (this) {
+				KeyRing ring = VaultKey.beginRotation(new MetaTable(), masterPassword);
+				if (ring == null) {
+					return false;
+				}
+				keys = ring;
+			}
+			boolean complete = rotatePass(batchSize);
+			synchronized (this) {
+				// Catch rows written with an old key by another connection while the batches ran
+				complete &= rotatePass(batchSize);
+				if (!complete) {
+					return false;
+				}
+				KeyRing ring = keys();
+				String indexKey = loadMeta(META_INDEX_KEY);
+				if (indexKey != null && !ring.isCurrent(indexKey)) {
+					storeMeta(SQL_UPSERT_META, META_INDEX_KEY, reencrypt(ring, indexKey));
+				}
+				keys = VaultKey.finishRotation(new MetaTable(), ring, masterPassword);
+			}
+			return true;
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Encrypts a tagged vault_meta value with the current key.
+	 *
+	 * @param ring The data keys.
+	 * @param value The value encrypted with any key of the ring.
+	 * @return The value encrypted with the current key.
+	 * @throws SQLException If the value cannot be decrypted.
+	 */
+	private static String reencrypt(KeyRing ring, String value) throws SQLException {
+		try {
+			return ring.encrypt(ring.decrypt(value));
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			throw new SQLException("Could not re-encrypt the service index key", e);
+		}
+	}
+
+	/**
+	 * @brief Re-encrypts the rows that do not use the current key, batch by batch.
+	 *
+	 * @param batchSize Number of rows per batch.
+	 * @return true if all rows now use the current key.
+	 * @throws SQLException If the rows cannot be read or written.
+	 */
+	private boolean rotatePass(int batchSize) throws SQLException {
+		boolean complete = true;
+		byte[] after = null;
+		while (true) {
+			synchronized (this) {
+				int current = keys().currentVersion();
+				PreparedStatement select;
+				if (after == null) {
+					select = statement(SQL_ROTATE_FIRST);
+					select.setInt(1, current);
+					select.setInt(2, batchSize);
+				} else {
+					select = statement(SQL_ROTATE_NEXT);
+					select.setInt(1, current);
+					select.setBytes(2, after);
+					select.setInt(3, batchSize);
+				}
+				List<Row> rows = new ArrayList<>();
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next()) {
+						rows.add(new Row(rs));
+					}
+				}
+				if (rows.isEmpty()) {
+					return complete;
+				}
+				complete &= rotateRows(rows);
+				after = rows.get(rows.size() - 1).serviceHash;
+			}
+		}
+	}
+
+	/**
+	 * @brief Re-encrypts a batch of rows that use an old key.
+	 *
+	 * Must be called with the storage lock held. Rows that cannot be decrypted are
+	 * left as they are with a message; rows changed since they were read are skipped,
+	 * as they were written with the current key or will be caught by the final pass.
+	 *
+	 * @param rows The rows.
+	 * @return true if all rows now use the current key.
+	 * @throws SQLException If the rows cannot be written.
+	 */
+	private boolean rotateRows(List<Row> rows) throws SQLException {
+		KeyRing ring = keys();
+		SessionKey key = ring.currentKey();
+		int version = ring.currentVersion();
+		int[] failures = { 0 };
+		Iterator<Row> source = rows.iterator();
+		List<Object[]> rotated = pipeline.run(() -> source.hasNext() ? source.next() : null,
+				row -> {
+					SessionKey old = ring.keyFor(row.keyVersion);
+					return new Object[] { version, key.encrypt(old.decrypt(row.service)),
+							key.encrypt(old.decrypt(row.username)), key.encrypt(old.decrypt(row.password)),
+							row.serviceHash, row.keyVersion, row.username, row.password };
+				},
+				(row, e) -> {
+					failures[0]++;
+					System.out.println("Error re-encrypting entry: " + e.getMessage());
+				});
+		if (!rotated.isEmpty()) {
+			inTransaction(conn -> {
+				PreparedStatement update = statement(SQL_ROTATE_UPDATE);
+				for (Object[] row : rotated) {
+					for (int i = 0; i < row.length; i++) {
+						update.setObject(i + 1, row[i]);
+					}
+					update.addBatch();
+				}
+				update.executeBatch();
+			});
+		}
+		return failures[0] == 0;
+	}
+
+	/**
+	 * @brief Checks whether the default database exists, without creating it.
+	 *
+	 * @return true if the database file exists.
+	 */
+	static boolean exists() {
+		return new File(DB_FILE).exists();
+	}
+
+	/**
+	 * @brief Retrieves the database URL for the SQLite connection.
+	 *
+	 * @return A string containing the SQLite database URL.
+	 */
+	protected String getDatabaseUrl() {
+		return DB_URL;
+	}
+
+	/**
+	 * @brief Returns the managed connection, opening it if needed.
+	 *
+	 * A newly opened connection gets the profile applied and the passwords table created if
+	 * it is missing; a table in the original layout or with an older index is converted. If the previous connection
+	 * was closed, a new one is opened and the statement cache is reset.
+	 *
+	 * @return The open connection.
+	 * @throws SQLException If the connection cannot be opened or initialized.
+	 */
+	protected synchronized Connection getConnection() throws SQLException {
+		if (connection == null || connection.isClosed()) {
+			statements.clear();
+			// data_version is per connection, so the next generation() call must bump
+			dataVersion = -1;
+			serviceIndex = null;
+			Connection conn = DriverManager.getConnection(getDatabaseUrl());
+			try (Statement stmt = conn.createStatement()) {
+				profile.apply(conn);
+				stmt.execute(SQL_CREATE_META);
+				int version = hasPasswordsTable(stmt) ? schemaVersion(stmt) : SCHEMA_VERSION;
+				originalLayout = version < EXACT_INDEX_VERSION;
+				staleIndex = !originalLayout && version < SCHEMA_VERSION;
+				if (!originalLayout && !staleIndex) {
+					stmt.execute(SQL_CREATE_TABLE);
+					createSearchIndex(stmt);
+					stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+				}
+			} catch (SQLException e) {
+				conn.close();
+				throw e;
+			}
+			connection = conn;
+			if (originalLayout || staleIndex) {
+				try {
+					if (originalLayout) {
+						convertLayout();
+					} else {
+						convertIndex();
+					}
+				} catch (SQLException e) {
+					close();
+					throw e;
+				}
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * @brief Reads the layout version of the database.
+	 *
+	 * @param stmt A statement on the connection.
+	 * @return The value of PRAGMA user_version.
+	 * @throws SQLException If it cannot be read.
+	 */
+	private static int schemaVersion(Statement stmt) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+
+	/**
+	 * @brief Checks whether the database has a passwords table.
+	 *
+	 * @param stmt A statement on the connection.
+	 * @return true if the table exists.
+	 * @throws SQLException If the schema cannot be read.
+	 */
+	private static boolean hasPasswordsTable(Statement stmt) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'passwords'")) {
+			return rs.next();
+		}
+	}
+
+	/**
+	 * @brief Converts a passwords table in the original layout, in one transaction.
+	 *
+	 * A row whose username and password use the same key version is copied without
+	 * decrypting it; only the service name is encrypted and indexed. Other rows are
+	 * decrypted and encrypted with the current key; rows that cannot be read are
+	 * dropped with a message. Of names that differ only in case, the last row is kept
+	 * and the others are reported. The conversion is refused if the master password does not
+	 * open the vault, as the service names would then be encrypted with the wrong key.
+	 *
+	 * @throws SQLException If the vault cannot be opened or the conversion fails.
+	 */
+	private void convertLayout() throws SQLException {
+		KeyRing ring = keys();
+		if (!ring.isVerified()) {
+			throw new SQLException("The master password does not unlock the vault, so it cannot be converted");
+		}
+		inTransaction(conn -> {
+			try (Statement stmt = conn.createStatement()) {
+				if (schemaVersion(stmt) >= SCHEMA_VERSION) {
+					// Converted by another connection meanwhile
+					return;
+				}
+				stmt.execute(SQL_RENAME_V0);
+				stmt.execute(SQL_CREATE_TABLE);
+				createSearchIndex(stmt);
+				PreparedStatement insert = statement(SQL_UPSERT);
+				Set<String> seen = new HashSet<>();
+				int pending = 0;
+				try (ResultSet rs = stmt.executeQuery(SQL_SELECT_V0)) {
+					while (rs.next()) {
+						String service = rs.getString(1);
+						if (!seen.add(Password.key(service))) {
+							System.out.println("Entry for " + service + " replaces an entry whose name differs only in case.");
+						}
+						if (convertRow(insert, service, rs.getString(2), rs.getString(3), ring)
+								&& ++pending == BATCH_SIZE) {
+							insert.executeBatch();
+							pending = 0;
+						}
+					}
+				}
+				if (pending > 0) {
+					insert.executeBatch();
+				}
+				stmt.execute(SQL_DROP_V0);
+				stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+			}
+		});
+		originalLayout = false;
+	}
+
+	/**
+	 * @brief Adds one row in the original layout to a batch of inserts.
+	 *
+	 * @param insert SQL_UPSERT.
+	 * @param service The service name.
+	 * @param username The tagged Base64 username.
+	 * @param password The tagged Base64 password.
+	 * @param ring The data keys.
+	 * @return true if the row was added to the batch.
+	 * @throws SQLException If the index key cannot be read.
+	 */
+	private boolean convertRow(PreparedStatement insert, String service, String username, String password,
+			KeyRing ring) throws SQLException {
+		try {
+			int version = KeyRing.version(username);
+			SessionKey key;
+			byte[] user;
+			byte[] pass;
+			if (version == KeyRing.version(password) && ring.keys().containsKey(version)) {
+				key = ring.keyFor(version);
+				user = Base64.getDecoder().decode(KeyRing.body(username));
+				pass = Base64.getDecoder().decode(KeyRing.body(password));
+			} else {
+				key = ring.currentKey();
+				version = ring.currentVersion();
+				user = bytes(key, ring.decrypt(username));
+				pass = bytes(key, ring.decrypt(password));
+			}
+			insert.setBytes(1, serviceHash(service));
+			insert.setInt(2, version);
+			insert.setBytes(3, bytes(key, service));
+			insert.setBytes(4, user);
+			insert.setBytes(5, pass);
+			insert.setString(6, serviceGrams(service));
+			insert.addBatch();
+			return true;
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			System.out.println("Error converting entry for " + service + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Rebuilds the index of a table in layout version 2 or 3, in one transaction.
+	 *
+	 * The search tokens are added and, for version 2, the case-sensitive blind index is
+	 * replaced by a case-insensitive one. Only the service names are decrypted; the
+	 * other columns are left as they are. Of names that differ only in case, the most
+	 * recently added row is kept and the others are dropped with a message, as are rows
+	 * whose name cannot be decrypted. Like
+	 * convertLayout(), it is refused if the master password does not open the vault.
+	 *
+	 * @throws SQLException If the vault cannot be opened or the conversion fails.
+	 */
+	private void convertIndex() throws SQLException {
+		KeyRing ring = keys();
+		if (!ring.isVerified()) {
+			throw new SQLException("The master password does not unlock the vault, so it cannot be converted");
+		}
+		inTransaction(conn -> {
+			try (Statement stmt = conn.createStatement()) {
+				if (schemaVersion(stmt) >= SCHEMA_VERSION) {
+					// Converted by another connection meanwhile
+					return;
+				}
+				stmt.execute(SQL_ADD_GRAMS);
+				Map<ByteBuffer, Long> rows = new LinkedHashMap<>();
+				Map<ByteBuffer, String> names = new HashMap<>();
+				List<Long> dropped = new ArrayList<>();
+				try (ResultSet rs = stmt.executeQuery(SQL_SELECT_V2)) {
+					while (rs.next()) {
+						long rowid = rs.getLong(1);
+						String service;
+						try {
+							service = text(ring.keyFor(rs.getInt(2)), rs.getBytes(3));
+						} catch (GeneralSecurityException e) {
+							System.out.println("Error converting entry: " + e.getMessage());
+							dropped.add(rowid);
+							continue;
+						}
+						ByteBuffer hash = ByteBuffer.wrap(serviceHash(service));
+						Long replaced = rows.put(hash, rowid);
+						if (replaced != null) {
+							System.out.println("Entry for " + names.get(hash) + " dropped: " + service
+									+ " differs from it only in case.");
+							dropped.add(replaced);
+						}
+						names.put(hash, service);
+					}
+				}
+				// With the duplicates gone, no new hash can equal the old hash of another row
+				PreparedStatement delete = statement(SQL_DELETE_ROW);
+				for (long rowid : dropped) {
+					delete.setLong(1, rowid);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+				PreparedStatement rehash = statement(SQL_REHASH_ROW);
+				for (Map.Entry<ByteBuffer, Long> row : rows.entrySet()) {
+					rehash.setBytes(1, row.getKey().array());
+					rehash.setString(2, serviceGrams(names.get(row.getKey())));
+					rehash.setLong(3, row.getValue());
+					rehash.addBatch();
+				}
+				rehash.executeBatch();
+				createSearchIndex(stmt);
+				stmt.execute(SQL_REBUILD_SEARCH);
+				stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+			}
+		});
+		staleIndex = false;
+	}
+
+	/**
+	 * @brief Creates service_search and the triggers that keep it in sync, if they are missing.
+	 *
+	 * @param stmt A statement on the connection.
+	 * @throws SQLException If they cannot be created.
+	 */
+	private static void createSearchIndex(Statement stmt) throws SQLException {
+		stmt.execute(SQL_CREATE_SEARCH);
+		for (String trigger : SQL_CREATE_SEARCH_TRIGGERS) {
+			stmt.execute(trigger);
+		}
+	}
+
 	/**
-	 * @brief The master password used for encryption/decryption.
+	 * @brief Returns a cached prepared statement for the given SQL.
+	 *
+	 * The statement is prepared on first use and reused afterwards with its parameters and batch cleared.
+	 *
+	 * @param sql One of the fixed SQL strings of this class.
+	 * @return The prepared statement.
+	 * @throws SQLException If the statement cannot be prepared.
 	 */
-	private final String masterPassword;
+	private PreparedStatement statement(String sql) throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatement pstmt = statements.get(sql);
+		if (pstmt == null) {
+			pstmt = conn.prepareStatement(sql);
+			statements.put(sql, pstmt);
+		} else {
+			pstmt.clearParameters();
+			pstmt.clearBatch();
+		}
+		return pstmt;
+	}
 
 	/**
-	 * @brief Constructs a DatabasePasswordStorage object and initializes the database.
-	 * 
-	 * @param masterPassword The master password for encryption/decryption.
+	 * @brief Closes the cached statements and the connection.
+	 *
+	 * The storage can still be used afterwards; a new connection is opened on demand.
 	 */
-	public DatabasePasswordStorage(String masterPassword) {
-		this.masterPassword = masterPassword;
-		createTableIfNotExists();
+	@Override
+	public void close() {
+		// The writer thread needs the lock, so it cannot be waited for while holding it
+		if (!Thread.holdsLock(this)) {
+			writer.flush();
+		}
+		closeConnection();
 	}
 
 	/**
-	 * @brief Retrieves the database URL for the SQLite connection.
-	 *
-	 * @return A string containing the SQLite database URL.
+	 * @brief Closes the prepared statements and the connection.
 	 */
-	protected String getDatabaseUrl() {
-		return DB_URL;
+	private synchronized void closeConnection() {
+		for (PreparedStatement pstmt : statements.values()) {
+			try {
+				pstmt.close();
+			} catch (SQLException e) {
+				System.out.println("Database error: " + e.getMessage());
+			}
+		}
+		statements.clear();
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				System.out.println("Database error: " + e.getMessage());
+			}
+			connection = null;
+		}
 	}
 
 	/**
 	 * @brief Creates the passwords table in the database if it does not already exist.
 	 *
-	 * This method executes an SQL statement to initialize the database structure required
-	 * to store password entries.
+	 * This method opens the managed connection, which initializes the database structure
+	 * required to store password entries.
 	 */
 	private void createTableIfNotExists() {
-		try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-			 Statement stmt = conn.createStatement()) {
-			String sql = """
-				CREATE TABLE IF NOT EXISTS passwords (
-					service TEXT PRIMARY KEY,
-					username TEXT NOT NULL,
-					password TEXT NOT NULL
-				)
-				""";
-			stmt.execute(sql);
+		try {
+			getConnection();
 		} catch (SQLException e) {
 			System.out.println("Error initializing database: " + e.getMessage());
 		}
@@ -72,7 +1216,7 @@ public class DatabasePasswordStorage implements InterfacePasswordStorage {
 	 * @param scanner the Scanner object used to obtain user input.
 	 */
 	@Override
-	public void add(Scanner scanner) {
+	public synchronized void add(Scanner scanner) {
 		System.out.print("Service: ");
 		String service = scanner.nextLine();
 		System.out.print("Username: ");
@@ -82,32 +1226,21 @@ public class DatabasePasswordStorage implements InterfacePasswordStorage {
 
 		try {
 			// Check if service already exists
-			try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-				 PreparedStatement pstmt = conn.prepareStatement(
-						"SELECT 1 FROM passwords WHERE service = ?")) {
-				pstmt.setString(1, service);
-				try (ResultSet rs = pstmt.executeQuery()) {
-					if (rs.next()) {
-						System.out.println("A password for this service already exists. Use update option to modify it.");
-						return;
-					}
+			PreparedStatement exists = statement(SQL_EXISTS);
+			exists.setBytes(1, serviceHash(service));
+			try (ResultSet rs = exists.executeQuery()) {
+				if (rs.next()) {
+					System.out.println("A password for this service already exists. Use update option to modify it.");
+					return;
 				}
 			}
 			
-			// Encrypt username and password
-			String encryptedUser = EncryptionUtil.encrypt(user, masterPassword);
-			String encryptedPass = EncryptionUtil.encrypt(pass, masterPassword);
-			
-			// Insert new record
-			try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-				 PreparedStatement pstmt = conn.prepareStatement(
-						"INSERT INTO passwords(service, username, password) VALUES(?, ?, ?)")) {
-				pstmt.setString(1, service);
-				pstmt.setString(2, encryptedUser);
-				pstmt.setString(3, encryptedPass);
-				pstmt.executeUpdate();
-				System.out.println("Password saved successfully.");
-			}
+			// Encrypt the service name, username and password, and insert the new record
+			PreparedStatement pstmt = statement(SQL_INSERT);
+			bindEntry(pstmt, new Password(service, user, pass), keys());
+			pstmt.executeUpdate();
+			generation++;
+			System.out.println("Password saved successfully.");
 		} catch (SQLException e) {
 			System.out.println("Database error: " + e.getMessage());
 		} catch (Exception e) {
@@ -122,24 +1255,17 @@ public class DatabasePasswordStorage implements InterfacePasswordStorage {
 	 * decrypts the sensitive data, and prints each entry using the Password class's toString() method.
 	 */
 	@Override
-	public void view() {
-		try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-			 Statement stmt = conn.createStatement();
-			 ResultSet rs = stmt.executeQuery("SELECT * FROM passwords")) {
+	public synchronized void view() {
+		try (ResultSet rs = statement(SQL_SELECT_ALL).executeQuery()) {
 
 			int count = 0;
 			while (rs.next()) {
 				try {
-					String service = rs.getString("service");
-					String encryptedUsername = rs.getString("username");
-					String encryptedPassword = rs.getString("password");
-					
-					// Decrypt username and password
-					String username = EncryptionUtil.decrypt(encryptedUsername, masterPassword);
-					String password = EncryptionUtil.decrypt(encryptedPassword, masterPassword);
+					// Decrypt the service name, username and password
+					String entry = lazy(new Row(rs), keys()).toString();
 					
 					count++;
-					System.out.println(count + ". " + new Password(service, username, password));
+					System.out.println(count + ". " + entry);
 				} catch (Exception e) {
 					System.out.println("Error decrypting entry: " + e.getMessage());
 				}
@@ -163,27 +1289,24 @@ public class DatabasePasswordStorage implements InterfacePasswordStorage {
 	 * @param scanner the Scanner object used to obtain user input.
 	 */
 	@Override
-	public void update(Scanner scanner) {
+	public synchronized void update(Scanner scanner) {
 		System.out.print("Service to update: ");
 		String service = scanner.nextLine();
 		
 		try {
 			// Check if service exists and get current values
-			String currentUsername = null;
-			try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-				 PreparedStatement pstmt = conn.prepareStatement(
-						"SELECT username FROM passwords WHERE service = ?")) {
-				pstmt.setString(1, service);
-				try (ResultSet rs = pstmt.executeQuery()) {
-					if (rs.next()) {
-						String encryptedUsername = rs.getString("username");
-						currentUsername = EncryptionUtil.decrypt(encryptedUsername, masterPassword);
-					} else {
-						System.out.println("Service not found.");
-						return;
-					}
+			Password entry;
+			PreparedStatement select = statement(SQL_SELECT_ONE);
+			select.setBytes(1, serviceHash(service));
+			try (ResultSet rs = select.executeQuery()) {
+				if (rs.next()) {
+					entry = lazy(new Row(rs), keys());
+				} else {
+					System.out.println("Service not found.");
+					return;
 				}
 			}
+			String currentUsername = entry.getUsername();
 			
 			System.out.print("New username (leave blank to keep current '" + currentUsername + "'): ");
 			String username = scanner.nextLine();
@@ -194,31 +1317,17 @@ public class DatabasePasswordStorage implements InterfacePasswordStorage {
 			System.out.print("New password (leave blank to keep current): ");
 			String password = scanner.nextLine();
 			
-			// Encrypt the new values
-			String encryptedUsername = EncryptionUtil.encrypt(username, masterPassword);
-			
-			if (password.trim().isEmpty()) {
-				// Only update username
-				try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-					 PreparedStatement pstmt = conn.prepareStatement(
-						"UPDATE passwords SET username = ? WHERE service = ?")) {
-					pstmt.setString(1, encryptedUsername);
-					pstmt.setString(2, service);
-					pstmt.executeUpdate();
-				}
-			} else {
-				// Update both username and password
-				String encryptedPassword = EncryptionUtil.encrypt(password, masterPassword);
-				try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-					 PreparedStatement pstmt = conn.prepareStatement(
-						"UPDATE passwords SET username = ?, password = ? WHERE service = ?")) {
-					pstmt.setString(1, encryptedUsername);
-					pstmt.setString(2, encryptedPassword);
-					pstmt.setString(3, service);
-					pstmt.executeUpdate();
-				}
+			entry.setUsername(username);
+			if (!password.trim().isEmpty()) {
+				entry.setPassword(password);
 			}
 			
+			// Encrypt the new values; a kept password keeps its ciphertext if it uses the current key
+			PreparedStatement pstmt = statement(SQL_UPSERT);
+			bindEntry(pstmt, entry, keys());
+			pstmt.executeUpdate();
+			generation++;
+			
 			System.out.println("Password updated successfully.");
 			
 		} catch (SQLException e) {
@@ -237,15 +1346,16 @@ public class DatabasePasswordStorage implements InterfacePasswordStorage {
 	 * @param scanner the Scanner object used to obtain user input.
 	 */
 	@Override
-	public void delete(Scanner scanner) {
+	public synchronized void delete(Scanner scanner) {
 		System.out.print("Service to delete: ");
 		String service = scanner.nextLine();
 
-		try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-			 PreparedStatement pstmt = conn.prepareStatement("DELETE FROM passwords WHERE service = ?")) {
-			pstmt.setString(1, service);
+		try {
+			PreparedStatement pstmt = statement(SQL_DELETE);
+			pstmt.setBytes(1, serviceHash(service));
 			int affected = pstmt.executeUpdate();
 			if (affected > 0) {
+				generation++;
 				System.out.println("Password deleted successfully.");
 			} else {
 				System.out.println("Service not found.");
@@ -255,76 +1365,607 @@ public class DatabasePasswordStorage implements InterfacePasswordStorage {
 		}
 	}
 
+	/**
+	 * @brief Returns a stamp that changes whenever the stored entries may have changed.
+	 *
+	 * Writes through this storage bump the stamp directly. Commits made by other
+	 * connections are detected with PRAGMA data_version, which reads no rows; the data
+	 * keys are then unwrapped again, as another connection may have rotated them.
+	 *
+	 * @return The current generation, or UNKNOWN_GENERATION if it cannot be read.
+	 */
+	@Override
+	public synchronized long generation() {
+		try (ResultSet rs = statement(SQL_DATA_VERSION).executeQuery()) {
+			long version = rs.next() ? rs.getLong(1) : -1;
+			if (version != dataVersion) {
+				dataVersion = version;
+				keys = null;
+				serviceIndex = null;
+				generation++;
+			}
+			return generation;
+		} catch (SQLException e) {
+			return UNKNOWN_GENERATION;
+		}
+	}
+
 	/**
 	 * @brief Reads all password entries from the database.
 	 *
-	 * This method retrieves all records from the passwords table, decrypts the sensitive data,
-	 * converts each record into a Password object, and returns a list of these objects.
+	 * This method retrieves all records from the passwords table, decrypts the service names
+	 * and usernames, converts each record into a LazyPassword object, and returns a list of these objects.
+	 * The password column stays encrypted until getPassword() is called on an entry.
 	 *
 	 * @return A List of Password objects representing all stored password entries.
 	 */
 	@Override
-	public List<Password> readAll() {
+	public synchronized List<Password> readAll() {
 		List<Password> list = new ArrayList<>();
-		try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-			 Statement stmt = conn.createStatement();
-			 ResultSet rs = stmt.executeQuery("SELECT * FROM passwords")) {
+		try (ResultSet rs = statement(SQL_SELECT_ALL).executeQuery()) {
+			// Unwrap the key here; the pipeline threads must not
+			KeyRing ring = keys();
+			list = pipeline.run(() -> rs.next() ? new Row(rs) : null,
+					row -> lazy(row, ring),
+					(row, e) -> System.out.println("Error decrypting entry: " + e.getMessage()));
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+		}
+		return list;
+	}
 
-			while (rs.next()) {
-				try {
-					String service = rs.getString("service");
-					String encryptedUsername = rs.getString("username");
-					String encryptedPassword = rs.getString("password");
-					
-					// Decrypt username and password
-					String username = EncryptionUtil.decrypt(encryptedUsername, masterPassword);
-					String password = EncryptionUtil.decrypt(encryptedPassword, masterPassword);
-					
-					list.add(new Password(service, username, password));
-				} catch (Exception e) {
-					System.out.println("Error decrypting entry: " + e.getMessage());
+	/**
+	 * @brief Returns the number of entries without reading them.
+	 *
+	 * @return The number of entries, or 0 on a database error.
+	 */
+	@Override
+	public synchronized int count() {
+		try (ResultSet rs = statement(SQL_COUNT).executeQuery()) {
+			return rs.next() ? rs.getInt(1) : 0;
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * @brief Reads a page of entries ordered by their blind index.
+	 *
+	 * Only the service names and usernames of the page are decrypted; the passwords stay
+	 * encrypted until read.
+	 * Rows that cannot be decrypted are skipped, so a page may hold fewer entries than requested.
+	 *
+	 * @param offset Index of the first entry of the page.
+	 * @param limit Maximum number of entries in the page.
+	 * @return The entries of the page.
+	 */
+	@Override
+	public synchronized List<Password> readPage(int offset, int limit) {
+		List<Password> page = new ArrayList<>();
+		try {
+			PreparedStatement select = statement(SQL_SELECT_PAGE);
+			select.setInt(1, limit);
+			select.setInt(2, offset);
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					try {
+						page.add(lazy(new Row(rs), keys()));
+					} catch (Exception e) {
+						System.out.println("Error decrypting entry: " + e.getMessage());
+					}
 				}
 			}
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+		}
+		return page;
+	}
 
+	/**
+	 * @brief Reads the entries that follow a service in blind index order.
+	 *
+	 * The service names are encrypted, so the key order is that of their blind index:
+	 * fixed, but not alphabetical. The page is one ORDER BY service_hash LIMIT query that
+	 * starts at the index entry after the cursor, however far into the table it is. Rows
+	 * that cannot be decrypted are skipped with a message and the page is filled from the
+	 * rows after them. Password columns stay encrypted until they are read.
+	 *
+	 * @param after The service whose successors are read, or null to start at the first entry.
+	 * @param limit Maximum number of entries in the page.
+	 * @return The entries of the page.
+	 */
+	@Override
+	public synchronized List<Password> readAfter(String after, int limit) {
+		List<Password> page = new ArrayList<>();
+		try {
+			byte[] cursor = after == null ? null : serviceHash(after);
+			while (page.size() < limit) {
+				int wanted = limit - page.size();
+				PreparedStatement select = statement(cursor == null ? SQL_SELECT_FIRST : SQL_SELECT_AFTER);
+				if (cursor == null) {
+					select.setInt(1, wanted);
+				} else {
+					select.setBytes(1, cursor);
+					select.setInt(2, wanted);
+				}
+				int rows = 0;
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next()) {
+						rows++;
+						Row row = new Row(rs);
+						cursor = row.serviceHash;
+						try {
+							page.add(lazy(row, keys()));
+						} catch (GeneralSecurityException e) {
+							System.out.println("Error decrypting entry: " + e.getMessage());
+						}
+					}
+				}
+				if (rows < wanted) {
+					break;
+				}
+			}
 		} catch (SQLException e) {
 			System.out.println("Database error: " + e.getMessage());
 		}
-		return list;
+		return page;
+	}
+
+	/**
+	 * @brief Streams all entries in blind index order, one keyset page at a time.
+	 *
+	 * No statement is left open between pages, so the stream does not hold the
+	 * connection or block writers while it is consumed.
+	 *
+	 * @return The entries.
+	 */
+	@Override
+	public Stream<Password> stream() {
+		return KeysetCursor.stream(this);
+	}
+
+	/**
+	 * @brief Finds the entries whose service name contains a fragment, best matches first.
+	 *
+	 * The fragment is split into runs of three characters and service_search returns the
+	 * rows that hold the tokens of all of them, ranked by bm25, so rarer runs and shorter
+	 * names rank higher. Only those rows are decrypted, and rows whose runs match but not
+	 * next to each other are dropped. A fragment shorter than three characters has no
+	 * tokens, so it is found by streaming the entries instead. Matching ignores case;
+	 * password columns stay encrypted until they are read.
+	 *
+	 * @param query The fragment of the service name.
+	 * @param limit Maximum number of entries returned.
+	 * @return The matching entries.
+	 */
+	public synchronized List<Password> search(String query, int limit) {
+		List<Password> hits = new ArrayList<>();
+		String needle = Password.key(query);
+		if (limit <= 0) {
+			return hits;
+		}
+		if (needle.length() < SearchIndex.GRAM) {
+			try (Stream<Password> entries = stream()) {
+				entries.filter(p -> Password.key(p.getService()).contains(needle)).limit(limit).forEach(hits::add);
+			}
+			return hits;
+		}
+		try {
+			// Quoted tokens, all of which must match
+			StringJoiner match = new StringJoiner(" ");
+			for (String token : serviceGrams(needle).split(" ")) {
+				match.add('"' + token + '"');
+			}
+			PreparedStatement select = statement(SQL_SEARCH);
+			int offset = 0;
+			while (hits.size() < limit) {
+				int wanted = limit - hits.size();
+				select.setString(1, match.toString());
+				select.setInt(2, wanted);
+				select.setInt(3, offset);
+				int rows = 0;
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next()) {
+						rows++;
+						try {
+							Password p = lazy(new Row(rs), keys());
+							if (Password.key(p.getService()).contains(needle)) {
+								hits.add(p);
+							}
+						} catch (GeneralSecurityException e) {
+							System.out.println("Error decrypting entry: " + e.getMessage());
+						}
+					}
+				}
+				if (rows < wanted) {
+					break;
+				}
+				offset += rows;
+			}
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+		}
+		return hits;
 	}
 
 	/**
 	 * @brief Writes a list of password entries to the database.
 	 *
-	 * This method clears the existing contents of the passwords table and inserts all password entries
-	 * from the provided list, encrypting sensitive data before storage.
+	 * This method makes the passwords table hold exactly the entries of the provided list by
+	 * applying only the differences: new and changed entries are upserted and services missing
+	 * from the list are deleted. Entries that are unchanged since they were read from or written
+	 * to their row, and whose row was not written again since, are skipped by comparing the
+	 * stored ciphertext, so the cost scales with the number of changes. Everything happens
+	 * in one transaction with batched statements; on a database error the previous contents are kept.
 	 *
 	 * @param list A List of Password objects to be written to the database.
 	 */
 	@Override
-	public void writeAll(List<Password> list) {
-		try (Connection conn = DriverManager.getConnection(getDatabaseUrl());
-			 Statement stmt = conn.createStatement()) {
-			stmt.execute("DELETE FROM passwords"); // clear all
-			
-			for (Password p : list) {
-				try {
-					// Encrypt username and password
-					String encryptedUsername = EncryptionUtil.encrypt(p.getUsername(), masterPassword);
-					String encryptedPassword = EncryptionUtil.encrypt(p.getPassword(), masterPassword);
-					
-					try (PreparedStatement pstmt = conn.prepareStatement(
-							"INSERT INTO passwords(service, username, password) VALUES (?, ?, ?)")) {
-						pstmt.setString(1, p.getService());
-						pstmt.setString(2, encryptedUsername);
-						pstmt.setString(3, encryptedPassword);
-						pstmt.executeUpdate();
+	public synchronized void writeAll(List<Password> list) {
+		Map<Password, Object> saved = new IdentityHashMap<>();
+		try {
+			inTransaction(conn -> {
+				Map<ByteBuffer, Object> existing = new HashMap<>();
+				try (ResultSet rs = statement(SQL_SELECT_SERVICES).executeQuery()) {
+					while (rs.next()) {
+						existing.put(ByteBuffer.wrap(rs.getBytes(1)), stamp(rs.getBytes(2), rs.getBytes(3), rs.getBytes(4)));
 					}
-				} catch (Exception e) {
-					System.out.println("Error encrypting data for " + p.getService() + ": " + e.getMessage());
 				}
+				
+				Map<ByteBuffer, Password> wanted = new LinkedHashMap<>();
+				for (Password p : list) {
+					wanted.put(ByteBuffer.wrap(serviceHash(p.getService())), p);
+				}
+				
+				List<Password> changed = new ArrayList<>();
+				for (Map.Entry<ByteBuffer, Password> entry : wanted.entrySet()) {
+					Object stored = existing.get(entry.getKey());
+					if (stored == null || !entry.getValue().isStoredIn(stored)) {
+						changed.add(entry.getValue());
+					}
+				}
+				saved.putAll(upsertBatch(changed));
+				
+				List<byte[]> removed = new ArrayList<>();
+				for (ByteBuffer hash : existing.keySet()) {
+					if (!wanted.containsKey(hash)) {
+						removed.add(hash.array());
+					}
+				}
+				deleteBatch(removed);
+			});
+			saved.forEach(Password::markStored);
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Work that runs on the managed connection inside a transaction.
+	 */
+	@FunctionalInterface
+	private interface SqlWork {
+		/**
+		 * @brief Runs the work.
+		 *
+		 * @param conn The managed connection, with auto-commit disabled.
+		 * @throws SQLException If a statement fails; the transaction is then rolled back.
+		 */
+		void run(Connection conn) throws SQLException;
+	}
+
+	/**
+	 * @brief Reads the entry stored for a service with a single query.
+	 *
+	 * Service names are matched without regard to case, through their blind index. The password column
+	 * stays encrypted until it is read.
+	 *
+	 * @param service The service name.
+	 * @return The entry, or null if the service is not stored or cannot be read.
+	 */
+	@Override
+	public synchronized Password get(String service) {
+		try {
+			PreparedStatement select = statement(SQL_SELECT_ONE);
+			select.setBytes(1, serviceHash(service));
+			try (ResultSet rs = select.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				return lazy(new Row(rs), keys());
+			}
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+		} catch (Exception e) {
+			System.out.println("Error decrypting entry: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * @brief Checks whether an entry is stored for a service, without decrypting anything.
+	 *
+	 * @param service The service name.
+	 * @return true if the service is stored.
+	 */
+	@Override
+	public synchronized boolean contains(String service) {
+		try {
+			PreparedStatement exists = statement(SQL_EXISTS);
+			exists.setBytes(1, serviceHash(service));
+			try (ResultSet rs = exists.executeQuery()) {
+				return rs.next();
+			}
+		} catch (SQLException e) {
+			System.out.println("Database error: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Stores an entry through the writer thread.
+	 *
+	 * @param password The entry to store.
+	 */
+	@Override
+	public void put(Password password) {
+		putAll(List.of(password));
+	}
+
+	/**
+	 * @brief Stores several entries through the writer thread and waits for the commit.
+	 *
+	 * Concurrent writes share one transaction (see putAllAsync).
+	 *
+	 * @param passwords The entries to store.
+	 */
+	@Override
+	public void putAll(Collection<Password> passwords) {
+		if (passwords.isEmpty()) {
+			return;
+		}
+		write(upsertMutation(passwords), Map.<Password, Object>of()).forEach(Password::markStored);
+	}
+
+	/**
+	 * @brief Queues an entry for the writer thread.
+	 *
+	 * @param password The entry to store.
+	 * @return A future completed once the entry is committed.
+	 */
+	public CompletableFuture<Void> putAsync(Password password) {
+		return putAllAsync(List.of(password));
+	}
+
+	/**
+	 * @brief Queues several entries for the writer thread.
+	 *
+	 * The writer thread commits the writes of all callers in groups of up to the batch
+	 * size (see setGroupCommit), so concurrent writers share one transaction and one
+	 * commit instead of each waiting for the lock and paying for its own. Entries that
+	 * cannot be encrypted are reported and skipped.
+	 *
+	 * @param passwords The entries to store.
+	 * @return A future completed once the entries are committed, or exceptionally with
+	 *         the SQLException if they could not be written.
+	 */
+	public CompletableFuture<Void> putAllAsync(Collection<Password> passwords) {
+		return writer.submit(upsertMutation(passwords)).thenAccept(saved -> saved.forEach(Password::markStored));
+	}
+
+	/**
+	 * @brief Removes the entry stored for a service through the writer thread.
+	 *
+	 * @param service The service name.
+	 * @return true if an entry was removed.
+	 */
+	@Override
+	public boolean remove(String service) {
+		return removeAll(List.of(service)) > 0;
+	}
+
+	/**
+	 * @brief Removes several entries through the writer thread and waits for the commit.
+	 *
+	 * @param services The service names.
+	 * @return The number of entries removed.
+	 */
+	@Override
+	public int removeAll(Collection<String> services) {
+		if (services.isEmpty()) {
+			return 0;
+		}
+		return write(deleteMutation(services), 0);
+	}
+
+	/**
+	 * @brief Queues the removal of a service for the writer thread.
+	 *
+	 * @param service The service name.
+	 * @return A future completed with true once an entry was removed, or false if none was stored.
+	 */
+	public CompletableFuture<Boolean> removeAsync(String service) {
+		return writer.submit(deleteMutation(List.of(service))).thenApply(removed -> removed > 0);
+	}
+
+	/**
+	 * @brief Returns the write that upserts entries.
+	 *
+	 * @param passwords The entries; copied, so the caller may change the collection.
+	 * @return The write, which returns the entries it stored with the stamps of their rows.
+	 */
+	private GroupCommitWriter.Mutation<Map<Password, Object>> upsertMutation(Collection<Password> passwords) {
+		List<Password> copy = new ArrayList<>(passwords);
+		return () -> upsertBatch(copy);
+	}
+
+	/**
+	 * @brief Returns the write that deletes entries.
+	 *
+	 * @param services The service names; copied, so the caller may change the collection.
+	 * @return The write, which returns the number of rows it deleted.
+	 */
+	private GroupCommitWriter.Mutation<Integer> deleteMutation(Collection<String> services) {
+		List<String> copy = new ArrayList<>(services);
+		return () -> {
+			List<byte[]> hashes = new ArrayList<>(copy.size());
+			for (String service : copy) {
+				hashes.add(serviceHash(service));
+			}
+			return deleteBatch(hashes);
+		};
+	}
+
+	/**
+	 * @brief Runs a write through the writer thread and waits for its commit.
+	 *
+	 * A caller that holds the storage lock, or is the writer thread itself, runs the write
+	 * in a transaction of its own instead, as the writer thread would wait for it.
+	 *
+	 * @param <T> Type of the result.
+	 * @param mutation The write.
+	 * @param failed The result to return if the write fails.
+	 * @return The result of the write, or failed after reporting the error.
+	 */
+	private <T> T write(GroupCommitWriter.Mutation<T> mutation, T failed) {
+		try {
+			if (Thread.holdsLock(this) || writer.isWriterThread()) {
+				List<T> result = new ArrayList<>(1);
+				commitGroup(() -> result.add(mutation.apply()));
+				return result.get(0);
 			}
+			return writer.submit(mutation).join();
 		} catch (SQLException e) {
 			System.out.println("Database error: " + e.getMessage());
+		} catch (CompletionException e) {
+			System.out.println("Database error: " + e.getCause().getMessage());
+		}
+		return failed;
+	}
+
+	/**
+	 * @brief Runs a group of writes from the writer thread in one transaction.
+	 *
+	 * @param work The writes.
+	 * @throws SQLException If a write or the commit fails; the group is then rolled back.
+	 */
+	private synchronized void commitGroup(GroupCommitWriter.Work work) throws SQLException {
+		inTransaction(conn -> {
+			try {
+				work.run();
+			} catch (SQLException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new SQLException(e.getMessage(), e);
+			}
+		});
+	}
+
+	/**
+	 * @brief Upserts entries in batches of BATCH_SIZE rows.
+	 *
+	 * Entries that cannot be encrypted are reported and skipped. Must run inside a transaction.
+	 *
+	 * @param passwords The entries to write.
+	 * @return The entries that were written, with the stamps of their rows (see stamp()).
+	 * @throws SQLException If a batch fails.
+	 */
+	private Map<Password, Object> upsertBatch(Collection<Password> passwords) throws SQLException {
+		Map<Password, Object> written = new IdentityHashMap<>();
+		PreparedStatement upsert = statement(SQL_UPSERT);
+		int pending = 0;
+		for (Password p : passwords) {
+			Object stamp;
+			try {
+				stamp = bindEntry(upsert, p, keys());
+			} catch (GeneralSecurityException | RuntimeException e) {
+				System.out.println("Error encrypting data for " + p.getService() + ": " + e.getMessage());
+				continue;
+			}
+			upsert.addBatch();
+			written.put(p, stamp);
+			if (++pending == BATCH_SIZE) {
+				upsert.executeBatch();
+				pending = 0;
+			}
+		}
+		if (pending > 0) {
+			upsert.executeBatch();
+		}
+		return written;
+	}
+
+	/**
+	 * @brief Deletes entries in batches of BATCH_SIZE rows. Must run inside a transaction.
+	 *
+	 * @param hashes The blind indexes of the services.
+	 * @return The number of rows deleted.
+	 * @throws SQLException If a batch fails.
+	 */
+	private int deleteBatch(Collection<byte[]> hashes) throws SQLException {
+		PreparedStatement delete = statement(SQL_DELETE);
+		int deleted = 0;
+		int pending = 0;
+		for (byte[] hash : hashes) {
+			delete.setBytes(1, hash);
+			delete.addBatch();
+			if (++pending == BATCH_SIZE) {
+				deleted += sum(delete.executeBatch());
+				pending = 0;
+			}
+		}
+		if (pending > 0) {
+			deleted += sum(delete.executeBatch());
+		}
+		return deleted;
+	}
+
+	/**
+	 * @brief Adds up the update counts of a batch.
+	 *
+	 * @param counts The update counts returned by executeBatch().
+	 * @return The number of affected rows.
+	 */
+	private static int sum(int[] counts) {
+		int total = 0;
+		for (int count : counts) {
+			total += Math.max(count, 0);
+		}
+		return total;
+	}
+
+	/**
+	 * @brief Runs the given work in a single transaction.
+	 *
+	 * The transaction is committed if the work completes and rolled back if it throws.
+	 * Auto-commit is restored afterwards in both cases. The data key and the blind
+	 * index key are loaded first, so a new key is never lost with a rolled-back
+	 * transaction while its cached copy keeps being used.
+	 *
+	 * @param work The statements to run.
+	 * @throws SQLException If the work or the commit fails.
+	 */
+	private void inTransaction(SqlWork work) throws SQLException {
+		Connection conn = getConnection();
+		indexMac();
+		conn.setAutoCommit(false);
+		try {
+			work.run(conn);
+			conn.commit();
+			generation++;
+		} catch (SQLException | RuntimeException e) {
+			try {
+				conn.rollback();
+			} catch (SQLException rollbackError) {
+				e.addSuppressed(rollbackError);
+			}
+			// The work may have replaced a key whose row was just rolled back
+			keys = null;
+			serviceIndex = null;
+			throw e;
+		} finally {
+			conn.setAutoCommit(true);
 		}
 	}
 }
@@ -0,0 +1,303 @@
+package com.ucoruh.password;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * @file DecryptionPipeline.java
+ * @class DecryptionPipeline
+ * @brief Decrypts the records of a vault on several cores while keeping their order
+ * @details Loading a vault has three stages:
+ * - the calling thread reads raw records (ciphertext lines or rows) from a Source,
+ * - full batches are decoded on a ForkJoinPool while the reader keeps reading,
+ * - the calling thread collects the batches in the order they were read.
+ *
+ * Records that fail to decode are reported to a FailureHandler on the calling
+ * thread, in order, and are left out of the result. Sources with fewer records
+ * than the sequential threshold, and pipelines with a parallelism of 1, decode
+ * everything on the calling thread.
+ */
+public final class DecryptionPipeline {
+    /**
+     * @brief System property that sets the parallelism of the default pipeline
+     */
+    public static final String PARALLELISM_PROPERTY = "password.decrypt.parallelism";
+
+    /**
+     * @brief Default number of records decoded by one task
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * @brief Default number of records below which decoding stays on the calling thread
+     */
+    public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 1024;
+
+    /**
+     * @brief Shared pipeline used when a storage is not given one
+     */
+    private static volatile DecryptionPipeline defaultPipeline;
+
+    /**
+     * @brief Number of threads that decode batches
+     */
+    private final int parallelism;
+
+    /**
+     * @brief Number of records decoded by one task
+     */
+    private final int batchSize;
+
+    /**
+     * @brief Number of records below which decoding stays on the calling thread
+     */
+    private final int sequentialThreshold;
+
+    /**
+     * @brief Pool that decodes batches, or null for a sequential pipeline
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * @brief Reads raw records one at a time
+     *
+     * @param <R> Type of a raw record
+     * @param <E> Exception thrown when reading fails
+     */
+    @FunctionalInterface
+    public interface Source<R, E extends Exception> {
+        /**
+         * @brief Returns the next raw record
+         *
+         * @return R The next record, or null when there are no more
+         * @throws E If reading fails
+         */
+        R next() throws E;
+    }
+
+    /**
+     * @brief Decodes one raw record; must be safe to call from several threads
+     *
+     * @param <R> Type of a raw record
+     * @param <T> Type of a decoded record
+     */
+    @FunctionalInterface
+    public interface Decoder<R, T> {
+        /**
+         * @brief Decodes a raw record
+         *
+         * @param raw The raw record
+         * @return T The decoded record
+         * @throws Exception If the record cannot be decoded
+         */
+        T decode(R raw) throws Exception;
+    }
+
+    /**
+     * @brief Receives the records that could not be decoded
+     *
+     * @param <R> Type of a raw record
+     */
+    @FunctionalInterface
+    public interface FailureHandler<R> {
+        /**
+         * @brief Called on the reading thread for each record that failed to decode
+         *
+         * @param raw The raw record
+         * @param error The reason it failed
+         */
+        void failed(R raw, Exception error);
+    }
+
+    /**
+     * @brief Result slot of a record that failed to decode
+     */
+    private static final class Failure {
+        /** @brief The reason decoding failed. */
+        final Exception error;
+
+        Failure(Exception error) {
+            this.error = error;
+        }
+    }
+
+    /**
+     * @brief A batch of raw records and the task that decodes it
+     *
+     * @param <R> Type of a raw record
+     */
+    private static final class Batch<R> {
+        /** @brief The raw records, in read order. */
+        final List<R> records;
+
+        /** @brief Task that returns one decoded value or Failure per record. */
+        final ForkJoinTask<Object[]> task;
+
+        Batch(List<R> records, ForkJoinTask<Object[]> task) {
+            this.records = records;
+            this.task = task;
+        }
+    }
+
+    /**
+     * @brief Creates a pipeline
+     *
+     * @param parallelism Number of threads that decode batches; 1 decodes on the calling thread
+     * @param batchSize Number of records decoded by one task
+     * @param sequentialThreshold Number of records below which decoding stays on the calling thread
+     * @throws IllegalArgumentException If any argument is less than 1
+     */
+    public DecryptionPipeline(int parallelism, int batchSize, int sequentialThreshold) {
+        if (parallelism < 1 || batchSize < 1 || sequentialThreshold < 1) {
+            throw new IllegalArgumentException("Pipeline settings must be at least 1");
+        }
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.sequentialThreshold = sequentialThreshold;
+        this.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @brief Returns a pipeline that decodes everything on the calling thread
+     *
+     * @return DecryptionPipeline A sequential pipeline
+     */
+    public static DecryptionPipeline sequential() {
+        return new DecryptionPipeline(1, DEFAULT_BATCH_SIZE, DEFAULT_SEQUENTIAL_THRESHOLD);
+    }
+
+    /**
+     * @brief Returns the shared default pipeline
+     * @details Its parallelism is read from the password.decrypt.parallelism system
+     * property and defaults to the number of available processors.
+     *
+     * @return DecryptionPipeline The shared pipeline
+     */
+    public static DecryptionPipeline defaults() {
+        DecryptionPipeline pipeline = defaultPipeline;
+        if (pipeline == null) {
+            synchronized (DecryptionPipeline.class) {
+                pipeline = defaultPipeline;
+                if (pipeline == null) {
+                    int cores = Runtime.getRuntime().availableProcessors();
+                    int parallelism = Math.max(1, Integer.getInteger(PARALLELISM_PROPERTY, cores));
+                    pipeline = new DecryptionPipeline(parallelism, DEFAULT_BATCH_SIZE, DEFAULT_SEQUENTIAL_THRESHOLD);
+                    defaultPipeline = pipeline;
+                }
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * @brief Returns the number of threads that decode batches
+     *
+     * @return int The parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @brief Reads, decodes and collects all records of a source
+     *
+     * @param <R> Type of a raw record
+     * @param <T> Type of a decoded record
+     * @param <E> Exception thrown by the source
+     * @param source Reads the raw records
+     * @param decoder Decodes one raw record
+     * @param onFailure Receives the records that could not be decoded
+     * @return List<T> The decoded records, in read order
+     * @throws E If the source fails
+     */
+    public <R, T, E extends Exception> List<T> run(Source<R, E> source, Decoder<R, T> decoder,
+            FailureHandler<R> onFailure) throws E {
+        List<R> buffered = new ArrayList<>();
+        R raw;
+        while (buffered.size() < sequentialThreshold && (raw = source.next()) != null) {
+            buffered.add(raw);
+        }
+        if (pool == null || buffered.size() < sequentialThreshold) {
+            while (pool == null && (raw = source.next()) != null) {
+                buffered.add(raw);
+            }
+            List<T> result = new ArrayList<>(buffered.size());
+            collect(buffered, decodeBatch(buffered, decoder), result, onFailure);
+            return result;
+        }
+
+        List<Batch<R>> batches = new ArrayList<>();
+        for (int from = 0; from < buffered.size(); from += batchSize) {
+            batches.add(submit(buffered.subList(from, Math.min(from + batchSize, buffered.size())), decoder));
+        }
+        List<R> batch = new ArrayList<>(batchSize);
+        while ((raw = source.next()) != null) {
+            batch.add(raw);
+            if (batch.size() == batchSize) {
+                batches.add(submit(batch, decoder));
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(submit(batch, decoder));
+        }
+
+        List<T> result = new ArrayList<>(buffered.size() + batches.size() * batchSize);
+        for (Batch<R> b : batches) {
+            collect(b.records, b.task.join(), result, onFailure);
+        }
+        return result;
+    }
+
+    /**
+     * @brief Starts decoding a batch on the pool
+     *
+     * @param records The raw records
+     * @param decoder Decodes one raw record
+     * @return Batch The batch and its task
+     */
+    private <R, T> Batch<R> submit(List<R> records, Decoder<R, T> decoder) {
+        return new Batch<>(records, pool.submit(() -> decodeBatch(records, decoder)));
+    }
+
+    /**
+     * @brief Decodes a batch, recording a Failure for each record that fails
+     *
+     * @param records The raw records
+     * @param decoder Decodes one raw record
+     * @return Object[] One decoded value or Failure per record
+     */
+    private static <R, T> Object[] decodeBatch(List<R> records, Decoder<R, T> decoder) {
+        Object[] decoded = new Object[records.size()];
+        for (int i = 0; i < decoded.length; i++) {
+            try {
+                decoded[i] = decoder.decode(records.get(i));
+            } catch (Exception e) {
+                decoded[i] = new Failure(e);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * @brief Appends the decoded values of a batch and reports its failures
+     *
+     * @param records The raw records
+     * @param decoded One decoded value or Failure per record
+     * @param result The list to append to
+     * @param onFailure Receives the records that could not be decoded
+     */
+    @SuppressWarnings("unchecked")
+    private static <R, T> void collect(List<R> records, Object[] decoded, List<T> result,
+            FailureHandler<R> onFailure) {
+        for (int i = 0; i < decoded.length; i++) {
+            if (decoded[i] instanceof Failure) {
+                onFailure.failed(records.get(i), ((Failure) decoded[i]).error);
+            } else {
+                result.add((T) decoded[i]);
+            }
+        }
+    }
+}
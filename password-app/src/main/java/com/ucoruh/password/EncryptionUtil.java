@@ -3,8 +3,6 @@ package com.ucoruh.password;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -23,7 +21,9 @@ public class EncryptionUtil {
     /**
      * @brief Encrypts a string using AES encryption
      * @details Uses the master password to derive an encryption key and encrypts the data
-     * using AES encryption. The result is encoded in Base64 format.
+     * using AES encryption. The result is encoded in Base64 format. The derived key is
+     * cached as a SessionKey, so repeated calls with the same master password skip the
+     * key derivation.
      *
      * @param data The string to encrypt
      * @param masterPassword The master password used to derive the encryption key
@@ -31,11 +31,19 @@ public class EncryptionUtil {
      * @throws Exception If encryption fails
      */
     public static String encrypt(String data, String masterPassword) throws Exception {
-        SecretKeySpec secretKey = createSecretKey(masterPassword);
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        byte[] encryptedData = cipher.doFinal(data.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(encryptedData);
+        return encrypt(data, SessionKey.forMasterPassword(masterPassword));
+    }
+
+    /**
+     * @brief Encrypts a string with an already derived session key
+     *
+     * @param data The string to encrypt
+     * @param key The session key
+     * @return String The encrypted string in Base64 encoding
+     * @throws Exception If encryption fails
+     */
+    public static String encrypt(String data, SessionKey key) throws Exception {
+        return key.encrypt(data);
     }
     
     /**
@@ -49,12 +57,19 @@ public class EncryptionUtil {
      * @throws Exception If decryption fails
      */
     public static String decrypt(String encryptedData, String masterPassword) throws Exception {
-        SecretKeySpec secretKey = createSecretKey(masterPassword);
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        byte[] decodedData = Base64.getDecoder().decode(encryptedData);
-        byte[] decryptedData = cipher.doFinal(decodedData);
-        return new String(decryptedData, StandardCharsets.UTF_8);
+        return decrypt(encryptedData, SessionKey.forMasterPassword(masterPassword));
+    }
+
+    /**
+     * @brief Decrypts a string with an already derived session key
+     *
+     * @param encryptedData The encrypted string in Base64 encoding
+     * @param key The session key
+     * @return String The decrypted string
+     * @throws Exception If decryption fails
+     */
+    public static String decrypt(String encryptedData, SessionKey key) throws Exception {
+        return key.decrypt(encryptedData);
     }
     
     /**
@@ -66,18 +81,12 @@ public class EncryptionUtil {
      * @return SecretKeySpec The generated secret key for AES encryption
      * @throws RuntimeException If the SHA-256 algorithm is not available
      */
-    private static SecretKeySpec createSecretKey(String masterPassword) {
-        try {
-            byte[] key = masterPassword.getBytes(StandardCharsets.UTF_8);
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
-            key = sha.digest(key);
-            // Use only the first 16 bytes for AES-128
-            byte[] shortKey = new byte[16];
-            System.arraycopy(key, 0, shortKey, 0, 16);
-            return new SecretKeySpec(shortKey, ALGORITHM);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Error creating encryption key", e);
-        }
+    static SecretKeySpec createSecretKey(String masterPassword) {
+        byte[] key = sha256(masterPassword);
+        // Use only the first 16 bytes for AES-128
+        byte[] shortKey = new byte[16];
+        System.arraycopy(key, 0, shortKey, 0, 16);
+        return new SecretKeySpec(shortKey, ALGORITHM);
     }
     
     /**
@@ -91,16 +100,26 @@ public class EncryptionUtil {
      * @throws RuntimeException If the SHA-256 algorithm is not available
      */
     public static String hashString(String input) {
+        byte[] hash = sha256(input);
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    /**
+     * @brief Computes the SHA-256 digest of a string's UTF-8 bytes
+     *
+     * @param input The string to hash
+     * @return byte[] The 32-byte digest
+     * @throws RuntimeException If the SHA-256 algorithm is not available
+     */
+    private static byte[] sha256(String input) {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            return MessageDigest.getInstance("SHA-256").digest(input.getBytes(StandardCharsets.UTF_8));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Error hashing input", e);
         }
@@ -1,13 +1,16 @@
 package com.ucoruh.password;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * @brief Implementation of InterfacePasswordStorage using file-based storage.
  *
  * This class provides file-based operations to store, retrieve, update, and delete password entries.
- * All password data is encrypted using the master password.
+ * All password data is encrypted using the master password. The file is managed by a
+ * LogStructuredFileEngine, so single-entry changes are appended instead of rewriting the vault.
  */
 public class FilePasswordStorage implements InterfacePasswordStorage {
 	/**
@@ -17,11 +20,16 @@ public class FilePasswordStorage implements InterfacePasswordStorage {
 	 * when using a file-based storage mechanism.
 	 */
 	private static final String FILE = "passwords.txt";
+
+	/**
+	 * @brief System property that opens the default password file in sealed mode when "true".
+	 */
+	public static final String SEALED_PROPERTY = "password.file.sealed";
 	
 	/**
-	 * @brief The master password used for encryption/decryption.
+	 * @brief The log-structured engine that owns the password file.
 	 */
-	private final String masterPassword;
+	private final LogStructuredFileEngine engine;
 	
 	/**
 	 * @brief Constructor that initializes storage with the master password.
@@ -29,14 +37,113 @@ public class FilePasswordStorage implements InterfacePasswordStorage {
 	 * @param masterPassword The master password for encryption/decryption.
 	 */
 	public FilePasswordStorage(String masterPassword) {
-		this.masterPassword = masterPassword;
+		this(masterPassword, FILE, LogStructuredFileEngine.DEFAULT_COMPACTION_THRESHOLD,
+				Boolean.getBoolean(SEALED_PROPERTY));
+	}
+
+	/**
+	 * @brief Constructor that initializes storage on a specific file.
+	 *
+	 * @param masterPassword The master password for encryption/decryption.
+	 * @param fileName Path of the password file.
+	 * @param compactionThreshold Number of dead records that triggers a background compaction.
+	 */
+	public FilePasswordStorage(String masterPassword, String fileName, int compactionThreshold) {
+		this(masterPassword, fileName, compactionThreshold, false);
+	}
+
+	/**
+	 * @brief Constructor that initializes storage on a specific file, optionally sealed.
+	 *
+	 * @param masterPassword The master password for encryption/decryption.
+	 * @param fileName Path of the password file.
+	 * @param compactionThreshold Number of dead records that triggers a background compaction.
+	 * @param sealed true to encrypt the file in authenticated chunks; see LogStructuredFileEngine.
+	 */
+	public FilePasswordStorage(String masterPassword, String fileName, int compactionThreshold, boolean sealed) {
+		this.engine = new LogStructuredFileEngine(Paths.get(fileName), masterPassword, compactionThreshold, sealed);
+	}
+
+	/**
+	 * @brief Checks whether the default password file or its key file exists, without creating either.
+	 *
+	 * @return true if one of the files exists.
+	 */
+	static boolean exists() {
+		return new File(FILE).exists() || new File(FILE + ".key").exists();
+	}
+
+	/**
+	 * @brief Returns a stamp that changes whenever the password file changes.
+	 *
+	 * @return The current generation, or UNKNOWN_GENERATION if the file cannot be checked.
+	 */
+	@Override
+	public long generation() {
+		try {
+			return engine.generation();
+		} catch (IOException e) {
+			return UNKNOWN_GENERATION;
+		}
+	}
+
+	/**
+	 * @brief Wraps the vault data key with a new master password.
+	 *
+	 * Only the key file next to the password file is rewritten.
+	 *
+	 * @param newMasterPassword The new master password.
+	 * @return true on success; false if the key cannot be unwrapped or written.
+	 */
+	@Override
+	public boolean changeMasterPassword(String newMasterPassword) {
+		try {
+			return engine.changeMasterPassword(newMasterPassword);
+		} catch (IOException e) {
+			System.out.println("Error writing vault key: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Re-encrypts the vault with a new data key.
+	 *
+	 * Rotates in batches of VaultKey.ROTATION_BATCH_SIZE entries, then compacts the file.
+	 *
+	 * @return true if every entry now uses the new key.
+	 */
+	@Override
+	public boolean rotateKey() {
+		try {
+			return engine.rotateKey(VaultKey.ROTATION_BATCH_SIZE);
+		} catch (IOException e) {
+			System.out.println("Error rotating vault key: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Sets the pipeline that decrypts entries when the file is loaded.
+	 *
+	 * @param pipeline The pipeline to use.
+	 */
+	public void setDecryptionPipeline(DecryptionPipeline pipeline) {
+		engine.setDecryptionPipeline(pipeline);
+	}
+
+	/**
+	 * @brief Waits for a pending background compaction to finish.
+	 */
+	@Override
+	public void close() {
+		engine.awaitCompaction();
 	}
 
 	/**
 	 * @brief Adds a new password entry to the file-based storage.
 	 *
 	 * This method prompts the user to enter the service, username, and password, then creates a Password
-	 * object and appends its details to the passwords file.
+	 * object and appends it to the passwords file.
 	 *
 	 * @param scanner the Scanner object used to obtain user input.
 	 */
@@ -49,38 +156,38 @@ public class FilePasswordStorage implements InterfacePasswordStorage {
 		System.out.print("Password: ");
 		String pass = scanner.nextLine();
 
-		Password p = new Password(service, user, pass);
-		List<Password> passwords = readAll();
-		
-		// Check if service already exists
-		boolean exists = passwords.stream()
-			.anyMatch(pwd -> pwd.getService().equalsIgnoreCase(service));
-		
-		if (exists) {
-			System.out.println("A password for this service already exists. Use update option to modify it.");
-			return;
+		try {
+			// Check if service already exists
+			if (engine.contains(service)) {
+				System.out.println("A password for this service already exists. Use update option to modify it.");
+				return;
+			}
+			
+			engine.put(new Password(service, user, pass));
+			System.out.println("Password saved successfully.");
+		} catch (IOException e) {
+			System.out.println("Error writing to password file: " + e.getMessage());
 		}
-		
-		passwords.add(p);
-		writeAll(passwords);
-		System.out.println("Password saved successfully.");
 	}
 
 	/**
 	 * @brief Displays all stored password entries.
 	 *
-	 * This method reads all password entries from the file and prints them to the console.
+	 * This method reads the password entries from the file one page at a time and prints
+	 * them to the console, in the order of the service names.
 	 */
 	@Override
 	public void view() {
-		List<Password> list = readAll();
-		if (list.isEmpty()) {
-			System.out.println("No records found.");
-		} else {
-			for (int i = 0; i < list.size(); i++) {
-				System.out.println((i + 1) + ". " + list.get(i));
+		int count = 0;
+		try (Stream<Password> entries = stream()) {
+			for (Iterator<Password> it = entries.iterator(); it.hasNext();) {
+				count++;
+				System.out.println(count + ". " + it.next());
 			}
 		}
+		if (count == 0) {
+			System.out.println("No records found.");
+		}
 	}
 
 	/**
@@ -92,131 +199,257 @@ public class FilePasswordStorage implements InterfacePasswordStorage {
 	 */
 	@Override
 	public void update(Scanner scanner) {
-		List<Password> list = readAll();
-		if (list.isEmpty()) {
-			System.out.println("No records found.");
-			return;
-		}
-		
-		System.out.print("Service to update: ");
-		String target = scanner.nextLine();
-		boolean updated = false;
-
-		for (Password p : list) {
-			if (p.getService().equalsIgnoreCase(target)) {
-				System.out.print("New username (leave blank to keep current '" + p.getUsername() + "'): ");
-				String username = scanner.nextLine();
-				if (!username.trim().isEmpty()) {
-					p.setUsername(username);
-				}
-				
-				System.out.print("New password (leave blank to keep current): ");
-				String password = scanner.nextLine();
-				if (!password.trim().isEmpty()) {
-					p.setPassword(password);
-				}
-				
-				updated = true;
-				break;
+		try {
+			if (engine.size() == 0) {
+				System.out.println("No records found.");
+				return;
 			}
-		}
-
-		if (updated) {
-			writeAll(list);
+			
+			System.out.print("Service to update: ");
+			String target = scanner.nextLine();
+			Password p = engine.get(target);
+			if (p == null) {
+				System.out.println("Service not found.");
+				return;
+			}
+			
+			System.out.print("New username (leave blank to keep current '" + p.getUsername() + "'): ");
+			String username = scanner.nextLine();
+			if (!username.trim().isEmpty()) {
+				p.setUsername(username);
+			}
+			
+			System.out.print("New password (leave blank to keep current): ");
+			String password = scanner.nextLine();
+			if (!password.trim().isEmpty()) {
+				p.setPassword(password);
+			}
+			
+			engine.put(p);
 			System.out.println("Password updated successfully.");
-		} else {
-			System.out.println("Service not found.");
+		} catch (IOException e) {
+			System.out.println("Error writing to password file: " + e.getMessage());
 		}
 	}
 
 	/**
 	 * @brief Deletes a password entry from the file-based storage.
 	 *
-	 * This method prompts the user for the service name of the entry to delete and removes the entry from the file.
+	 * This method prompts the user for the service name of the entry to delete and appends
+	 * a delete record for it to the file.
 	 *
 	 * @param scanner the Scanner object used to obtain user input for deletion.
 	 */
 	@Override
 	public void delete(Scanner scanner) {
-		List<Password> list = readAll();
-		if (list.isEmpty()) {
-			System.out.println("No records found.");
-			return;
-		}
-		
-		System.out.print("Service to delete: ");
-		String target = scanner.nextLine();
-		boolean removed = list.removeIf(p -> p.getService().equalsIgnoreCase(target));
-
-		if (removed) {
-			writeAll(list);
-			System.out.println("Password deleted successfully.");
-		} else {
-			System.out.println("Service not found.");
+		try {
+			if (engine.size() == 0) {
+				System.out.println("No records found.");
+				return;
+			}
+			
+			System.out.print("Service to delete: ");
+			String target = scanner.nextLine();
+			if (engine.remove(target)) {
+				System.out.println("Password deleted successfully.");
+			} else {
+				System.out.println("Service not found.");
+			}
+		} catch (IOException e) {
+			System.out.println("Error writing to password file: " + e.getMessage());
 		}
 	}
 
 	/**
 	 * @brief Reads all password entries from the file.
 	 *
-	 * This method opens the file and reads each line, decrypts the data,
-	 * and converts it into Password objects. All valid entries are returned as a list.
+	 * This method returns every live entry of the password file, decrypted into Password objects.
+	 * Entries that cannot be decrypted are skipped.
 	 *
 	 * @return a List of Password objects representing the stored password entries.
 	 */
 	@Override
 	public List<Password> readAll() {
-		List<Password> list = new ArrayList<>();
-		File file = new File(FILE);
-		if (!file.exists()) {
-			return list;
-		}
-		
-		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-			String line;
-			while ((line = reader.readLine()) != null) {
-				try {
-					// Decrypt the line
-					String decrypted = EncryptionUtil.decrypt(line, masterPassword);
-					String[] parts = decrypted.split(",");
-					if (parts.length == 3) {
-						list.add(new Password(parts[0], parts[1], parts[2]));
-					}
-				} catch (Exception e) {
-					// Skip lines that cannot be decrypted
-					System.out.println("Warning: Could not decrypt a password entry.");
-				}
-			}
+		try {
+			return engine.readAll();
 		} catch (IOException e) {
 			System.out.println("Error reading password file: " + e.getMessage());
+			return new ArrayList<>();
 		}
-		return list;
+	}
+
+	/**
+	 * @brief Returns the number of live entries without decrypting their secrets.
+	 *
+	 * @return The number of entries, or 0 if the file cannot be read.
+	 */
+	@Override
+	public int count() {
+		try {
+			return engine.size();
+		} catch (IOException e) {
+			System.out.println("Error reading password file: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * @brief Reads a page of entries in the order of readAll().
+	 *
+	 * Only the records of the page are decrypted.
+	 *
+	 * @param offset Index of the first entry of the page.
+	 * @param limit Maximum number of entries in the page.
+	 * @return The entries of the page.
+	 */
+	@Override
+	public List<Password> readPage(int offset, int limit) {
+		try {
+			return engine.readPage(offset, limit);
+		} catch (IOException e) {
+			System.out.println("Error reading password file: " + e.getMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * @brief Reads the entries that follow a service, in the order of the service names.
+	 *
+	 * Only the records of the page are read and decrypted.
+	 *
+	 * @param after The service whose successors are read, or null to start at the first entry.
+	 * @param limit Maximum number of entries in the page.
+	 * @return The entries of the page.
+	 */
+	@Override
+	public List<Password> readAfter(String after, int limit) {
+		try {
+			return engine.readAfter(after, limit);
+		} catch (IOException e) {
+			System.out.println("Error reading password file: " + e.getMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * @brief Streams all entries in the order of the service names, one page at a time.
+	 *
+	 * @return The entries.
+	 */
+	@Override
+	public Stream<Password> stream() {
+		return KeysetCursor.stream(this);
 	}
 
 	/**
 	 * @brief Writes the list of password entries to the file.
 	 *
-	 * This method clears the existing content of the file and writes all password entries
-	 * from the provided list, encrypting each entry.
+	 * This method makes the file hold exactly the password entries from the provided list.
+	 * Only entries that were added, changed, or removed since they were loaded are written,
+	 * as appended records; unchanged entries cost nothing.
 	 *
 	 * @param list a List of Password objects to be written to the file.
 	 */
 	@Override
 	public void writeAll(List<Password> list) {
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(FILE))) {
-			for (Password p : list) {
-				String data = p.getService() + "," + p.getUsername() + "," + p.getPassword();
-				try {
-					// Encrypt the data
-					String encrypted = EncryptionUtil.encrypt(data, masterPassword);
-					writer.write(encrypted);
-					writer.newLine();
-				} catch (Exception e) {
-					System.out.println("Error encrypting password for " + p.getService() + ": " + e.getMessage());
-				}
-			}
+		try {
+			engine.writeAll(list);
+		} catch (IOException e) {
+			System.out.println("Error writing to password file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Reads the entry stored for a service.
+	 *
+	 * Service names are matched ignoring case. Only the record of this service is decrypted.
+	 *
+	 * @param service The service name.
+	 * @return The entry, or null if the service is not stored or cannot be read.
+	 */
+	@Override
+	public Password get(String service) {
+		try {
+			return engine.get(service);
+		} catch (IOException e) {
+			System.out.println("Error reading password file: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @brief Checks whether an entry is stored for a service, without decrypting anything.
+	 *
+	 * @param service The service name.
+	 * @return true if the service is stored.
+	 */
+	@Override
+	public boolean contains(String service) {
+		try {
+			return engine.contains(service);
+		} catch (IOException e) {
+			System.out.println("Error reading password file: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Stores an entry by appending one record.
+	 *
+	 * @param password The entry to store.
+	 */
+	@Override
+	public void put(Password password) {
+		try {
+			engine.put(password);
+		} catch (IOException e) {
+			System.out.println("Error writing to password file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Stores several entries with a single append.
+	 *
+	 * @param passwords The entries to store.
+	 */
+	@Override
+	public void putAll(Collection<Password> passwords) {
+		try {
+			engine.putAll(passwords);
+		} catch (IOException e) {
+			System.out.println("Error writing to password file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Removes the entry stored for a service by appending a tombstone.
+	 *
+	 * @param service The service name.
+	 * @return true if an entry was removed.
+	 */
+	@Override
+	public boolean remove(String service) {
+		try {
+			return engine.remove(service);
+		} catch (IOException e) {
+			System.out.println("Error writing to password file: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Removes several entries with a single append of tombstones.
+	 *
+	 * @param services The service names.
+	 * @return The number of entries removed.
+	 */
+	@Override
+	public int removeAll(Collection<String> services) {
+		try {
+			return engine.removeAll(services);
 		} catch (IOException e) {
 			System.out.println("Error writing to password file: " + e.getMessage());
+			return 0;
 		}
 	}
 }
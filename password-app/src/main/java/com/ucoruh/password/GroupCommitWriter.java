@@ -0,0 +1,353 @@
+package com.ucoruh.password;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @file GroupCommitWriter.java
+ * @class GroupCommitWriter
+ * @brief Applies the writes of many threads on one writer thread, several per transaction
+ * @details Callers submit mutations and get a CompletableFuture back. A single writer
+ * thread takes the first queued mutation, adds every mutation queued meanwhile and
+ * waits up to the latency budget for more, until the group holds batchSize mutations.
+ * It then applies the group in one transaction through a Committer, so the group pays
+ * for one commit, and completes each future with its own result.
+ *
+ * If the transaction of a group fails, each of its mutations is retried in a
+ * transaction of its own, so a failing write only fails its own future.
+ *
+ * The writer thread is started by the first submit and ends after it has been idle
+ * for IDLE_MILLIS. If it dies of an Error instead, its group and every queued
+ * mutation fail, and the next submit starts a new writer thread.
+ */
+public final class GroupCommitWriter {
+    /**
+     * @brief Default maximum number of mutations per transaction
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * @brief Default time the first mutation of a group waits for others to join, in microseconds
+     */
+    public static final long DEFAULT_LATENCY_BUDGET_MICROS = 1_000;
+
+    /**
+     * @brief Time after which an idle writer thread ends, in milliseconds
+     */
+    static final long IDLE_MILLIS = 1_000;
+
+    /**
+     * @brief Mutation queued by flush(), which writes nothing
+     */
+    private static final Mutation<Object> FLUSH = () -> null;
+
+    /**
+     * @brief Maximum number of mutations per transaction
+     */
+    private final int batchSize;
+
+    /**
+     * @brief Time the first mutation of a group waits for others to join, in nanoseconds
+     */
+    private final long latencyBudgetNanos;
+
+    /**
+     * @brief Runs a group in one transaction
+     */
+    private final Committer committer;
+
+    /**
+     * @brief Name of the writer thread
+     */
+    private final String threadName;
+
+    /**
+     * @brief Mutations waiting for the writer thread
+     */
+    private final LinkedBlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * @brief The running writer thread, or null; guarded by the queue
+     */
+    private Thread writer;
+
+    /**
+     * @brief One write to apply inside a transaction
+     *
+     * @param <T> Type of the result
+     */
+    @FunctionalInterface
+    public interface Mutation<T> {
+        /**
+         * @brief Applies the write; runs on the writer thread inside the transaction
+         *
+         * @return T The result passed to the caller's future
+         * @throws Exception If the write fails, which rolls back its group
+         */
+        T apply() throws Exception;
+    }
+
+    /**
+     * @brief The mutations of one group
+     */
+    @FunctionalInterface
+    public interface Work {
+        /**
+         * @brief Applies the mutations in order
+         *
+         * @throws Exception If a mutation fails
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * @brief Runs work in one transaction
+     */
+    @FunctionalInterface
+    public interface Committer {
+        /**
+         * @brief Runs the work and commits it, or rolls it back if it throws
+         *
+         * @param work The mutations of a group
+         * @throws Exception If the work or the commit fails
+         */
+        void commit(Work work) throws Exception;
+    }
+
+    /**
+     * @brief A submitted mutation, its future, and its result until the group commits
+     *
+     * @param <T> Type of the result
+     */
+    private static final class Pending<T> {
+        /** @brief The write. */
+        final Mutation<T> mutation;
+
+        /** @brief Completed once the group is committed or rolled back. */
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        /** @brief Result of the last apply. */
+        T result;
+
+        Pending(Mutation<T> mutation) {
+            this.mutation = mutation;
+        }
+
+        void apply() throws Exception {
+            result = mutation.apply();
+        }
+
+        void complete() {
+            future.complete(result);
+        }
+    }
+
+    /**
+     * @brief Creates a writer
+     *
+     * @param threadName Name of the writer thread
+     * @param batchSize Maximum number of mutations per transaction
+     * @param latencyBudgetMicros How long the first mutation of a group waits for others, in microseconds
+     * @param committer Runs a group in one transaction
+     */
+    public GroupCommitWriter(String threadName, int batchSize, long latencyBudgetMicros, Committer committer) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        if (latencyBudgetMicros < 0) {
+            throw new IllegalArgumentException("Latency budget must not be negative");
+        }
+        this.threadName = threadName;
+        this.batchSize = batchSize;
+        this.latencyBudgetNanos = TimeUnit.MICROSECONDS.toNanos(latencyBudgetMicros);
+        this.committer = committer;
+    }
+
+    /**
+     * @brief Returns the maximum number of mutations per transaction
+     *
+     * @return int The batch size
+     */
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @brief Queues a mutation for the writer thread
+     *
+     * @param <T> Type of the result
+     * @param mutation The write
+     * @return CompletableFuture Completed with the result once the write is committed,
+     *         or exceptionally if it failed
+     */
+    public <T> CompletableFuture<T> submit(Mutation<T> mutation) {
+        Pending<T> pending = new Pending<>(mutation);
+        synchronized (queue) {
+            queue.add(pending);
+            if (writer == null) {
+                writer = new Thread(this::drain, threadName);
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+        return pending.future;
+    }
+
+    /**
+     * @brief Checks whether the calling thread is the writer thread
+     *
+     * Mutations that write again through the same storage must apply directly, as the
+     * writer thread cannot wait for itself.
+     *
+     * @return boolean true on the writer thread
+     */
+    public boolean isWriterThread() {
+        synchronized (queue) {
+            return Thread.currentThread() == writer;
+        }
+    }
+
+    /**
+     * @brief Waits until every mutation submitted so far is committed or has failed
+     */
+    public void flush() {
+        synchronized (queue) {
+            if (writer == null) {
+                return;
+            }
+        }
+        if (!isWriterThread()) {
+            // A flush only fails along with a dead writer thread, which failed the writes before it too
+            submit(FLUSH).exceptionally(e -> null).join();
+        }
+    }
+
+    /**
+     * @brief Takes groups from the queue and commits them until the writer is idle
+     */
+    private void drain() {
+        List<Pending<?>> group = new ArrayList<>();
+        try {
+            while (true) {
+                Pending<?> first = take();
+                if (first == null) {
+                    synchronized (queue) {
+                        if (queue.isEmpty()) {
+                            writer = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                group.add(first);
+                collect(group);
+                commit(group);
+                group.clear();
+            }
+        } catch (Throwable t) {
+            // An Error thrown by a mutation or the committer ends the thread
+            abandon(group, t);
+            throw t;
+        }
+    }
+
+    /**
+     * @brief Fails a group and every queued mutation when the writer thread dies
+     *
+     * The writer is cleared, so the next submit starts a new thread instead of
+     * queueing behind one that no longer runs.
+     *
+     * @param group The group the writer thread was committing
+     * @param cause What ended the writer thread
+     */
+    private void abandon(List<Pending<?>> group, Throwable cause) {
+        List<Pending<?>> failed = new ArrayList<>(group);
+        synchronized (queue) {
+            queue.drainTo(failed);
+            writer = null;
+        }
+        IllegalStateException failure = new IllegalStateException("The writer thread failed: " + cause, cause);
+        for (Pending<?> pending : failed) {
+            // Mutations of the group that were already committed keep their result
+            pending.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * @brief Waits up to IDLE_MILLIS for the next mutation
+     *
+     * @return Pending The mutation, or null if none was queued in time
+     */
+    private Pending<?> take() {
+        try {
+            return queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // The writer thread is private, so nothing else should interrupt it
+            return queue.poll();
+        }
+    }
+
+    /**
+     * @brief Adds queued mutations to a group, waiting up to the latency budget for more
+     *
+     * @param group The group, holding its first mutation
+     */
+    private void collect(List<Pending<?>> group) {
+        long deadline = System.nanoTime() + latencyBudgetNanos;
+        while (group.size() < batchSize) {
+            queue.drainTo(group, batchSize - group.size());
+            long wait = deadline - System.nanoTime();
+            if (group.size() >= batchSize || wait <= 0) {
+                return;
+            }
+            Pending<?> next;
+            try {
+                next = queue.poll(wait, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == null) {
+                return;
+            }
+            group.add(next);
+        }
+    }
+
+    /**
+     * @brief Commits a group, or each of its mutations alone if the group fails
+     *
+     * @param group The mutations, in submission order
+     */
+    private void commit(List<Pending<?>> group) {
+        if (group.stream().allMatch(pending -> pending.mutation == FLUSH)) {
+            // Nothing to write, so no transaction
+            group.forEach(Pending::complete);
+            return;
+        }
+        try {
+            committer.commit(() -> {
+                for (Pending<?> pending : group) {
+                    pending.apply();
+                }
+            });
+            group.forEach(Pending::complete);
+            return;
+        } catch (Exception e) {
+            if (group.size() == 1) {
+                group.get(0).future.completeExceptionally(e);
+                return;
+            }
+        }
+        for (Pending<?> pending : group) {
+            try {
+                committer.commit(pending::apply);
+                pending.complete();
+            } catch (Exception e) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -1,15 +1,31 @@
 package com.ucoruh.password;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * @brief Interface for password storage operations.
  *
  * This interface defines the operations required for handling password storage,
  * including adding, viewing, updating, deleting, reading, and writing password entries.
+ * Besides the interactive Scanner-driven methods, entries can be read and changed one
+ * service at a time through get, put, remove and their bulk variants.
+ * Storages are AutoCloseable so they can be used in try-with-resources blocks.
  */
-public interface InterfacePasswordStorage {
+public interface InterfacePasswordStorage extends AutoCloseable {
+
+    /**
+     * @brief Generation returned by storages that cannot tell whether their contents changed.
+     */
+    long UNKNOWN_GENERATION = Long.MIN_VALUE;
 
     /**
      * @brief Adds a new password entry.
@@ -63,4 +79,238 @@ public interface InterfacePasswordStorage {
      * @param list List of Password entries.
      */
     void writeAll(List<Password> list);
+
+    /**
+     * @brief Reads the entry stored for a service.
+     *
+     * Services are matched by Password.key(), so case does not matter. The default
+     * implementation scans readAll(). Storages should override it with a direct lookup.
+     *
+     * @param service The service name.
+     * @return The entry, or null if the service is not stored.
+     */
+    default Password get(String service) {
+        String key = Password.key(service);
+        for (Password p : readAll()) {
+            if (Password.key(p.getService()).equals(key)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @brief Checks whether an entry is stored for a service.
+     *
+     * @param service The service name.
+     * @return true if the service is stored.
+     */
+    default boolean contains(String service) {
+        return get(service) != null;
+    }
+
+    /**
+     * @brief Stores an entry, replacing the one stored for the same service.
+     *
+     * @param password The entry to store.
+     */
+    default void put(Password password) {
+        putAll(List.of(password));
+    }
+
+    /**
+     * @brief Stores several entries at once, replacing those stored for the same services.
+     *
+     * The default implementation rewrites the vault with writeAll(). Storages should
+     * override it with a single batched write.
+     *
+     * @param passwords The entries to store.
+     */
+    default void putAll(Collection<Password> passwords) {
+        Map<String, Password> byKey = new LinkedHashMap<>();
+        for (Password p : readAll()) {
+            byKey.put(Password.key(p.getService()), p);
+        }
+        for (Password password : passwords) {
+            // A replaced entry moves to the end, as if it were removed and added again
+            byKey.remove(Password.key(password.getService()));
+            byKey.put(Password.key(password.getService()), password);
+        }
+        writeAll(new ArrayList<>(byKey.values()));
+    }
+
+    /**
+     * @brief Removes the entry stored for a service.
+     *
+     * @param service The service name.
+     * @return true if an entry was removed.
+     */
+    default boolean remove(String service) {
+        return removeAll(List.of(service)) > 0;
+    }
+
+    /**
+     * @brief Removes the entries stored for several services at once.
+     *
+     * The default implementation rewrites the vault with writeAll(). Storages should
+     * override it with a single batched write.
+     *
+     * @param services The service names.
+     * @return The number of entries removed.
+     */
+    default int removeAll(Collection<String> services) {
+        Set<String> keys = new HashSet<>();
+        for (String service : services) {
+            keys.add(Password.key(service));
+        }
+        List<Password> list = new ArrayList<>(readAll());
+        int before = list.size();
+        list.removeIf(p -> keys.contains(Password.key(p.getService())));
+        int removed = before - list.size();
+        if (removed > 0) {
+            writeAll(list);
+        }
+        return removed;
+    }
+
+    /**
+     * @brief Returns the number of stored entries.
+     *
+     * The default implementation counts readAll(). Storages should override it with a
+     * count that does not decrypt the entries.
+     *
+     * @return The number of entries.
+     */
+    default int count() {
+        return readAll().size();
+    }
+
+    /**
+     * @brief Reads a page of entries.
+     *
+     * Pages follow a fixed order of the storage, so consecutive pages cover every entry
+     * once as long as the storage is not modified in between. The default implementation
+     * slices readAll(). Storages should override it so that only the page is decrypted.
+     *
+     * @param offset Index of the first entry of the page.
+     * @param limit Maximum number of entries in the page.
+     * @return The entries of the page; empty if offset is past the last entry.
+     */
+    default List<Password> readPage(int offset, int limit) {
+        List<Password> list = readAll();
+        int from = Math.min(Math.max(offset, 0), list.size());
+        int to = Math.min(from + Math.max(limit, 0), list.size());
+        return new ArrayList<>(list.subList(from, to));
+    }
+
+    /**
+     * @brief Reads the entries that follow a service in key order, for keyset pagination.
+     *
+     * Each storage has a fixed key order; to read the next page, pass the service of the
+     * last entry of the previous one. Unlike readPage, a page does not shift when entries
+     * before it are added or removed, and the storage can find where it starts without
+     * counting the entries before it. A page holds fewer than limit entries only if no
+     * entries follow it. The default implementation sorts readAll() by Password.BY_SERVICE.
+     *
+     * @param after The service whose successors are read, or null to start at the first
+     *        entry. It does not need to be stored.
+     * @param limit Maximum number of entries in the page.
+     * @return The entries of the page, in key order.
+     */
+    default List<Password> readAfter(String after, int limit) {
+        List<Password> list = new ArrayList<>(readAll());
+        list.sort(Password.BY_SERVICE);
+        String key = after == null ? null : Password.key(after);
+        List<Password> page = new ArrayList<>();
+        for (Password p : list) {
+            if (page.size() >= limit) {
+                break;
+            }
+            if (key == null || Password.key(p.getService()).compareTo(key) > 0) {
+                page.add(p);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @brief Streams all entries in key order.
+     *
+     * The stream should be closed, for example with try-with-resources. The default
+     * implementation streams readAll(). Storages should override it to read keyset pages
+     * with readAfter, so only one page is held in memory however large the vault is.
+     *
+     * @return The entries, in the order of readAfter.
+     */
+    default Stream<Password> stream() {
+        List<Password> list = new ArrayList<>(readAll());
+        list.sort(Password.BY_SERVICE);
+        return list.stream();
+    }
+
+    /**
+     * @brief Streams all entries in the given order.
+     *
+     * A sorted stream has to hold every entry before it returns the first one, so only
+     * stream() keeps memory use flat.
+     *
+     * @param order The order of the entries, or null for key order.
+     * @return The entries.
+     */
+    default Stream<Password> stream(Comparator<? super Password> order) {
+        Stream<Password> entries = stream();
+        return order == null ? entries : entries.sorted(order);
+    }
+
+    /**
+     * @brief Returns a stamp that changes whenever the stored entries change.
+     *
+     * Callers that cache the result of readAll() compare stamps to decide whether
+     * the cache is still valid. Reading the stamp must be much cheaper than readAll().
+     * The default implementation returns UNKNOWN_GENERATION, which means callers
+     * have to reload every time.
+     *
+     * @return The current generation, or UNKNOWN_GENERATION.
+     */
+    default long generation() {
+        return UNKNOWN_GENERATION;
+    }
+
+    /**
+     * @brief Makes the vault open with a new master password.
+     *
+     * Storages that encrypt with a vault data key re-wrap that key, so the cost does
+     * not depend on the number of entries. The default implementation has no key to
+     * re-wrap and returns true.
+     *
+     * @param newMasterPassword The new master password.
+     * @return true if the vault now opens with the new master password.
+     */
+    default boolean changeMasterPassword(String newMasterPassword) {
+        return true;
+    }
+
+    /**
+     * @brief Re-encrypts the vault with a new data key.
+     *
+     * Storages that encrypt with a vault data key generate a new one and re-encrypt
+     * their entries in batches while the vault stays usable; an interrupted rotation
+     * resumes where it stopped. The default implementation has no key to rotate and
+     * returns true.
+     *
+     * @return true if every entry now uses the new key.
+     */
+    default boolean rotateKey() {
+        return true;
+    }
+
+    /**
+     * @brief Releases resources held by the storage.
+     *
+     * Implementations that keep connections or background work open release them here.
+     * The default implementation does nothing.
+     */
+    @Override
+    default void close() {
+    }
 }
@@ -0,0 +1,302 @@
+package com.ucoruh.password;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * @file KeyRing.java
+ * @class KeyRing
+ * @brief The data keys of a vault by version, and the version new records use
+ * @details A stored value is tagged with the version of the key that encrypted it:
+ * "2:" followed by the Base64 ciphertext. Values encrypted with version 1 carry no
+ * tag, so vaults written before keys had versions read as version 1. Base64 output
+ * never contains the separator, so a tag cannot be mistaken for ciphertext.
+ *
+ * New values always use the highest version. While a key rotation runs, the ring
+ * holds the old versions as well, so every record stays readable; the ring also
+ * carries how far the rotation got.
+ *
+ * A ring read from a vault key header whose check passed, or just saved to one, is
+ * verified: the master password is known to open the vault. A ring built in memory
+ * is not verified until it is saved.
+ */
+public final class KeyRing {
+    /**
+     * @brief Version of the first key of a vault, used by untagged values
+     */
+    public static final int FIRST_VERSION = 1;
+
+    /**
+     * @brief Separates the version tag from the ciphertext
+     */
+    private static final char TAG_SEPARATOR = ':';
+
+    /**
+     * @brief The keys by version
+     */
+    private final NavigableMap<Integer, SessionKey> keys;
+
+    /**
+     * @brief Position a running rotation has reached, or null
+     */
+    private final String checkpoint;
+
+    /**
+     * @brief Whether the keys come from a vault key header that passed its check
+     */
+    private final boolean verified;
+
+    /**
+     * @brief Creates a ring that is not verified
+     *
+     * @param keys The keys by version; must not be empty
+     * @param checkpoint Position a running rotation has reached, or null
+     */
+    KeyRing(Map<Integer, SessionKey> keys, String checkpoint) {
+        this(keys, checkpoint, false);
+    }
+
+    /**
+     * @brief Creates a ring
+     *
+     * @param keys The keys by version; must not be empty
+     * @param checkpoint Position a running rotation has reached, or null
+     * @param verified Whether the keys come from a checked header
+     */
+    private KeyRing(Map<Integer, SessionKey> keys, String checkpoint, boolean verified) {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("A key ring needs at least one key");
+        }
+        this.keys = Collections.unmodifiableNavigableMap(new TreeMap<>(keys));
+        this.checkpoint = checkpoint;
+        this.verified = verified;
+    }
+
+    /**
+     * @brief Creates a ring that holds a single key as version 1
+     *
+     * @param key The key
+     * @return KeyRing The ring
+     */
+    public static KeyRing of(SessionKey key) {
+        return new KeyRing(Map.of(FIRST_VERSION, key), null);
+    }
+
+    /**
+     * @brief Returns the version new values are encrypted with
+     *
+     * @return int The highest version
+     */
+    public int currentVersion() {
+        return keys.lastKey();
+    }
+
+    /**
+     * @brief Returns the key new values are encrypted with
+     *
+     * @return SessionKey The key of the highest version
+     */
+    public SessionKey currentKey() {
+        return keys.lastEntry().getValue();
+    }
+
+    /**
+     * @brief Returns the keys by version
+     *
+     * @return NavigableMap The keys, read-only
+     */
+    NavigableMap<Integer, SessionKey> keys() {
+        return keys;
+    }
+
+    /**
+     * @brief Checks whether the ring holds older keys next to the current one
+     *
+     * @return boolean true while a rotation has not finished
+     */
+    public boolean isRotating() {
+        return keys.size() > 1;
+    }
+
+    /**
+     * @brief Returns the position a running rotation has reached
+     *
+     * @return String The last rotated position, or null if none was saved
+     */
+    public String checkpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @brief Returns this ring with another checkpoint
+     *
+     * @param position The new checkpoint, or null
+     * @return KeyRing The ring
+     */
+    KeyRing withCheckpoint(String position) {
+        return new KeyRing(keys, position, verified);
+    }
+
+    /**
+     * @brief Returns this ring marked as read from or saved to a checked header
+     *
+     * @return KeyRing The verified ring
+     */
+    KeyRing verified() {
+        return new KeyRing(keys, checkpoint, true);
+    }
+
+    /**
+     * @brief Checks whether the master password is known to open the vault
+     *
+     * Storages only run steps that rewrite or drop records, such as converting a
+     * table, with a verified ring; a ring that merely decrypts a record without a
+     * padding error proves nothing, as one wrong key in 256 does that.
+     *
+     * @return boolean true if the keys come from a header that passed its check
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * @brief Returns the version a stored value was encrypted with
+     *
+     * @param value The stored value
+     * @return int The version from its tag, 1 if it has none, or -1 if the tag is malformed
+     */
+    public static int version(String value) {
+        int separator = value.indexOf(TAG_SEPARATOR);
+        if (separator < 0) {
+            return FIRST_VERSION;
+        }
+        try {
+            return Integer.parseInt(value.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @brief Returns a stored value without its tag
+     *
+     * @param value The stored value
+     * @return String The Base64 ciphertext
+     */
+    public static String body(String value) {
+        return value.substring(value.indexOf(TAG_SEPARATOR) + 1);
+    }
+
+    /**
+     * @brief Checks whether a stored value uses the current key
+     *
+     * @param value The stored value
+     * @return boolean true if it needs no rotation
+     */
+    public boolean isCurrent(String value) {
+        return version(value) == currentVersion();
+    }
+
+    /**
+     * @brief Tags a ciphertext made with the current key
+     *
+     * @param ciphertext The Base64 ciphertext
+     * @return String The stored value
+     */
+    public String tag(String ciphertext) {
+        return tag(currentVersion(), ciphertext);
+    }
+
+    /**
+     * @brief Tags a ciphertext with the version of the key that made it
+     *
+     * @param version The key version
+     * @param ciphertext The Base64 ciphertext
+     * @return String The stored value
+     */
+    public static String tag(int version, String ciphertext) {
+        return version == FIRST_VERSION ? ciphertext : version + String.valueOf(TAG_SEPARATOR) + ciphertext;
+    }
+
+    /**
+     * @brief Returns the key a stored value was encrypted with
+     *
+     * @param value The stored value
+     * @return SessionKey The key of its version
+     * @throws GeneralSecurityException If the ring has no key of that version
+     */
+    public SessionKey keyFor(String value) throws GeneralSecurityException {
+        return keyFor(version(value));
+    }
+
+    /**
+     * @brief Returns the key of a version
+     *
+     * @param version The key version
+     * @return SessionKey The key
+     * @throws GeneralSecurityException If the ring has no key of that version
+     */
+    public SessionKey keyFor(int version) throws GeneralSecurityException {
+        SessionKey key = keys.get(version);
+        if (key == null) {
+            throw new GeneralSecurityException("No key for version " + version);
+        }
+        return key;
+    }
+
+    /**
+     * @brief Encrypts a string with the current key
+     *
+     * @param data The plaintext
+     * @return String The tagged Base64 ciphertext
+     * @throws GeneralSecurityException If encryption fails
+     */
+    public String encrypt(String data) throws GeneralSecurityException {
+        return tag(currentKey().encrypt(data));
+    }
+
+    /**
+     * @brief Decrypts a stored value with the key of its version
+     *
+     * @param value The tagged Base64 ciphertext
+     * @return String The plaintext
+     * @throws GeneralSecurityException If the version is unknown or decryption fails
+     * @throws IllegalArgumentException If the ciphertext is not valid Base64
+     */
+    public String decrypt(String value) throws GeneralSecurityException {
+        return keyFor(value).decrypt(body(value));
+    }
+
+    /**
+     * @brief Checks whether a stored value decrypts to text with this ring
+     *
+     * Values written before vaults had key headers carry no authentication tag, so
+     * this is only a plausibility check: besides a valid padding, the plaintext must
+     * be well-formed UTF-8 without control characters other than whitespace. A wrong
+     * key passes the padding check about once in 256 tries, but almost never this.
+     *
+     * @param value The stored value
+     * @return boolean true if the value decrypts to text
+     */
+    boolean decryptsToText(String value) {
+        try {
+            byte[] plaintext = keyFor(value).decrypt(Base64.getDecoder().decode(body(value)));
+            String text = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(plaintext))
+                    .toString();
+            return text.chars().noneMatch(c -> Character.isISOControl(c) && !Character.isWhitespace(c));
+        } catch (GeneralSecurityException | IllegalArgumentException | CharacterCodingException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.ucoruh.password;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * @brief Iterates over all entries of a storage one keyset page at a time.
+ *
+ * Each page is read with readAfter, starting after the service of the last entry of
+ * the previous page, so only one page is held in memory and no storage resources are
+ * kept open between pages. Entries changed while iterating are seen if their key
+ * follows the cursor.
+ */
+final class KeysetCursor implements Iterator<Password> {
+    /**
+     * @brief Number of entries read per page
+     */
+    static final int PAGE_SIZE = 256;
+
+    /**
+     * @brief The storage to read
+     */
+    private final InterfacePasswordStorage storage;
+
+    /**
+     * @brief Maximum number of entries per page
+     */
+    private final int pageSize;
+
+    /**
+     * @brief The rest of the current page
+     */
+    private Iterator<Password> page = Collections.emptyIterator();
+
+    /**
+     * @brief Service of the last entry read, or null before the first page
+     */
+    private String after;
+
+    /**
+     * @brief Whether the last page read was the final one
+     */
+    private boolean done;
+
+    /**
+     * @brief Creates a cursor before the first entry
+     *
+     * @param storage The storage to read
+     * @param pageSize Maximum number of entries per page
+     */
+    KeysetCursor(InterfacePasswordStorage storage, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.storage = storage;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @brief Streams all entries of a storage in pages of PAGE_SIZE
+     *
+     * @param storage The storage to read
+     * @return Stream The entries, in key order
+     */
+    static Stream<Password> stream(InterfacePasswordStorage storage) {
+        Iterator<Password> cursor = new KeysetCursor(storage, PAGE_SIZE);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext() && !done) {
+            List<Password> next = storage.readAfter(after, pageSize);
+            // A short page is the last one
+            done = next.size() < pageSize;
+            if (!next.isEmpty()) {
+                after = next.get(next.size() - 1).getService();
+            }
+            page = next.iterator();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public Password next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+}
@@ -0,0 +1,99 @@
+package com.ucoruh.password;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @file LazyPassword.java
+ * @class LazyPassword
+ * @brief Password entry that keeps its secret encrypted until it is read.
+ *
+ * Listings only need the service and username, so storages return entries of this
+ * class and the secret is decrypted on the first call to getPassword(). After use,
+ * forgetPassword() drops the cleartext again so it is decrypted on the next read.
+ * Setting a new password replaces the ciphertext with the plain value.
+ */
+public class LazyPassword extends Password {
+    /**
+     * @brief The encrypted secret, or null once a new password was set.
+     */
+    private byte[] ciphertext;
+
+    /**
+     * @brief The key that decrypts the ciphertext.
+     */
+    private final SessionKey key;
+
+    /**
+     * @brief The decrypted secret, or null while it has not been read.
+     */
+    private String cleartext;
+
+    /**
+     * @brief Constructs an entry whose secret is still encrypted.
+     *
+     * @param service the service name
+     * @param username the associated username
+     * @param ciphertext the secret encrypted with the key
+     * @param key the key that decrypts the secret
+     */
+    public LazyPassword(String service, String username, byte[] ciphertext, SessionKey key) {
+        super(service, username, null);
+        this.ciphertext = ciphertext;
+        this.key = key;
+    }
+
+    /**
+     * @brief Returns the password string, decrypting it on first use.
+     *
+     * @return the password string associated with this password entry.
+     * @throws IllegalStateException if the stored secret cannot be decrypted.
+     */
+    @Override
+    public String getPassword() {
+        if (ciphertext == null) {
+            return super.getPassword();
+        }
+        if (cleartext == null) {
+            try {
+                cleartext = new String(key.decrypt(ciphertext), StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not decrypt password for " + getService(), e);
+            }
+        }
+        return cleartext;
+    }
+
+    /**
+     * @brief Sets a new password for this password entry.
+     *
+     * @param password the new password string to be set for this password entry.
+     */
+    @Override
+    public void setPassword(String password) {
+        ciphertext = null;
+        cleartext = null;
+        super.setPassword(password);
+    }
+
+    /**
+     * @brief Drops the decrypted secret; the next getPassword() decrypts it again.
+     */
+    @Override
+    public void forgetPassword() {
+        cleartext = null;
+    }
+
+    /**
+     * @brief Returns the stored ciphertext if it was encrypted with the given key.
+     *
+     * Storages use this to write an unchanged secret without decrypting and
+     * re-encrypting it.
+     *
+     * @param key the key the caller would encrypt with
+     * @return the ciphertext, or null if a new password was set or the key differs.
+     */
+    @Override
+    byte[] ciphertextFor(SessionKey key) {
+        return key == this.key ? ciphertext : null;
+    }
+}
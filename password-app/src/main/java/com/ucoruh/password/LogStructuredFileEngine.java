@@ -0,0 +1,2061 @@
+package com.ucoruh.password;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @brief Append-only, log-structured engine behind FilePasswordStorage.
+ *
+ * Every mutation is appended to the vault file as a single encrypted record:
+ * a put record holds the full entry, a delete record (tombstone) holds only the
+ * service name. At open time the log is replayed once to build an in-memory
+ * directory that maps each service to the offset of its latest put record, so
+ * single-entry changes cost one encryption and one append instead of a full
+ * decrypt and rewrite of the vault.
+ *
+ * Records that are superseded or deleted stay in the file as dead records. Once
+ * their number passes the compaction threshold, the live records are copied into
+ * a fresh file on a background thread. Compaction copies the encrypted bytes as-is
+ * and never decrypts anything.
+ *
+ * Records are stored in the binary format of BinaryRecordCodec: a length-prefixed
+ * record with the raw ciphertext, behind a header that names the format version.
+ * Earlier versions wrote one Base64 line per record. Such a text file is still read,
+ * and once every record in it has been decrypted it is rewritten in the binary format
+ * in place; a file holding records this master password cannot read stays text until
+ * a password that reads it all opens it.
+ *
+ * In the opt-in sealed mode the records are not encrypted one by one. Each append
+ * packs its records into chunks of up to 64 KiB that are encrypted and authenticated
+ * as a whole with AES-GCM, and compaction repacks the live records into full chunks.
+ * Loading then costs one cipher pass per chunk instead of one per record, chunks are
+ * decrypted in parallel by the pipeline, and a changed chunk is detected instead of
+ * decrypting to garbage. Each chunk is bound to its offset, and the last chunk of each
+ * append is marked, so a chunk that was moved, repeated or dropped fails to open and
+ * the chunks of an append that was cut short are skipped. A log truncated exactly
+ * between two appends looks like the log before the later one; that would take a
+ * record kept outside the file to tell. Looking up a single entry decrypts the chunk
+ * that holds it.
+ * Opening a vault in sealed mode converts it once every record has been decrypted;
+ * a sealed vault stays sealed.
+ *
+ * Records are encrypted with the vault data keys (see VaultKey), which are kept
+ * wrapped by the master password in a small file next to the log, named like the
+ * log with ".key" appended. Each record is tagged with the version of its key (see
+ * KeyRing), so rotateKey() can re-encrypt the live records batch by batch while the
+ * vault stays readable.
+ *
+ * Several engines, also in other processes, may share a log. Every change locks a
+ * file next to the log, named like the log with ".lock" appended, checks whether the
+ * log changed since it was last read, and only then appends or rewrites it.
+ */
+public class LogStructuredFileEngine {
+	/**
+	 * @brief Default number of dead records that triggers a background compaction.
+	 */
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 256;
+
+	/**
+	 * @brief Prefix that marks a delete record in the text format.
+	 *
+	 * Base64 output never contains this character, so it cannot clash with a put record.
+	 */
+	private static final char TOMBSTONE_PREFIX = '-';
+
+	/**
+	 * @brief Header of a sealed log, authenticated with every chunk together with its type and offset.
+	 */
+	private static final byte[] SEALED_HEADER = BinaryRecordCodec.header(BinaryRecordCodec.SEALED_FORMAT_VERSION);
+
+	/**
+	 * @brief Plaintext of the key check record of a sealed log.
+	 */
+	private static final byte[] KEY_CHECK = "password-vault".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * @brief Shared daemon thread that runs compactions for all engines.
+	 */
+	private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "password-log-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @brief Location of a live record inside the log file.
+	 *
+	 * The pointer also carries the stamp of the record (see stampOf()), which entries
+	 * read from it are marked with. A record moved by a compaction or found again by a
+	 * reload gets a new pointer with the same stamp, so an entry matches as long as the
+	 * directory points at the record it came from, wherever that record now is.
+	 */
+	private static final class RecordPointer {
+		/** @brief Byte offset of the record, or of the sealed chunk that holds it. */
+		final long offset;
+
+		/** @brief Length of the record or chunk in bytes, including a text line terminator. */
+		final int length;
+
+		/** @brief Offset of the record in the plaintext of its chunk, or -1 outside a chunk. */
+		final int inner;
+
+		/** @brief Length of the record in the plaintext of its chunk. */
+		final int innerLength;
+
+		/** @brief Stamp of the record, or null for a chunk or a record nobody reads. */
+		final Object stamp;
+
+		RecordPointer(long offset, int length) {
+			this(offset, length, -1, 0, null);
+		}
+
+		RecordPointer(long offset, int length, Object stamp) {
+			this(offset, length, -1, 0, stamp);
+		}
+
+		RecordPointer(long offset, int length, int inner, int innerLength, Object stamp) {
+			this.offset = offset;
+			this.length = length;
+			this.inner = inner;
+			this.innerLength = innerLength;
+			this.stamp = stamp;
+		}
+
+		/**
+		 * @brief Returns the same location with a stamp.
+		 *
+		 * @param stamp The stamp of the record.
+		 * @return The stamped pointer.
+		 */
+		RecordPointer withStamp(Object stamp) {
+			return new RecordPointer(offset, length, inner, innerLength, stamp);
+		}
+	}
+
+	/**
+	 * @brief A record as read from the log, before decryption.
+	 */
+	private static final class RawRecord {
+		/** @brief The record as stored, without a text line terminator. */
+		final byte[] bytes;
+
+		/** @brief Location of the record. */
+		final RecordPointer pointer;
+
+		RawRecord(byte[] bytes, RecordPointer pointer) {
+			this.bytes = bytes;
+			this.pointer = pointer;
+		}
+	}
+
+	/**
+	 * @brief A record after decryption during replay.
+	 */
+	private static final class ReplayedRecord {
+		/** @brief Location of the record. */
+		final RecordPointer pointer;
+
+		/** @brief Directory key of the record, or null for a blank line. */
+		final String key;
+
+		/** @brief Whether the record is a tombstone. */
+		final boolean tombstone;
+
+		ReplayedRecord(RecordPointer pointer, String key, boolean tombstone) {
+			this.pointer = pointer;
+			this.key = key;
+			this.tombstone = tombstone;
+		}
+	}
+
+	/**
+	 * @brief Exclusive lock on a log, shared by every engine on that log in this JVM.
+	 *
+	 * The lock file is locked with a FileLock to keep out other processes. A JVM can
+	 * hold only one FileLock on a file, so engines on the same log wait for each other
+	 * on a shared ReentrantLock, and only the outermost holder locks the file.
+	 */
+	private static final class LogLock implements Closeable {
+		/** @brief Locks by the absolute path of their lock file. */
+		private static final Map<Path, LogLock> LOCKS = new ConcurrentHashMap<>();
+
+		/** @brief The lock file. */
+		private final Path path;
+
+		/** @brief Orders the threads of this JVM. */
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/** @brief Channel holding the FileLock; null while the lock is free. */
+		private FileChannel channel;
+
+		private LogLock(Path path) {
+			this.path = path;
+		}
+
+		/**
+		 * @brief Waits until the calling thread holds the lock.
+		 *
+		 * @param path The lock file.
+		 * @return The held lock.
+		 * @throws IOException If the lock file cannot be opened or locked.
+		 */
+		static LogLock acquire(Path path) throws IOException {
+			LogLock log = LOCKS.computeIfAbsent(path.toAbsolutePath().normalize(), LogLock::new);
+			log.lock.lock();
+			if (log.lock.getHoldCount() == 1) {
+				try {
+					log.channel = FileChannel.open(log.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					log.channel.lock();
+				} catch (IOException | RuntimeException e) {
+					log.close();
+					throw e;
+				}
+			}
+			return log;
+		}
+
+		/**
+		 * @brief Releases one hold of the lock; the last one unlocks the file.
+		 *
+		 * @throws IOException If the lock file cannot be closed.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				if (lock.getHoldCount() == 1 && channel != null) {
+					// Closing the channel releases the FileLock
+					FileChannel open = channel;
+					channel = null;
+					open.close();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @brief A live record re-encrypted with the current key.
+	 */
+	private static final class RotatedRecord {
+		/** @brief Directory key of the record. */
+		final String key;
+
+		/** @brief The new record. */
+		final byte[] bytes;
+
+		RotatedRecord(String key, byte[] bytes) {
+			this.key = key;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * @brief Splits a text log stream into raw records for the decryption pipeline.
+	 */
+	private static final class LogReader implements DecryptionPipeline.Source<RawRecord, IOException> {
+		/** @brief The buffered log stream. */
+		private final InputStream in;
+
+		/** @brief Bytes of the record being read. */
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+		/** @brief Number of bytes read so far. */
+		private long offset;
+
+		LogReader(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public RawRecord next() throws IOException {
+			long lineStart = offset;
+			line.reset();
+			int b;
+			while ((b = in.read()) != -1) {
+				offset++;
+				if (b == '\n') {
+					return record(lineStart);
+				}
+				line.write(b);
+			}
+			return line.size() > 0 ? record(lineStart) : null;
+		}
+
+		private RawRecord record(long lineStart) {
+			return new RawRecord(line.toByteArray(), new RecordPointer(lineStart, (int) (offset - lineStart)));
+		}
+	}
+
+	/**
+	 * @brief Hands the records of a binary log to the decryption pipeline.
+	 */
+	private static final class BinaryLogReader implements DecryptionPipeline.Source<RawRecord, IOException> {
+		/** @brief The record reader. */
+		private final BinaryRecordCodec.Reader reader;
+
+		BinaryLogReader(BinaryRecordCodec.Reader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public RawRecord next() throws IOException {
+			long start = reader.end();
+			byte[] record = reader.next();
+			return record == null ? null : new RawRecord(record, new RecordPointer(start, record.length));
+		}
+	}
+
+	/**
+	 * @brief The key file of this log as a VaultKey header.
+	 */
+	private final class KeyFile implements VaultKey.Header<IOException> {
+		@Override
+		public String load() throws IOException {
+			return VaultKey.readFile(keyFile);
+		}
+
+		@Override
+		public void save(String header) throws IOException {
+			VaultKey.writeFile(keyFile, header);
+		}
+
+		@Override
+		public String sampleRecord() throws IOException {
+			if (!Files.exists(file)) {
+				return null;
+			}
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				if (formatVersion(channel) >= BinaryRecordCodec.FORMAT_VERSION) {
+					// In a sealed log this is the key check record
+					byte[] record = new BinaryRecordCodec.Reader(channel, BinaryRecordCodec.HEADER_LENGTH).next();
+					return record == null ? null : BinaryRecordCodec.toText(record);
+				}
+			}
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (!line.isEmpty()) {
+						return line.charAt(0) == TOMBSTONE_PREFIX ? line.substring(1) : line;
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @brief Path of the log file.
+	 */
+	private final Path file;
+
+	/**
+	 * @brief Path of the file that holds the wrapped data key.
+	 */
+	private final Path keyFile;
+
+	/**
+	 * @brief Path of the file that is locked while the log is checked and changed.
+	 */
+	private final Path lockFile;
+
+	/**
+	 * @brief The master password that unwraps the data key.
+	 */
+	private String masterPassword;
+
+	/**
+	 * @brief The vault data keys, unwrapped on first use and again after each replay.
+	 *
+	 * Volatile because pipeline threads read it; it is always unwrapped before they start.
+	 */
+	private volatile KeyRing keys;
+
+	/**
+	 * @brief Whether the log uses the binary format rather than the text format.
+	 *
+	 * Volatile because pipeline threads read it; it only changes while no pipeline runs.
+	 */
+	private volatile boolean binary = true;
+
+	/**
+	 * @brief Whether new logs are sealed and existing ones are converted to the sealed format.
+	 */
+	private final boolean sealedMode;
+
+	/**
+	 * @brief Whether the log is sealed; implies binary.
+	 *
+	 * Volatile for the same reason as binary.
+	 */
+	private volatile boolean sealed;
+
+	/**
+	 * @brief Offset of the sealed chunk whose plaintext is cached, or -1.
+	 */
+	private long cachedChunk = -1;
+
+	/**
+	 * @brief Plaintext of the cached chunk, so entries of one chunk read one after another decrypt it once.
+	 */
+	private byte[] cachedPlaintext;
+
+	/**
+	 * @brief File offset just past the last complete binary record.
+	 */
+	private long logEnd;
+
+	/**
+	 * @brief Number of dead records that triggers a background compaction.
+	 */
+	private final int compactionThreshold;
+
+	/**
+	 * @brief Maps the normalized service name to its latest put record, in insertion order.
+	 */
+	private Map<String, RecordPointer> keydir;
+
+	/**
+	 * @brief Records that could not be decrypted with this master password.
+	 *
+	 * They are kept through compactions so that a wrong password never destroys data.
+	 */
+	private List<RecordPointer> unreadable;
+
+	/**
+	 * @brief Number of records in the file that are no longer live.
+	 */
+	private int deadRecords;
+
+	/**
+	 * @brief File size observed after the last replay or write by this engine.
+	 */
+	private long knownLength = -1;
+
+	/**
+	 * @brief Modification time observed after the last replay or write by this engine.
+	 */
+	private FileTime knownModified;
+
+	/**
+	 * @brief Identity of the file (inode on most systems) observed after the last replay or write.
+	 *
+	 * A rewrite through a temporary file changes it even when size and time stay the same.
+	 */
+	private Object knownFileKey;
+
+	/**
+	 * @brief Pending background compaction, if any.
+	 */
+	private Future<?> pendingCompaction;
+
+	/**
+	 * @brief Counter that changes whenever the live entries may have changed.
+	 */
+	private long generation;
+
+	/**
+	 * @brief The directory keys in order, or null until readAfter() needs them.
+	 */
+	private String[] sortedKeys;
+
+	/**
+	 * @brief Generation at which sortedKeys was taken from the directory.
+	 */
+	private long sortedKeysGeneration;
+
+	/**
+	 * @brief Pipeline that decrypts records when the log is replayed or read.
+	 */
+	private DecryptionPipeline pipeline = DecryptionPipeline.defaults();
+
+	/**
+	 * @brief Creates an engine over the given log file.
+	 *
+	 * The file is not touched until the first operation.
+	 *
+	 * @param file Path of the log file.
+	 * @param masterPassword The master password for encryption/decryption.
+	 * @param compactionThreshold Number of dead records that triggers a background compaction.
+	 */
+	public LogStructuredFileEngine(Path file, String masterPassword, int compactionThreshold) {
+		this(file, masterPassword, compactionThreshold, false);
+	}
+
+	/**
+	 * @brief Creates an engine over the given log file, optionally in sealed mode.
+	 *
+	 * The file is not touched until the first operation.
+	 *
+	 * @param file Path of the log file.
+	 * @param masterPassword The master password for encryption/decryption.
+	 * @param compactionThreshold Number of dead records that triggers a background compaction.
+	 * @param sealedMode Whether to seal the records in authenticated chunks.
+	 */
+	public LogStructuredFileEngine(Path file, String masterPassword, int compactionThreshold, boolean sealedMode) {
+		if (compactionThreshold < 1) {
+			throw new IllegalArgumentException("Compaction threshold must be at least 1");
+		}
+		this.file = file;
+		this.keyFile = file.resolveSibling(file.getFileName() + ".key");
+		this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+		this.masterPassword = masterPassword;
+		this.compactionThreshold = compactionThreshold;
+		this.sealedMode = sealedMode;
+		this.sealed = sealedMode;
+	}
+
+	/**
+	 * @brief Sets the pipeline that decrypts records on replay and in readAll.
+	 *
+	 * @param pipeline The pipeline to use.
+	 */
+	public synchronized void setDecryptionPipeline(DecryptionPipeline pipeline) {
+		this.pipeline = Objects.requireNonNull(pipeline);
+	}
+
+	/**
+	 * @brief Returns the lookup key for a service name.
+	 *
+	 * @param service The service name.
+	 * @return The case-insensitive key used in the in-memory directory.
+	 */
+	static String key(String service) {
+		return Password.key(service);
+	}
+
+	/**
+	 * @brief Checks whether a live entry exists for the service.
+	 *
+	 * @param service The service name, matched case-insensitively.
+	 * @return true if the service has a live record.
+	 * @throws IOException If the log cannot be read.
+	 */
+	public synchronized boolean contains(String service) throws IOException {
+		ensureLoaded();
+		return keydir.containsKey(key(service));
+	}
+
+	/**
+	 * @brief Reads the live entry for a service.
+	 *
+	 * @param service The service name, matched case-insensitively.
+	 * @return The stored entry, or null if the service has no live record.
+	 * @throws IOException If the log cannot be read or the record cannot be decrypted.
+	 */
+	public synchronized Password get(String service) throws IOException {
+		ensureLoaded();
+		RecordPointer pointer = keydir.get(key(service));
+		if (pointer == null) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Password p = decodePut(readRecordBytes(channel, pointer));
+			p.markStored(pointer.stamp);
+			return p;
+		}
+	}
+
+	/**
+	 * @brief Reads all live entries in the order their services were first stored.
+	 *
+	 * Records that cannot be decrypted are skipped with a warning.
+	 *
+	 * @return The live entries.
+	 * @throws IOException If the log cannot be read.
+	 */
+	public synchronized List<Password> readAll() throws IOException {
+		ensureLoaded();
+		List<Password> list = decodeLive();
+		for (Password p : list) {
+			p.markStored(stampOf(keydir.get(key(p.getService()))));
+		}
+		return list;
+	}
+
+	/**
+	 * @brief Decrypts the live entries in directory order.
+	 *
+	 * In sealed mode the chunks that hold them are decrypted by the pipeline, each
+	 * once, and the entries are then read from the plaintext. Records that cannot be
+	 * decrypted are skipped with a warning.
+	 *
+	 * @return The live entries that could be decrypted.
+	 * @throws IOException If the log cannot be read.
+	 */
+	private List<Password> decodeLive() throws IOException {
+		if (keydir.isEmpty()) {
+			return new ArrayList<>();
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (!sealed) {
+				Iterator<RecordPointer> pointers = keydir.values().iterator();
+				return pipeline.run(() -> pointers.hasNext() ? readRecordBytes(channel, pointers.next()) : null,
+						this::decodePut,
+						(record, e) -> System.out.println("Warning: Could not decrypt a password entry."));
+			}
+			Map<Long, byte[]> chunks = openChunks(channel, keydir.values());
+			List<Password> list = new ArrayList<>(keydir.size());
+			for (RecordPointer pointer : keydir.values()) {
+				byte[] plaintext = chunks.get(pointer.offset);
+				if (plaintext == null) {
+					// Reported when its chunk failed
+					continue;
+				}
+				try {
+					list.add(decodePut(slice(plaintext, pointer)));
+				} catch (IOException e) {
+					System.out.println("Warning: Could not decrypt a password entry.");
+				}
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * @brief Reads a page of live entries in the order of readAll().
+	 *
+	 * Only the records of the page are read and decrypted. Records that cannot be
+	 * decrypted are skipped with a warning, so a page may hold fewer entries than requested.
+	 *
+	 * @param offset Index of the first entry of the page.
+	 * @param limit Maximum number of entries in the page.
+	 * @return The entries of the page.
+	 * @throws IOException If the log cannot be read.
+	 */
+	public synchronized List<Password> readPage(int offset, int limit) throws IOException {
+		ensureLoaded();
+		List<Password> page = new ArrayList<>();
+		if (offset >= keydir.size() || limit <= 0) {
+			return page;
+		}
+		Iterator<RecordPointer> pointers = keydir.values().iterator();
+		for (int i = 0; i < offset; i++) {
+			pointers.next();
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int i = 0; i < limit && pointers.hasNext(); i++) {
+				RecordPointer pointer = pointers.next();
+				byte[] record = readRecordBytes(channel, pointer);
+				try {
+					Password p = decodePut(record);
+					p.markStored(pointer.stamp);
+					page.add(p);
+				} catch (IOException e) {
+					System.out.println("Warning: Could not decrypt a password entry.");
+				}
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * @brief Reads the live entries whose keys follow a service, in key order.
+	 *
+	 * The key order is the order of the normalized service names. Each call looks up the
+	 * next keys in a sorted copy of the directory keys, which is only taken again after
+	 * the directory changed, and reads and decrypts only their records. Records that cannot be decrypted are skipped with a warning and the page is
+	 * filled from the keys after them.
+	 *
+	 * @param after The service whose successors are read, or null to start at the first key.
+	 * @param limit Maximum number of entries in the page.
+	 * @return The entries of the page.
+	 * @throws IOException If the log cannot be read.
+	 */
+	public synchronized List<Password> readAfter(String after, int limit) throws IOException {
+		ensureLoaded();
+		List<Password> page = new ArrayList<>();
+		if (keydir.isEmpty() || limit <= 0) {
+			return page;
+		}
+		String cursor = after == null ? null : key(after);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (page.size() < limit) {
+				int wanted = limit - page.size();
+				List<String> keys = keysAfter(cursor, wanted);
+				for (String key : keys) {
+					RecordPointer pointer = keydir.get(key);
+					byte[] record = readRecordBytes(channel, pointer);
+					try {
+						Password p = decodePut(record);
+						p.markStored(pointer.stamp);
+						page.add(p);
+					} catch (IOException e) {
+						System.out.println("Warning: Could not decrypt a password entry.");
+					}
+				}
+				if (keys.size() < wanted) {
+					break;
+				}
+				cursor = keys.get(keys.size() - 1);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * @brief Finds the smallest keys of the directory that follow a key.
+	 *
+	 * @param after The key to start after, or null to start at the smallest key.
+	 * @param count Maximum number of keys.
+	 * @return The keys, sorted.
+	 */
+	private List<String> keysAfter(String after, int count) {
+		if (sortedKeys == null || sortedKeysGeneration != generation) {
+			sortedKeys = keydir.keySet().toArray(new String[0]);
+			Arrays.sort(sortedKeys);
+			sortedKeysGeneration = generation;
+		}
+		int from = 0;
+		if (after != null) {
+			int found = Arrays.binarySearch(sortedKeys, after);
+			from = found >= 0 ? found + 1 : -found - 1;
+		}
+		return Arrays.asList(sortedKeys).subList(from, Math.min(from + count, sortedKeys.length));
+	}
+
+	/**
+	 * @brief Stores an entry by appending a put record.
+	 *
+	 * An existing entry with the same service (case-insensitive) is superseded.
+	 *
+	 * @param password The entry to store.
+	 * @throws IOException If the record cannot be encrypted or appended.
+	 */
+	public synchronized void put(Password password) throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			RecordPointer pointer = append(List.of(encodePut(password))).get(0);
+			if (keydir.put(key(password.getService()), pointer) != null) {
+				deadRecords++;
+			}
+			password.markStored(pointer.stamp);
+			maybeScheduleCompaction();
+		}
+	}
+
+	/**
+	 * @brief Deletes an entry by appending a tombstone.
+	 *
+	 * @param service The service name, matched case-insensitively.
+	 * @return true if a live entry was removed; false if none existed.
+	 * @throws IOException If the tombstone cannot be encrypted or appended.
+	 */
+	public synchronized boolean remove(String service) throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			String key = key(service);
+			if (!keydir.containsKey(key)) {
+				return false;
+			}
+			append(List.of(encodeTombstone(service)));
+			keydir.remove(key);
+			// Both the superseded put record and the tombstone itself are dead now
+			deadRecords += 2;
+			maybeScheduleCompaction();
+			return true;
+		}
+	}
+
+	/**
+	 * @brief Stores several entries with a single append.
+	 *
+	 * @param passwords The entries to store; a later entry wins over an earlier one for the same service.
+	 * @throws IOException If a record cannot be encrypted or the records cannot be appended.
+	 */
+	public synchronized void putAll(Collection<Password> passwords) throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			if (passwords.isEmpty()) {
+				return;
+			}
+			List<Password> puts = new ArrayList<>(passwords);
+			List<byte[]> records = new ArrayList<>(puts.size());
+			for (Password p : puts) {
+				records.add(encodePut(p));
+			}
+			List<RecordPointer> pointers = append(records);
+			for (int i = 0; i < puts.size(); i++) {
+				Password p = puts.get(i);
+				if (keydir.put(key(p.getService()), pointers.get(i)) != null) {
+					deadRecords++;
+				}
+				p.markStored(pointers.get(i).stamp);
+			}
+			maybeScheduleCompaction();
+		}
+	}
+
+	/**
+	 * @brief Deletes several entries with a single append of tombstones.
+	 *
+	 * @param services The service names; names that are not stored are ignored.
+	 * @return The number of entries deleted.
+	 * @throws IOException If the tombstones cannot be appended.
+	 */
+	public synchronized int removeAll(Collection<String> services) throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			Set<String> keys = new LinkedHashSet<>();
+			List<byte[]> records = new ArrayList<>();
+			for (String service : services) {
+				String key = key(service);
+				if (keydir.containsKey(key) && keys.add(key)) {
+					records.add(encodeTombstone(service));
+				}
+			}
+			if (records.isEmpty()) {
+				return 0;
+			}
+			append(records);
+			for (String key : keys) {
+				keydir.remove(key);
+				deadRecords += 2;
+			}
+			maybeScheduleCompaction();
+			return keys.size();
+		}
+	}
+
+	/**
+	 * @brief Makes the vault hold exactly the given entries by appending only the differences.
+	 *
+	 * Entries that are unchanged since they were loaded from or saved as the record the
+	 * directory still points at are skipped. Changed and new entries are appended as put records, and services missing
+	 * from the list get a tombstone. The cost therefore scales with the number of changed
+	 * entries, not with the size of the vault. Entries that cannot be encrypted are skipped
+	 * with an error message.
+	 *
+	 * @param list The complete list of entries the vault should contain.
+	 * @throws IOException If the records cannot be appended.
+	 */
+	public synchronized void writeAll(List<Password> list) throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			Map<String, Password> wanted = new LinkedHashMap<>();
+			for (Password p : list) {
+				wanted.put(key(p.getService()), p);
+			}
+		
+			List<Password> puts = new ArrayList<>();
+			List<byte[]> records = new ArrayList<>();
+			for (Map.Entry<String, Password> entry : wanted.entrySet()) {
+				Password p = entry.getValue();
+				if (p.isStoredIn(stampOf(keydir.get(entry.getKey())))) {
+					continue;
+				}
+				try {
+					records.add(encodePut(p));
+					puts.add(p);
+				} catch (IOException e) {
+					System.out.println("Error encrypting password for " + p.getService() + ": " + e.getMessage());
+				}
+			}
+			List<String> deletes = new ArrayList<>();
+			for (String key : keydir.keySet()) {
+				if (!wanted.containsKey(key)) {
+					records.add(encodeTombstone(key));
+					deletes.add(key);
+				}
+			}
+			if (records.isEmpty()) {
+				return;
+			}
+		
+			List<RecordPointer> pointers = append(records);
+			for (int i = 0; i < puts.size(); i++) {
+				Password p = puts.get(i);
+				if (keydir.put(key(p.getService()), pointers.get(i)) != null) {
+					deadRecords++;
+				}
+				p.markStored(pointers.get(i).stamp);
+			}
+			for (String key : deletes) {
+				keydir.remove(key);
+				deadRecords += 2;
+			}
+			maybeScheduleCompaction();
+		}
+	}
+
+	/**
+	 * @brief Replaces the whole vault with the given entries by rewriting the file.
+	 *
+	 * The new log is written to a temporary file and moved over the old one, so a
+	 * failure leaves the previous vault intact. Records this master password cannot
+	 * read are carried over unchanged. Entries that cannot be encrypted are skipped
+	 * with an error message.
+	 *
+	 * @param list The entries to store.
+	 * @throws IOException If the new log cannot be written.
+	 */
+	public synchronized void replaceAll(List<Password> list) throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			rewrite(list);
+			generation++;
+			Map<String, Password> stored = new HashMap<>();
+			for (Password p : list) {
+				// A later entry for the same service wins
+				stored.put(key(p.getService()), p);
+			}
+			for (Map.Entry<String, Password> entry : stored.entrySet()) {
+				entry.getValue().markStored(stampOf(keydir.get(entry.getKey())));
+			}
+		}
+	}
+
+	/**
+	 * @brief Writes a new log holding the given entries and moves it into place.
+	 *
+	 * Must be called with the engine lock and the log lock held.
+	 *
+	 * @param list The entries to store.
+	 * @throws IOException If the new log cannot be written.
+	 */
+	private void rewrite(List<Password> list) throws IOException {
+		Map<String, RecordPointer> rebuilt = new LinkedHashMap<>();
+		List<RecordPointer> kept = new ArrayList<>();
+		Path temp = tempFile();
+		try {
+			int dead = 0;
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+				long offset = writeHeader(out);
+				if (!unreadable.isEmpty()) {
+					try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+						for (RecordPointer pointer : unreadable) {
+							byte[] bytes = readRecordBytes(in, pointer);
+							out.write(bytes);
+							kept.add(new RecordPointer(offset, bytes.length));
+							offset += bytes.length;
+						}
+					}
+				}
+				List<Password> stored = new ArrayList<>(list.size());
+				List<byte[]> records = new ArrayList<>(list.size());
+				for (Password p : list) {
+					try {
+						records.add(encodePut(p));
+						stored.add(p);
+					} catch (IOException e) {
+						System.out.println("Error encrypting password for " + p.getService() + ": " + e.getMessage());
+					}
+				}
+				List<RecordPointer> pointers = frame(records, offset, out);
+				for (int i = 0; i < stored.size(); i++) {
+					if (rebuilt.put(key(stored.get(i).getService()), pointers.get(i)) != null) {
+						dead++;
+					}
+				}
+			}
+			install(temp, rebuilt, kept, dead);
+		} finally {
+			// Gone after a successful install; left over if the rewrite failed
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @brief Returns the number of live entries.
+	 *
+	 * @return The number of services with a live record.
+	 * @throws IOException If the log cannot be read.
+	 */
+	public synchronized int size() throws IOException {
+		ensureLoaded();
+		return keydir.size();
+	}
+
+	/**
+	 * @brief Returns the number of dead records currently in the log.
+	 *
+	 * @return Records that a compaction would drop.
+	 * @throws IOException If the log cannot be read.
+	 */
+	public synchronized int deadRecordCount() throws IOException {
+		ensureLoaded();
+		return deadRecords;
+	}
+
+	/**
+	 * @brief Returns a stamp that changes whenever the live entries may have changed.
+	 *
+	 * Changes made through this engine bump the stamp directly. Changes made by
+	 * anyone else are detected from the size, modification time and identity of
+	 * the file, which costs one attribute read and no decryption.
+	 *
+	 * @return The current generation.
+	 * @throws IOException If the file attributes cannot be read.
+	 */
+	public synchronized long generation() throws IOException {
+		if (keydir != null && changedExternally()) {
+			// Reload on next use; the directory no longer matches the file
+			keydir = null;
+			generation++;
+		}
+		return generation;
+	}
+
+	/**
+	 * @brief Wraps the data key with a new master password.
+	 *
+	 * Only the key file is rewritten; the records stay as they are.
+	 *
+	 * @param newMasterPassword The new master password.
+	 * @return true if the vault now opens with the new master password; false if the
+	 *         current master password does not unlock it.
+	 * @throws IOException If the key file or the log cannot be read or written.
+	 */
+	public synchronized boolean changeMasterPassword(String newMasterPassword) throws IOException {
+		try (LogLock lock = lockLog()) {
+			if (!VaultKey.rewrap(new KeyFile(), masterPassword, newMasterPassword)) {
+				return false;
+			}
+		}
+		masterPassword = newMasterPassword;
+		return true;
+	}
+
+	/**
+	 * @brief Re-encrypts every live record with a new data key.
+	 *
+	 * A new key version is added to the key file first; from then on new records use
+	 * it, and records with the old key stay readable. The live records are then
+	 * re-encrypted in service order, in batches of batchSize records that the decryption
+	 * pipeline spreads over its threads. Each batch is appended under the engine lock,
+	 * so other callers can use the vault between batches, and the last service of each
+	 * batch is saved in the key file as a checkpoint. If the rotation is interrupted,
+	 * the next call resumes after the checkpoint instead of starting a new key.
+	 *
+	 * At the end all records are checked once more, the log is compacted so that no
+	 * record with an old key remains, and the old keys are removed from the key file.
+	 *
+	 * A sealed log is instead repacked in one go, which seals every chunk with the new key.
+	 *
+	 * @param batchSize Number of records re-encrypted per batch.
+	 * @return true if every live record now uses the new key; false if the master
+	 *         password does not unlock the vault or a record could not be re-encrypted,
+	 *         in which case the old keys are kept.
+	 * @throws IOException If the log or the key file cannot be read or written.
+	 */
+	public boolean rotateKey(int batchSize) throws IOException {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		List<String> order;
+		String checkpoint;
+		synchronized (this) {
+			try (LogLock lock = lockLog()) {
+				ensureLoaded();
+				KeyRing ring = VaultKey.beginRotation(new KeyFile(), masterPassword);
+				if (ring == null) {
+					return false;
+				}
+				keys = ring;
+				if (sealed) {
+					repack();
+					keys = VaultKey.finishRotation(new KeyFile(), keys(), masterPassword);
+					return true;
+				}
+				checkpoint = ring.checkpoint();
+				order = new ArrayList<>(keydir.keySet());
+			}
+		}
+		Collections.sort(order);
+		int start = 0;
+		if (checkpoint != null) {
+			int found = Collections.binarySearch(order, checkpoint);
+			start = found >= 0 ? found + 1 : -found - 1;
+		}
+		boolean complete = true;
+		for (int from = start; from < order.size(); from += batchSize) {
+			List<String> batch = order.subList(from, Math.min(from + batchSize, order.size()));
+			synchronized (this) {
+				try (LogLock lock = lockLog()) {
+					complete &= rotateBatch(batch);
+					keys = VaultKey.saveCheckpoint(new KeyFile(), keys(), batch.get(batch.size() - 1), masterPassword);
+				}
+			}
+		}
+		synchronized (this) {
+			try (LogLock lock = lockLog()) {
+				// Catch records written with an old key by another engine while the batches ran
+				ensureLoaded();
+				List<String> all = new ArrayList<>(keydir.keySet());
+				for (int from = 0; from < all.size(); from += batchSize) {
+					complete &= rotateBatch(all.subList(from, Math.min(from + batchSize, all.size())));
+				}
+				if (!complete) {
+					return false;
+				}
+				compact();
+				keys = VaultKey.finishRotation(new KeyFile(), keys(), masterPassword);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @brief Re-encrypts the live records of some services that still use an old key.
+	 *
+	 * Must be called with the engine lock held. Records that cannot be re-encrypted
+	 * are left as they are with a warning.
+	 *
+	 * @param services The directory keys of the services.
+	 * @return true if all their records now use the current key.
+	 * @throws IOException If the log cannot be read or appended.
+	 */
+	private boolean rotateBatch(List<String> services) throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			KeyRing ring = keys();
+			List<byte[]> stale = new ArrayList<>();
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				for (String key : services) {
+					RecordPointer pointer = keydir.get(key);
+					if (pointer != null) {
+						byte[] record = readRecordBytes(channel, pointer);
+						if (keyVersion(record) != ring.currentVersion()) {
+							stale.add(record);
+						}
+					}
+				}
+			}
+			if (stale.isEmpty()) {
+				return true;
+			}
+			int[] failures = { 0 };
+			Iterator<byte[]> records = stale.iterator();
+			List<RotatedRecord> rotated = pipeline.run(() -> records.hasNext() ? records.next() : null, record -> {
+				Password p = decodePut(record);
+				return new RotatedRecord(key(p.getService()), encodePut(p));
+			}, (record, e) -> {
+				failures[0]++;
+				System.out.println("Warning: Could not re-encrypt a password entry.");
+			});
+			if (!rotated.isEmpty()) {
+				List<byte[]> bytes = new ArrayList<>(rotated.size());
+				for (RotatedRecord record : rotated) {
+					bytes.add(record.bytes);
+				}
+				List<RecordPointer> pointers = append(bytes);
+				for (int i = 0; i < rotated.size(); i++) {
+					if (keydir.put(rotated.get(i).key, pointers.get(i)) != null) {
+						deadRecords++;
+					}
+				}
+				maybeScheduleCompaction();
+			}
+			return failures[0] == 0;
+		}
+	}
+
+	/**
+	 * @brief Rewrites the log so that it holds only live records.
+	 *
+	 * The encrypted records are copied byte for byte; nothing is decrypted. A sealed log
+	 * decrypts its chunks and seals the live records again in full chunks. A chunk that
+	 * failed to open is copied as it is; it only ever opens at the offset where it
+	 * already failed, so moving it loses nothing.
+	 *
+	 * @throws IOException If the compacted log cannot be written.
+	 */
+	public synchronized void compact() throws IOException {
+		try (LogLock lock = lockLog()) {
+			ensureLoaded();
+			if (deadRecords == 0) {
+				return;
+			}
+			repack();
+		}
+	}
+
+	/**
+	 * @brief Writes a new log with the unreadable and live records only and moves it into place.
+	 *
+	 * Must be called with the engine lock and the log lock held.
+	 *
+	 * @throws IOException If the log cannot be read or the new log cannot be written.
+	 */
+	private void repack() throws IOException {
+		Map<String, RecordPointer> rebuilt = new LinkedHashMap<>();
+		List<RecordPointer> kept = new ArrayList<>();
+		Path temp = tempFile();
+		try {
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+				 OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+				long offset = writeHeader(out);
+				for (RecordPointer pointer : unreadable) {
+					byte[] bytes = readRecordBytes(in, pointer);
+					out.write(bytes);
+					kept.add(new RecordPointer(offset, bytes.length));
+					offset += bytes.length;
+				}
+				Map<Long, byte[]> chunks = sealed ? openChunks(in, keydir.values()) : null;
+				List<byte[]> records = new ArrayList<>(keydir.size());
+				for (RecordPointer pointer : keydir.values()) {
+					if (chunks == null) {
+						records.add(readRecordBytes(in, pointer));
+					} else if (chunks.containsKey(pointer.offset)) {
+						records.add(slice(chunks.get(pointer.offset), pointer));
+					} else {
+						throw new IOException("A sealed chunk could not be decrypted");
+					}
+				}
+				Iterator<RecordPointer> pointers = frame(records, offset, out).iterator();
+				for (String key : keydir.keySet()) {
+					rebuilt.put(key, pointers.next());
+				}
+			}
+			install(temp, rebuilt, kept, 0);
+		} finally {
+			// Gone after a successful install; left over if the rewrite failed
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @brief Waits for a pending background compaction to finish.
+	 *
+	 * Mainly useful for tests and for shutting down cleanly.
+	 */
+	public void awaitCompaction() {
+		Future<?> pending;
+		synchronized (this) {
+			pending = pendingCompaction;
+		}
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+		} catch (Exception e) {
+			System.out.println("Error compacting password file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Schedules a background compaction when enough dead records have piled up.
+	 */
+	private void maybeScheduleCompaction() {
+		if (deadRecords < compactionThreshold) {
+			return;
+		}
+		if (pendingCompaction != null && !pendingCompaction.isDone()) {
+			return;
+		}
+		pendingCompaction = COMPACTOR.submit(() -> {
+			try {
+				compact();
+			} catch (IOException e) {
+				System.out.println("Error compacting password file: " + e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * @brief Replays the log if it has not been loaded yet or was changed by someone else.
+	 *
+	 * The replay holds the log lock, since it may rewrite the log in a newer format.
+	 * Callers that change the log hold the lock already, so the log cannot change
+	 * between this check and their append.
+	 *
+	 * @throws IOException If the log cannot be read.
+	 */
+	private void ensureLoaded() throws IOException {
+		if (keydir != null && !changedExternally()) {
+			return;
+		}
+		try (LogLock lock = lockLog()) {
+			if (keydir != null) {
+				generation++;
+			}
+			replay();
+		}
+	}
+
+	/**
+	 * @brief Takes the exclusive lock on the log.
+	 *
+	 * @return The held lock; closing it releases the lock.
+	 * @throws IOException If the lock file cannot be opened or locked.
+	 */
+	private LogLock lockLog() throws IOException {
+		return LogLock.acquire(lockFile);
+	}
+
+	/**
+	 * @brief Checks whether the file differs from what this engine last saw.
+	 *
+	 * @return true if the file was created, removed, or modified by another writer.
+	 * @throws IOException If the file attributes cannot be read.
+	 */
+	private boolean changedExternally() throws IOException {
+		if (!Files.exists(file)) {
+			return knownLength != -1;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return attributes.size() != knownLength
+				|| !attributes.lastModifiedTime().equals(knownModified)
+				|| !Objects.equals(attributes.fileKey(), knownFileKey);
+	}
+
+	/**
+	 * @brief Rebuilds the in-memory directory by scanning the log from the start.
+	 *
+	 * Records are decrypted by the pipeline and applied in log order.
+	 *
+	 * @throws IOException If the log cannot be read.
+	 */
+	private void replay() throws IOException {
+		keydir = new LinkedHashMap<>();
+		sortedKeys = null;
+		unreadable = new ArrayList<>();
+		deadRecords = 0;
+		cachedChunk = -1;
+		cachedPlaintext = null;
+		if (!Files.exists(file)) {
+			// A vault created later may come with a new key and is written in the configured format
+			binary = true;
+			sealed = sealedMode;
+			keys = null;
+			knownLength = -1;
+			knownModified = null;
+			knownFileKey = null;
+			return;
+		}
+		// Another writer may have rotated the key; unwrap it here, the pipeline threads must not
+		keys = null;
+		keys();
+		List<ReplayedRecord> records;
+		DecryptionPipeline.FailureHandler<RawRecord> onFailure = (record, e) -> {
+			unreadable.add(record.pointer);
+			System.out.println("Warning: Could not decrypt a password entry.");
+		};
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			int version = channel.size() > 0 ? formatVersion(channel)
+					: sealedMode ? BinaryRecordCodec.SEALED_FORMAT_VERSION : BinaryRecordCodec.FORMAT_VERSION;
+			binary = version >= BinaryRecordCodec.FORMAT_VERSION;
+			sealed = version == BinaryRecordCodec.SEALED_FORMAT_VERSION;
+			if (sealed) {
+				BinaryRecordCodec.Reader reader = new BinaryRecordCodec.Reader(channel, BinaryRecordCodec.HEADER_LENGTH);
+				records = new ArrayList<>();
+				if (reader.next() == null) {
+					// No complete key check record; the next append starts the file over
+					logEnd = 0;
+				} else {
+					BinaryLogReader frames = new BinaryLogReader(reader);
+					long[] written = { reader.end() };
+					DecryptionPipeline.Source<RawRecord, IOException> source = () -> {
+						RawRecord frame = frames.next();
+						if (frame != null && BinaryRecordCodec.type(frame.bytes) == BinaryRecordCodec.LAST_CHUNK) {
+							written[0] = frame.pointer.offset + frame.pointer.length;
+						}
+						return frame;
+					};
+					for (List<ReplayedRecord> chunk : pipeline.run(source, this::decodeChunk, onFailure)) {
+						records.addAll(chunk);
+					}
+					logEnd = written[0];
+					if (logEnd < reader.end()) {
+						// The chunks after the last complete append; the next append drops them
+						long end = logEnd;
+						records.removeIf(record -> record.pointer.offset >= end);
+						unreadable.removeIf(pointer -> pointer.offset >= end);
+						System.out.println("Warning: The password file ends with an unfinished write; its entries were skipped.");
+					}
+				}
+			} else if (binary) {
+				BinaryRecordCodec.Reader reader = new BinaryRecordCodec.Reader(channel, BinaryRecordCodec.HEADER_LENGTH);
+				records = pipeline.run(new BinaryLogReader(reader), this::decodeRecord, onFailure);
+				logEnd = Math.max(reader.end(), channel.size() == 0 ? 0 : BinaryRecordCodec.HEADER_LENGTH);
+			} else {
+				InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(0)));
+				records = pipeline.run(new LogReader(in), this::decodeRecord, onFailure);
+			}
+		}
+		for (ReplayedRecord record : records) {
+			applyRecord(record);
+		}
+		rememberFileState();
+		if (unreadable.isEmpty() && (!binary || (sealedMode && !sealed))) {
+			migrate();
+		}
+	}
+
+	/**
+	 * @brief Reads the format version from the header of a log file.
+	 *
+	 * @param channel Open channel on a non-empty log file; its position is moved past the header.
+	 * @return 1 for the text format, FORMAT_VERSION or SEALED_FORMAT_VERSION for the binary formats.
+	 * @throws IOException If the file cannot be read or uses an unknown format version.
+	 */
+	private static int formatVersion(FileChannel channel) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(BinaryRecordCodec.HEADER_LENGTH);
+		channel.position(0);
+		while (head.hasRemaining() && channel.read(head) >= 0) {
+			// Keep reading; a short file is text
+		}
+		head.flip();
+		int version = BinaryRecordCodec.formatVersion(head);
+		if (version > BinaryRecordCodec.SEALED_FORMAT_VERSION) {
+			throw new IOException("Unsupported password file format version " + version);
+		}
+		return version;
+	}
+
+	/**
+	 * @brief Rewrites a text log in the binary format, or a binary log in the sealed format.
+	 *
+	 * Only called when every record of the log could be decrypted, so nothing is
+	 * lost. If the file cannot be rewritten, the engine keeps using its format.
+	 *
+	 * @throws IOException If the log cannot be read.
+	 */
+	private void migrate() throws IOException {
+		List<Password> live = decodeLive();
+		if (live.size() != keydir.size()) {
+			return;
+		}
+		boolean wasBinary = binary;
+		boolean wasSealed = sealed;
+		binary = true;
+		sealed = sealedMode;
+		try {
+			rewrite(live);
+		} catch (IOException e) {
+			binary = wasBinary;
+			sealed = wasSealed;
+			System.out.println("Warning: Could not convert password file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Decrypts one record found during replay.
+	 *
+	 * Called from the pipeline threads, so it only reads engine state.
+	 *
+	 * @param record The raw record.
+	 * @return The decrypted record.
+	 * @throws Exception If the record cannot be decrypted or is malformed.
+	 */
+	private ReplayedRecord decodeRecord(RawRecord record) throws Exception {
+		if (binary) {
+			if (BinaryRecordCodec.type(record.bytes) == BinaryRecordCodec.TOMBSTONE) {
+				String service = new String(decryptBody(record.bytes), StandardCharsets.UTF_8);
+				return new ReplayedRecord(record.pointer, key(service), true);
+			}
+			return new ReplayedRecord(record.pointer.withStamp(stampOf(record.bytes)),
+					key(decodePut(record.bytes).getService()), false);
+		}
+		String text = new String(record.bytes, StandardCharsets.US_ASCII).trim();
+		if (text.isEmpty()) {
+			return new ReplayedRecord(record.pointer, null, false);
+		}
+		if (text.charAt(0) == TOMBSTONE_PREFIX) {
+			String service = keys().decrypt(text.substring(1));
+			return new ReplayedRecord(record.pointer, key(service), true);
+		}
+		return new ReplayedRecord(record.pointer.withStamp(stampOf(record.bytes)),
+				key(decodePut(record.bytes).getService()), false);
+	}
+
+	/**
+	 * @brief Decrypts one chunk of a sealed log found during replay.
+	 *
+	 * Called from the pipeline threads, so it only reads engine state.
+	 *
+	 * @param frame The raw chunk.
+	 * @return The decrypted records of the chunk, in order.
+	 * @throws Exception If the chunk cannot be decrypted or a record is malformed.
+	 */
+	private List<ReplayedRecord> decodeChunk(RawRecord frame) throws Exception {
+		byte[] plaintext = openChunk(frame.bytes, frame.pointer.offset);
+		List<ReplayedRecord> records = new ArrayList<>();
+		for (int inner = 0; inner < plaintext.length;) {
+			int length = BinaryRecordCodec.recordLength(plaintext, inner);
+			RecordPointer pointer = new RecordPointer(frame.pointer.offset, frame.pointer.length, inner, length, null);
+			records.add(decodeRecord(new RawRecord(slice(plaintext, pointer), pointer)));
+			inner += length;
+		}
+		return records;
+	}
+
+	/**
+	 * @brief Applies one decrypted record to the in-memory directory.
+	 *
+	 * @param record The decrypted record.
+	 */
+	private void applyRecord(ReplayedRecord record) {
+		if (record.key == null) {
+			deadRecords++;
+		} else if (record.tombstone) {
+			if (keydir.remove(record.key) != null) {
+				deadRecords++;
+			}
+			deadRecords++;
+		} else if (keydir.put(record.key, record.pointer) != null) {
+			deadRecords++;
+		}
+	}
+
+	/**
+	 * @brief Appends records to the log with a single open of the file.
+	 *
+	 * Must be called with the engine lock and the log lock held, after ensureLoaded(),
+	 * so that logEnd is the end of the log as it is on disk.
+	 *
+	 * @param records The encoded records as returned by encodePut() and encodeTombstone().
+	 * @return The location of each appended record, in the same order.
+	 * @throws IOException If the records cannot be appended.
+	 */
+	private List<RecordPointer> append(List<byte[]> records) throws IOException {
+		generation++;
+		List<RecordPointer> pointers;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long offset = channel.size();
+			if (binary) {
+				if (offset > logEnd) {
+					// Drop the start of a record whose write was interrupted
+					channel.truncate(logEnd);
+					offset = logEnd;
+				}
+				if (offset == 0) {
+					byte[] header = fileHeader();
+					channel.write(ByteBuffer.wrap(header), 0);
+					offset = header.length;
+				}
+			} else if (offset > 0 && !endsWithLineFeed(channel, offset)) {
+				// Terminate a last line that was written without one
+				channel.write(ByteBuffer.wrap(new byte[] { '\n' }), offset);
+				offset++;
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			pointers = frame(records, offset, out);
+			ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, offset + buffer.position());
+			}
+			logEnd = offset + buffer.capacity();
+		}
+		rememberFileState();
+		return pointers;
+	}
+
+	/**
+	 * @brief Writes the binary file header to a new log, if the log is binary.
+	 *
+	 * @param out The new log.
+	 * @return The number of bytes written.
+	 * @throws IOException If the header cannot be written.
+	 */
+	private long writeHeader(OutputStream out) throws IOException {
+		byte[] header = fileHeader();
+		out.write(header);
+		return header.length;
+	}
+
+	/**
+	 * @brief Returns the bytes that open a new log in the current format.
+	 *
+	 * A sealed log starts with a key check record encrypted with the current key.
+	 *
+	 * @return The header; empty for the text format.
+	 * @throws IOException If the key check record cannot be encrypted.
+	 */
+	private byte[] fileHeader() throws IOException {
+		if (!binary) {
+			return new byte[0];
+		}
+		if (!sealed) {
+			return BinaryRecordCodec.header();
+		}
+		byte[] check = encodeBinary(BinaryRecordCodec.KEY_CHECK, KEY_CHECK);
+		return ByteBuffer.allocate(SEALED_HEADER.length + check.length).put(SEALED_HEADER).put(check).array();
+	}
+
+	/**
+	 * @brief Writes records to a new or growing log.
+	 *
+	 * In sealed mode the records are packed into chunks of up to SEALED_CHUNK_BYTES,
+	 * and each chunk is sealed with the current key at its offset. The last chunk is
+	 * a LAST_CHUNK, which tells replay the write is complete.
+	 *
+	 * @param records The records as returned by encodePut() and encodeTombstone().
+	 * @param offset File offset at which the first byte is written.
+	 * @param out The log.
+	 * @return The location of each record, in the same order.
+	 * @throws IOException If a chunk cannot be sealed or the records cannot be written.
+	 */
+	private List<RecordPointer> frame(List<byte[]> records, long offset, OutputStream out) throws IOException {
+		List<RecordPointer> pointers = new ArrayList<>(records.size());
+		if (!sealed) {
+			for (byte[] record : records) {
+				pointers.add(new RecordPointer(offset, record.length, stampOf(record)));
+				out.write(record);
+				offset += record.length;
+			}
+			return pointers;
+		}
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+		List<int[]> pending = new ArrayList<>();
+		for (int i = 0; i <= records.size(); i++) {
+			byte[] record = i < records.size() ? records.get(i) : null;
+			if (chunk.size() > 0
+					&& (record == null || chunk.size() + record.length > BinaryRecordCodec.SEALED_CHUNK_BYTES)) {
+				byte type = record == null ? BinaryRecordCodec.LAST_CHUNK : BinaryRecordCodec.CHUNK;
+				byte[] sealedChunk = sealChunk(chunk.toByteArray(), type, offset);
+				for (int[] inner : pending) {
+					pointers.add(new RecordPointer(offset, sealedChunk.length, inner[0], inner[1],
+							stampOf(records.get(inner[2]))));
+				}
+				out.write(sealedChunk);
+				offset += sealedChunk.length;
+				chunk.reset();
+				pending.clear();
+			}
+			if (record != null) {
+				pending.add(new int[] { chunk.size(), record.length, i });
+				chunk.write(record);
+			}
+		}
+		return pointers;
+	}
+
+	/**
+	 * @brief Checks whether the file ends with a line feed.
+	 *
+	 * @param channel Open channel on the log file.
+	 * @param size Current size of the file.
+	 * @return true if the last byte is a line feed.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private static boolean endsWithLineFeed(FileChannel channel, long size) throws IOException {
+		ByteBuffer last = ByteBuffer.allocate(1);
+		channel.read(last, size - 1);
+		return last.get(0) == '\n';
+	}
+
+	/**
+	 * @brief Moves a freshly written log into place and adopts its directory.
+	 *
+	 * @param temp The new log file.
+	 * @param rebuilt Directory describing the new log.
+	 * @param kept Unreadable records carried over into the new log.
+	 * @param dead Number of dead records in the new log.
+	 * @throws IOException If the file cannot be moved.
+	 */
+	private void install(Path temp, Map<String, RecordPointer> rebuilt, List<RecordPointer> kept, int dead)
+			throws IOException {
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		keydir = rebuilt;
+		unreadable = kept;
+		deadRecords = dead;
+		cachedChunk = -1;
+		cachedPlaintext = null;
+		logEnd = Files.size(file);
+		rememberFileState();
+	}
+
+	/**
+	 * @brief Records the current size, modification time and identity of the file.
+	 *
+	 * @throws IOException If the file attributes cannot be read.
+	 */
+	private void rememberFileState() throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		knownLength = attributes.size();
+		knownModified = attributes.lastModifiedTime();
+		knownFileKey = attributes.fileKey();
+	}
+
+	/**
+	 * @brief Creates a new temporary file to write a rewritten log to.
+	 *
+	 * The name is unique, so a rewrite never writes into a file that someone else
+	 * is writing or has left behind.
+	 *
+	 * @return Empty file next to the log file.
+	 * @throws IOException If the file cannot be created.
+	 */
+	private Path tempFile() throws IOException {
+		return Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", ".tmp");
+	}
+
+	/**
+	 * @brief Reads the raw bytes of a record, line terminator included.
+	 *
+	 * A record inside a sealed chunk is taken from the plaintext of the chunk, which is
+	 * decrypted unless it is the one decrypted last.
+	 *
+	 * @param channel Open channel on the log file.
+	 * @param pointer Location of the record.
+	 * @return The record bytes; a text record always ends with a line feed.
+	 * @throws IOException If the record cannot be read or its chunk cannot be decrypted.
+	 */
+	private byte[] readRecordBytes(FileChannel channel, RecordPointer pointer) throws IOException {
+		if (pointer.inner >= 0) {
+			if (cachedChunk != pointer.offset) {
+				cachedPlaintext = openChunk(readBytes(channel, pointer), pointer.offset);
+				cachedChunk = pointer.offset;
+			}
+			return slice(cachedPlaintext, pointer);
+		}
+		byte[] bytes = readBytes(channel, pointer);
+		if (!binary && bytes[bytes.length - 1] != '\n') {
+			// The last record of a file written elsewhere may lack its terminator
+			bytes = Arrays.copyOf(bytes, bytes.length + 1);
+			bytes[bytes.length - 1] = '\n';
+		}
+		return bytes;
+	}
+
+	/**
+	 * @brief Reads the bytes a pointer covers: a record, or the sealed chunk that holds it.
+	 *
+	 * @param channel Open channel on the log file.
+	 * @param pointer Location of the record or chunk.
+	 * @return The bytes as stored.
+	 * @throws IOException If the file is shorter than the pointer says.
+	 */
+	private static byte[] readBytes(FileChannel channel, RecordPointer pointer) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(pointer.length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, pointer.offset + buffer.position()) < 0) {
+				throw new EOFException("Password file is shorter than expected");
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @brief Returns a record from the plaintext of its chunk.
+	 *
+	 * @param plaintext The plaintext of the chunk.
+	 * @param pointer Location of the record.
+	 * @return A copy of the record.
+	 */
+	private static byte[] slice(byte[] plaintext, RecordPointer pointer) {
+		return Arrays.copyOfRange(plaintext, pointer.inner, pointer.inner + pointer.innerLength);
+	}
+
+	/**
+	 * @brief Decrypts the chunks that hold some records, in parallel.
+	 *
+	 * Chunks that cannot be decrypted are left out with a warning.
+	 *
+	 * @param channel Open channel on the log file.
+	 * @param pointers Locations of records in the chunks.
+	 * @return The plaintext of each chunk by its offset.
+	 * @throws IOException If the log cannot be read.
+	 */
+	private Map<Long, byte[]> openChunks(FileChannel channel, Collection<RecordPointer> pointers) throws IOException {
+		Map<Long, RecordPointer> frames = new LinkedHashMap<>();
+		for (RecordPointer pointer : pointers) {
+			frames.putIfAbsent(pointer.offset, pointer);
+		}
+		keys();
+		Iterator<RecordPointer> next = frames.values().iterator();
+		List<Map.Entry<Long, byte[]>> opened = pipeline.run(() -> {
+			if (!next.hasNext()) {
+				return null;
+			}
+			RecordPointer pointer = next.next();
+			return new RawRecord(readBytes(channel, pointer), pointer);
+		}, frame -> Map.entry(frame.pointer.offset, openChunk(frame.bytes, frame.pointer.offset)),
+				(frame, e) -> System.out.println("Warning: Could not decrypt a password entry."));
+		Map<Long, byte[]> chunks = new HashMap<>();
+		for (Map.Entry<Long, byte[]> chunk : opened) {
+			chunks.put(chunk.getKey(), chunk.getValue());
+		}
+		return chunks;
+	}
+
+	/**
+	 * @brief Checks and decrypts a sealed chunk.
+	 *
+	 * @param frame The chunk record as stored.
+	 * @param position File offset the chunk was read from.
+	 * @return The plaintext records of the chunk.
+	 * @throws IOException If the chunk was changed or moved, or its key is not in the key ring.
+	 */
+	private byte[] openChunk(byte[] frame, long position) throws IOException {
+		KeyRing ring = keys();
+		try {
+			byte type = BinaryRecordCodec.type(frame);
+			if (type != BinaryRecordCodec.CHUNK && type != BinaryRecordCodec.LAST_CHUNK) {
+				throw new IOException("Malformed chunk");
+			}
+			int offset = BinaryRecordCodec.ciphertextOffset(frame);
+			SessionKey key = ring.keyFor(BinaryRecordCodec.keyVersion(frame));
+			return key.open(frame, offset, frame.length - offset, chunkContext(type, position));
+		} catch (GeneralSecurityException | RuntimeException e) {
+			throw new IOException("Could not decrypt chunk", e);
+		}
+	}
+
+	/**
+	 * @brief Seals plaintext records with the current key into a chunk record.
+	 *
+	 * @param plaintext The records.
+	 * @param type CHUNK, or LAST_CHUNK for the last chunk of a write.
+	 * @param position File offset the chunk is written at.
+	 * @return The chunk record as stored.
+	 * @throws IOException If encryption fails.
+	 */
+	private byte[] sealChunk(byte[] plaintext, byte type, long position) throws IOException {
+		KeyRing ring = keys();
+		try {
+			return BinaryRecordCodec.encodeRecord(type, ring.currentVersion(),
+					ring.currentKey().seal(plaintext, 0, plaintext.length, chunkContext(type, position)));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not encrypt chunk", e);
+		}
+	}
+
+	/**
+	 * @brief Returns the data a chunk is authenticated with besides its ciphertext.
+	 *
+	 * @param type The record type of the chunk.
+	 * @param position File offset of the chunk.
+	 * @return The sealed header, the type and the offset.
+	 */
+	private static byte[] chunkContext(byte type, long position) {
+		return ByteBuffer.allocate(SEALED_HEADER.length + 1 + Long.BYTES)
+				.put(SEALED_HEADER)
+				.put(type)
+				.putLong(position)
+				.array();
+	}
+
+	/**
+	 * @brief Encrypts an entry into a put record.
+	 *
+	 * @param p The entry.
+	 * @return The record as it is stored.
+	 * @throws IOException If encryption fails.
+	 */
+	private byte[] encodePut(Password p) throws IOException {
+		if (!binary) {
+			return toBytes(encrypt(p.getService() + "," + p.getUsername() + "," + p.getPassword()));
+		}
+		byte[] entry = BinaryRecordCodec.encodeEntry(p.getService(), p.getUsername(), p.getPassword());
+		if (sealed) {
+			return BinaryRecordCodec.encodeRecord(BinaryRecordCodec.PUT, BinaryRecordCodec.PLAIN, entry);
+		}
+		return encodeBinary(BinaryRecordCodec.PUT, entry);
+	}
+
+	/**
+	 * @brief Encrypts a service name into a delete record.
+	 *
+	 * @param service The service name.
+	 * @return The record as it is stored.
+	 * @throws IOException If encryption fails.
+	 */
+	private byte[] encodeTombstone(String service) throws IOException {
+		if (!binary) {
+			return toBytes(TOMBSTONE_PREFIX + encrypt(service));
+		}
+		byte[] name = service.getBytes(StandardCharsets.UTF_8);
+		if (sealed) {
+			return BinaryRecordCodec.encodeRecord(BinaryRecordCodec.TOMBSTONE, BinaryRecordCodec.PLAIN, name);
+		}
+		return encodeBinary(BinaryRecordCodec.TOMBSTONE, name);
+	}
+
+	/**
+	 * @brief Encrypts a plaintext with the current key into a binary record.
+	 *
+	 * @param type The record type.
+	 * @param plaintext The record body.
+	 * @return The record as it is stored.
+	 * @throws IOException If encryption fails.
+	 */
+	private byte[] encodeBinary(byte type, byte[] plaintext) throws IOException {
+		KeyRing ring = keys();
+		try {
+			return BinaryRecordCodec.encodeRecord(type, ring.currentVersion(), ring.currentKey().encrypt(plaintext));
+		} catch (Exception e) {
+			throw new IOException("Could not encrypt record", e);
+		}
+	}
+
+	/**
+	 * @brief Decrypts a put record into an entry.
+	 *
+	 * @param record The record as it is stored.
+	 * @return The decoded entry.
+	 * @throws IOException If the record cannot be decrypted or is malformed.
+	 */
+	private Password decodePut(byte[] record) throws IOException {
+		if (binary) {
+			try {
+				if (BinaryRecordCodec.type(record) != BinaryRecordCodec.PUT) {
+					throw new IOException("Malformed record");
+				}
+				return BinaryRecordCodec.decodeEntry(decryptBody(record));
+			} catch (RuntimeException e) {
+				throw new IOException("Malformed record", e);
+			}
+		}
+		KeyRing ring = keys();
+		String decrypted;
+		try {
+			decrypted = ring.decrypt(new String(record, StandardCharsets.US_ASCII).trim());
+		} catch (Exception e) {
+			throw new IOException("Could not decrypt record", e);
+		}
+		String[] parts = decrypted.split(",");
+		if (parts.length != 3) {
+			throw new IOException("Malformed record");
+		}
+		return new Password(parts[0], parts[1], parts[2]);
+	}
+
+	/**
+	 * @brief Decrypts the body of a binary record with the key of its version.
+	 *
+	 * The records of a sealed log were decrypted with their chunk; their body is returned as is.
+	 *
+	 * @param record The record as it is stored.
+	 * @return The plaintext.
+	 * @throws IOException If the record cannot be decrypted.
+	 */
+	private byte[] decryptBody(byte[] record) throws IOException {
+		if (sealed) {
+			if (BinaryRecordCodec.keyVersion(record) != BinaryRecordCodec.PLAIN) {
+				throw new IOException("Malformed record");
+			}
+			return Arrays.copyOfRange(record, BinaryRecordCodec.ciphertextOffset(record), record.length);
+		}
+		KeyRing ring = keys();
+		try {
+			int offset = BinaryRecordCodec.ciphertextOffset(record);
+			return ring.keyFor(BinaryRecordCodec.keyVersion(record)).decrypt(record, offset, record.length - offset);
+		} catch (Exception e) {
+			throw new IOException("Could not decrypt record", e);
+		}
+	}
+
+	/**
+	 * @brief Returns the version of the key that encrypted a put record.
+	 *
+	 * @param record The record as it is stored.
+	 * @return The key version.
+	 */
+	private int keyVersion(byte[] record) {
+		if (binary) {
+			return BinaryRecordCodec.keyVersion(record);
+		}
+		return KeyRing.version(new String(record, StandardCharsets.US_ASCII).trim());
+	}
+
+	/**
+	 * @brief Returns the token Password.markStored() records for a stored record.
+	 *
+	 * The token is the SHA-256 digest of the record, without a text line terminator.
+	 * It depends only on the record, so it survives a compaction or a reload that
+	 * moves the record, while every write of an entry yields a new token: an encrypted
+	 * record has a fresh IV, and a sealed record is only equal if its content is. A
+	 * digest rather than the record itself keeps the directory small, and keeps the
+	 * plaintext of sealed records out of it.
+	 *
+	 * @param record The record as stored, or as it lies in the plaintext of its chunk.
+	 * @return The stamp.
+	 */
+	private Object stampOf(byte[] record) {
+		int length = record.length;
+		if (!binary) {
+			while (length > 0 && (record[length - 1] == '\n' || record[length - 1] == '\r')) {
+				length--;
+			}
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(record, 0, length);
+			return ByteBuffer.wrap(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @brief Returns the stamp a pointer carries.
+	 *
+	 * @param pointer The pointer, or null if the service has no live record.
+	 * @return The stamp, or null.
+	 */
+	private static Object stampOf(RecordPointer pointer) {
+		return pointer == null ? null : pointer.stamp;
+	}
+
+	/**
+	 * @brief Returns the vault data keys, unwrapping them on first use.
+	 *
+	 * @return The data keys.
+	 * @throws IOException If the key file or the log cannot be read or written, or the
+	 *         master password does not open the log.
+	 */
+	private KeyRing keys() throws IOException {
+		KeyRing ring = keys;
+		if (ring == null) {
+			// Unlocking a new vault creates its key file, which only one engine may do
+			try (LogLock lock = lockLog()) {
+				ring = VaultKey.unlock(new KeyFile(), masterPassword);
+			}
+			if (ring == null) {
+				throw new IOException("The master password does not open this vault");
+			}
+			keys = ring;
+		}
+		return ring;
+	}
+
+	/**
+	 * @brief Encrypts a value with the current vault data key.
+	 *
+	 * @param data The plaintext.
+	 * @return The tagged Base64 ciphertext.
+	 * @throws IOException If encryption fails.
+	 */
+	private String encrypt(String data) throws IOException {
+		KeyRing ring = keys();
+		try {
+			return ring.encrypt(data);
+		} catch (Exception e) {
+			throw new IOException("Could not encrypt record", e);
+		}
+	}
+
+	/**
+	 * @brief Converts a record to its on-disk bytes.
+	 *
+	 * @param record The encoded record.
+	 * @return ASCII bytes followed by a line feed.
+	 */
+	private static byte[] toBytes(String record) {
+		return (record + "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+}
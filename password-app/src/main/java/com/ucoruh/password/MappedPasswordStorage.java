@@ -0,0 +1,383 @@
+package com.ucoruh.password;
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * @brief Implementation of InterfacePasswordStorage using a memory-mapped vault file.
+ *
+ * This class provides operations to store, retrieve, update, and delete password entries in a
+ * single file that is accessed through a memory mapping. The file is managed by a MappedVaultFile,
+ * which keeps a sorted index of the services in the file, so a lookup costs one index search and
+ * one decryption, and an update is written in place when it fits the slot of the entry.
+ */
+public class MappedPasswordStorage implements InterfacePasswordStorage {
+	/**
+	 * @brief File name used for the memory-mapped vault.
+	 */
+	private static final String FILE = "passwords.vault";
+	
+	/**
+	 * @brief The engine that owns the vault file.
+	 */
+	private final MappedVaultFile engine;
+	
+	/**
+	 * @brief Constructor that initializes storage with the master password.
+	 * 
+	 * @param masterPassword The master password for encryption/decryption.
+	 */
+	public MappedPasswordStorage(String masterPassword) {
+		this(masterPassword, FILE);
+	}
+
+	/**
+	 * @brief Constructor that initializes storage on a specific file.
+	 *
+	 * @param masterPassword The master password for encryption/decryption.
+	 * @param fileName Path of the vault file.
+	 */
+	public MappedPasswordStorage(String masterPassword, String fileName) {
+		this.engine = new MappedVaultFile(Paths.get(fileName), masterPassword);
+	}
+
+	/**
+	 * @brief Checks whether the default vault file or its key file exists, without creating either.
+	 *
+	 * @return true if one of the files exists.
+	 */
+	static boolean exists() {
+		return new File(FILE).exists() || new File(FILE + ".key").exists();
+	}
+
+	/**
+	 * @brief Returns a stamp that changes whenever the vault file changes.
+	 *
+	 * @return The current generation, or UNKNOWN_GENERATION if the file cannot be checked.
+	 */
+	@Override
+	public long generation() {
+		try {
+			return engine.generation();
+		} catch (IOException e) {
+			return UNKNOWN_GENERATION;
+		}
+	}
+
+	/**
+	 * @brief Wraps the vault data key with a new master password.
+	 *
+	 * Only the key file next to the vault file is rewritten.
+	 *
+	 * @param newMasterPassword The new master password.
+	 * @return true on success; false if the key cannot be unwrapped or written.
+	 */
+	@Override
+	public boolean changeMasterPassword(String newMasterPassword) {
+		try {
+			return engine.changeMasterPassword(newMasterPassword);
+		} catch (IOException e) {
+			System.out.println("Error writing vault key: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Re-encrypts the vault with a new data key.
+	 *
+	 * The vault file is rewritten once with every entry re-encrypted.
+	 *
+	 * @return true if every entry now uses the new key.
+	 */
+	@Override
+	public boolean rotateKey() {
+		try {
+			return engine.rotateKey();
+		} catch (IOException e) {
+			System.out.println("Error rotating vault key: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Sets the pipeline that decrypts entries when the whole vault is read.
+	 *
+	 * @param pipeline The pipeline to use.
+	 */
+	public void setDecryptionPipeline(DecryptionPipeline pipeline) {
+		engine.setDecryptionPipeline(pipeline);
+	}
+
+	/**
+	 * @brief Releases the mapping of the vault file.
+	 */
+	@Override
+	public void close() {
+		engine.close();
+	}
+
+	/**
+	 * @brief Adds a new password entry to the vault.
+	 *
+	 * This method prompts the user to enter the service, username, and password, then creates a Password
+	 * object and stores it in a new slot of the vault file.
+	 *
+	 * @param scanner the Scanner object used to obtain user input.
+	 */
+	@Override
+	public void add(Scanner scanner) {
+		System.out.print("Service: ");
+		String service = scanner.nextLine();
+		System.out.print("Username: ");
+		String user = scanner.nextLine();
+		System.out.print("Password: ");
+		String pass = scanner.nextLine();
+
+		try {
+			// Check if service already exists
+			if (engine.contains(service)) {
+				System.out.println("A password for this service already exists. Use update option to modify it.");
+				return;
+			}
+			
+			engine.put(new Password(service, user, pass));
+			System.out.println("Password saved successfully.");
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Displays all stored password entries.
+	 *
+	 * This method reads all password entries from the vault and prints them to the console.
+	 */
+	@Override
+	public void view() {
+		List<Password> list = readAll();
+		if (list.isEmpty()) {
+			System.out.println("No records found.");
+		} else {
+			for (int i = 0; i < list.size(); i++) {
+				System.out.println((i + 1) + ". " + list.get(i));
+			}
+		}
+	}
+
+	/**
+	 * @brief Updates an existing password entry.
+	 *
+	 * This method prompts the user for the service to update and, if found, updates its username and password.
+	 *
+	 * @param scanner the Scanner object used to obtain user input for the update.
+	 */
+	@Override
+	public void update(Scanner scanner) {
+		try {
+			if (engine.size() == 0) {
+				System.out.println("No records found.");
+				return;
+			}
+			
+			System.out.print("Service to update: ");
+			String target = scanner.nextLine();
+			Password p = engine.get(target);
+			if (p == null) {
+				System.out.println("Service not found.");
+				return;
+			}
+			
+			System.out.print("New username (leave blank to keep current '" + p.getUsername() + "'): ");
+			String username = scanner.nextLine();
+			if (!username.trim().isEmpty()) {
+				p.setUsername(username);
+			}
+			
+			System.out.print("New password (leave blank to keep current): ");
+			String password = scanner.nextLine();
+			if (!password.trim().isEmpty()) {
+				p.setPassword(password);
+			}
+			
+			engine.put(p);
+			System.out.println("Password updated successfully.");
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Deletes a password entry from the vault.
+	 *
+	 * This method prompts the user for the service name of the entry to delete, removes it from
+	 * the index and zeroes its slot.
+	 *
+	 * @param scanner the Scanner object used to obtain user input for deletion.
+	 */
+	@Override
+	public void delete(Scanner scanner) {
+		try {
+			if (engine.size() == 0) {
+				System.out.println("No records found.");
+				return;
+			}
+			
+			System.out.print("Service to delete: ");
+			String target = scanner.nextLine();
+			if (engine.remove(target)) {
+				System.out.println("Password deleted successfully.");
+			} else {
+				System.out.println("Service not found.");
+			}
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Reads all password entries from the vault.
+	 *
+	 * This method returns every entry of the vault file, decrypted into Password objects and sorted
+	 * by service name. Entries that cannot be decrypted are skipped.
+	 *
+	 * @return a List of Password objects representing the stored password entries.
+	 */
+	@Override
+	public List<Password> readAll() {
+		try {
+			return engine.readAll();
+		} catch (IOException e) {
+			System.out.println("Error reading vault file: " + e.getMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * @brief Returns the number of entries from the header, without decrypting anything.
+	 *
+	 * @return The number of entries, or 0 if the file cannot be read.
+	 */
+	@Override
+	public int count() {
+		try {
+			return engine.size();
+		} catch (IOException e) {
+			System.out.println("Error reading vault file: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * @brief Writes the list of password entries to the vault.
+	 *
+	 * This method makes the vault hold exactly the password entries from the provided list.
+	 * Only entries that were added, changed, or removed since they were loaded are written;
+	 * unchanged entries cost nothing.
+	 *
+	 * @param list a List of Password objects to be written to the file.
+	 */
+	@Override
+	public void writeAll(List<Password> list) {
+		try {
+			engine.writeAll(list);
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Reads the entry stored for a service.
+	 *
+	 * Service names are matched ignoring case. The index is searched in the mapped file and only
+	 * the record of this service is decrypted.
+	 *
+	 * @param service The service name.
+	 * @return The entry, or null if the service is not stored or cannot be read.
+	 */
+	@Override
+	public Password get(String service) {
+		try {
+			return engine.get(service);
+		} catch (IOException e) {
+			System.out.println("Error reading vault file: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @brief Checks whether an entry is stored for a service, without decrypting anything.
+	 *
+	 * @param service The service name.
+	 * @return true if the service is stored.
+	 */
+	@Override
+	public boolean contains(String service) {
+		try {
+			return engine.contains(service);
+		} catch (IOException e) {
+			System.out.println("Error reading vault file: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Stores an entry, in place if it fits its slot.
+	 *
+	 * @param password The entry to store.
+	 */
+	@Override
+	public void put(Password password) {
+		try {
+			engine.put(password);
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Stores several entries and forces the file to disk once.
+	 *
+	 * @param passwords The entries to store.
+	 */
+	@Override
+	public void putAll(Collection<Password> passwords) {
+		try {
+			engine.putAll(passwords);
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @brief Removes the entry stored for a service and zeroes its slot.
+	 *
+	 * @param service The service name.
+	 * @return true if an entry was removed.
+	 */
+	@Override
+	public boolean remove(String service) {
+		try {
+			return engine.remove(service);
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Removes several entries and forces the file to disk once.
+	 *
+	 * @param services The service names.
+	 * @return The number of entries removed.
+	 */
+	@Override
+	public int removeAll(Collection<String> services) {
+		try {
+			return engine.removeAll(services);
+		} catch (IOException e) {
+			System.out.println("Error writing to vault file: " + e.getMessage());
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,1108 @@
+package com.ucoruh.password;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * @brief Memory-mapped vault file with an in-file index, behind MappedPasswordStorage.
+ *
+ * The whole file is mapped with FileChannel.map and has three regions:
+ *
+ *     header (64 bytes) | index (capacity x 32 bytes) | record slots
+ *
+ * The header holds the magic bytes 0x89 'P' 'W' 'M', the format version, a change
+ * counter, the number of entries, the index capacity, the key version of the index,
+ * the end of the slot region and the number of bytes in dead slots.
+ *
+ * The index is sorted by a 16-byte HMAC-SHA256 of the lower-case service name, keyed
+ * by a key derived from a vault data key, so the file does not reveal service names.
+ * Each index entry holds that hash, the offset of the slot and the slot length. A
+ * lookup is one binary search in the mapped index and one decryption of the slot.
+ *
+ * A slot holds one put record in the layout of BinaryRecordCodec, padded with zeros
+ * to a multiple of SLOT_ALIGNMENT bytes. An update whose record fits the slot of the
+ * entry is written in place; a larger one is appended at the end of the slot region
+ * and the index entry is pointed at it. Deleted and outgrown slots are zeroed and
+ * counted as dead bytes; when they outweigh the live slots, the file is rewritten
+ * without them. A full index is rewritten with twice the capacity.
+ *
+ * Rewrites go to a temporary file that is moved over the vault, so they are atomic.
+ * Changes in place are forced to disk at the end of each call but are not atomic.
+ * A single mapping limits the file to 2 GB.
+ *
+ * The data keys are kept wrapped by the master password in a file named like the
+ * vault with ".key" appended (see VaultKey).
+ */
+public class MappedVaultFile {
+	/**
+	 * @brief Format version written after the magic bytes.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * @brief Slots are padded to a multiple of this many bytes, so updates that
+	 *        grow a record a little still fit in place.
+	 */
+	public static final int SLOT_ALIGNMENT = 32;
+
+	/**
+	 * @brief Dead bytes below this amount never trigger a compaction.
+	 */
+	public static final int COMPACTION_MIN_BYTES = 16 * 1024;
+
+	/**
+	 * @brief Bytes that open a mapped vault file.
+	 */
+	private static final byte[] MAGIC = { (byte) 0x89, 'P', 'W', 'M' };
+
+	/**
+	 * @brief Length of the file header in bytes.
+	 */
+	static final int HEADER_LENGTH = 64;
+
+	/** @brief Header offset of the change counter. */
+	private static final int CHANGE_COUNT = 8;
+
+	/** @brief Header offset of the number of entries. */
+	private static final int ENTRY_COUNT = 16;
+
+	/** @brief Header offset of the index capacity. */
+	private static final int INDEX_CAPACITY = 20;
+
+	/** @brief Header offset of the version of the key the index hashes are made with. */
+	private static final int INDEX_KEY_VERSION = 24;
+
+	/** @brief Header offset of the end of the slot region. */
+	private static final int DATA_END = 32;
+
+	/** @brief Header offset of the number of bytes in dead slots. */
+	private static final int DEAD_BYTES = 40;
+
+	/**
+	 * @brief Length of the service hash kept in the index.
+	 */
+	private static final int HASH_LENGTH = 16;
+
+	/**
+	 * @brief Length of an index entry: hash, slot offset, slot length, padding.
+	 */
+	static final int ENTRY_LENGTH = 32;
+
+	/**
+	 * @brief Index capacity of a new vault file.
+	 */
+	static final int INITIAL_INDEX_CAPACITY = 64;
+
+	/**
+	 * @brief Free bytes left after the slots when a file is written or grown.
+	 */
+	private static final int SPARE_BYTES = 4096;
+
+	/**
+	 * @brief Input from which the index key is derived from a data key.
+	 */
+	private static final byte[] INDEX_KEY_LABEL = "password-vault-index".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * @brief A hash and the record it indexes, for rewriting the file.
+	 */
+	private static final class Slot {
+		/** @brief The service hash. */
+		final byte[] hash;
+
+		/** @brief The record as stored, without padding. */
+		final byte[] record;
+
+		Slot(byte[] hash, byte[] record) {
+			this.hash = hash;
+			this.record = record;
+		}
+	}
+
+	/**
+	 * @brief The key file of this vault as a VaultKey header.
+	 */
+	private final class KeyFile implements VaultKey.Header<IOException> {
+		@Override
+		public String load() throws IOException {
+			return VaultKey.readFile(keyFile);
+		}
+
+		@Override
+		public void save(String header) throws IOException {
+			VaultKey.writeFile(keyFile, header);
+		}
+
+		@Override
+		public String sampleRecord() throws IOException {
+			if (map == null || entryCount() == 0) {
+				return null;
+			}
+			return BinaryRecordCodec.toText(readRecord(0));
+		}
+	}
+
+	/**
+	 * @brief Path of the vault file.
+	 */
+	private final Path file;
+
+	/**
+	 * @brief Path of the file that holds the wrapped data keys.
+	 */
+	private final Path keyFile;
+
+	/**
+	 * @brief The master password that unwraps the data keys.
+	 */
+	private String masterPassword;
+
+	/**
+	 * @brief The vault data keys, unwrapped on first use and again after the file is replaced.
+	 *
+	 * Volatile because pipeline threads read it; it is always unwrapped before they start.
+	 */
+	private volatile KeyRing keys;
+
+	/**
+	 * @brief MAC that hashes service names for the index, or null before first use.
+	 */
+	private Mac indexMac;
+
+	/**
+	 * @brief The keys the index MAC was derived from.
+	 */
+	private KeyRing indexMacKeys;
+
+	/**
+	 * @brief The key version the index MAC was derived from.
+	 */
+	private int indexMacVersion;
+
+	/**
+	 * @brief The mapped file, or null while the file does not exist or is not mapped yet.
+	 */
+	private MappedByteBuffer map;
+
+	/**
+	 * @brief Identity of the mapped file, to notice when it is replaced.
+	 */
+	private Object knownIdentity;
+
+	/**
+	 * @brief Change counter of the header as last seen.
+	 */
+	private long knownChangeCount;
+
+	/**
+	 * @brief Stamp bumped whenever the entries may have changed.
+	 */
+	private long generation;
+
+	/**
+	 * @brief Pipeline that decrypts records in readAll() and rotateKey().
+	 */
+	private DecryptionPipeline pipeline = DecryptionPipeline.defaults();
+
+	/**
+	 * @brief Creates an engine over the given vault file.
+	 *
+	 * The file is not touched until the first operation and is created on the first write.
+	 *
+	 * @param file Path of the vault file.
+	 * @param masterPassword The master password for encryption/decryption.
+	 */
+	public MappedVaultFile(Path file, String masterPassword) {
+		this.file = file;
+		this.keyFile = file.resolveSibling(file.getFileName() + ".key");
+		this.masterPassword = masterPassword;
+	}
+
+	/**
+	 * @brief Sets the pipeline that decrypts records in readAll() and rotateKey().
+	 *
+	 * @param pipeline The pipeline to use.
+	 */
+	public synchronized void setDecryptionPipeline(DecryptionPipeline pipeline) {
+		this.pipeline = Objects.requireNonNull(pipeline);
+	}
+
+	/**
+	 * @brief Checks whether an entry exists for the service, without decrypting anything.
+	 *
+	 * @param service The service name, matched case-insensitively.
+	 * @return true if the service is in the index.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public synchronized boolean contains(String service) throws IOException {
+		sync();
+		return map != null && find(hash(service)) >= 0;
+	}
+
+	/**
+	 * @brief Reads the entry for a service with one index search and one decryption.
+	 *
+	 * @param service The service name, matched case-insensitively.
+	 * @return The stored entry, or null if the service is not stored.
+	 * @throws IOException If the file cannot be read or the record cannot be decrypted.
+	 */
+	public synchronized Password get(String service) throws IOException {
+		sync();
+		if (map == null) {
+			return null;
+		}
+		int index = find(hash(service));
+		if (index < 0) {
+			return null;
+		}
+		byte[] record = readRecord(index);
+		Password p = decode(record);
+		if (!LogStructuredFileEngine.key(p.getService()).equals(LogStructuredFileEngine.key(service))) {
+			// Two services whose hashes collide; the index holds the other one
+			return null;
+		}
+		p.markStored(stamp(record));
+		return p;
+	}
+
+	/**
+	 * @brief Reads all entries, sorted by Password.BY_SERVICE like every storage.
+	 *
+	 * Records that cannot be decrypted are skipped with a warning.
+	 *
+	 * @return The entries.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public synchronized List<Password> readAll() throws IOException {
+		sync();
+		if (map == null) {
+			return new ArrayList<>();
+		}
+		keys();
+		int count = entryCount();
+		int[] next = { 0 };
+		List<Password> list = pipeline.run(() -> next[0] < count ? readRecord(next[0]++) : null,
+				record -> {
+					Password p = decode(record);
+					p.markStored(stamp(record));
+					return p;
+				},
+				(record, e) -> System.out.println("Warning: Could not decrypt a password entry."));
+		list.sort(Password.BY_SERVICE);
+		return list;
+	}
+
+	/**
+	 * @brief Stores an entry, in its slot if it fits there.
+	 *
+	 * @param password The entry to store.
+	 * @throws IOException If the record cannot be encrypted or written.
+	 */
+	public synchronized void put(Password password) throws IOException {
+		putAll(Collections.singletonList(password));
+	}
+
+	/**
+	 * @brief Stores several entries and forces the file to disk once.
+	 *
+	 * @param passwords The entries to store.
+	 * @throws IOException If a record cannot be encrypted or written.
+	 */
+	public synchronized void putAll(Collection<Password> passwords) throws IOException {
+		if (passwords.isEmpty()) {
+			return;
+		}
+		sync();
+		if (map == null) {
+			create();
+		}
+		Map<Password, Object> stored = new IdentityHashMap<>();
+		for (Password p : passwords) {
+			stored.put(p, stamp(store(p)));
+		}
+		committed();
+		stored.forEach(Password::markStored);
+	}
+
+	/**
+	 * @brief Removes the entry stored for a service and zeroes its slot.
+	 *
+	 * @param service The service name, matched case-insensitively.
+	 * @return true if an entry was removed.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public synchronized boolean remove(String service) throws IOException {
+		return removeAll(Collections.singletonList(service)) > 0;
+	}
+
+	/**
+	 * @brief Removes the entries stored for several services.
+	 *
+	 * @param services The service names, matched case-insensitively.
+	 * @return The number of entries removed.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public synchronized int removeAll(Collection<String> services) throws IOException {
+		sync();
+		if (map == null) {
+			return 0;
+		}
+		int removed = 0;
+		for (String service : services) {
+			int index = find(hash(service));
+			if (index >= 0) {
+				discard(index);
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			committed();
+		}
+		return removed;
+	}
+
+	/**
+	 * @brief Makes the vault hold exactly the given entries.
+	 *
+	 * Entries that are unchanged since they were read from or written as the record their
+	 * slot still holds are skipped, and services missing from the list are found by their
+	 * index hash, so only changed entries are encrypted. Entries that cannot be encrypted are skipped
+	 * with an error message.
+	 *
+	 * @param list The complete list of entries the vault should contain.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public synchronized void writeAll(List<Password> list) throws IOException {
+		sync();
+		if (map == null && list.isEmpty()) {
+			return;
+		}
+		if (map == null) {
+			create();
+		}
+		Map<ByteBuffer, Password> wanted = new LinkedHashMap<>();
+		for (Password p : list) {
+			wanted.put(ByteBuffer.wrap(hash(p.getService())), p);
+		}
+		boolean changed = false;
+		for (int index = entryCount() - 1; index >= 0; index--) {
+			if (!wanted.containsKey(ByteBuffer.wrap(hashAt(index)))) {
+				discard(index);
+				changed = true;
+			}
+		}
+		Map<Password, Object> stored = new IdentityHashMap<>();
+		for (Map.Entry<ByteBuffer, Password> entry : wanted.entrySet()) {
+			Password p = entry.getValue();
+			int index = find(entry.getKey().array());
+			if (index >= 0 && p.isStoredIn(stamp(readRecord(index)))) {
+				continue;
+			}
+			try {
+				stored.put(p, stamp(store(p)));
+				changed = true;
+			} catch (IOException e) {
+				System.out.println("Error encrypting password for " + p.getService() + ": " + e.getMessage());
+			}
+		}
+		if (changed) {
+			committed();
+		}
+		stored.forEach(Password::markStored);
+	}
+
+	/**
+	 * @brief Returns the number of entries.
+	 *
+	 * @return The number of index entries.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public synchronized int size() throws IOException {
+		sync();
+		return map == null ? 0 : entryCount();
+	}
+
+	/**
+	 * @brief Returns the number of bytes in dead slots.
+	 *
+	 * @return Bytes that a compaction would free.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public synchronized long deadBytes() throws IOException {
+		sync();
+		return map == null ? 0 : map.getLong(DEAD_BYTES);
+	}
+
+	/**
+	 * @brief Returns a stamp that changes whenever the entries may have changed.
+	 *
+	 * Changes made through this engine bump the stamp directly. Changes made by anyone
+	 * else show in the change counter of the mapped header, or in the identity of the
+	 * file when it was replaced.
+	 *
+	 * @return The current generation.
+	 * @throws IOException If the file cannot be checked.
+	 */
+	public synchronized long generation() throws IOException {
+		sync();
+		return generation;
+	}
+
+	/**
+	 * @brief Rewrites the file without dead slots.
+	 *
+	 * Records are copied as they are and never decrypted.
+	 *
+	 * @throws IOException If the new file cannot be written.
+	 */
+	public synchronized void compact() throws IOException {
+		sync();
+		if (map != null) {
+			rebuild(indexCapacity());
+		}
+	}
+
+	/**
+	 * @brief Wraps the data keys with a new master password.
+	 *
+	 * Only the key file is rewritten; the vault file stays as it is.
+	 *
+	 * @param newMasterPassword The new master password.
+	 * @return true if the vault now opens with the new master password; false if the
+	 *         current master password does not unlock it.
+	 * @throws IOException If the key file or the vault cannot be read or written.
+	 */
+	public synchronized boolean changeMasterPassword(String newMasterPassword) throws IOException {
+		sync();
+		if (!VaultKey.rewrap(new KeyFile(), masterPassword, newMasterPassword)) {
+			return false;
+		}
+		masterPassword = newMasterPassword;
+		return true;
+	}
+
+	/**
+	 * @brief Re-encrypts every entry with a new data key.
+	 *
+	 * A new key version is added to the key file, the records are decrypted by the
+	 * pipeline and re-encrypted with it, and the file is rewritten with an index hashed
+	 * under the new key. The old keys are removed from the key file afterwards. The
+	 * rewrite is atomic, so an interrupted rotation leaves a vault that the next call
+	 * rotates again.
+	 *
+	 * @return true if every entry now uses the new key; false if the master password
+	 *         does not unlock the vault or a record could not be re-encrypted, in which
+	 *         case the file is left unchanged and the old keys are kept.
+	 * @throws IOException If the vault or the key file cannot be read or written.
+	 */
+	public synchronized boolean rotateKey() throws IOException {
+		sync();
+		KeyRing ring = VaultKey.beginRotation(new KeyFile(), masterPassword);
+		if (ring == null) {
+			return false;
+		}
+		keys = ring;
+		if (map != null) {
+			int count = entryCount();
+			int[] next = { 0 };
+			boolean[] failed = { false };
+			List<Map.Entry<String, byte[]>> rotated = pipeline.run(
+					() -> next[0] < count ? readRecord(next[0]++) : null,
+					record -> {
+						Password p = decode(record);
+						return Map.entry(p.getService(), encode(p));
+					},
+					(record, e) -> failed[0] = true);
+			if (failed[0]) {
+				System.out.println("Warning: Could not re-encrypt a password entry; the old key is kept.");
+				return false;
+			}
+			List<Slot> slots = new ArrayList<>();
+			for (Map.Entry<String, byte[]> entry : rotated) {
+				slots.add(new Slot(hash(entry.getKey(), ring, ring.currentVersion()), entry.getValue()));
+			}
+			write(slots, indexCapacity(), ring.currentVersion());
+		}
+		keys = VaultKey.finishRotation(new KeyFile(), ring, masterPassword);
+		generation++;
+		return true;
+	}
+
+	/**
+	 * @brief Releases the mapping; the next operation maps the file again.
+	 */
+	public synchronized void close() {
+		map = null;
+		knownIdentity = null;
+	}
+
+	/**
+	 * @brief Maps the file if needed and notices changes made by other writers.
+	 *
+	 * @throws IOException If the file cannot be mapped or is not a mapped vault.
+	 */
+	private void sync() throws IOException {
+		if (!Files.exists(file)) {
+			if (map != null || knownIdentity != null) {
+				map = null;
+				knownIdentity = null;
+				keys = null;
+				generation++;
+			}
+			return;
+		}
+		if (map == null || !identity().equals(knownIdentity)) {
+			// Another writer may have rotated the key as well
+			keys = null;
+			remap();
+			generation++;
+			return;
+		}
+		long changes = map.getLong(CHANGE_COUNT);
+		if (changes != knownChangeCount) {
+			knownChangeCount = changes;
+			generation++;
+		}
+		if (map.getLong(DATA_END) > map.capacity()) {
+			// Grown by another writer beyond our mapping
+			remap();
+		}
+	}
+
+	/**
+	 * @brief Maps the whole file and checks its header.
+	 *
+	 * @throws IOException If the file cannot be mapped or is not a mapped vault.
+	 */
+	private void remap() throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Vault file is too large to map: " + file);
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			checkHeader(mapped);
+			map = mapped;
+		}
+		knownIdentity = identity();
+		knownChangeCount = map.getLong(CHANGE_COUNT);
+	}
+
+	/**
+	 * @brief Checks the magic bytes, format version and region bounds of a mapped file.
+	 *
+	 * @param mapped The mapped file.
+	 * @throws IOException If the file is not a mapped vault of a known version.
+	 */
+	private void checkHeader(MappedByteBuffer mapped) throws IOException {
+		if (mapped.capacity() < HEADER_LENGTH) {
+			throw new IOException("Not a memory-mapped password vault: " + file);
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (mapped.get(i) != MAGIC[i]) {
+				throw new IOException("Not a memory-mapped password vault: " + file);
+			}
+		}
+		int version = mapped.get(MAGIC.length) & 0xFF;
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported vault format version " + version + ": " + file);
+		}
+		long capacity = mapped.getInt(INDEX_CAPACITY);
+		long dataStart = HEADER_LENGTH + capacity * ENTRY_LENGTH;
+		long dataEnd = mapped.getLong(DATA_END);
+		int count = mapped.getInt(ENTRY_COUNT);
+		if (capacity < 1 || count < 0 || count > capacity || dataEnd < dataStart || dataEnd > mapped.capacity()) {
+			throw new IOException("Corrupt vault header: " + file);
+		}
+	}
+
+	/**
+	 * @brief Returns what identifies the file on disk.
+	 *
+	 * @return The file key, or the creation time where the file system has no file keys.
+	 * @throws IOException If the attributes cannot be read.
+	 */
+	private Object identity() throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+	}
+
+	/**
+	 * @brief Creates an empty vault file.
+	 *
+	 * @throws IOException If the file cannot be written.
+	 */
+	private void create() throws IOException {
+		write(new ArrayList<>(), INITIAL_INDEX_CAPACITY, keys().currentVersion());
+	}
+
+	/**
+	 * @brief Rewrites the file with the live slots only.
+	 *
+	 * @param capacity Index capacity of the new file.
+	 * @throws IOException If the new file cannot be written.
+	 */
+	private void rebuild(int capacity) throws IOException {
+		List<Slot> slots = new ArrayList<>();
+		for (int index = 0; index < entryCount(); index++) {
+			slots.add(new Slot(hashAt(index), readRecord(index)));
+		}
+		write(slots, capacity, map.getInt(INDEX_KEY_VERSION));
+	}
+
+	/**
+	 * @brief Writes a new vault file to a temporary file, moves it into place and maps it.
+	 *
+	 * @param slots The entries, in any order.
+	 * @param capacity Index capacity of the new file.
+	 * @param indexKeyVersion Version of the key the hashes were made with.
+	 * @throws IOException If the new file cannot be written.
+	 */
+	private void write(List<Slot> slots, int capacity, int indexKeyVersion) throws IOException {
+		slots.sort((a, b) -> Arrays.compareUnsigned(a.hash, b.hash));
+		long dataStart = HEADER_LENGTH + (long) capacity * ENTRY_LENGTH;
+		long dataEnd = dataStart;
+		for (Slot slot : slots) {
+			dataEnd += slotSize(slot.record.length);
+		}
+		if (dataEnd + SPARE_BYTES > Integer.MAX_VALUE) {
+			throw new IOException("Vault file would be too large to map: " + file);
+		}
+
+		ByteBuffer head = ByteBuffer.allocate((int) dataStart);
+		head.put(MAGIC).put((byte) FORMAT_VERSION);
+		head.putLong(CHANGE_COUNT, (map != null ? map.getLong(CHANGE_COUNT) : 0) + 1);
+		head.putInt(ENTRY_COUNT, slots.size());
+		head.putInt(INDEX_CAPACITY, capacity);
+		head.putInt(INDEX_KEY_VERSION, indexKeyVersion);
+		head.putLong(DATA_END, dataEnd);
+		long offset = dataStart;
+		for (int index = 0; index < slots.size(); index++) {
+			Slot slot = slots.get(index);
+			int length = slotSize(slot.record.length);
+			head.position(entryAt(index));
+			head.put(slot.hash).putLong(offset).putInt(length);
+			offset += length;
+		}
+		head.clear();
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				writeFully(out, head);
+				for (Slot slot : slots) {
+					ByteBuffer padded = ByteBuffer.allocate(slotSize(slot.record.length));
+					padded.put(slot.record).clear();
+					writeFully(out, padded);
+				}
+				out.write(ByteBuffer.allocate(1), dataEnd + SPARE_BYTES - 1);
+				out.force(true);
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		remap();
+	}
+
+	/**
+	 * @brief Writes a whole buffer to a channel.
+	 *
+	 * @param out The channel.
+	 * @param buffer The bytes to write.
+	 * @throws IOException If writing fails.
+	 */
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * @brief Encrypts an entry and stores it in its slot or a new one.
+	 *
+	 * @param p The entry.
+	 * @return The record written.
+	 * @throws IOException If the record cannot be encrypted or the file cannot grow.
+	 */
+	private byte[] store(Password p) throws IOException {
+		byte[] record = encode(p);
+		byte[] hash = hash(p.getService());
+		int index = find(hash);
+		if (index >= 0 && record.length <= slotLength(index)) {
+			writeSlot(slotOffset(index), record, slotLength(index));
+			return record;
+		}
+		if (index < 0 && entryCount() == indexCapacity()) {
+			rebuild(indexCapacity() * 2);
+			index = find(hash);
+		}
+		int length = slotSize(record.length);
+		long offset = map.getLong(DATA_END);
+		ensureCapacity(offset + length);
+		writeSlot((int) offset, record, length);
+		map.putLong(DATA_END, offset + length);
+		if (index >= 0) {
+			writeSlot(slotOffset(index), new byte[0], slotLength(index));
+			map.putLong(DEAD_BYTES, map.getLong(DEAD_BYTES) + slotLength(index));
+			setEntry(index, hash, offset, length);
+		} else {
+			insertEntry(-index - 1, hash, offset, length);
+		}
+		return record;
+	}
+
+	/**
+	 * @brief Returns the token Password.markStored() records for a stored record.
+	 *
+	 * The token is the record itself. A slot updated in place holds a new record, so an
+	 * entry only matches while its slot still holds the record it came from.
+	 *
+	 * @param record The record, without padding.
+	 * @return The stamp.
+	 */
+	private static Object stamp(byte[] record) {
+		return ByteBuffer.wrap(record);
+	}
+
+	/**
+	 * @brief Removes an index entry and zeroes its slot.
+	 *
+	 * @param index Position of the entry in the index.
+	 */
+	private void discard(int index) {
+		int length = slotLength(index);
+		writeSlot(slotOffset(index), new byte[0], length);
+		map.putLong(DEAD_BYTES, map.getLong(DEAD_BYTES) + length);
+		int count = entryCount();
+		moveEntries(index + 1, index, count - index - 1);
+		map.put(entryAt(count - 1), new byte[ENTRY_LENGTH]);
+		map.putInt(ENTRY_COUNT, count - 1);
+	}
+
+	/**
+	 * @brief Finishes a change: bumps the change counter, then compacts or forces the file.
+	 *
+	 * @throws IOException If a compaction fails.
+	 */
+	private void committed() throws IOException {
+		knownChangeCount = map.getLong(CHANGE_COUNT) + 1;
+		map.putLong(CHANGE_COUNT, knownChangeCount);
+		generation++;
+		long dead = map.getLong(DEAD_BYTES);
+		long live = map.getLong(DATA_END) - dataStart() - dead;
+		if (dead >= COMPACTION_MIN_BYTES && dead > live) {
+			rebuild(indexCapacity());
+		} else {
+			map.force();
+		}
+	}
+
+	/**
+	 * @brief Grows the file and its mapping so that it holds at least the given length.
+	 *
+	 * @param length The length needed.
+	 * @throws IOException If the file cannot grow or would exceed 2 GB.
+	 */
+	private void ensureCapacity(long length) throws IOException {
+		if (length <= map.capacity()) {
+			return;
+		}
+		long grown = Math.max(length + SPARE_BYTES, map.capacity() + map.capacity() / 2L);
+		grown = Math.min(grown, Integer.MAX_VALUE);
+		if (grown < length) {
+			throw new IOException("Vault file would be too large to map: " + file);
+		}
+		map.force();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(1), grown - 1);
+		}
+		remap();
+	}
+
+	/**
+	 * @brief Writes a record into a slot and zeroes the rest of the slot.
+	 *
+	 * @param offset Offset of the slot.
+	 * @param record The record, or an empty array to zero the slot.
+	 * @param length Length of the slot.
+	 */
+	private void writeSlot(int offset, byte[] record, int length) {
+		map.put(offset, record);
+		map.put(offset + record.length, new byte[length - record.length]);
+	}
+
+	/**
+	 * @brief Reads the record in the slot of an index entry.
+	 *
+	 * @param index Position of the entry in the index.
+	 * @return The record as stored, without padding.
+	 * @throws IOException If the slot does not hold a valid record.
+	 */
+	private byte[] readRecord(int index) throws IOException {
+		int offset = slotOffset(index);
+		ByteBuffer slot = map.duplicate();
+		slot.position(offset).limit(offset + slotLength(index));
+		int length;
+		try {
+			length = BinaryRecordCodec.getVarint(slot);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed record at offset " + offset, e);
+		}
+		if (length < 2 || length > slot.remaining()) {
+			throw new IOException("Malformed record at offset " + offset);
+		}
+		byte[] record = new byte[slot.position() - offset + length];
+		map.get(offset, record);
+		return record;
+	}
+
+	/**
+	 * @brief Searches the index for a hash.
+	 *
+	 * @param hash The service hash.
+	 * @return The position of the entry, or (-(insertion point) - 1) if it is not there.
+	 */
+	private int find(byte[] hash) {
+		int low = 0;
+		int high = entryCount() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int cmp = compareHash(middle, hash);
+			if (cmp < 0) {
+				low = middle + 1;
+			} else if (cmp > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * @brief Compares the hash of an index entry with a hash, as unsigned bytes.
+	 *
+	 * @param index Position of the entry in the index.
+	 * @param hash The hash to compare with.
+	 * @return Negative, zero or positive as the entry sorts before, with or after the hash.
+	 */
+	private int compareHash(int index, byte[] hash) {
+		int base = entryAt(index);
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			int cmp = Integer.compare(map.get(base + i) & 0xFF, hash[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @brief Inserts an index entry, moving the following entries up.
+	 *
+	 * @param index Position of the new entry.
+	 * @param hash The service hash.
+	 * @param offset Offset of the slot.
+	 * @param length Length of the slot.
+	 */
+	private void insertEntry(int index, byte[] hash, long offset, int length) {
+		int count = entryCount();
+		moveEntries(index, index + 1, count - index);
+		setEntry(index, hash, offset, length);
+		map.putInt(ENTRY_COUNT, count + 1);
+	}
+
+	/**
+	 * @brief Moves a run of index entries.
+	 *
+	 * @param from Position of the first entry to move.
+	 * @param to Its new position.
+	 * @param count Number of entries to move.
+	 */
+	private void moveEntries(int from, int to, int count) {
+		if (count <= 0) {
+			return;
+		}
+		byte[] entries = new byte[count * ENTRY_LENGTH];
+		map.get(entryAt(from), entries);
+		map.put(entryAt(to), entries);
+	}
+
+	/**
+	 * @brief Writes an index entry.
+	 *
+	 * @param index Position of the entry.
+	 * @param hash The service hash.
+	 * @param offset Offset of the slot.
+	 * @param length Length of the slot.
+	 */
+	private void setEntry(int index, byte[] hash, long offset, int length) {
+		int base = entryAt(index);
+		map.put(base, hash);
+		map.putLong(base + HASH_LENGTH, offset);
+		map.putInt(base + HASH_LENGTH + 8, length);
+	}
+
+	/**
+	 * @brief Returns the hash of an index entry.
+	 *
+	 * @param index Position of the entry.
+	 * @return A copy of the hash.
+	 */
+	private byte[] hashAt(int index) {
+		byte[] hash = new byte[HASH_LENGTH];
+		map.get(entryAt(index), hash);
+		return hash;
+	}
+
+	/** @brief Returns the slot offset of an index entry. */
+	private int slotOffset(int index) {
+		return (int) map.getLong(entryAt(index) + HASH_LENGTH);
+	}
+
+	/** @brief Returns the slot length of an index entry. */
+	private int slotLength(int index) {
+		return map.getInt(entryAt(index) + HASH_LENGTH + 8);
+	}
+
+	/** @brief Returns the number of index entries. */
+	private int entryCount() {
+		return map.getInt(ENTRY_COUNT);
+	}
+
+	/** @brief Returns the number of entries the index has room for. */
+	private int indexCapacity() {
+		return map.getInt(INDEX_CAPACITY);
+	}
+
+	/** @brief Returns the offset of the slot region. */
+	private long dataStart() {
+		return HEADER_LENGTH + (long) indexCapacity() * ENTRY_LENGTH;
+	}
+
+	/** @brief Returns the file offset of an index entry. */
+	private static int entryAt(int index) {
+		return HEADER_LENGTH + index * ENTRY_LENGTH;
+	}
+
+	/**
+	 * @brief Returns the slot length for a record.
+	 *
+	 * @param recordLength Length of the record.
+	 * @return The length rounded up to SLOT_ALIGNMENT.
+	 */
+	static int slotSize(long recordLength) {
+		return (int) ((recordLength + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT);
+	}
+
+	/**
+	 * @brief Hashes a service name with the index key of this file.
+	 *
+	 * @param service The service name.
+	 * @return The first HASH_LENGTH bytes of the HMAC of the lower-case name.
+	 * @throws IOException If the keys cannot be read or the index key cannot be derived.
+	 */
+	private byte[] hash(String service) throws IOException {
+		KeyRing ring = keys();
+		return hash(service, ring, map != null ? map.getInt(INDEX_KEY_VERSION) : ring.currentVersion());
+	}
+
+	/**
+	 * @brief Hashes a service name with the index key of a data key version.
+	 *
+	 * @param service The service name.
+	 * @param ring The data keys.
+	 * @param version The version whose key the index key is derived from.
+	 * @return The first HASH_LENGTH bytes of the HMAC of the lower-case name.
+	 * @throws IOException If the index key cannot be derived.
+	 */
+	private byte[] hash(String service, KeyRing ring, int version) throws IOException {
+		if (indexMac == null || indexMacKeys != ring || indexMacVersion != version) {
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(ring.keyFor(version).keyBytes(), "HmacSHA256"));
+				mac.init(new SecretKeySpec(mac.doFinal(INDEX_KEY_LABEL), "HmacSHA256"));
+				indexMac = mac;
+				indexMacKeys = ring;
+				indexMacVersion = version;
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Could not derive the index key", e);
+			}
+		}
+		byte[] name = LogStructuredFileEngine.key(service).getBytes(StandardCharsets.UTF_8);
+		return Arrays.copyOf(indexMac.doFinal(name), HASH_LENGTH);
+	}
+
+	/**
+	 * @brief Encrypts an entry into a put record with the current key.
+	 *
+	 * @param p The entry.
+	 * @return The record as it is stored.
+	 * @throws IOException If encryption fails.
+	 */
+	private byte[] encode(Password p) throws IOException {
+		KeyRing ring = keys();
+		byte[] plaintext = BinaryRecordCodec.encodeEntry(p.getService(), p.getUsername(), p.getPassword());
+		try {
+			return BinaryRecordCodec.encodeRecord(BinaryRecordCodec.PUT, ring.currentVersion(),
+					ring.currentKey().encrypt(plaintext));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not encrypt record", e);
+		}
+	}
+
+	/**
+	 * @brief Decrypts a put record into an entry.
+	 *
+	 * @param record The record as it is stored.
+	 * @return The decoded entry.
+	 * @throws IOException If the record cannot be decrypted or is malformed.
+	 */
+	private Password decode(byte[] record) throws IOException {
+		KeyRing ring = keys();
+		try {
+			if (BinaryRecordCodec.type(record) != BinaryRecordCodec.PUT) {
+				throw new IOException("Malformed record");
+			}
+			int offset = BinaryRecordCodec.ciphertextOffset(record);
+			SessionKey key = ring.keyFor(BinaryRecordCodec.keyVersion(record));
+			return BinaryRecordCodec.decodeEntry(key.decrypt(record, offset, record.length - offset));
+		} catch (GeneralSecurityException | RuntimeException e) {
+			throw new IOException("Could not decrypt record", e);
+		}
+	}
+
+	/**
+	 * @brief Returns the vault data keys, unwrapping them on first use.
+	 *
+	 * @return The data keys.
+	 * @throws IOException If the key file or the vault cannot be read or written, or the
+	 *         master password does not open the vault.
+	 */
+	private KeyRing keys() throws IOException {
+		KeyRing ring = keys;
+		if (ring == null) {
+			ring = VaultKey.unlock(new KeyFile(), masterPassword);
+			if (ring == null) {
+				throw new IOException("The master password does not open this vault");
+			}
+			keys = ring;
+		}
+		return ring;
+	}
+}
@@ -1,5 +1,8 @@
 package com.ucoruh.password;
 
+import java.util.Comparator;
+import java.util.Locale;
+
 /**
  * @file Password.java
  * @class Password
@@ -8,8 +11,17 @@ package com.ucoruh.password;
  * This class provides a structure to store and manage credentials such as
  * service name, username, and password. You can retrieve or update these
  * fields through the provided getter and setter methods.
+ *
+ * Entries also remember which stored version they were loaded from or saved as,
+ * and whether they changed since, which lets storages write back only the entries
+ * that actually differ from what is stored.
  */
 public class Password {
+    /**
+     * @brief Orders entries by key(), the order in which service names are compared.
+     */
+    public static final Comparator<Password> BY_SERVICE = Comparator.comparing(p -> key(p.getService()));
+
     /**
      * @brief The name of the service (e.g., Gmail, Facebook).
      */
@@ -25,6 +37,16 @@ public class Password {
      */
     private String password;
 
+    /**
+     * @brief Identifies the stored version this entry was loaded from or saved as, or null for new entries.
+     */
+    private Object stamp;
+
+    /**
+     * @brief Whether a setter was called since the entry was loaded or last saved.
+     */
+    private boolean modified;
+
     /**
      * @brief Constructs a Password object with service, username, and password.
      *
@@ -72,6 +94,7 @@ public class Password {
      */
     public void setUsername(String username) {
         this.username = username;
+        this.modified = true;
     }
 
     /**
@@ -81,6 +104,63 @@ public class Password {
      */
     public void setPassword(String password) {
         this.password = password;
+        this.modified = true;
+    }
+
+    /**
+     * @brief Drops the cleartext secret if it can be recovered later.
+     *
+     * Plain entries have no other copy of the secret, so they keep it.
+     * LazyPassword entries drop it and decrypt it again on the next read.
+     */
+    public void forgetPassword() {
+    }
+
+    /**
+     * @brief Returns the secret already encrypted with the given key, if there is one.
+     *
+     * @param key The key the caller would encrypt with.
+     * @return The ciphertext, or null if the secret must be encrypted.
+     */
+    byte[] ciphertextFor(SessionKey key) {
+        return null;
+    }
+
+    /**
+     * @brief Marks this entry as matching one stored version of it.
+     *
+     * Called by storages after loading or saving the entry. The stamp must identify
+     * that version, not just the storage: a later write of the same service has to
+     * produce a stamp that is not equal to this one.
+     *
+     * @param stamp Token that identifies the stored version, such as its record or ciphertext.
+     */
+    void markStored(Object stamp) {
+        this.stamp = stamp;
+        this.modified = false;
+    }
+
+    /**
+     * @brief Checks whether this entry is unchanged and matches the given stored version.
+     *
+     * @param stamp Token of the version the storage holds now.
+     * @return true if the storage already holds exactly this entry.
+     */
+    boolean isStoredIn(Object stamp) {
+        return !modified && this.stamp != null && this.stamp.equals(stamp);
+    }
+
+    /**
+     * @brief Returns the key that identifies a service in every storage.
+     *
+     * Service names are compared without regard to case, so "Gmail" and "gmail" are the
+     * same service. Storages index entries by this key rather than by comparing names.
+     *
+     * @param service The service name.
+     * @return The lowercased name.
+     */
+    public static String key(String service) {
+        return service.toLowerCase(Locale.ROOT);
     }
 
     /**
@@ -90,6 +170,6 @@ public class Password {
      */
     @Override
     public String toString() {
-        return "Service: " + service + " | Username: " + username + " | Password: " + password;
+        return "Service: " + service + " | Username: " + username + " | Password: " + getPassword();
     }
 }
@@ -16,6 +16,7 @@ public class PasswordManager {
 	 * @brief Stores the association between account names and their corresponding passwords.
 	 *
 	 * This final map holds the credentials for different accounts and is used to manage password data.
+	 * It is keyed by Password.key(), so accounts are found regardless of case, as in the storages.
 	 */
 	private final Map<String, String> credentials;
 
@@ -31,6 +32,11 @@ public class PasswordManager {
 	 */
 	private final InterfacePasswordStorage storage;
 
+	/**
+	 * @brief Storage generation the credentials map was loaded at.
+	 */
+	private long loadedGeneration = InterfacePasswordStorage.UNKNOWN_GENERATION;
+
 	/**
 	 * @brief Constructor initializing the manager with a master password.
 	 *
@@ -58,14 +64,59 @@ public class PasswordManager {
 		loadCredentials();
 	}
 
+	/**
+	 * @brief Constructor with an existing storage.
+	 *
+	 * @param masterPassword Master password used for encryption/decryption.
+	 * @param storage The storage to manage.
+	 */
+	PasswordManager(String masterPassword, InterfacePasswordStorage storage) {
+		this.masterPassword = masterPassword;
+		this.credentials = new HashMap<>();
+		this.storage = storage;
+		loadCredentials();
+	}
+
 	/**
 	 * @brief Loads credentials from storage.
 	 */
 	private void loadCredentials() {
+		// Take the stamp before reading so a concurrent change triggers another reload
+		long generation = storage.generation();
 		List<Password> passwordList = storage.readAll();
 		credentials.clear();
 		for (Password p : passwordList) {
-			credentials.put(p.getService(), p.getPassword());
+			credentials.put(Password.key(p.getService()), p.getPassword());
+		}
+		loadedGeneration = generation;
+	}
+
+	/**
+	 * @brief Reloads credentials only if the storage changed since they were loaded.
+	 */
+	private void refreshCredentials() {
+		long generation = storage.generation();
+		if (generation == InterfacePasswordStorage.UNKNOWN_GENERATION || generation != loadedGeneration) {
+			loadCredentials();
+		}
+	}
+
+	/**
+	 * @brief Keeps the credentials map valid after this manager wrote to the storage.
+	 *
+	 * The caller has already applied its change to the map. If the map was up to date
+	 * before the write and the write reached the storage, the map is still up to date,
+	 * so it is stamped with the new generation instead of being reloaded. Otherwise
+	 * the next lookup reloads it.
+	 *
+	 * @param before The storage generation read before the write.
+	 */
+	private void acceptOwnWrite(long before) {
+		long after = storage.generation();
+		if (before != InterfacePasswordStorage.UNKNOWN_GENERATION && before == loadedGeneration && after != before) {
+			loadedGeneration = after;
+		} else {
+			loadedGeneration = InterfacePasswordStorage.UNKNOWN_GENERATION;
 		}
 	}
 
@@ -78,41 +129,34 @@ public class PasswordManager {
 	 * @param password Password for the account.
 	 */
 	public void addCredential(String account, String password) {
-		credentials.put(account, password);
-		
-		// Create a password list and save it
-		List<Password> passwordList = storage.readAll();
-		boolean updated = false;
+		long before = storage.generation();
 		
-		// Check if the account already exists
-		for (Password p : passwordList) {
-			if (p.getService().equalsIgnoreCase(account)) {
-				p.setPassword(password);
-				updated = true;
-				break;
-			}
-		}
-		
-		// If not found, add new entry
-		if (!updated) {
-			passwordList.add(new Password(account, "default_user", password));
+		// Update the existing entry or add a new one
+		Password entry = storage.get(account);
+		if (entry != null) {
+			entry.setPassword(password);
+		} else {
+			entry = new Password(account, "default_user", password);
 		}
 		
-		storage.writeAll(passwordList);
+		storage.put(entry);
+		credentials.put(Password.key(entry.getService()), password);
+		acceptOwnWrite(before);
 	}
 
 	/**
 	 * @brief Retrieves a credential.
 	 *
-	 * Fetches the password associated with the specified account.
+	 * Fetches the password associated with the specified account. The vault is
+	 * only reloaded when the storage generation shows that it changed. The account
+	 * name is matched without regard to case.
 	 *
 	 * @param account Account name.
 	 * @return Password if account exists; otherwise, returns null.
 	 */
 	public String getCredential(String account) {
-		// Reload credentials to ensure we have the latest
-		loadCredentials();
-		return credentials.get(account);
+		refreshCredentials();
+		return credentials.get(Password.key(account));
 	}
 
 	/**
@@ -162,8 +206,8 @@ public class PasswordManager {
 						out.println("Invalid choice.");
 						break;
 				}
-				// Reload credentials after operations
-				loadCredentials();
+				// Reload credentials if the operation changed the storage
+				refreshCredentials();
 			} catch (NumberFormatException e) {
 				out.println("Invalid number.");
 			}
@@ -193,26 +237,20 @@ public class PasswordManager {
 			String password = PasswordGenerator.generatePassword(length);
 			out.println("Generated Password: " + password);
 			
-			List<Password> passwords = storage.readAll();
-			boolean updated = false;
-			
-			// Check if service already exists
-			for (Password p : passwords) {
-				if (p.getService().equalsIgnoreCase(service)) {
-					p.setUsername(username);
-					p.setPassword(password);
-					updated = true;
-					break;
-				}
-			}
+			long before = storage.generation();
 			
-			// If not found, add new entry
-			if (!updated) {
-				passwords.add(new Password(service, username, password));
+			// Update the existing entry or add a new one
+			Password entry = storage.get(service);
+			if (entry != null) {
+				entry.setUsername(username);
+				entry.setPassword(password);
+			} else {
+				entry = new Password(service, username, password);
 			}
 			
-			storage.writeAll(passwords);
-			credentials.put(service, password);
+			storage.put(entry);
+			credentials.put(Password.key(entry.getService()), password);
+			acceptOwnWrite(before);
 			out.println("Password saved successfully.");
 			
 		} catch (NumberFormatException e) {
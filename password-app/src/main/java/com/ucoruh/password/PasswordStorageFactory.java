@@ -7,7 +7,8 @@ package com.ucoruh.password;
  *
  * This class provides a static factory method to return an appropriate instance of
  * InterfacePasswordStorage based on the provided storage type. It supports different
- * storage implementations such as file-based storage and SQLite-based storage.
+ * storage implementations such as file-based storage, SQLite-based storage and a
+ * memory-mapped vault file.
  */
 public class PasswordStorageFactory {
 
@@ -26,6 +27,24 @@ public class PasswordStorageFactory {
         return switch (type) {
             case FILE -> new FilePasswordStorage(masterPassword);
             case SQLITE -> new DatabasePasswordStorage(masterPassword);
+            case MMAP -> new MappedPasswordStorage(masterPassword);
+        };
+    }
+
+    /**
+     * @brief Checks whether the default vault of a storage type exists.
+     *
+     * Nothing is opened or created, so this tells which vaults hold data of an
+     * earlier session without adding a vault of a type that was never used.
+     *
+     * @param type The storage type.
+     * @return true if the vault or its key file exists.
+     */
+    public static boolean exists(StorageType type) {
+        return switch (type) {
+            case FILE -> FilePasswordStorage.exists();
+            case SQLITE -> DatabasePasswordStorage.exists();
+            case MMAP -> MappedPasswordStorage.exists();
         };
     }
 }
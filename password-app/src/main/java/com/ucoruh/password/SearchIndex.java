@@ -0,0 +1,207 @@
+package com.ucoruh.password;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * @file SearchIndex.java
+ * @class SearchIndex
+ * @brief Trigram index for substring search over service names and usernames
+ * @details Every entry is indexed under each run of three characters of its
+ * lowercased service name and username. A query of three or more characters looks
+ * up the posting set of its rarest trigram and only checks those entries; shorter
+ * queries, and queries that most entries match anyway, scan all entries. Entries are
+ * identified and results ordered by Password.key() of the service name, like in
+ * VaultSession and every storage.
+ * The index is not thread-safe; VaultSession guards it with its own lock.
+ */
+public class SearchIndex {
+    /**
+     * @brief Length of the indexed character runs
+     */
+    static final int GRAM = 3;
+
+    /**
+     * @brief Share of all entries above which a candidate set is scanned in order instead of sorted
+     */
+    private static final int SCAN_RATIO = 8;
+
+    /**
+     * @brief An indexed entry and the text it is found by
+     */
+    private static final class Entry {
+        /** @brief The entry. */
+        final Password password;
+
+        /** @brief The lowercased service name and username. */
+        final String text;
+
+        /**
+         * @brief Constructs an indexed entry
+         *
+         * @param password The entry
+         * @param text The text it is found by
+         */
+        Entry(Password password, String text) {
+            this.password = password;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @brief Indexed entries by key, in result order
+     */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * @brief Entry keys by trigram
+     */
+    private final Map<String, Set<String>> postings = new HashMap<>();
+
+    /**
+     * @brief Returns the key of a service name
+     *
+     * @param service The service name
+     * @return String The key, the lowercased name
+     */
+    static String key(String service) {
+        return Password.key(service);
+    }
+
+    /**
+     * @brief Returns the text an entry is found by
+     *
+     * The fields are separated by a character that never occurs in a query, so no
+     * match spans both of them.
+     *
+     * @param password The entry
+     * @return String The lowercased service name and username
+     */
+    private static String text(Password password) {
+        return key(password.getService()) + '\n' + password.getUsername().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @brief Indexes an entry, replacing the entry with the same service name
+     *
+     * @param password The entry
+     */
+    public void add(Password password) {
+        String key = key(password.getService());
+        remove(password.getService());
+        String text = text(password);
+        entries.put(key, new Entry(password, text));
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            postings.computeIfAbsent(text.substring(i, i + GRAM), g -> new HashSet<>()).add(key);
+        }
+    }
+
+    /**
+     * @brief Indexes several entries
+     *
+     * @param passwords The entries
+     */
+    public void addAll(Collection<Password> passwords) {
+        for (Password p : passwords) {
+            add(p);
+        }
+    }
+
+    /**
+     * @brief Removes the entry stored for a service name
+     *
+     * @param service The service name, matched ignoring case
+     */
+    public void remove(String service) {
+        String key = key(service);
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        String text = entry.text;
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            String gram = text.substring(i, i + GRAM);
+            Set<String> keys = postings.get(gram);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                postings.remove(gram);
+            }
+        }
+    }
+
+    /**
+     * @brief Removes all entries
+     */
+    public void clear() {
+        entries.clear();
+        postings.clear();
+    }
+
+    /**
+     * @brief Returns the number of indexed entries
+     *
+     * @return int The number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @brief Finds the entries whose service name or username contains the query
+     *
+     * @param query The text to look for, ignoring case
+     * @return List The matching entries, ordered by service name ignoring case
+     */
+    public List<Password> search(String query) {
+        String needle = query.toLowerCase(Locale.ROOT);
+        List<Password> result = new ArrayList<>();
+        Set<String> candidates = needle.length() >= GRAM ? rarestPosting(needle) : null;
+        if (candidates == null || candidates.size() > entries.size() / SCAN_RATIO) {
+            // Most entries are candidates anyway, so scan them in order instead of sorting
+            for (Entry entry : entries.values()) {
+                if (entry.text.contains(needle)) {
+                    result.add(entry.password);
+                }
+            }
+            return result;
+        }
+        List<String> keys = new ArrayList<>();
+        for (String key : candidates) {
+            if (entries.get(key).text.contains(needle)) {
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys);
+        for (String key : keys) {
+            result.add(entries.get(key).password);
+        }
+        return result;
+    }
+
+    /**
+     * @brief Returns the smallest posting set among the trigrams of a query
+     *
+     * @param needle The lowercased query, at least GRAM characters long
+     * @return Set The smallest posting set; empty if some trigram occurs nowhere
+     */
+    private Set<String> rarestPosting(String needle) {
+        Set<String> rarest = null;
+        for (int i = 0; i + GRAM <= needle.length(); i++) {
+            Set<String> keys = postings.get(needle.substring(i, i + GRAM));
+            if (keys == null) {
+                return new HashSet<>();
+            }
+            if (rarest == null || keys.size() < rarest.size()) {
+                rarest = keys;
+            }
+        }
+        return rarest;
+    }
+}
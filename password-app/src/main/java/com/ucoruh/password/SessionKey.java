@@ -0,0 +1,325 @@
+package com.ucoruh.password;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * @file SessionKey.java
+ * @class SessionKey
+ * @brief AES key set up once per login session and reused for every entry
+ * @details Deriving the key from the master password costs a SHA-256 digest, and
+ * looking up a Cipher costs a provider search. Both used to happen on every
+ * encrypt and decrypt call. A SessionKey derives the key once and keeps one
+ * initialized Cipher per thread and direction, so each call is only the cipher
+ * operation itself.
+ *
+ * Larger blocks of data can be sealed instead: encrypted with AES-GCM under a
+ * random nonce, so that any change to them is detected when they are opened.
+ *
+ * The most recently derived key is cached, so the login and every storage engine
+ * created afterwards with the same master password share one instance. Vault data
+ * keys (see VaultKey) are cached the same way, separately.
+ */
+public final class SessionKey {
+    /**
+     * @brief The encryption algorithm used (AES)
+     */
+    private static final String ALGORITHM = "AES";
+
+    /**
+     * @brief Length of an AES block
+     */
+    private static final int BLOCK_BYTES = 16;
+
+    /**
+     * @brief Length of the random nonce in front of sealed data
+     */
+    public static final int NONCE_BYTES = 12;
+
+    /**
+     * @brief Length of the authentication tag at the end of sealed data
+     */
+    public static final int TAG_BYTES = 16;
+
+    /**
+     * @brief Transformation used to seal data
+     */
+    private static final String SEAL_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * @brief Source of nonces for sealed data
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * @brief The most recently derived session key
+     */
+    private static volatile SessionKey current;
+
+    /**
+     * @brief The most recently used vault data key
+     */
+    private static volatile SessionKey currentDataKey;
+
+    /**
+     * @brief UTF-8 bytes of the master password, used to match cache lookups; null for a data key
+     */
+    private final byte[] masterPasswordBytes;
+
+    /**
+     * @brief The derived AES key
+     */
+    private final SecretKeySpec key;
+
+    /**
+     * @brief Encrypting Cipher confined to the calling thread
+     */
+    private final ThreadLocal<Cipher> encryptCipher;
+
+    /**
+     * @brief Decrypting Cipher confined to the calling thread
+     */
+    private final ThreadLocal<Cipher> decryptCipher;
+
+    /**
+     * @brief AES-GCM Cipher confined to the calling thread, initialized per call with its nonce
+     */
+    private final ThreadLocal<Cipher> sealCipher;
+
+    /**
+     * @brief Derives a session key from the master password
+     *
+     * @param masterPassword The master password to derive the key from
+     */
+    private SessionKey(String masterPassword) {
+        this(masterPassword.getBytes(StandardCharsets.UTF_8), EncryptionUtil.createSecretKey(masterPassword));
+    }
+
+    /**
+     * @brief Creates a session key for an AES key
+     *
+     * @param masterPasswordBytes UTF-8 bytes of the master password the key was derived from, or null
+     * @param key The AES key
+     */
+    private SessionKey(byte[] masterPasswordBytes, SecretKeySpec key) {
+        this.masterPasswordBytes = masterPasswordBytes;
+        this.key = key;
+        this.encryptCipher = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE));
+        this.decryptCipher = ThreadLocal.withInitial(() -> newCipher(Cipher.DECRYPT_MODE));
+        this.sealCipher = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(SEAL_TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Error creating cipher", e);
+            }
+        });
+    }
+
+    /**
+     * @brief Returns the session key for a master password
+     * @details Reuses the cached key when the master password matches the last one
+     * and derives (and caches) a new key otherwise.
+     *
+     * @param masterPassword The master password
+     * @return SessionKey The key for this master password
+     * @throws NullPointerException If the master password is null
+     */
+    public static SessionKey forMasterPassword(String masterPassword) {
+        SessionKey cached = current;
+        if (cached != null && cached.matches(masterPassword)) {
+            return cached;
+        }
+        SessionKey created = new SessionKey(masterPassword);
+        current = created;
+        return created;
+    }
+
+    /**
+     * @brief Returns the session key for a raw vault data key
+     * @details Reuses the cached key when the bytes match the last data key.
+     *
+     * @param dataKey The raw AES key, 16 or 32 bytes
+     * @return SessionKey The key
+     * @throws IllegalArgumentException If the key is empty
+     */
+    public static SessionKey forDataKey(byte[] dataKey) {
+        SessionKey cached = currentDataKey;
+        if (cached != null && MessageDigest.isEqual(cached.key.getEncoded(), dataKey)) {
+            return cached;
+        }
+        SessionKey created = new SessionKey(null, new SecretKeySpec(dataKey, ALGORITHM));
+        currentDataKey = created;
+        return created;
+    }
+
+    /**
+     * @brief Returns the raw AES key
+     *
+     * @return byte[] A copy of the key bytes
+     */
+    byte[] keyBytes() {
+        return key.getEncoded();
+    }
+
+    /**
+     * @brief Checks whether this key was derived from the given master password
+     *
+     * @param masterPassword The master password to compare
+     * @return boolean True if the password matches
+     */
+    private boolean matches(String masterPassword) {
+        return masterPassword != null && MessageDigest.isEqual(masterPasswordBytes,
+                masterPassword.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @brief Encrypts a string and encodes the result in Base64
+     *
+     * @param data The string to encrypt
+     * @return String The encrypted string in Base64 encoding
+     * @throws GeneralSecurityException If encryption fails
+     */
+    public String encrypt(String data) throws GeneralSecurityException {
+        return Base64.getEncoder().encodeToString(encrypt(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @brief Decrypts a Base64 encoded string
+     *
+     * @param encryptedData The encrypted string in Base64 encoding
+     * @return String The decrypted string
+     * @throws GeneralSecurityException If decryption fails
+     * @throws IllegalArgumentException If the input is not valid Base64
+     */
+    public String decrypt(String encryptedData) throws GeneralSecurityException {
+        return new String(decrypt(Base64.getDecoder().decode(encryptedData)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @brief Encrypts raw bytes
+     *
+     * @param data The plaintext bytes
+     * @return byte[] The ciphertext
+     * @throws GeneralSecurityException If encryption fails
+     */
+    public byte[] encrypt(byte[] data) throws GeneralSecurityException {
+        return encryptCipher.get().doFinal(data);
+    }
+
+    /**
+     * @brief Decrypts raw bytes
+     *
+     * @param data The ciphertext
+     * @return byte[] The plaintext bytes
+     * @throws GeneralSecurityException If decryption fails
+     */
+    public byte[] decrypt(byte[] data) throws GeneralSecurityException {
+        return decryptCipher.get().doFinal(data);
+    }
+
+    /**
+     * @brief Decrypts part of a byte array
+     *
+     * @param data The array that holds the ciphertext
+     * @param offset Where the ciphertext starts
+     * @param length Length of the ciphertext
+     * @return byte[] The plaintext bytes
+     * @throws GeneralSecurityException If decryption fails
+     */
+    public byte[] decrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+        return decryptCipher.get().doFinal(data, offset, length);
+    }
+
+    /**
+     * @brief Checks that decrypt() accepts some bytes, without decrypting all of them
+     * @details The "AES" cipher works in ECB mode, block by block, so decryption can
+     * only fail on the length or on the padding, which sits in the last block. Only
+     * that block is decrypted.
+     *
+     * @param data The ciphertext
+     * @return boolean true if decrypt() would succeed
+     */
+    public boolean decrypts(byte[] data) {
+        if (data.length == 0 || data.length % BLOCK_BYTES != 0) {
+            return false;
+        }
+        try {
+            decryptCipher.get().doFinal(data, data.length - BLOCK_BYTES, BLOCK_BYTES);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @brief Encrypts and authenticates part of a byte array
+     *
+     * @param data The array that holds the plaintext
+     * @param offset Where the plaintext starts
+     * @param length Length of the plaintext
+     * @param associatedData Bytes that are authenticated but not stored, or null
+     * @return byte[] A random nonce, the ciphertext and the authentication tag
+     * @throws GeneralSecurityException If encryption fails
+     */
+    public byte[] seal(byte[] data, int offset, int length, byte[] associatedData) throws GeneralSecurityException {
+        byte[] sealed = new byte[NONCE_BYTES + length + TAG_BYTES];
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_BYTES);
+        Cipher cipher = sealCipher.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        cipher.doFinal(data, offset, length, sealed, NONCE_BYTES);
+        return sealed;
+    }
+
+    /**
+     * @brief Checks and decrypts data made by seal()
+     *
+     * @param data The array that holds the sealed data
+     * @param offset Where the nonce starts
+     * @param length Length of the nonce, ciphertext and tag
+     * @param associatedData The bytes given to seal(), or null
+     * @return byte[] The plaintext bytes
+     * @throws GeneralSecurityException If the data was changed, or sealed with another key
+     *         or other associated data
+     */
+    public byte[] open(byte[] data, int offset, int length, byte[] associatedData) throws GeneralSecurityException {
+        if (length < NONCE_BYTES + TAG_BYTES) {
+            throw new GeneralSecurityException("Sealed data is too short");
+        }
+        Cipher cipher = sealCipher.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, data, offset, NONCE_BYTES));
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        return cipher.doFinal(data, offset + NONCE_BYTES, length - NONCE_BYTES);
+    }
+
+    /**
+     * @brief Creates a Cipher initialized with this key
+     * @details After doFinal the Cipher returns to its initialized state, so it can
+     * be reused for the next call on the same thread.
+     *
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @return Cipher The initialized cipher
+     * @throws IllegalStateException If the AES cipher is not available
+     */
+    private Cipher newCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(mode, key);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error creating cipher", e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.ucoruh.password;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * @brief Connection settings DatabasePasswordStorage applies to each SQLite connection it opens.
+ *
+ * All profiles use write-ahead logging, so readers do not block the writer and a
+ * commit appends to the log instead of rewriting the rollback journal. They differ
+ * in how often SQLite syncs to disk and how much memory it may use:
+ * DURABLE syncs on every commit, BALANCED only at checkpoints, which can lose the
+ * last commits on power loss but never corrupts the database, and FAST leaves
+ * syncing to the operating system.
+ */
+public enum SqliteProfile {
+    /**
+     * @brief Syncs every commit; SQLite's default cache, no memory mapping.
+     */
+    DURABLE("FULL", 0, 2_000, "DEFAULT", 5_000),
+
+    /**
+     * @brief Syncs at checkpoints; 64 MiB mapped, 8 MiB cache, temporary tables in memory.
+     */
+    BALANCED("NORMAL", 64L << 20, 8_192, "MEMORY", 5_000),
+
+    /**
+     * @brief Never syncs; 256 MiB mapped, 32 MiB cache, temporary tables in memory.
+     */
+    FAST("OFF", 256L << 20, 32_768, "MEMORY", 5_000);
+
+    /**
+     * @brief System property that selects the profile of storages created without one
+     */
+    public static final String PROFILE_PROPERTY = "password.sqlite.profile";
+
+    /**
+     * @brief Value of PRAGMA synchronous
+     */
+    private final String synchronous;
+
+    /**
+     * @brief Value of PRAGMA mmap_size, in bytes
+     */
+    private final long mmapSize;
+
+    /**
+     * @brief Page cache size, in KiB
+     */
+    private final int cacheKib;
+
+    /**
+     * @brief Value of PRAGMA temp_store
+     */
+    private final String tempStore;
+
+    /**
+     * @brief Value of PRAGMA busy_timeout, in milliseconds
+     */
+    private final int busyTimeoutMillis;
+
+    /**
+     * @brief Creates a profile
+     *
+     * @param synchronous Value of PRAGMA synchronous
+     * @param mmapSize Bytes of the database file to memory-map
+     * @param cacheKib Page cache size in KiB
+     * @param tempStore Value of PRAGMA temp_store
+     * @param busyTimeoutMillis How long to wait for a lock held by another connection
+     */
+    SqliteProfile(String synchronous, long mmapSize, int cacheKib, String tempStore, int busyTimeoutMillis) {
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheKib = cacheKib;
+        this.tempStore = tempStore;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+    }
+
+    /**
+     * @brief Returns the value of PRAGMA synchronous
+     *
+     * @return String FULL, NORMAL or OFF
+     */
+    public String synchronous() {
+        return synchronous;
+    }
+
+    /**
+     * @brief Returns how long a connection waits for a lock
+     *
+     * @return int The busy timeout in milliseconds
+     */
+    public int busyTimeoutMillis() {
+        return busyTimeoutMillis;
+    }
+
+    /**
+     * @brief Applies the profile to a newly opened connection
+     *
+     * The busy timeout is set first, so that switching to WAL waits for other
+     * connections instead of failing. In-memory databases keep their own journal mode.
+     *
+     * @param conn The connection, before any other statement ran on it
+     * @throws SQLException If a setting cannot be applied
+     */
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = " + synchronous);
+            stmt.execute("PRAGMA mmap_size = " + mmapSize);
+            // A negative cache size is a size in KiB rather than in pages
+            stmt.execute("PRAGMA cache_size = -" + cacheKib);
+            stmt.execute("PRAGMA temp_store = " + tempStore);
+        }
+    }
+
+    /**
+     * @brief Returns the profile selected with the password.sqlite.profile system property
+     *
+     * @return SqliteProfile The configured profile, BALANCED if none or an unknown one is set
+     */
+    public static SqliteProfile configured() {
+        String value = System.getProperty(PROFILE_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return BALANCED;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown SQLite profile '" + value + "', using BALANCED.");
+            return BALANCED;
+        }
+    }
+}
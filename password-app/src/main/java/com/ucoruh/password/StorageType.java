@@ -4,7 +4,7 @@ package com.ucoruh.password;
  * @brief Enum for supported storage types.
  *
  * This enum defines the types of storage available for password storage,
- * including file-based and SQLite-based implementations.
+ * including file-based, SQLite-based and memory-mapped implementations.
  */
 public enum StorageType {
     /**
@@ -15,5 +15,10 @@ public enum StorageType {
     /**
      * @brief Represents SQLite-based storage.
      */
-    SQLITE
+    SQLITE,
+
+    /**
+     * @brief Represents a single memory-mapped vault file with an in-file index.
+     */
+    MMAP
 }
@@ -0,0 +1,414 @@
+package com.ucoruh.password;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * @file VaultKey.java
+ * @class VaultKey
+ * @brief Random data keys of a vault, stored wrapped by the master password
+ * @details Entries are encrypted with a data key instead of a key derived from the
+ * master password. The data keys are kept in a small header, wrapped (AES key wrap,
+ * RFC 3394) with the key derived from the master password. Changing the master
+ * password therefore re-wraps the keys instead of re-encrypting every entry.
+ *
+ * The header has one line per key version, "2:" followed by the wrapped key, and
+ * while a key rotation runs a line "@:" with its encrypted checkpoint. A last line
+ * "#:" holds the key check: an HMAC-SHA256 of the lines before it, keyed with the
+ * key derived from the master password, so a header that opens is known to belong
+ * to that master password as a whole. The storages turn the header into a KeyRing.
+ *
+ * A vault without a header was written before data keys existed. Its entries are
+ * encrypted with the key derived from the master password, so that key is adopted
+ * as data key version 1 and a header is written for it. A new, empty vault gets a
+ * random 32-byte key. A header that opens is never replaced because of what the
+ * entries decrypt to.
+ */
+public final class VaultKey {
+    /**
+     * @brief Length in bytes of a newly generated data key
+     */
+    static final int KEY_BYTES = 32;
+
+    /**
+     * @brief Default number of records a key rotation re-encrypts per batch
+     */
+    public static final int ROTATION_BATCH_SIZE = 4096;
+
+    /**
+     * @brief Name of the header line that holds the rotation checkpoint
+     */
+    private static final String CHECKPOINT = "@";
+
+    /**
+     * @brief Name of the header line that holds the key check
+     */
+    private static final String KEY_CHECK = "#";
+
+    /**
+     * @brief Input the key check starts with
+     */
+    private static final byte[] KEY_CHECK_LABEL = "password-vault-key-check\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * @brief Source of new data keys
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * @brief Where a storage keeps the header of its vault
+     *
+     * @param <E> The exception the storage throws on I/O errors
+     */
+    public interface Header<E extends Exception> {
+        /**
+         * @brief Reads the header
+         *
+         * @return String The header, or null if the vault has none
+         * @throws E If the header cannot be read
+         */
+        String load() throws E;
+
+        /**
+         * @brief Replaces the header
+         *
+         * @param header The new header
+         * @throws E If the header cannot be written
+         */
+        void save(String header) throws E;
+
+        /**
+         * @brief Returns one encrypted value of the vault to test keys against
+         *
+         * @return String A stored value, or null if the vault holds no entries
+         * @throws E If the vault cannot be read
+         */
+        String sampleRecord() throws E;
+    }
+
+    /**
+     * @brief Utility class; not instantiated
+     */
+    private VaultKey() {
+    }
+
+    /**
+     * @brief Returns the keys that encrypt the entries of a vault
+     * @details Writes a header first if the vault has none. If the master password
+     * does not open a vault that holds entries, no keys are returned and the storage
+     * must refuse to use the vault: any key it made up would write entries the rest of
+     * the vault cannot be read with.
+     *
+     * @param header The header of the vault
+     * @param masterPassword The master password
+     * @return KeyRing The data keys, or null if the master password does not open the vault
+     * @throws E If the header or the vault cannot be read or written
+     */
+    public static <E extends Exception> KeyRing unlock(Header<E> header, String masterPassword) throws E {
+        return ring(header, masterPassword);
+    }
+
+    /**
+     * @brief Wraps the data keys of a vault with a new master password
+     * @details Only the header is rewritten; the entries stay as they are. An empty
+     * vault without a header is left alone; it gets its key when it is first used.
+     *
+     * @param header The header of the vault
+     * @param masterPassword The current master password
+     * @param newMasterPassword The new master password
+     * @return boolean true if the header now opens with the new master password
+     * @throws E If the header or the vault cannot be read or written
+     */
+    public static <E extends Exception> boolean rewrap(Header<E> header, String masterPassword,
+            String newMasterPassword) throws E {
+        if (header.load() == null && header.sampleRecord() == null) {
+            return true;
+        }
+        KeyRing ring = ring(header, masterPassword);
+        if (ring == null) {
+            return false;
+        }
+        header.save(format(ring, newMasterPassword));
+        return true;
+    }
+
+    /**
+     * @brief Starts a key rotation, or returns the one already running
+     * @details A new random key is added as the next version and becomes the key for
+     * new values. The old keys stay in the header until finishRotation().
+     *
+     * @param header The header of the vault
+     * @param masterPassword The master password
+     * @return KeyRing The keys with the new version, or null if the master password
+     *         does not unlock the vault
+     * @throws E If the header or the vault cannot be read or written
+     */
+    public static <E extends Exception> KeyRing beginRotation(Header<E> header, String masterPassword) throws E {
+        KeyRing ring = ring(header, masterPassword);
+        if (ring == null || ring.isRotating()) {
+            return ring;
+        }
+        Map<Integer, SessionKey> keys = new TreeMap<>(ring.keys());
+        keys.put(ring.currentVersion() + 1, SessionKey.forDataKey(newKey()));
+        return save(header, new KeyRing(keys, null), masterPassword);
+    }
+
+    /**
+     * @brief Records how far a running rotation got
+     *
+     * @param header The header of the vault
+     * @param ring The keys of the running rotation
+     * @param position The last position whose records use the new key
+     * @param masterPassword The master password
+     * @return KeyRing The keys with the new checkpoint
+     * @throws E If the header cannot be written
+     */
+    public static <E extends Exception> KeyRing saveCheckpoint(Header<E> header, KeyRing ring, String position,
+            String masterPassword) throws E {
+        return save(header, ring.withCheckpoint(position), masterPassword);
+    }
+
+    /**
+     * @brief Drops the old keys once every record uses the current one
+     *
+     * @param header The header of the vault
+     * @param ring The keys of the finished rotation
+     * @param masterPassword The master password
+     * @return KeyRing The current key alone
+     * @throws E If the header cannot be written
+     */
+    public static <E extends Exception> KeyRing finishRotation(Header<E> header, KeyRing ring,
+            String masterPassword) throws E {
+        return save(header, new KeyRing(Map.of(ring.currentVersion(), ring.currentKey()), null), masterPassword);
+    }
+
+    /**
+     * @brief Resolves the data keys of a vault, writing a header if needed
+     *
+     * A header that opens with the master password is used as it is, even if the
+     * sample record does not decrypt with it, so a damaged record never costs the keys.
+     * Without a header, the master-derived key is adopted only if the sample decrypts
+     * to text with it; these records carry no tag that could prove more.
+     *
+     * @param header The header of the vault
+     * @param masterPassword The master password
+     * @return KeyRing The verified data keys, or null if the master password does not open the vault
+     * @throws E If the header or the vault cannot be read or written
+     */
+    private static <E extends Exception> KeyRing ring(Header<E> header, String masterPassword) throws E {
+        String stored = header.load();
+        String sample = header.sampleRecord();
+        if (stored != null) {
+            try {
+                return parse(stored, masterPassword);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                if (sample != null) {
+                    System.out.println("Warning: The master password does not unlock the vault key.");
+                    return null;
+                }
+                // A header left over from an emptied vault; start over with a new key
+            }
+        }
+        KeyRing ring;
+        if (sample == null) {
+            ring = KeyRing.of(SessionKey.forDataKey(newKey()));
+        } else {
+            ring = KeyRing.of(SessionKey.forDataKey(EncryptionUtil.createSecretKey(masterPassword).getEncoded()));
+            if (!ring.decryptsToText(sample)) {
+                return null;
+            }
+        }
+        return save(header, ring, masterPassword);
+    }
+
+    /**
+     * @brief Saves a ring as the header of a vault
+     *
+     * @param header The header of the vault
+     * @param ring The keys and checkpoint
+     * @param masterPassword The master password that wraps the keys
+     * @return KeyRing The ring, verified
+     * @throws E If the header cannot be written
+     */
+    private static <E extends Exception> KeyRing save(Header<E> header, KeyRing ring, String masterPassword)
+            throws E {
+        header.save(format(ring, masterPassword));
+        return ring.verified();
+    }
+
+    /**
+     * @brief Reads a header kept in a file of its own
+     *
+     * @param keyFile The file
+     * @return String The header, or null if the file does not exist
+     * @throws IOException If the file cannot be read
+     */
+    static String readFile(Path keyFile) throws IOException {
+        return Files.exists(keyFile) ? new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII) : null;
+    }
+
+    /**
+     * @brief Replaces a header kept in a file of its own
+     * @details The header is written to a new temporary file that is then moved over
+     * the old one, so an interrupted write leaves the previous header in place and two
+     * writers never share a temporary file.
+     *
+     * @param keyFile The file
+     * @param header The new header
+     * @throws IOException If the file cannot be written
+     */
+    static void writeFile(Path keyFile, String header) throws IOException {
+        Path temp = Files.createTempFile(keyFile.toAbsolutePath().getParent(), keyFile.getFileName() + ".", ".tmp");
+        try {
+            Files.write(temp, (header + "\n").getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, keyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, keyFile, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @brief Generates a random data key
+     *
+     * @return byte[] KEY_BYTES random bytes
+     */
+    private static byte[] newKey() {
+        byte[] key = new byte[KEY_BYTES];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * @brief Writes a ring as header text
+     *
+     * @param ring The keys and checkpoint
+     * @param masterPassword The master password that wraps the keys
+     * @return String The header
+     */
+    static String format(KeyRing ring, String masterPassword) {
+        StringJoiner text = new StringJoiner("\n");
+        for (Map.Entry<Integer, SessionKey> entry : ring.keys().entrySet()) {
+            text.add(entry.getKey() + ":" + wrap(entry.getValue().keyBytes(), masterPassword));
+        }
+        if (ring.checkpoint() != null) {
+            try {
+                text.add(CHECKPOINT + ":" + ring.encrypt(ring.checkpoint()));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Error encrypting rotation checkpoint", e);
+            }
+        }
+        return text + "\n" + KEY_CHECK + ":" + keyCheck(text.toString(), masterPassword);
+    }
+
+    /**
+     * @brief Reads the keys and checkpoint from header text
+     *
+     * @param header The header
+     * @param masterPassword The master password that unwraps the keys
+     * @return KeyRing The keys and checkpoint, verified
+     * @throws GeneralSecurityException If the key check fails or the master password does not unwrap a key
+     * @throws IllegalArgumentException If the header is malformed
+     */
+    static KeyRing parse(String header, String masterPassword) throws GeneralSecurityException {
+        Map<Integer, SessionKey> keys = new TreeMap<>();
+        String checkpoint = null;
+        String check = null;
+        StringJoiner checked = new StringJoiner("\n");
+        for (String line : header.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int separator = line.indexOf(':');
+            if (separator < 0 || check != null) {
+                throw new IllegalArgumentException("Malformed vault key header");
+            }
+            String name = line.substring(0, separator);
+            String value = line.substring(separator + 1);
+            if (name.equals(KEY_CHECK)) {
+                check = value;
+                continue;
+            }
+            checked.add(line);
+            if (name.equals(CHECKPOINT)) {
+                checkpoint = value;
+            } else {
+                keys.put(Integer.parseInt(name), SessionKey.forDataKey(unwrap(value, masterPassword)));
+            }
+        }
+        // Headers written before the check are vouched for by the integrity check of the key wrap alone
+        if (check != null && !MessageDigest.isEqual(Base64.getDecoder().decode(check),
+                Base64.getDecoder().decode(keyCheck(checked.toString(), masterPassword)))) {
+            throw new GeneralSecurityException("The vault key header failed its check");
+        }
+        KeyRing ring = new KeyRing(keys, null).verified();
+        return checkpoint == null ? ring : ring.withCheckpoint(ring.decrypt(checkpoint));
+    }
+
+    /**
+     * @brief Computes the key check of the lines of a header
+     *
+     * @param lines The key and checkpoint lines, joined by newlines
+     * @param masterPassword The master password
+     * @return String The HMAC-SHA256 of the lines in Base64
+     */
+    private static String keyCheck(String lines, String masterPassword) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(EncryptionUtil.createSecretKey(masterPassword).getEncoded(), "HmacSHA256"));
+            // The label keeps the check apart from any other use of the master-derived key
+            mac.update(KEY_CHECK_LABEL);
+            return Base64.getEncoder().encodeToString(mac.doFinal(lines.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+
+    /**
+     * @brief Wraps a data key with the key derived from a master password
+     *
+     * @param dataKey The raw data key
+     * @param masterPassword The master password
+     * @return String The wrapped key in Base64
+     */
+    static String wrap(byte[] dataKey, String masterPassword) {
+        try {
+            Cipher cipher = Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.WRAP_MODE, EncryptionUtil.createSecretKey(masterPassword));
+            return Base64.getEncoder().encodeToString(cipher.wrap(new SecretKeySpec(dataKey, "AES")));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error wrapping vault key", e);
+        }
+    }
+
+    /**
+     * @brief Unwraps a data key
+     *
+     * @param wrapped The wrapped key in Base64
+     * @param masterPassword The master password
+     * @return byte[] The raw data key
+     * @throws GeneralSecurityException If the master password does not unwrap the key
+     * @throws IllegalArgumentException If the value is not valid Base64
+     */
+    static byte[] unwrap(String wrapped, String masterPassword) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.UNWRAP_MODE, EncryptionUtil.createSecretKey(masterPassword));
+        return cipher.unwrap(Base64.getDecoder().decode(wrapped), "AES", Cipher.SECRET_KEY).getEncoded();
+    }
+}
@@ -0,0 +1,472 @@
+package com.ucoruh.password;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * @file VaultSession.java
+ * @class VaultSession
+ * @brief The vault of a logged-in user, kept in memory in front of its storage
+ * @details A session owns one storage and an index of its entries by Password.key()
+ * of the service name, the key every storage matches and orders services by. The index is loaded on first use; after that,
+ * reads are answered from memory and writes go to the storage and the index
+ * together. refresh() reloads the index only if the storage generation shows that
+ * someone else changed the vault. Listeners are told about every change. A
+ * SearchIndex for search() is built on first use and then kept up to date.
+ *
+ * Entries whose service names have the same key share one index slot.
+ */
+public class VaultSession implements InterfacePasswordStorage {
+    /**
+     * @brief System property that selects the storage type, FILE or SQLITE
+     */
+    public static final String STORAGE_PROPERTY = "password.storage";
+
+    /**
+     * @brief Receives change notifications
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @brief Called on the thread that changed the session, after the change
+         *
+         * @param session The session that changed
+         */
+        void vaultChanged(VaultSession session);
+    }
+
+    /**
+     * @brief The storage that holds the vault
+     */
+    private final InterfacePasswordStorage storage;
+
+    /**
+     * @brief Entries by the key of their service name
+     */
+    private final TreeMap<String, Password> index = new TreeMap<>();
+
+    /**
+     * @brief The index values as a list for paging, or null until needed after a change
+     */
+    private List<Password> snapshot;
+
+    /**
+     * @brief Substring index over the entries, or null until the first search
+     */
+    private SearchIndex searchIndex;
+
+    /**
+     * @brief Whether the index reflects the storage
+     */
+    private boolean loaded;
+
+    /**
+     * @brief Storage generation the index was loaded at
+     */
+    private long loadedGeneration = UNKNOWN_GENERATION;
+
+    /**
+     * @brief Registered listeners
+     */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @brief Constructs a session over a storage
+     *
+     * @param storage The storage that holds the vault; the session closes it.
+     */
+    public VaultSession(InterfacePasswordStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @brief Opens the configured storage and loads its index
+     *
+     * @param masterPassword Master password used for encryption/decryption.
+     * @return VaultSession The loaded session
+     */
+    public static VaultSession open(String masterPassword) {
+        VaultSession session = new VaultSession(
+                PasswordStorageFactory.create(configuredStorageType(), masterPassword));
+        session.refresh();
+        return session;
+    }
+
+    /**
+     * @brief Returns the storage type selected with the password.storage system property
+     *
+     * @return StorageType The configured type, FILE if none or an unknown one is set
+     */
+    public static StorageType configuredStorageType() {
+        String value = System.getProperty(STORAGE_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return StorageType.FILE;
+        }
+        try {
+            return StorageType.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown storage type '" + value + "', using FILE.");
+            return StorageType.FILE;
+        }
+    }
+
+    /**
+     * @brief Registers a listener
+     *
+     * @param listener The listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @brief Unregisters a listener
+     *
+     * @param listener The listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @brief Reloads the index if the storage changed since it was loaded
+     *
+     * @return boolean true if the index was reloaded
+     */
+    public boolean refresh() {
+        synchronized (this) {
+            long generation = storage.generation();
+            if (loaded && generation != UNKNOWN_GENERATION && generation == loadedGeneration) {
+                return false;
+            }
+            load(generation);
+        }
+        fireChanged();
+        return true;
+    }
+
+    /**
+     * @brief Loads the index from the storage
+     *
+     * @param generation The storage generation read before loading
+     */
+    private void load(long generation) {
+        index.clear();
+        for (Password p : storage.readAll()) {
+            index.put(Password.key(p.getService()), p);
+        }
+        snapshot = null;
+        searchIndex = null;
+        loaded = true;
+        loadedGeneration = generation;
+    }
+
+    /**
+     * @brief Loads the index if it does not reflect the storage
+     */
+    private void ensureLoaded() {
+        if (!loaded) {
+            load(storage.generation());
+        }
+    }
+
+    /**
+     * @brief Keeps the index valid after a write through this session
+     *
+     * If the index was current before the write and the write moved the storage
+     * generation, the index already holds the change. Otherwise it is reloaded on
+     * next use.
+     *
+     * @param before The storage generation read before the write
+     */
+    private void afterWrite(long before) {
+        long after = storage.generation();
+        if (loaded && before != UNKNOWN_GENERATION && before == loadedGeneration && after != before) {
+            loadedGeneration = after;
+        } else {
+            loaded = false;
+        }
+        snapshot = null;
+    }
+
+    /**
+     * @brief Tells the listeners that the session changed
+     */
+    private void fireChanged() {
+        for (Listener listener : listeners) {
+            listener.vaultChanged(this);
+        }
+    }
+
+    /**
+     * @brief Adds an entry through the storage's interactive prompt
+     *
+     * @param scanner Scanner for user input.
+     */
+    @Override
+    public void add(Scanner scanner) {
+        synchronized (this) {
+            storage.add(scanner);
+            loaded = false;
+        }
+        fireChanged();
+    }
+
+    /**
+     * @brief Prints all entries from the index
+     */
+    @Override
+    public synchronized void view() {
+        List<Password> list = readAll();
+        if (list.isEmpty()) {
+            System.out.println("No records found.");
+        } else {
+            for (int i = 0; i < list.size(); i++) {
+                System.out.println((i + 1) + ". " + list.get(i));
+            }
+        }
+    }
+
+    /**
+     * @brief Updates an entry through the storage's interactive prompt
+     *
+     * @param scanner Scanner for user input.
+     */
+    @Override
+    public void update(Scanner scanner) {
+        synchronized (this) {
+            storage.update(scanner);
+            loaded = false;
+        }
+        fireChanged();
+    }
+
+    /**
+     * @brief Deletes an entry through the storage's interactive prompt
+     *
+     * @param scanner Scanner for user input.
+     */
+    @Override
+    public void delete(Scanner scanner) {
+        synchronized (this) {
+            storage.delete(scanner);
+            loaded = false;
+        }
+        fireChanged();
+    }
+
+    /**
+     * @brief Returns all entries ordered by service name
+     *
+     * @return List A copy of the index values
+     */
+    @Override
+    public synchronized List<Password> readAll() {
+        ensureLoaded();
+        return new ArrayList<>(index.values());
+    }
+
+    /**
+     * @brief Replaces the vault with the given entries
+     *
+     * @param list The entries to keep.
+     */
+    @Override
+    public void writeAll(List<Password> list) {
+        synchronized (this) {
+            long before = storage.generation();
+            storage.writeAll(list);
+            index.clear();
+            for (Password p : list) {
+                index.put(Password.key(p.getService()), p);
+            }
+            searchIndex = null;
+            afterWrite(before);
+        }
+        fireChanged();
+    }
+
+    /**
+     * @brief Returns the entry for a service from the index
+     *
+     * @param service The service name, matched ignoring case.
+     * @return Password The entry, or null if the service is not stored
+     */
+    @Override
+    public synchronized Password get(String service) {
+        ensureLoaded();
+        return index.get(Password.key(service));
+    }
+
+    /**
+     * @brief Checks the index for a service
+     *
+     * @param service The service name, matched ignoring case.
+     * @return boolean true if the service is stored
+     */
+    @Override
+    public synchronized boolean contains(String service) {
+        ensureLoaded();
+        return index.containsKey(Password.key(service));
+    }
+
+    /**
+     * @brief Stores several entries in the storage and the index
+     *
+     * @param passwords The entries to store.
+     */
+    @Override
+    public void putAll(Collection<Password> passwords) {
+        synchronized (this) {
+            ensureLoaded();
+            long before = storage.generation();
+            storage.putAll(passwords);
+            for (Password p : passwords) {
+                index.put(Password.key(p.getService()), p);
+                if (searchIndex != null) {
+                    searchIndex.add(p);
+                }
+            }
+            afterWrite(before);
+        }
+        fireChanged();
+    }
+
+    /**
+     * @brief Removes several entries from the storage and the index
+     *
+     * @param services The service names, matched ignoring case.
+     * @return int The number of entries removed
+     */
+    @Override
+    public int removeAll(Collection<String> services) {
+        List<String> stored = new ArrayList<>();
+        synchronized (this) {
+            ensureLoaded();
+            for (String service : services) {
+                Password p = index.get(Password.key(service));
+                if (p != null && !stored.contains(p.getService())) {
+                    stored.add(p.getService());
+                }
+            }
+            if (stored.isEmpty()) {
+                return 0;
+            }
+            long before = storage.generation();
+            storage.removeAll(stored);
+            for (String service : stored) {
+                index.remove(Password.key(service));
+                if (searchIndex != null) {
+                    searchIndex.remove(service);
+                }
+            }
+            afterWrite(before);
+        }
+        fireChanged();
+        return stored.size();
+    }
+
+    /**
+     * @brief Returns the number of entries in the index
+     *
+     * @return int The number of entries
+     */
+    @Override
+    public synchronized int count() {
+        ensureLoaded();
+        return index.size();
+    }
+
+    /**
+     * @brief Returns a page of entries ordered by service name
+     *
+     * @param offset Index of the first entry of the page.
+     * @param limit Maximum number of entries in the page.
+     * @return List The entries of the page
+     */
+    @Override
+    public synchronized List<Password> readPage(int offset, int limit) {
+        ensureLoaded();
+        if (snapshot == null) {
+            snapshot = new ArrayList<>(index.values());
+        }
+        int from = Math.min(Math.max(offset, 0), snapshot.size());
+        int to = Math.min(from + Math.max(limit, 0), snapshot.size());
+        return new ArrayList<>(snapshot.subList(from, to));
+    }
+
+    /**
+     * @brief Finds the entries whose service name or username contains the query
+     *
+     * The first search builds the search index; later searches and writes keep it current.
+     *
+     * @param query The text to look for, ignoring case
+     * @return List The matching entries, ordered by service name ignoring case
+     */
+    public synchronized List<Password> search(String query) {
+        ensureLoaded();
+        if (searchIndex == null) {
+            searchIndex = new SearchIndex();
+            searchIndex.addAll(index.values());
+        }
+        return searchIndex.search(query);
+    }
+
+    /**
+     * @brief Makes the vault open with a new master password
+     *
+     * The storage re-wraps its data key; the entries and the index stay as they are.
+     *
+     * @param newMasterPassword The new master password.
+     * @return boolean true if the vault now opens with the new master password
+     */
+    @Override
+    public synchronized boolean changeMasterPassword(String newMasterPassword) {
+        return storage.changeMasterPassword(newMasterPassword);
+    }
+
+    /**
+     * @brief Re-encrypts the vault with a new data key
+     *
+     * The session lock is not held while the storage rotates, so the session stays
+     * usable; the decrypted entries in the index do not change.
+     *
+     * @return boolean true if every entry now uses the new key
+     */
+    @Override
+    public boolean rotateKey() {
+        long before;
+        synchronized (this) {
+            before = storage.generation();
+        }
+        boolean rotated = storage.rotateKey();
+        synchronized (this) {
+            afterWrite(before);
+        }
+        return rotated;
+    }
+
+    /**
+     * @brief Returns the generation of the storage
+     *
+     * @return long The storage generation
+     */
+    @Override
+    public long generation() {
+        return storage.generation();
+    }
+
+    /**
+     * @brief Closes the storage
+     */
+    @Override
+    public void close() {
+        listeners.clear();
+        storage.close();
+    }
+}
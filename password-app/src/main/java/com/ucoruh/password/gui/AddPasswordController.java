@@ -3,7 +3,6 @@ package com.ucoruh.password.gui;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
-import java.util.List;
 
 import com.ucoruh.password.*;
 
@@ -18,8 +17,8 @@ public class AddPasswordController implements DialogController {
     /** @brief Dialog window for adding passwords */
     private JDialog dialog;
     
-    /** @brief Authentication manager instance */
-    private AuthManager authManager;
+    /** @brief Vault of the logged-in user */
+    private VaultSession session;
     
     /** @brief Text field for service/website name */
     private JTextField txtService;
@@ -33,10 +32,11 @@ public class AddPasswordController implements DialogController {
     /**
      * @brief Constructor for AddPasswordController
      * @param gui Reference to main GUI
+     * @param session Vault of the logged-in user
      */
-    public AddPasswordController(PasswordManagerGUI gui) {
+    public AddPasswordController(PasswordManagerGUI gui, VaultSession session) {
         this.gui = gui;
-        this.authManager = AuthManager.getInstance();
+        this.session = session;
     }
     
     /**
@@ -106,7 +106,7 @@ public class AddPasswordController implements DialogController {
     
     /**
      * @brief Saves the new password
-     * @details Validates input and saves the password to storage
+     * @details Validates input and saves the password to storage in the background
      */
     private void savePassword() {
         String service = txtService.getText().trim();
@@ -121,34 +121,32 @@ public class AddPasswordController implements DialogController {
             return;
         }
         
-        // Get all passwords
-        InterfacePasswordStorage storage = PasswordStorageFactory.create(
-                StorageType.FILE, authManager.getMasterPassword());
-        List<Password> passwordList = storage.readAll();
-        
-        // Check if service already exists
-        for (Password p : passwordList) {
-            if (p.getService().equalsIgnoreCase(service)) {
+        // Check and save in the background
+        VaultWorker.startChange(dialog, "Saving password...", "Error saving password", () -> {
+            // Check if service already exists
+            if (session.contains(service)) {
+                return false;
+            }
+            
+            // Add new password
+            session.put(new Password(service, username, password));
+            return true;
+        }, saved -> {
+            if (!saved) {
                 JOptionPane.showMessageDialog(dialog, 
                         "A password for this service already exists.\nUse the Update Password option to modify it.", 
                         "Error", 
                         JOptionPane.ERROR_MESSAGE);
                 return;
             }
-        }
-        
-        // Add new password
-        passwordList.add(new Password(service, username, password));
-        
-        // Save passwords
-        storage.writeAll(passwordList);
-        
-        JOptionPane.showMessageDialog(dialog, 
-                "Password saved successfully!", 
-                "Success", 
-                JOptionPane.INFORMATION_MESSAGE);
-        
-        dialog.dispose();
+            
+            JOptionPane.showMessageDialog(dialog, 
+                    "Password saved successfully!", 
+                    "Success", 
+                    JOptionPane.INFORMATION_MESSAGE);
+            
+            dialog.dispose();
+        });
     }
 
     /**
@@ -3,7 +3,8 @@ package com.ucoruh.password.gui;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
-import java.util.List;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 import com.ucoruh.password.*;
 
@@ -18,33 +19,46 @@ public class DeletePasswordController implements DialogController {
     /** @brief Dialog window for deleting passwords */
     private JDialog dialog;
     
-    /** @brief Authentication manager instance */
-    private AuthManager authManager;
+    /** @brief Vault of the logged-in user */
+    private VaultSession session;
     
-    /** @brief List of stored passwords */
-    private List<Password> passwordList;
+    /** @brief Paged model of the stored passwords */
+    private PagedPasswordTableModel model;
     
-    /** @brief Combo box for selecting services */
-    private JComboBox<String> comboServices;
+    /** @brief Table for selecting services */
+    private JTable tableServices;
     
     /**
      * @brief Constructor for DeletePasswordController
      * @param gui Reference to main GUI
+     * @param session Vault of the logged-in user
      */
-    public DeletePasswordController(PasswordManagerGUI gui) {
+    public DeletePasswordController(PasswordManagerGUI gui, VaultSession session) {
         this.gui = gui;
-        this.authManager = AuthManager.getInstance();
+        this.session = session;
     }
     
     /**
      * @brief Shows the dialog for deleting a password
+     * @details The passwords are counted in the background; the dialog opens once the
+     * count is available and reads the rows page by page as they are shown.
      */
     @Override
     public void showDialog() {
-        // Load passwords
-        loadPasswords();
-        
-        if (passwordList.isEmpty()) {
+        // Count passwords in the background, then build the dialog
+        VaultWorker.start(gui, "Loading passwords...", "Error loading passwords",
+                this::loadPasswords, loaded -> {
+                    model = loaded;
+                    createDialog();
+                });
+    }
+    
+    /**
+     * @brief Creates and shows the dialog for the loaded passwords
+     */
+    private void createDialog() {
+        if (model.getRowCount() == 0) {
+            model.detach();
             JOptionPane.showMessageDialog(gui, 
                     "No passwords found to delete.", 
                     "No Passwords", 
@@ -54,9 +68,15 @@ public class DeletePasswordController implements DialogController {
         
         // Create dialog
         dialog = new JDialog(gui, "Delete Password", true);
-        dialog.setSize(450, 250);
+        dialog.setSize(450, 380);
         dialog.setLocationRelativeTo(gui);
         dialog.setLayout(new BorderLayout());
+        dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                model.detach();
+            }
+        });
         
         // Create content panel
         JPanel panel = createContentPanel();
@@ -89,13 +109,14 @@ public class DeletePasswordController implements DialogController {
     }
     
     /**
-     * @brief Loads passwords from storage
+     * @brief Creates the paged model of the stored passwords
+     * @details Runs on a background thread. The session index is only reloaded if
+     * the vault was changed outside this session.
+     * @return PagedPasswordTableModel Model over all stored passwords
      */
-    private void loadPasswords() {
-        // Get all passwords
-        InterfacePasswordStorage storage = PasswordStorageFactory.create(
-                StorageType.FILE, authManager.getMasterPassword());
-        passwordList = storage.readAll();
+    private PagedPasswordTableModel loadPasswords() {
+        session.refresh();
+        return new PagedPasswordTableModel(session, "Service/Website", "Username");
     }
     
     /**
@@ -119,17 +140,17 @@ public class DeletePasswordController implements DialogController {
         panel.add(lblSelect, gbc);
         
         // Create service list
-        String[] services = new String[passwordList.size()];
-        for (int i = 0; i < passwordList.size(); i++) {
-            Password password = passwordList.get(i);
-            services[i] = password.getService() + " (" + password.getUsername() + ")";
-        }
-        
-        comboServices = new JComboBox<>(services);
-        comboServices.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        tableServices = new JTable(model);
+        tableServices.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        tableServices.setRowHeight(25);
+        tableServices.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        tableServices.setRowSelectionInterval(0, 0);
+        
+        JScrollPane scrollPane = new JScrollPane(tableServices);
+        scrollPane.setPreferredSize(new Dimension(380, 150));
         gbc.gridx = 0;
         gbc.gridy = 1;
-        panel.add(comboServices, gbc);
+        panel.add(scrollPane, gbc);
         
         // Warning message
         JLabel lblWarning = new JLabel("<html><div style='color:red;'>Warning: This action cannot be undone!</div></html>");
@@ -169,7 +190,14 @@ public class DeletePasswordController implements DialogController {
      * @brief Deletes the selected password after confirmation
      */
     private void deletePassword() {
-        int selectedIndex = comboServices.getSelectedIndex();
+        Password removed = model.getPasswordAt(Math.max(tableServices.getSelectedRow(), 0));
+        if (removed == null) {
+            JOptionPane.showMessageDialog(dialog, 
+                    "Please select a password to delete.", 
+                    "No Selection", 
+                    JOptionPane.WARNING_MESSAGE);
+            return;
+        }
         
         // Confirm deletion
         int confirm = JOptionPane.showConfirmDialog(dialog, 
@@ -179,20 +207,17 @@ public class DeletePasswordController implements DialogController {
                 JOptionPane.WARNING_MESSAGE);
         
         if (confirm == JOptionPane.YES_OPTION) {
-            // Remove password
-            passwordList.remove(selectedIndex);
-            
-            // Save passwords
-            InterfacePasswordStorage storage = PasswordStorageFactory.create(
-                    StorageType.FILE, authManager.getMasterPassword());
-            storage.writeAll(passwordList);
-            
-            JOptionPane.showMessageDialog(dialog, 
-                    "Password deleted successfully!", 
-                    "Success", 
-                    JOptionPane.INFORMATION_MESSAGE);
-            
-            closeDialog();
+            // Remove password in the background
+            VaultWorker.startChange(dialog, "Deleting password...", "Error deleting password", () -> {
+                return session.remove(removed.getService());
+            }, deleted -> {
+                JOptionPane.showMessageDialog(dialog, 
+                        "Password deleted successfully!", 
+                        "Success", 
+                        JOptionPane.INFORMATION_MESSAGE);
+                
+                closeDialog();
+            });
         }
     }
 } 
\ No newline at end of file
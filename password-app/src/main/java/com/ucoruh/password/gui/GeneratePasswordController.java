@@ -5,7 +5,6 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.awt.event.ItemListener;
-import java.util.List;
 
 import com.ucoruh.password.*;
 
@@ -20,8 +19,8 @@ public class GeneratePasswordController implements DialogController {
     /** @brief Dialog window for generating passwords */
     private JDialog dialog;
     
-    /** @brief Authentication manager instance */
-    private AuthManager authManager;
+    /** @brief Vault of the logged-in user */
+    private VaultSession session;
     
     // UI Components
     /** @brief Text field for service/website name */
@@ -51,10 +50,11 @@ public class GeneratePasswordController implements DialogController {
     /**
      * @brief Constructor for GeneratePasswordController
      * @param gui Reference to main GUI
+     * @param session Vault of the logged-in user
      */
-    public GeneratePasswordController(PasswordManagerGUI gui) {
+    public GeneratePasswordController(PasswordManagerGUI gui, VaultSession session) {
         this.gui = gui;
-        this.authManager = AuthManager.getInstance();
+        this.session = session;
     }
     
     /**
@@ -302,35 +302,26 @@ public class GeneratePasswordController implements DialogController {
             return;
         }
         
-        // Get all passwords
-        InterfacePasswordStorage storage = PasswordStorageFactory.create(
-                StorageType.FILE, authManager.getMasterPassword());
-        List<Password> passwordList = storage.readAll();
-        
-        // Check if service already exists
-        boolean updated = false;
-        for (Password p : passwordList) {
-            if (p.getService().equalsIgnoreCase(service)) {
-                p.setUsername(username);
-                p.setPassword(password);
-                updated = true;
-                break;
+        // Update the existing password or add a new one in the background
+        VaultWorker.startChange(dialog, "Saving password...", "Error saving password", () -> {
+            Password entry = session.get(service);
+            if (entry != null) {
+                entry.setUsername(username);
+                entry.setPassword(password);
+            } else {
+                entry = new Password(service, username, password);
             }
-        }
-        
-        // If not found, add new password
-        if (!updated) {
-            passwordList.add(new Password(service, username, password));
-        }
-        
-        // Save passwords
-        storage.writeAll(passwordList);
-        
-        JOptionPane.showMessageDialog(dialog, 
-                "Password saved successfully!", 
-                "Success", 
-                JOptionPane.INFORMATION_MESSAGE);
-        
-        closeDialog();
+            
+            // Save password
+            session.put(entry);
+            return null;
+        }, result -> {
+            JOptionPane.showMessageDialog(dialog, 
+                    "Password saved successfully!", 
+                    "Success", 
+                    JOptionPane.INFORMATION_MESSAGE);
+            
+            closeDialog();
+        });
     }
 } 
\ No newline at end of file
@@ -0,0 +1,250 @@
+package com.ucoruh.password.gui;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ucoruh.password.Password;
+import com.ucoruh.password.VaultSession;
+
+/**
+ * @file PagedPasswordTableModel.java
+ * @class PagedPasswordTableModel
+ * @brief Table model that reads password entries from a vault session one page at a time
+ * @details Rows are read with VaultSession.readPage() on a background thread the first
+ * time they are painted, and at most MAX_PAGES pages are kept, dropping the least
+ * recently used. Rows whose page is still loading show a placeholder. With a search
+ * query set, the rows are the search results of the session instead, which are read
+ * in one go. When the session changes, the rows are read again. The columns are
+ * service, username and, if a third column name is given, a masked password.
+ */
+public class PagedPasswordTableModel extends AbstractTableModel {
+    /** @brief Serialization version ID for the class */
+    private static final long serialVersionUID = 1L;
+
+    /** @brief Number of rows read per page */
+    static final int PAGE_SIZE = 100;
+
+    /** @brief Maximum number of pages kept in memory */
+    static final int MAX_PAGES = 20;
+
+    /** @brief Text shown for rows whose page is still loading */
+    private static final String LOADING = "Loading...";
+
+    /** @brief Text shown instead of a password */
+    private static final String MASK = "•••••••••";
+
+    /** @brief Session the rows are read from */
+    private final transient VaultSession session;
+
+    /** @brief Listener that follows changes of the session */
+    private final transient VaultSession.Listener listener;
+
+    /** @brief Number of rows */
+    private int rowCount;
+
+    /** @brief Incremented when the rows change so that pages read before are dropped */
+    private int epoch;
+
+    /** @brief Current search query, empty to show all entries */
+    private String query = "";
+
+    /** @brief Search results shown instead of the pages, or null without a query */
+    private List<Password> results;
+
+    /** @brief Column names */
+    private final String[] columnNames;
+
+    /** @brief Loaded pages by page index, in least recently used order */
+    private final Map<Integer, List<Password>> pages = new LinkedHashMap<Integer, List<Password>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Password>> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    /** @brief Pages that are being read */
+    private final Set<Integer> pending = new HashSet<>();
+
+    /**
+     * @brief Constructor for PagedPasswordTableModel
+     * @details Counts the session entries; call it off the event dispatch thread.
+     * @param session Session the rows are read from
+     * @param columnNames Names of the service, username and optional password columns
+     */
+    public PagedPasswordTableModel(VaultSession session, String... columnNames) {
+        this.session = session;
+        this.columnNames = columnNames.clone();
+        this.rowCount = session.count();
+        this.listener = changed -> SwingUtilities.invokeLater(this::reload);
+        session.addListener(listener);
+    }
+
+    /**
+     * @brief Stops following changes of the session
+     */
+    public void detach() {
+        session.removeListener(listener);
+    }
+
+    /**
+     * @brief Shows only the entries whose service name or username contains the query
+     * @details The search runs in the background; the rows change when it is done.
+     * @param query The text to look for, or an empty string to show all entries
+     */
+    public void setQuery(String query) {
+        this.query = query.trim();
+        reload();
+    }
+
+    /**
+     * @brief Reads the row count or the search results again in the background
+     */
+    private void reload() {
+        int requested = ++epoch;
+        pending.clear();
+        String current = query;
+        new SwingWorker<List<Password>, Void>() {
+            /** @brief Number of entries, read when there is no query */
+            private int count;
+
+            @Override
+            protected List<Password> doInBackground() {
+                if (current.isEmpty()) {
+                    count = session.count();
+                    return null;
+                }
+                return session.search(current);
+            }
+
+            @Override
+            protected void done() {
+                if (requested != epoch) {
+                    return;
+                }
+                try {
+                    results = get();
+                } catch (Exception e) {
+                    System.out.println("Error searching passwords: " + e.getMessage());
+                    return;
+                }
+                pages.clear();
+                rowCount = results != null ? results.size() : count;
+                fireTableDataChanged();
+            }
+        }.execute();
+    }
+
+    /**
+     * @brief Returns the number of rows
+     * @return int Number of entries in the session
+     */
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @brief Returns the number of columns
+     * @return int Number of columns
+     */
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    /**
+     * @brief Returns the name of a column
+     * @param column Column index
+     * @return String Column name
+     */
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * @brief Returns the value shown in a cell
+     * @details Requests the page of the row if it is not loaded.
+     * @param row Row index
+     * @param column Column index
+     * @return Object Cell value
+     */
+    @Override
+    public Object getValueAt(int row, int column) {
+        Password password = getPasswordAt(row);
+        if (password == null) {
+            // Rows missing from a loaded page could not be decrypted
+            boolean loading = results == null && !pages.containsKey(row / PAGE_SIZE);
+            return column == 0 && loading ? LOADING : "";
+        }
+        switch (column) {
+            case 0:
+                return password.getService();
+            case 1:
+                return password.getUsername();
+            default:
+                return MASK;
+        }
+    }
+
+    /**
+     * @brief Returns the entry shown in a row
+     * @details Requests the page of the row if it is not loaded.
+     * @param row Row index
+     * @return Password The entry, or null while its page is loading
+     */
+    public Password getPasswordAt(int row) {
+        if (results != null) {
+            return row < results.size() ? results.get(row) : null;
+        }
+        int pageIndex = row / PAGE_SIZE;
+        List<Password> page = pages.get(pageIndex);
+        if (page == null) {
+            loadPage(pageIndex);
+            return null;
+        }
+        int index = row % PAGE_SIZE;
+        return index < page.size() ? page.get(index) : null;
+    }
+
+    /**
+     * @brief Reads a page in the background unless it is already being read
+     * @param pageIndex Index of the page
+     */
+    private void loadPage(int pageIndex) {
+        if (!pending.add(pageIndex)) {
+            return;
+        }
+        int requested = epoch;
+        new SwingWorker<List<Password>, Void>() {
+            @Override
+            protected List<Password> doInBackground() {
+                return session.readPage(pageIndex * PAGE_SIZE, PAGE_SIZE);
+            }
+
+            @Override
+            protected void done() {
+                if (requested != epoch) {
+                    return;
+                }
+                pending.remove(pageIndex);
+                try {
+                    pages.put(pageIndex, get());
+                } catch (Exception e) {
+                    System.out.println("Error loading passwords: " + e.getMessage());
+                    return;
+                }
+                int first = pageIndex * PAGE_SIZE;
+                fireTableRowsUpdated(first, Math.min(first + PAGE_SIZE, rowCount) - 1);
+            }
+        }.execute();
+    }
+}
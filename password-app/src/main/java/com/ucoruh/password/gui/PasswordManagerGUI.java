@@ -44,6 +44,11 @@ public class PasswordManagerGUI extends JFrame {
      */
     private AuthManager authManager;
     
+    /**
+     * @brief Vault of the logged-in user, or null before login
+     */
+    private VaultSession session;
+    
     /**
      * @brief Controller for adding new passwords
      */
@@ -177,18 +182,17 @@ public class PasswordManagerGUI extends JFrame {
         // Initialize Authentication Manager
         authManager = AuthManager.getInstance();
         
-        // Initialize controllers
-        initializeControllers();
-        
         createComponents();
         
         // Clean up resources when window is closed
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                // PasswordManager doesn't have an explicit savePasswords() method,
-                // passwords are saved only when changed
+                // Passwords are saved when changed; only the storage needs closing
                 System.out.println("Application closing...");
+                if (session != null) {
+                    session.close();
+                }
             }
         });
         
@@ -197,15 +201,20 @@ public class PasswordManagerGUI extends JFrame {
     }
     
     /**
-     * @brief Initializes all controller instances
-     * @details Creates instances of all password management controllers
+     * @brief Starts a vault session and the controllers that share it
+     * @details Closes the previous session, if any
+     * @param newSession Vault of the logged-in user
      */
-    private void initializeControllers() {
-        addPasswordController = new AddPasswordController(this);
-        viewPasswordController = new ViewPasswordController(this);
-        updatePasswordController = new UpdatePasswordController(this);
-        deletePasswordController = new DeletePasswordController(this);
-        generatePasswordController = new GeneratePasswordController(this);
+    private void startSession(VaultSession newSession) {
+        if (session != null) {
+            session.close();
+        }
+        session = newSession;
+        addPasswordController = new AddPasswordController(this, session);
+        viewPasswordController = new ViewPasswordController(this, session);
+        updatePasswordController = new UpdatePasswordController(this, session);
+        deletePasswordController = new DeletePasswordController(this, session);
+        generatePasswordController = new GeneratePasswordController(this, session);
     }
     
     /**
@@ -419,7 +428,8 @@ public class PasswordManagerGUI extends JFrame {
     
     /**
      * @brief Handles the login process
-     * @details Validates the master password and initializes the main application
+     * @details Validates the master password and loads the vault in the background,
+     * then shows the main menu
      */
     private void login() {
         char[] password = txtPassword.getPassword();
@@ -436,21 +446,30 @@ public class PasswordManagerGUI extends JFrame {
         System.out.println("Attempting to login with password: " + masterPassword);
         System.out.println("Is master password set: " + authManager.isMasterPasswordSet());
         
-        // Convert String to Scanner
-        Scanner scanner = new Scanner(masterPassword);
-        
-        try {
-            boolean loginSuccess = authManager.login(scanner);
+        // Check the password and load the vault in the background
+        VaultWorker.startChange(this, "Logging in...", "An error occurred during login", () -> {
+            // Convert String to Scanner
+            Scanner scanner = new Scanner(masterPassword);
+            try {
+                if (!authManager.login(scanner)) {
+                    return null;
+                }
+                // Open the vault of the logged-in user
+                return VaultSession.open(authManager.getMasterPassword());
+            } finally {
+                // Ensure Scanner is closed
+                scanner.close();
+            }
+        }, loggedIn -> {
+            boolean loginSuccess = loggedIn != null;
             System.out.println("Login result: " + loginSuccess);
             
             if (loginSuccess) {
+                startSession(loggedIn);
                 JOptionPane.showMessageDialog(this, 
                         "Login successful!", 
                         "Success", 
                         JOptionPane.INFORMATION_MESSAGE);
-                        
-                // Initialize Password Manager with master password
-                new PasswordManager(authManager.getMasterPassword());
                 
                 // Show main menu
                 showMainMenu();
@@ -460,17 +479,7 @@ public class PasswordManagerGUI extends JFrame {
                         "Login Failed", 
                         JOptionPane.ERROR_MESSAGE);
             }
-        } catch (Exception e) {
-            System.out.println("Login error: " + e.getMessage());
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, 
-                    "An error occurred during login: " + e.getMessage(), 
-                    "Login Error", 
-                    JOptionPane.ERROR_MESSAGE);
-        } finally {
-            // Ensure Scanner is closed
-            scanner.close();
-        }
+        });
     }
     
     /**
@@ -777,55 +786,25 @@ public class PasswordManagerGUI extends JFrame {
                 // Get current password
                 String currentPassword = new String(txtCurrentPassword.getPassword());
                 
-                // Validate current password
-                Scanner scanner = new Scanner(currentPassword);
-                if (!authManager.login(scanner)) {
-                    JOptionPane.showMessageDialog(PasswordManagerGUI.this, 
-                            "Current password is incorrect.", 
-                            "Error", 
-                            JOptionPane.ERROR_MESSAGE);
-                    scanner.close();
-                    return;
-                }
-                scanner.close();
-                
-                // Validate new password
-                String newPassword = new String(txtNewPassword.getPassword());
-                String confirmPassword = new String(txtConfirmPassword.getPassword());
-                
-                if (newPassword.length() < 6) {
-                    JOptionPane.showMessageDialog(PasswordManagerGUI.this, 
-                            "New password must be at least 6 characters long.", 
-                            "Error", 
-                            JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                
-                if (!newPassword.equals(confirmPassword)) {
-                    JOptionPane.showMessageDialog(PasswordManagerGUI.this, 
-                            "New passwords do not match.", 
-                            "Error", 
-                            JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                
-                // Change master password
-                Scanner newScanner = new Scanner(newPassword);
-                authManager.createMasterPassword(newScanner);
-                newScanner.close();
-                
-                JOptionPane.showMessageDialog(PasswordManagerGUI.this, 
-                        "Master password changed successfully.", 
-                        "Success", 
-                        JOptionPane.INFORMATION_MESSAGE);
-                
-                // Update password manager with new master password
-                new PasswordManager(authManager.getMasterPassword());
-                
-                // Clear fields
-                txtCurrentPassword.setText("");
-                txtNewPassword.setText("");
-                txtConfirmPassword.setText("");
+                // Validate current password in the background
+                VaultWorker.start(PasswordManagerGUI.this, "Checking password...",
+                        "An error occurred while checking the password", () -> {
+                    Scanner scanner = new Scanner(currentPassword);
+                    try {
+                        return authManager.login(scanner);
+                    } finally {
+                        scanner.close();
+                    }
+                }, valid -> {
+                    if (!valid) {
+                        JOptionPane.showMessageDialog(PasswordManagerGUI.this, 
+                                "Current password is incorrect.", 
+                                "Error", 
+                                JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    changeMasterPassword(txtCurrentPassword, txtNewPassword, txtConfirmPassword);
+                });
             }
         });
         
@@ -834,6 +813,60 @@ public class PasswordManagerGUI extends JFrame {
         contentPane.repaint();
     }
     
+    /**
+     * @brief Validates the new master password and stores it
+     * @details The vault keys are re-wrapped, the new password stored and the vault
+     * reopened in the background.
+     * @param txtCurrentPassword Field holding the current password
+     * @param txtNewPassword Field holding the new password
+     * @param txtConfirmPassword Field holding the new password again
+     */
+    private void changeMasterPassword(JPasswordField txtCurrentPassword, JPasswordField txtNewPassword,
+            JPasswordField txtConfirmPassword) {
+        // Validate new password
+        String newPassword = new String(txtNewPassword.getPassword());
+        String confirmPassword = new String(txtConfirmPassword.getPassword());
+        
+        if (newPassword.length() < 6) {
+            JOptionPane.showMessageDialog(this, 
+                    "New password must be at least 6 characters long.", 
+                    "Error", 
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        if (!newPassword.equals(confirmPassword)) {
+            JOptionPane.showMessageDialog(this, 
+                    "New passwords do not match.", 
+                    "Error", 
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        String currentPassword = new String(txtCurrentPassword.getPassword());
+        VaultWorker.startChange(this, "Changing master password...",
+                "An error occurred while changing the master password", () -> {
+            // Re-wrap the vault keys; the stored passwords are not re-encrypted
+            if (!authManager.changeMasterPassword(currentPassword, newPassword)) {
+                throw new IllegalStateException("The vault key could not be re-wrapped");
+            }
+            
+            // Reopen the vault with the new master password
+            return VaultSession.open(newPassword);
+        }, reopened -> {
+            startSession(reopened);
+            JOptionPane.showMessageDialog(this, 
+                    "Master password changed successfully.", 
+                    "Success", 
+                    JOptionPane.INFORMATION_MESSAGE);
+            
+            // Clear fields
+            txtCurrentPassword.setText("");
+            txtNewPassword.setText("");
+            txtConfirmPassword.setText("");
+        });
+    }
+    
     /**
      * @brief Shows the password management screen
      * @details Displays interface for managing stored passwords
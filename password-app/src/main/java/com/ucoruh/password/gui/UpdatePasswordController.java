@@ -3,7 +3,8 @@ package com.ucoruh.password.gui;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
-import java.util.List;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 import com.ucoruh.password.*;
 
@@ -18,14 +19,14 @@ public class UpdatePasswordController implements DialogController {
     /** @brief Dialog window for updating passwords */
     private JDialog dialog;
     
-    /** @brief Authentication manager instance */
-    private AuthManager authManager;
+    /** @brief Vault of the logged-in user */
+    private VaultSession session;
     
-    /** @brief List of stored passwords */
-    private List<Password> passwordList;
+    /** @brief Paged model of the stored passwords */
+    private PagedPasswordTableModel model;
     
-    /** @brief Combo box for selecting services */
-    private JComboBox<String> comboServices;
+    /** @brief Table for selecting services */
+    private JTable tableServices;
     
     /** @brief Password field for the new password */
     private JPasswordField txtPassword;
@@ -33,21 +34,34 @@ public class UpdatePasswordController implements DialogController {
     /**
      * @brief Constructor for UpdatePasswordController
      * @param gui Reference to main GUI
+     * @param session Vault of the logged-in user
      */
-    public UpdatePasswordController(PasswordManagerGUI gui) {
+    public UpdatePasswordController(PasswordManagerGUI gui, VaultSession session) {
         this.gui = gui;
-        this.authManager = AuthManager.getInstance();
+        this.session = session;
     }
     
     /**
      * @brief Shows the dialog for updating a password
+     * @details The passwords are counted in the background; the dialog opens once the
+     * count is available and reads the rows page by page as they are shown.
      */
     @Override
     public void showDialog() {
-        // Load passwords
-        loadPasswords();
-        
-        if (passwordList.isEmpty()) {
+        // Count passwords in the background, then build the dialog
+        VaultWorker.start(gui, "Loading passwords...", "Error loading passwords",
+                this::loadPasswords, loaded -> {
+                    model = loaded;
+                    createDialog();
+                });
+    }
+    
+    /**
+     * @brief Creates and shows the dialog for the loaded passwords
+     */
+    private void createDialog() {
+        if (model.getRowCount() == 0) {
+            model.detach();
             JOptionPane.showMessageDialog(gui, 
                     "No passwords found to update.", 
                     "No Passwords", 
@@ -57,9 +71,15 @@ public class UpdatePasswordController implements DialogController {
         
         // Create dialog
         dialog = new JDialog(gui, "Update Password", true);
-        dialog.setSize(450, 450);
+        dialog.setSize(450, 520);
         dialog.setLocationRelativeTo(gui);
         dialog.setLayout(new BorderLayout());
+        dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                model.detach();
+            }
+        });
         
         // Create content panel
         JPanel panel = createContentPanel();
@@ -92,13 +112,14 @@ public class UpdatePasswordController implements DialogController {
     }
     
     /**
-     * @brief Loads passwords from storage
+     * @brief Creates the paged model of the stored passwords
+     * @details Runs on a background thread. The session index is only reloaded if
+     * the vault was changed outside this session.
+     * @return PagedPasswordTableModel Model over all stored passwords
      */
-    private void loadPasswords() {
-        // Get all passwords
-        InterfacePasswordStorage storage = PasswordStorageFactory.create(
-                StorageType.FILE, authManager.getMasterPassword());
-        passwordList = storage.readAll();
+    private PagedPasswordTableModel loadPasswords() {
+        session.refresh();
+        return new PagedPasswordTableModel(session, "Service/Website", "Username");
     }
     
     /**
@@ -122,17 +143,17 @@ public class UpdatePasswordController implements DialogController {
         panel.add(lblSelect, gbc);
         
         // Create service list
-        String[] services = new String[passwordList.size()];
-        for (int i = 0; i < passwordList.size(); i++) {
-            Password password = passwordList.get(i);
-            services[i] = password.getService() + " (" + password.getUsername() + ")";
-        }
+        tableServices = new JTable(model);
+        tableServices.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        tableServices.setRowHeight(25);
+        tableServices.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        tableServices.setRowSelectionInterval(0, 0);
         
-        comboServices = new JComboBox<>(services);
-        comboServices.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        JScrollPane scrollPane = new JScrollPane(tableServices);
+        scrollPane.setPreferredSize(new Dimension(380, 150));
         gbc.gridx = 0;
         gbc.gridy = 1;
-        panel.add(comboServices, gbc);
+        panel.add(scrollPane, gbc);
         
         // Password field
         JLabel lblPassword = new JLabel("New Password:");
@@ -208,7 +229,7 @@ public class UpdatePasswordController implements DialogController {
      * @brief Updates the selected password
      */
     private void updatePassword() {
-        int selectedIndex = comboServices.getSelectedIndex();
+        Password selectedPassword = model.getPasswordAt(Math.max(tableServices.getSelectedRow(), 0));
         String newPassword = new String(txtPassword.getPassword());
         
         if (newPassword.isEmpty()) {
@@ -219,20 +240,28 @@ public class UpdatePasswordController implements DialogController {
             return;
         }
         
+        if (selectedPassword == null) {
+            JOptionPane.showMessageDialog(dialog, 
+                    "Please select a password to update.", 
+                    "No Selection", 
+                    JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        
         // Update password
-        Password selectedPassword = passwordList.get(selectedIndex);
         selectedPassword.setPassword(newPassword);
         
-        // Save passwords
-        InterfacePasswordStorage storage = PasswordStorageFactory.create(
-                StorageType.FILE, authManager.getMasterPassword());
-        storage.writeAll(passwordList);
-        
-        JOptionPane.showMessageDialog(dialog, 
-                "Password updated successfully!", 
-                "Success", 
-                JOptionPane.INFORMATION_MESSAGE);
-        
-        closeDialog();
+        // Save password in the background
+        VaultWorker.startChange(dialog, "Saving password...", "Error saving password", () -> {
+            session.put(selectedPassword);
+            return null;
+        }, result -> {
+            JOptionPane.showMessageDialog(dialog, 
+                    "Password updated successfully!", 
+                    "Success", 
+                    JOptionPane.INFORMATION_MESSAGE);
+            
+            closeDialog();
+        });
     }
 } 
\ No newline at end of file
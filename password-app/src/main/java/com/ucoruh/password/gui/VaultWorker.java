@@ -0,0 +1,261 @@
+package com.ucoruh.password.gui;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * @file VaultWorker.java
+ * @class VaultWorker
+ * @brief Runs vault I/O and crypto off the Swing event dispatch thread
+ * @details The task runs on a SwingWorker thread and its result is handed to a
+ * callback on the event dispatch thread. If the task takes longer than
+ * PROGRESS_DELAY_MS, a progress dialog blocks input to the owner window until the
+ * task ends.
+ *
+ * Tasks that only read, started with start(), can be cancelled from the dialog.
+ * The storage call itself runs to completion and its result is discarded; a result
+ * that holds resources, such as an open session, is closed. Tasks that change the
+ * vault or the login, started with startChange(), offer no Cancel: the change
+ * happens either way, and the window has to learn its outcome.
+ *
+ * @param <T> Type of the task result
+ */
+public class VaultWorker<T> extends SwingWorker<T, Void> {
+    /**
+     * @brief Work that runs in the background
+     *
+     * @param <T> Type of the result
+     */
+    public interface Task<T> {
+        /**
+         * @brief Runs the work
+         * @return T The result handed to the success callback
+         * @throws Exception If the work fails
+         */
+        T run() throws Exception;
+    }
+
+    /** @brief Milliseconds before the progress dialog is shown */
+    static final int PROGRESS_DELAY_MS = 250;
+
+    /** @brief Component whose window owns the progress and error dialogs */
+    private final Component owner;
+
+    /** @brief Text shown in the progress dialog */
+    private final String progressMessage;
+
+    /** @brief Text shown in front of the failure reason */
+    private final String errorMessage;
+
+    /** @brief The background work */
+    private final Task<T> task;
+
+    /** @brief Callback that receives the result on the event dispatch thread */
+    private final Consumer<T> onSuccess;
+
+    /** @brief Whether the progress dialog offers a Cancel button */
+    private final boolean cancellable;
+
+    /** @brief Timer that shows the progress dialog */
+    private final Timer progressTimer;
+
+    /** @brief Guards the hand-over of the result against a late cancel */
+    private final Object resultLock = new Object();
+
+    /** @brief Whether the task finished without being cancelled; guarded by resultLock */
+    private boolean finished;
+
+    /** @brief Progress dialog, or null while it is not shown */
+    private JDialog progressDialog;
+
+    /**
+     * @brief Constructor for VaultWorker
+     * @param owner Component whose window owns the dialogs
+     * @param progressMessage Text shown while the task runs
+     * @param errorMessage Text shown in front of the failure reason
+     * @param task The background work
+     * @param onSuccess Callback that receives the result on the event dispatch thread
+     * @param cancellable Whether the progress dialog offers a Cancel button
+     */
+    public VaultWorker(Component owner, String progressMessage, String errorMessage,
+            Task<T> task, Consumer<T> onSuccess, boolean cancellable) {
+        this.owner = owner;
+        this.progressMessage = progressMessage;
+        this.errorMessage = errorMessage;
+        this.task = task;
+        this.onSuccess = onSuccess;
+        this.cancellable = cancellable;
+        this.progressTimer = new Timer(PROGRESS_DELAY_MS, e -> showProgress());
+        this.progressTimer.setRepeats(false);
+    }
+
+    /**
+     * @brief Creates and starts a worker for a task that only reads
+     * @param owner Component whose window owns the dialogs
+     * @param progressMessage Text shown while the task runs
+     * @param errorMessage Text shown in front of the failure reason
+     * @param task The background work
+     * @param onSuccess Callback that receives the result on the event dispatch thread
+     * @return VaultWorker The started worker
+     */
+    public static <T> VaultWorker<T> start(Component owner, String progressMessage, String errorMessage,
+            Task<T> task, Consumer<T> onSuccess) {
+        return start(new VaultWorker<>(owner, progressMessage, errorMessage, task, onSuccess, true));
+    }
+
+    /**
+     * @brief Creates and starts a worker for a task that changes the vault or the login
+     * @details The progress dialog offers no Cancel, so the result always reaches
+     * the callback.
+     * @param owner Component whose window owns the dialogs
+     * @param progressMessage Text shown while the task runs
+     * @param errorMessage Text shown in front of the failure reason
+     * @param task The background work
+     * @param onSuccess Callback that receives the result on the event dispatch thread
+     * @return VaultWorker The started worker
+     */
+    public static <T> VaultWorker<T> startChange(Component owner, String progressMessage, String errorMessage,
+            Task<T> task, Consumer<T> onSuccess) {
+        return start(new VaultWorker<>(owner, progressMessage, errorMessage, task, onSuccess, false));
+    }
+
+    /**
+     * @brief Starts a worker and the timer of its progress dialog
+     * @param worker The worker
+     * @return VaultWorker The started worker
+     */
+    private static <T> VaultWorker<T> start(VaultWorker<T> worker) {
+        worker.progressTimer.start();
+        worker.execute();
+        return worker;
+    }
+
+    /**
+     * @brief Cancels the task unless its result was already handed over
+     * @details Does nothing for a task started with startChange().
+     * @return boolean true if the task is cancelled
+     */
+    boolean requestCancel() {
+        if (!cancellable) {
+            return false;
+        }
+        synchronized (resultLock) {
+            return !finished && cancel(false);
+        }
+    }
+
+    /**
+     * @brief Runs the task on the worker thread
+     * @details If the task was cancelled meanwhile, its result is discarded here,
+     * as done() no longer receives it.
+     * @return T The task result
+     * @throws Exception If the task fails
+     */
+    @Override
+    protected T doInBackground() throws Exception {
+        T result = task.run();
+        synchronized (resultLock) {
+            if (!isCancelled()) {
+                finished = true;
+                return result;
+            }
+        }
+        discard(result);
+        return result;
+    }
+
+    /**
+     * @brief Releases a result nobody will receive
+     * @param result The result of a cancelled task
+     */
+    private void discard(T result) {
+        if (result instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) result).close();
+            } catch (Exception e) {
+                System.out.println(errorMessage + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @brief Closes the progress dialog and publishes the result or the failure
+     */
+    @Override
+    protected void done() {
+        progressTimer.stop();
+        if (progressDialog != null) {
+            progressDialog.dispose();
+            progressDialog = null;
+        }
+        if (isCancelled()) {
+            return;
+        }
+        T result;
+        try {
+            result = get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.out.println(errorMessage + ": " + cause.getMessage());
+            JOptionPane.showMessageDialog(owner,
+                    errorMessage + ": " + cause.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        onSuccess.accept(result);
+    }
+
+    /**
+     * @brief Shows the progress dialog if the task is still running
+     */
+    private void showProgress() {
+        if (isDone()) {
+            return;
+        }
+        Window window = owner instanceof Window ? (Window) owner : SwingUtilities.getWindowAncestor(owner);
+        progressDialog = new JDialog(window, "Please Wait", Dialog.ModalityType.DOCUMENT_MODAL);
+        progressDialog.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        progressDialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                requestCancel();
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout(10, 10));
+        panel.setBorder(new EmptyBorder(15, 15, 15, 15));
+        panel.setBackground(Color.WHITE);
+
+        JLabel label = new JLabel(progressMessage);
+        label.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        panel.add(label, BorderLayout.NORTH);
+
+        JProgressBar progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        panel.add(progressBar, BorderLayout.CENTER);
+
+        if (cancellable) {
+            JButton btnCancel = new JButton("Cancel");
+            btnCancel.addActionListener(e -> requestCancel());
+            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            buttonPanel.setBackground(Color.WHITE);
+            buttonPanel.add(btnCancel);
+            panel.add(buttonPanel, BorderLayout.SOUTH);
+        }
+
+        progressDialog.add(panel);
+        progressDialog.pack();
+        progressDialog.setLocationRelativeTo(owner);
+        // Blocks in a nested event loop until done() disposes the dialog
+        progressDialog.setVisible(true);
+    }
+}
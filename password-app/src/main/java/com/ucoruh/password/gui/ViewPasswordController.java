@@ -2,11 +2,13 @@ package com.ucoruh.password.gui;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
-import java.util.List;
 
 import com.ucoruh.password.*;
 
@@ -21,37 +23,64 @@ public class ViewPasswordController implements DialogController {
     /** @brief Dialog window for viewing passwords */
     private JDialog dialog;
     
-    /** @brief Authentication manager instance */
-    private AuthManager authManager;
+    /** @brief Vault of the logged-in user */
+    private VaultSession session;
     
-    /** @brief List of stored passwords */
-    private List<Password> passwordList;
+    /** @brief Paged model of the stored passwords */
+    private PagedPasswordTableModel model;
     
     /** @brief Table for displaying passwords */
     private JTable table;
     
+    /** @brief Milliseconds of typing pause before a search runs */
+    private static final int SEARCH_DELAY_MS = 150;
+    
+    /** @brief Timer that runs the search once typing pauses */
+    private Timer searchTimer;
+    
     /**
      * @brief Constructor for ViewPasswordController
      * @param gui Reference to main GUI
+     * @param session Vault of the logged-in user
      */
-    public ViewPasswordController(PasswordManagerGUI gui) {
+    public ViewPasswordController(PasswordManagerGUI gui, VaultSession session) {
         this.gui = gui;
-        this.authManager = AuthManager.getInstance();
+        this.session = session;
     }
     
     /**
      * @brief Shows the dialog for viewing passwords
+     * @details The passwords are counted in the background; the dialog opens once the
+     * count is available and reads the rows page by page as they are shown.
      */
     @Override
     public void showDialog() {
+        VaultWorker.start(gui, "Loading passwords...", "Error loading passwords",
+                this::loadPasswords, loaded -> {
+                    model = loaded;
+                    createDialog();
+                });
+    }
+    
+    /**
+     * @brief Creates and shows the dialog for the loaded passwords
+     */
+    private void createDialog() {
         // Create dialog
         dialog = new JDialog(gui, "All Passwords", true);
         dialog.setSize(600, 400);
         dialog.setLocationRelativeTo(gui);
         dialog.setLayout(new BorderLayout());
+        dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                searchTimer.stop();
+                model.detach();
+            }
+        });
         
-        // Load passwords
-        loadPasswords();
+        // Create search field
+        JPanel searchPanel = createSearchPanel();
         
         // Create table
         JScrollPane scrollPane = createPasswordTable();
@@ -59,6 +88,7 @@ public class ViewPasswordController implements DialogController {
         // Create button panel
         JPanel buttonPanel = createButtonPanel();
         
+        dialog.add(searchPanel, BorderLayout.NORTH);
         dialog.add(scrollPane, BorderLayout.CENTER);
         dialog.add(buttonPanel, BorderLayout.SOUTH);
         dialog.setVisible(true);
@@ -84,38 +114,62 @@ public class ViewPasswordController implements DialogController {
     }
     
     /**
-     * @brief Loads passwords from storage
+     * @brief Creates the paged model of the stored passwords
+     * @details Runs on a background thread. The session index is only reloaded if
+     * the vault was changed outside this session.
+     * @return PagedPasswordTableModel Model over all stored passwords
      */
-    private void loadPasswords() {
-        // Get all passwords
-        InterfacePasswordStorage storage = PasswordStorageFactory.create(
-                StorageType.FILE, authManager.getMasterPassword());
-        passwordList = storage.readAll();
+    private PagedPasswordTableModel loadPasswords() {
+        session.refresh();
+        return new PagedPasswordTableModel(session, "Service/Website", "Username", "Password");
     }
     
     /**
-     * @brief Creates the password table
-     * @return JScrollPane containing password table
+     * @brief Creates the search field
+     * @details Searching starts once typing pauses for SEARCH_DELAY_MS and runs in the background.
+     * @return JPanel containing the search field
      */
-    private JScrollPane createPasswordTable() {
-        // Create table model
-        String[] columnNames = {"Service/Website", "Username", "Password"};
-        Object[][] data = new Object[passwordList.size()][3];
-        
-        for (int i = 0; i < passwordList.size(); i++) {
-            Password password = passwordList.get(i);
-            data[i][0] = password.getService();
-            data[i][1] = password.getUsername();
-            data[i][2] = "•••••••••";
-        }
+    private JPanel createSearchPanel() {
+        JPanel searchPanel = new JPanel(new BorderLayout(10, 0));
+        searchPanel.setBackground(Color.WHITE);
+        searchPanel.setBorder(new EmptyBorder(10, 10, 0, 10));
+        
+        JLabel lblSearch = new JLabel("Search:");
+        lblSearch.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        searchPanel.add(lblSearch, BorderLayout.WEST);
+        
+        JTextField txtSearch = new JTextField();
+        txtSearch.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        searchPanel.add(txtSearch, BorderLayout.CENTER);
         
-        DefaultTableModel model = new DefaultTableModel(data, columnNames) {
+        // Search once typing pauses
+        searchTimer = new Timer(SEARCH_DELAY_MS, e -> model.setQuery(txtSearch.getText()));
+        searchTimer.setRepeats(false);
+        txtSearch.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+            
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
+            public void removeUpdate(DocumentEvent e) {
+                searchTimer.restart();
             }
-        };
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+        });
         
+        return searchPanel;
+    }
+    
+    /**
+     * @brief Creates the password table
+     * @return JScrollPane containing password table
+     */
+    private JScrollPane createPasswordTable() {
         table = new JTable(model);
         table.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         table.setRowHeight(25);
@@ -158,63 +212,17 @@ public class ViewPasswordController implements DialogController {
     private void showPassword() {
         int selectedRow = table.getSelectedRow();
         if (selectedRow != -1) {
-            String service = (String) table.getValueAt(selectedRow, 0);
-            String username = (String) table.getValueAt(selectedRow, 1);
+            Password password = model.getPasswordAt(selectedRow);
+            if (password == null) {
+                return;
+            }
             
-            // Find the password
-            for (Password password : passwordList) {
-                if (password.getService().equals(service) && 
-                    password.getUsername().equals(username)) {
-                    
-                    // Create custom dialog with copy option
-                    String passwordText = password.getPassword();
-                    JDialog passwordDialog = new JDialog(dialog, "Password", true);
-                    passwordDialog.setLayout(new BorderLayout());
-                    passwordDialog.setSize(400, 150);
-                    passwordDialog.setLocationRelativeTo(dialog);
-                    
-                    // Message panel
-                    JPanel messagePanel = new JPanel(new BorderLayout());
-                    messagePanel.setBorder(new EmptyBorder(15, 15, 15, 15));
-                    messagePanel.setBackground(Color.WHITE);
-                    
-                    JLabel passwordLabel = new JLabel(
-                        "<html>Password for <b>" + service + "</b>: " + passwordText + "</html>");
-                    passwordLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-                    messagePanel.add(passwordLabel, BorderLayout.CENTER);
-                    
-                    // Dialog button panel
-                    JPanel dialogButtonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-                    dialogButtonPanel.setBackground(Color.WHITE);
-                    
-                    JButton copyButton = gui.createStyledButton("Copy Password", PasswordManagerGUI.PRIMARY_COLOR);
-                    JButton okButton = gui.createStyledButton("OK", PasswordManagerGUI.DARK_COLOR);
-                    
-                    dialogButtonPanel.add(copyButton);
-                    dialogButtonPanel.add(okButton);
-                    
-                    // Copy button action
-                    copyButton.addActionListener(copyEvent -> {
-                        // Copy to clipboard
-                        StringSelection selection = new StringSelection(passwordText);
-                        Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-                        clipboard.setContents(selection, null);
-                        
-                        JOptionPane.showMessageDialog(passwordDialog, 
-                                "Password copied to clipboard!", 
-                                "Success", 
-                                JOptionPane.INFORMATION_MESSAGE);
+            // Decrypt in the background, then show it with a copy option
+            VaultWorker.start(dialog, "Decrypting password...", "Error decrypting password",
+                    password::getPassword, passwordText -> {
+                        showPasswordDialog(password.getService(), passwordText);
+                        password.forgetPassword();
                     });
-                    
-                    // OK button action
-                    okButton.addActionListener(okEvent -> passwordDialog.dispose());
-                    
-                    passwordDialog.add(messagePanel, BorderLayout.CENTER);
-                    passwordDialog.add(dialogButtonPanel, BorderLayout.SOUTH);
-                    passwordDialog.setVisible(true);
-                    break;
-                }
-            }
         } else {
             JOptionPane.showMessageDialog(dialog, 
                     "Please select a password to show.", 
@@ -222,4 +230,56 @@ public class ViewPasswordController implements DialogController {
                     JOptionPane.WARNING_MESSAGE);
         }
     }
+    
+    /**
+     * @brief Shows a decrypted password with a copy button
+     * @param service Service name of the password
+     * @param passwordText The decrypted password
+     */
+    private void showPasswordDialog(String service, String passwordText) {
+        JDialog passwordDialog = new JDialog(dialog, "Password", true);
+        passwordDialog.setLayout(new BorderLayout());
+        passwordDialog.setSize(400, 150);
+        passwordDialog.setLocationRelativeTo(dialog);
+        
+        // Message panel
+        JPanel messagePanel = new JPanel(new BorderLayout());
+        messagePanel.setBorder(new EmptyBorder(15, 15, 15, 15));
+        messagePanel.setBackground(Color.WHITE);
+        
+        JLabel passwordLabel = new JLabel(
+            "<html>Password for <b>" + service + "</b>: " + passwordText + "</html>");
+        passwordLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        messagePanel.add(passwordLabel, BorderLayout.CENTER);
+        
+        // Dialog button panel
+        JPanel dialogButtonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        dialogButtonPanel.setBackground(Color.WHITE);
+        
+        JButton copyButton = gui.createStyledButton("Copy Password", PasswordManagerGUI.PRIMARY_COLOR);
+        JButton okButton = gui.createStyledButton("OK", PasswordManagerGUI.DARK_COLOR);
+        
+        dialogButtonPanel.add(copyButton);
+        dialogButtonPanel.add(okButton);
+        
+        // Copy button action
+        copyButton.addActionListener(copyEvent -> {
+            // Copy to clipboard
+            StringSelection selection = new StringSelection(passwordText);
+            Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+            clipboard.setContents(selection, null);
+            
+            JOptionPane.showMessageDialog(passwordDialog, 
+                    "Password copied to clipboard!", 
+                    "Success", 
+                    JOptionPane.INFORMATION_MESSAGE);
+        });
+        
+        // OK button action
+        okButton.addActionListener(okEvent -> passwordDialog.dispose());
+        
+        passwordDialog.add(messagePanel, BorderLayout.CENTER);
+        passwordDialog.add(dialogButtonPanel, BorderLayout.SOUTH);
+        passwordDialog.setVisible(true);
+    }
 } 
\ No newline at end of file
@@ -81,6 +81,41 @@ public class AuthManagerTest {
         assertFalse("Login should fail with incorrect password", loginResult);
     }
     
+    /**
+     * Tests that changing the master password re-wraps every existing vault and creates none.
+     */
+    @Test
+    public void testChangeMasterPasswordRewrapsEveryVault() {
+        String[] files = {"passwords.txt", "passwords.txt.key", "passwords.vault", "passwords.vault.key"};
+        for (String name : files) {
+            new File(name).delete();
+        }
+        try {
+            try (MappedPasswordStorage vault = new MappedPasswordStorage("oldPassword")) {
+                vault.put(new Password("gmail", "user", "pass"));
+            }
+            Scanner scanner = new Scanner("oldPassword\n");
+            auth.createMasterPassword(scanner);
+            scanner.close();
+
+            assertTrue(auth.changeMasterPassword("oldPassword", "newPassword"));
+            assertFalse("No file vault should be created", new File("passwords.txt").exists());
+            try (MappedPasswordStorage vault = new MappedPasswordStorage("newPassword")) {
+                assertEquals("pass", vault.get("gmail").getPassword());
+            }
+
+            assertTrue(auth.rotateVaultKeys("newPassword"));
+            assertFalse("No file vault should be created", new File("passwords.txt").exists());
+            try (MappedPasswordStorage vault = new MappedPasswordStorage("newPassword")) {
+                assertEquals("pass", vault.get("gmail").getPassword());
+            }
+        } finally {
+            for (String name : files) {
+                new File(name).delete();
+            }
+        }
+    }
+    
     /**
      * Tests isMasterPasswordSet method for false case.
      */
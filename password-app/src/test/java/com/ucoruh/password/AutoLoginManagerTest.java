@@ -22,6 +22,9 @@ public class AutoLoginManagerTest {
     @Before
     public void setUpStreams() {
         System.setOut(new PrintStream(outContent));
+        // Start from an empty file vault; one left by another master password does not open
+        new File("passwords.txt").delete();
+        new File("passwords.txt.key").delete();
         passwordManager = new PasswordManager("test-master-password");
         
         // Add a test credential to password manager
@@ -0,0 +1,157 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for BinaryRecordCodec.
+ *
+ * These tests verify the varint encoding, the entry and record layouts, and that the
+ * reader stops cleanly at a record cut off by an interrupted write.
+ */
+public class BinaryRecordCodecTest {
+
+    /**
+     * @brief Tests varints at the size boundaries.
+     */
+    @Test
+    public void testVarints() {
+        int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE };
+        int[] sizes = { 1, 1, 1, 2, 2, 3, 5 };
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(sizes[i], BinaryRecordCodec.varintSize(values[i]));
+            buffer.clear();
+            BinaryRecordCodec.putVarint(buffer, values[i]);
+            assertEquals(sizes[i], buffer.position());
+            buffer.flip();
+            assertEquals(values[i], BinaryRecordCodec.getVarint(buffer));
+        }
+    }
+
+    /**
+     * @brief Tests that a varint longer than an int is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedVarint() {
+        BinaryRecordCodec.getVarint(ByteBuffer.wrap(new byte[] { -1, -1, -1, -1, -1, 1 }));
+    }
+
+    /**
+     * @brief Tests that entries keep separators and non-ASCII text.
+     */
+    @Test
+    public void testEntryRoundTrip() {
+        byte[] plaintext = BinaryRecordCodec.encodeEntry("bank, private", "ünïcode\nuser", "");
+        Password p = BinaryRecordCodec.decodeEntry(plaintext);
+        assertEquals("bank, private", p.getService());
+        assertEquals("ünïcode\nuser", p.getUsername());
+        assertEquals("", p.getPassword());
+    }
+
+    /**
+     * @brief Tests that an entry with missing or extra bytes is rejected.
+     */
+    @Test
+    public void testMalformedEntry() {
+        byte[] plaintext = BinaryRecordCodec.encodeEntry("gmail", "user", "pass");
+        for (byte[] bad : new byte[][] { Arrays.copyOf(plaintext, plaintext.length - 1),
+                Arrays.copyOf(plaintext, plaintext.length + 1), new byte[] { 9, 'a' } }) {
+            try {
+                BinaryRecordCodec.decodeEntry(bad);
+                fail("Malformed entry accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    /**
+     * @brief Tests the record frame and its text form.
+     */
+    @Test
+    public void testRecord() {
+        byte[] ciphertext = new byte[200];
+        Arrays.fill(ciphertext, (byte) 7);
+        byte[] record = BinaryRecordCodec.encodeRecord(BinaryRecordCodec.TOMBSTONE, 3, ciphertext);
+
+        assertEquals(2 + 1 + 1 + 200, record.length);
+        assertEquals(BinaryRecordCodec.TOMBSTONE, BinaryRecordCodec.type(record));
+        assertEquals(3, BinaryRecordCodec.keyVersion(record));
+        assertEquals(4, BinaryRecordCodec.ciphertextOffset(record));
+        assertEquals("3:" + Base64.getEncoder().encodeToString(ciphertext), BinaryRecordCodec.toText(record));
+
+        byte[] first = BinaryRecordCodec.encodeRecord(BinaryRecordCodec.PUT, 1, ciphertext);
+        assertEquals(Base64.getEncoder().encodeToString(ciphertext), BinaryRecordCodec.toText(first));
+    }
+
+    /**
+     * @brief Tests the file header and the detection of the text format.
+     */
+    @Test
+    public void testFormatVersion() {
+        assertEquals(BinaryRecordCodec.FORMAT_VERSION,
+                BinaryRecordCodec.formatVersion(ByteBuffer.wrap(BinaryRecordCodec.header())));
+        assertEquals(1, BinaryRecordCodec.formatVersion(ByteBuffer.wrap("kmS0oVBo8ATLO7cX".getBytes())));
+        assertEquals(1, BinaryRecordCodec.formatVersion(ByteBuffer.wrap(new byte[] { (byte) 0x89 })));
+        assertEquals(BinaryRecordCodec.SEALED_FORMAT_VERSION, BinaryRecordCodec.formatVersion(
+                ByteBuffer.wrap(BinaryRecordCodec.header(BinaryRecordCodec.SEALED_FORMAT_VERSION))));
+    }
+
+    /**
+     * @brief Tests reading the length of records packed one after another.
+     */
+    @Test
+    public void testRecordLength() {
+        byte[] small = BinaryRecordCodec.encodeRecord(BinaryRecordCodec.PUT, BinaryRecordCodec.PLAIN, new byte[5]);
+        byte[] large = BinaryRecordCodec.encodeRecord(BinaryRecordCodec.PUT, BinaryRecordCodec.PLAIN, new byte[300]);
+        byte[] packed = Arrays.copyOf(small, small.length + large.length);
+        System.arraycopy(large, 0, packed, small.length, large.length);
+
+        assertEquals(small.length, BinaryRecordCodec.recordLength(packed, 0));
+        assertEquals(large.length, BinaryRecordCodec.recordLength(packed, small.length));
+        try {
+            BinaryRecordCodec.recordLength(Arrays.copyOf(packed, packed.length - 1), small.length);
+            fail("A cut-off record should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * @brief Tests that the reader returns whole records and ignores a cut-off tail.
+     */
+    @Test
+    public void testReader() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        byte[] small = BinaryRecordCodec.encodeRecord(BinaryRecordCodec.PUT, 1, new byte[16]);
+        byte[] large = BinaryRecordCodec.encodeRecord(BinaryRecordCodec.PUT, 2, new byte[100_000]);
+        file.write(small);
+        file.write(large);
+        file.write(small, 0, small.length - 3);
+
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(file.toByteArray()));
+        BinaryRecordCodec.Reader reader = new BinaryRecordCodec.Reader(channel, 10);
+        assertArrayEquals(small, reader.next());
+        assertArrayEquals(large, reader.next());
+        assertNull(reader.next());
+        assertEquals(10 + small.length + large.length, reader.end());
+    }
+
+    /**
+     * @brief Tests that an impossible record length is reported as corruption.
+     */
+    @Test(expected = IOException.class)
+    public void testReaderRejectsBadLength() throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(new byte[] { 1, 0, 0 }));
+        new BinaryRecordCodec.Reader(channel, 0).next();
+    }
+}
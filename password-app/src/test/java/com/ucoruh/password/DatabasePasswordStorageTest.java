@@ -3,7 +3,10 @@ package com.ucoruh.password;
 import org.junit.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -813,4 +816,824 @@ public class DatabasePasswordStorageTest {
             // Don't fail the test due to setup issues
         }
     }
+    
+    /**
+     * Test that the storage keeps one connection and reopens it after close().
+     * @throws SQLException if the connection cannot be opened
+     */
+    @Test
+    public void testConnectionReuseAndClose() throws SQLException {
+        Connection first = database.getConnection();
+        assertSame("Connection should be reused", first, database.getConnection());
+        
+        database.writeAll(List.of(new Password("Service1", "user1", "pass1")));
+        assertEquals("Data should be visible on the managed connection", 1, database.readAll().size());
+        
+        database.close();
+        assertTrue("close() should close the connection", first.isClosed());
+        
+        Connection second = database.getConnection();
+        assertNotSame("A new connection should be opened after close()", first, second);
+        assertFalse(second.isClosed());
+        database.close();
+    }
+    
+    /**
+     * Test that writeAll stores lists larger than one batch.
+     */
+    @Test
+    public void testWriteAllAcrossBatches() {
+        List<Password> passwords = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            passwords.add(new Password("Service" + i, "user" + i, "pass" + i));
+        }
+        
+        database.writeAll(passwords);
+        
+        List<Password> readBack = database.readAll();
+        assertEquals(2500, readBack.size());
+        assertEquals("pass2499", readBack.get(2499).getPassword());
+    }
+    
+    /**
+     * Test that a failing writeAll rolls back and keeps the previous contents.
+     * @throws SQLException if the test trigger cannot be created
+     */
+    @Test
+    public void testWriteAllRollsBackOnFailure() throws SQLException {
+        database.writeAll(List.of(new Password("Original", "user", "pass")));
+        try (Statement stmt = database.getConnection().createStatement()) {
+            stmt.execute("CREATE TRIGGER fail_insert BEFORE INSERT ON passwords "
+                    + "WHEN (SELECT COUNT(*) FROM passwords) >= 2 BEGIN SELECT RAISE(ABORT, 'boom'); END");
+        }
+        
+        database.writeAll(List.of(
+            new Password("Service1", "user1", "pass1"),
+            new Password("Boom", "user2", "pass2")
+        ));
+        
+        List<Password> readBack = database.readAll();
+        assertEquals("Previous contents should be kept", 1, readBack.size());
+        assertEquals("Original", readBack.get(0).getService());
+        assertTrue(outContent.toString().contains("Database error"));
+    }
+    
+    /**
+     * Test that writeAll only writes the entries that changed.
+     * @throws SQLException if the test triggers cannot be created
+     */
+    @Test
+    public void testWriteAllWritesOnlyChanges() throws SQLException {
+        database.writeAll(List.of(
+            new Password("Service1", "user1", "pass1"),
+            new Password("Service2", "user2", "pass2"),
+            new Password("Service3", "user3", "pass3")
+        ));
+        try (Statement stmt = database.getConnection().createStatement()) {
+            stmt.execute("CREATE TABLE audit (op TEXT)");
+            stmt.execute("CREATE TRIGGER audit_insert AFTER INSERT ON passwords BEGIN INSERT INTO audit VALUES ('insert'); END");
+            stmt.execute("CREATE TRIGGER audit_update AFTER UPDATE ON passwords BEGIN INSERT INTO audit VALUES ('update'); END");
+            stmt.execute("CREATE TRIGGER audit_delete AFTER DELETE ON passwords BEGIN INSERT INTO audit VALUES ('delete'); END");
+        }
+        
+        List<Password> list = new ArrayList<>(database.readAll());
+        list.get(0).setPassword("changed");
+        list.remove(2);
+        list.add(new Password("Service4", "user4", "pass4"));
+        database.writeAll(list);
+        
+        List<String> ops = new ArrayList<>();
+        try (Statement stmt = database.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT op FROM audit ORDER BY op")) {
+            while (rs.next()) {
+                ops.add(rs.getString(1));
+            }
+        }
+        assertEquals(List.of("delete", "insert", "update"), ops);
+        
+        Map<String, String> stored = new HashMap<>();
+        for (Password p : database.readAll()) {
+            stored.put(p.getService(), p.getPassword());
+        }
+        assertEquals(Map.of("Service1", "changed", "Service2", "pass2", "Service4", "pass4"), stored);
+        
+        // Writing the same list again is a no-op
+        database.writeAll(list);
+        try (Statement stmt = database.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM audit")) {
+            rs.next();
+            assertEquals(3, rs.getInt(1));
+        }
+    }
+
+    /**
+     * Test that writeAll restores an entry read before a later write of its service.
+     */
+    @Test
+    public void testWriteAllRestoresSupersededEntry() throws Exception {
+        database.put(new Password("Service1", "user1", "one"));
+        Password first = database.readAll().get(0);
+        database.put(new Password("Service1", "user1", "two"));
+        database.writeAll(List.of(first));
+        assertEquals("one", database.get("Service1").getPassword());
+        
+        // A storage on the same file does not skip entries another one has overwritten
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        DatabasePasswordStorage writer = openDatabase(url, TEST_MASTER_PASSWORD);
+        DatabasePasswordStorage other = openDatabase(url, TEST_MASTER_PASSWORD);
+        try {
+            writer.put(new Password("Service1", "user1", "one"));
+            Password read = other.get("Service1");
+            writer.put(new Password("Service1", "user1", "two"));
+            other.writeAll(List.of(read));
+            assertEquals("one", writer.get("Service1").getPassword());
+        } finally {
+            writer.close();
+            other.close();
+            dbFile.delete();
+            new File(dbFile.getPath() + "-wal").delete();
+            new File(dbFile.getPath() + "-shm").delete();
+        }
+    }
+
+    /**
+     * Test that readAll keeps the row order with a parallel decryption pipeline.
+     */
+    @Test
+    public void testReadAllWithParallelPipeline() {
+        List<Password> list = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            list.add(new Password("Service" + i, "user" + i, "pass" + i));
+        }
+        database.writeAll(list);
+        
+        database.setDecryptionPipeline(DecryptionPipeline.sequential());
+        List<Password> sequential = database.readAll();
+        database.setDecryptionPipeline(new DecryptionPipeline(4, 10, 20));
+        List<Password> parallel = database.readAll();
+        
+        assertEquals(300, parallel.size());
+        for (int i = 0; i < 300; i++) {
+            assertEquals(sequential.get(i).getService(), parallel.get(i).getService());
+            assertEquals(sequential.get(i).getPassword(), parallel.get(i).getPassword());
+        }
+    }
+
+    /**
+     * Test that readAll defers password decryption and writeAll keeps unchanged ciphertext.
+     * @throws SQLException if the stored rows cannot be read
+     */
+    @Test
+    public void testLazyPasswordsKeepCiphertext() throws SQLException {
+        database.writeAll(List.of(new Password("Service1", "user1", "pass1")));
+        byte[] before;
+        try (Statement stmt = database.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT password FROM passwords")) {
+            rs.next();
+            before = rs.getBytes(1);
+        }
+        
+        List<Password> list = database.readAll();
+        assertTrue(list.get(0) instanceof LazyPassword);
+        list.get(0).setUsername("renamed");
+        database.writeAll(list);
+        
+        try (Statement stmt = database.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT password FROM passwords")) {
+            rs.next();
+            assertArrayEquals(before, rs.getBytes(1));
+        }
+        Password stored = database.readAll().get(0);
+        assertEquals("renamed", stored.getUsername());
+        assertEquals("pass1", stored.getPassword());
+    }
+
+    /**
+     * Test that the generation changes on writes only.
+     */
+    @Test
+    public void testGeneration() {
+        long initial = database.generation();
+        assertEquals(initial, database.generation());
+        database.readAll();
+        assertEquals(initial, database.generation());
+        
+        database.writeAll(List.of(new Password("Service1", "user1", "pass1")));
+        long afterWrite = database.generation();
+        assertNotEquals(initial, afterWrite);
+        
+        database.delete(new Scanner(new ByteArrayInputStream("Service1\n".getBytes())));
+        assertNotEquals(afterWrite, database.generation());
+        
+        database.close();
+        assertNotEquals(InterfacePasswordStorage.UNKNOWN_GENERATION, database.generation());
+    }
+
+    /**
+     * Test the keyed get, put, contains and remove methods.
+     */
+    @Test
+    public void testKeyedMethods() {
+        database.put(new Password("Service1", "user1", "pass1"));
+        database.putAll(List.of(
+            new Password("Service2", "user2", "pass2"),
+            new Password("Service3", "user3", "pass3")
+        ));
+        database.put(new Password("Service1", "user1", "changed"));
+        
+        assertTrue(database.contains("Service1"));
+        assertFalse(database.contains("Missing"));
+        Password p = database.get("Service1");
+        assertEquals("user1", p.getUsername());
+        assertEquals("changed", p.getPassword());
+        assertNull(database.get("Missing"));
+        
+        assertTrue(database.remove("Service1"));
+        assertFalse(database.remove("Service1"));
+        assertEquals(1, database.removeAll(List.of("Service2", "Missing")));
+        assertEquals(0, database.removeAll(List.of()));
+        
+        List<Password> list = database.readAll();
+        assertEquals(1, list.size());
+        assertEquals("Service3", list.get(0).getService());
+    }
+
+    /**
+     * Tests that service names are matched without regard to case.
+     */
+    @Test
+    public void testCaseInsensitiveLookup() {
+        database.put(new Password("Gmail", "user1", "pass1"));
+        assertTrue(database.contains("GMAIL"));
+        assertEquals("pass1", database.get("gmail").getPassword());
+        
+        database.put(new Password("GMAIL", "user2", "pass2"));
+        assertEquals(1, database.count());
+        assertEquals("GMAIL", database.get("Gmail").getService());
+        assertEquals("pass2", database.get("Gmail").getPassword());
+        
+        database.add(new Scanner(new ByteArrayInputStream("gmail\nuser3\npass3\n".getBytes())));
+        assertTrue(outContent.toString().contains("already exists"));
+        assertTrue(database.remove("gMaIl"));
+        assertEquals(0, database.count());
+    }
+
+    /**
+     * Tests that a master password change only rewraps the key in vault_meta.
+     */
+    @Test
+    public void testChangeMasterPassword() throws Exception {
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        try {
+            DatabasePasswordStorage first = openDatabase(url, TEST_MASTER_PASSWORD);
+            first.putAll(List.of(new Password("Service1", "user1", "pass1")));
+            byte[] username;
+            try (Connection conn = DriverManager.getConnection(url);
+                 ResultSet rs = conn.createStatement().executeQuery("SELECT username FROM passwords")) {
+                assertTrue(rs.next());
+                username = rs.getBytes(1);
+            }
+            
+            assertTrue(first.changeMasterPassword("new-master-password"));
+            first.put(new Password("Service2", "user2", "pass2"));
+            first.close();
+            
+            DatabasePasswordStorage reopened = openDatabase(url, "new-master-password");
+            assertEquals(2, reopened.readAll().size());
+            assertEquals("pass1", reopened.get("Service1").getPassword());
+            reopened.close();
+            try (Connection conn = DriverManager.getConnection(url);
+                 PreparedStatement select = conn.prepareStatement("SELECT COUNT(*) FROM passwords WHERE username = ?")) {
+                select.setBytes(1, username);
+                try (ResultSet rs = select.executeQuery()) {
+                    assertTrue(rs.next());
+                    assertEquals(1, rs.getInt(1));
+                }
+            }
+            
+            DatabasePasswordStorage old = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertFalse(old.changeMasterPassword("other-master-password"));
+            old.close();
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    /**
+     * Tests that the blind index key survives a rolled-back first write on a new database.
+     */
+    @Test
+    public void testIndexKeySurvivesRollback() throws Exception {
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        try {
+            DatabasePasswordStorage first = openDatabase(url, TEST_MASTER_PASSWORD);
+            try (Statement stmt = first.getConnection().createStatement()) {
+                stmt.execute("CREATE TRIGGER fail_insert BEFORE INSERT ON passwords "
+                        + "BEGIN SELECT RAISE(ABORT, 'forced failure'); END");
+            }
+            first.put(new Password("gmail", "user", "pass1"));
+            assertTrue(outContent.toString().contains("forced failure"));
+            
+            try (Statement stmt = first.getConnection().createStatement()) {
+                stmt.execute("DROP TRIGGER fail_insert");
+            }
+            first.put(new Password("dropbox", "user", "pass2"));
+            first.close();
+            
+            DatabasePasswordStorage reopened = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertEquals("pass2", reopened.get("dropbox").getPassword());
+            assertTrue(reopened.contains("DROPBOX"));
+            assertNull(reopened.get("gmail"));
+            reopened.close();
+        } finally {
+            dbFile.delete();
+            new File(dbFile.getPath() + "-wal").delete();
+            new File(dbFile.getPath() + "-shm").delete();
+        }
+    }
+
+    /**
+     * Tests that a key rotation re-encrypts every row and that other connections follow it.
+     */
+    @Test
+    public void testRotateKey() throws Exception {
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        try {
+            DatabasePasswordStorage first = openDatabase(url, TEST_MASTER_PASSWORD);
+            List<Password> list = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                list.add(new Password("Service" + i, "user" + i, "pass" + i));
+            }
+            first.putAll(list);
+            DatabasePasswordStorage other = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertEquals("pass1", other.get("Service1").getPassword());
+            
+            assertTrue(first.rotateKey(3));
+            try (Connection conn = DriverManager.getConnection(url);
+                 ResultSet rs = conn.createStatement().executeQuery("SELECT key_version FROM passwords")) {
+                while (rs.next()) {
+                    assertEquals(2, rs.getInt(1));
+                }
+            }
+            assertEquals("pass7", first.get("Service7").getPassword());
+            
+            // The other connection picks up the new key when it notices the change
+            other.generation();
+            other.put(new Password("Service10", "user10", "pass10"));
+            assertEquals(11, other.readAll().size());
+            assertEquals("pass10", first.get("Service10").getPassword());
+            
+            // Leave a rotation behind that stopped after Service5; resuming still covers every row
+            String header;
+            try (Connection conn = DriverManager.getConnection(url);
+                 ResultSet rs = conn.createStatement().executeQuery("SELECT value FROM vault_meta WHERE name = 'data_key'")) {
+                assertTrue(rs.next());
+                header = rs.getString(1);
+            }
+            KeyRing ring = VaultKey.parse(header, TEST_MASTER_PASSWORD);
+            Map<Integer, SessionKey> keys = new TreeMap<>(ring.keys());
+            keys.put(3, SessionKey.forDataKey(new byte[VaultKey.KEY_BYTES]));
+            try (Connection conn = DriverManager.getConnection(url);
+                 PreparedStatement update = conn.prepareStatement("UPDATE vault_meta SET value = ? WHERE name = 'data_key'")) {
+                update.setString(1, VaultKey.format(new KeyRing(keys, "Service5"), TEST_MASTER_PASSWORD));
+                update.executeUpdate();
+            }
+            first.generation();
+            assertTrue(first.rotateKey(2));
+            try (Connection conn = DriverManager.getConnection(url);
+                 ResultSet rs = conn.createStatement().executeQuery("SELECT key_version FROM passwords")) {
+                while (rs.next()) {
+                    assertEquals(3, rs.getInt(1));
+                }
+            }
+            try (Connection conn = DriverManager.getConnection(url);
+                 ResultSet rs = conn.createStatement().executeQuery("SELECT value FROM vault_meta WHERE name = 'data_key'")) {
+                assertTrue(rs.next());
+                assertTrue(rs.getString(1).startsWith("3:"));
+            }
+            first.close();
+            other.close();
+            
+            DatabasePasswordStorage wrong = openDatabase(url, "wrong-master-password");
+            assertFalse(wrong.rotateKey());
+            wrong.close();
+            DatabasePasswordStorage reopened = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertEquals("user3", reopened.get("Service3").getUsername());
+            reopened.close();
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    /**
+     * Tests that the chosen profile is applied to the connection the storage opens.
+     */
+    @Test
+    public void testProfileIsApplied() throws Exception {
+        File dbFile = File.createTempFile("profile", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        DatabasePasswordStorage durable = new DatabasePasswordStorage(TEST_MASTER_PASSWORD, SqliteProfile.DURABLE) {
+            @Override
+            protected String getDatabaseUrl() {
+                return url;
+            }
+        };
+        try (Statement stmt = durable.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA synchronous")) {
+            assertTrue(rs.next());
+            assertEquals(2, rs.getInt(1));
+            durable.put(new Password("gmail", "user", "pass"));
+        } finally {
+            durable.close();
+        }
+
+        // Another connection reads while a write transaction is open
+        DatabasePasswordStorage reader = openDatabase(url, TEST_MASTER_PASSWORD);
+        try (Connection writer = DriverManager.getConnection(url); Statement stmt = writer.createStatement()) {
+            stmt.execute("BEGIN IMMEDIATE");
+            stmt.execute("DELETE FROM passwords");
+            assertEquals("pass", reader.get("gmail").getPassword());
+            stmt.execute("ROLLBACK");
+        } finally {
+            reader.close();
+            dbFile.delete();
+            new File(dbFile.getPath() + "-wal").delete();
+            new File(dbFile.getPath() + "-shm").delete();
+        }
+    }
+
+    /**
+     * Tests that a batch size below one is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRotationBatchSize() {
+        database.rotateKey(0);
+    }
+
+    /**
+     * Opens a storage on the given database URL.
+     */
+    private static DatabasePasswordStorage openDatabase(String url, String masterPassword) {
+        return new DatabasePasswordStorage(masterPassword) {
+            @Override
+            protected String getDatabaseUrl() {
+                return url;
+            }
+        };
+    }
+
+    /**
+     * Tests that a row whose password cannot be decrypted is skipped with a warning.
+     * @throws Exception if the test database cannot be written
+     */
+    @Test
+    public void testDamagedPasswordIsSkipped() throws Exception {
+        database.writeAll(List.of(new Password("Service1", "user1", "pass1"),
+                new Password("Service2", "user2", "pass2")));
+        try (Statement stmt = database.getConnection().createStatement()) {
+            // A cut ciphertext is no longer a whole number of blocks
+            stmt.executeUpdate("UPDATE passwords SET password = substr(password, 1, 15) "
+                    + "WHERE rowid = (SELECT MIN(rowid) FROM passwords)");
+        }
+        
+        List<Password> list = database.readAll();
+        assertEquals(1, list.size());
+        assertTrue(outContent.toString().contains("Error decrypting entry"));
+        PasswordManager manager = new PasswordManager(TEST_MASTER_PASSWORD, database);
+        assertEquals(list.get(0).getPassword(), manager.getCredential(list.get(0).getService()));
+    }
+    
+    /**
+     * Tests counting and paging through the stored entries in a fixed order.
+     */
+    @Test
+    public void testCountAndReadPage() {
+        database.putAll(List.of(
+            new Password("Charlie", "user3", "pass3"),
+            new Password("Alpha", "user1", "pass1"),
+            new Password("Bravo", "user2", "pass2")
+        ));
+        
+        assertEquals(3, database.count());
+        List<Password> page = database.readPage(1, 5);
+        assertEquals(2, page.size());
+        Map<String, String> seen = new HashMap<>();
+        for (Password p : database.readPage(0, 1)) {
+            seen.put(p.getService(), p.getPassword());
+        }
+        for (Password p : page) {
+            seen.put(p.getService(), p.getPassword());
+        }
+        assertEquals(Map.of("Alpha", "pass1", "Bravo", "pass2", "Charlie", "pass3"), seen);
+        assertEquals(page.get(0).getService(), database.readPage(1, 1).get(0).getService());
+        assertTrue(database.readPage(3, 5).isEmpty());
+    }
+
+    /**
+     * Tests that service names are stored encrypted, as raw bytes, and found by their blind index.
+     */
+    @Test
+    public void testBlobColumnsAndBlindIndex() throws Exception {
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        try {
+            DatabasePasswordStorage storage = openDatabase(url, TEST_MASTER_PASSWORD);
+            storage.put(new Password("verysecretservice", "someuser", "somepassword"));
+            storage.close();
+            
+            try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+                try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                    assertEquals(DatabasePasswordStorage.SCHEMA_VERSION, rs.getInt(1));
+                }
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT typeof(service_hash), typeof(service), typeof(username), typeof(password) FROM passwords")) {
+                    assertTrue(rs.next());
+                    for (int i = 1; i <= 4; i++) {
+                        assertEquals("blob", rs.getString(i));
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery(
+                        "EXPLAIN QUERY PLAN SELECT 1 FROM passwords WHERE service_hash = x'00'")) {
+                    assertTrue(rs.next());
+                    assertTrue(rs.getString("detail").contains("USING COVERING INDEX"));
+                }
+            }
+            String content = new String(Files.readAllBytes(dbFile.toPath()), StandardCharsets.ISO_8859_1);
+            assertFalse(content.contains("verysecretservice"));
+            
+            DatabasePasswordStorage reopened = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertTrue(reopened.contains("verysecretservice"));
+            assertTrue(reopened.contains("VerySecretService"));
+            assertEquals("somepassword", reopened.get("verysecretservice").getPassword());
+            reopened.close();
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    /**
+     * Tests that a database in the original layout is converted when opened.
+     */
+    @Test
+    public void testOriginalLayoutIsConverted() throws Exception {
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        try {
+            try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE passwords (service TEXT PRIMARY KEY, username TEXT NOT NULL, password TEXT NOT NULL)");
+                try (PreparedStatement insert = conn.prepareStatement("INSERT INTO passwords VALUES(?, ?, ?)")) {
+                    for (int i = 0; i < 3; i++) {
+                        insert.setString(1, "Service" + i);
+                        insert.setString(2, EncryptionUtil.encrypt("user" + i, TEST_MASTER_PASSWORD));
+                        insert.setString(3, EncryptionUtil.encrypt("pass" + i, TEST_MASTER_PASSWORD));
+                        insert.executeUpdate();
+                    }
+                    insert.setString(1, "SERVICE2");
+                    insert.setString(2, EncryptionUtil.encrypt("user2", TEST_MASTER_PASSWORD));
+                    insert.setString(3, EncryptionUtil.encrypt("last", TEST_MASTER_PASSWORD));
+                    insert.executeUpdate();
+                }
+            }
+            
+            DatabasePasswordStorage wrong = openDatabase(url, "wrong-master-password");
+            assertTrue(wrong.readAll().isEmpty());
+            assertTrue(outContent.toString().contains("does not open this vault"));
+            wrong.close();
+            
+            DatabasePasswordStorage storage = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertEquals(3, storage.count());
+            assertEquals("pass1", storage.get("Service1").getPassword());
+            assertEquals("last", storage.get("Service2").getPassword());
+            assertTrue(outContent.toString().contains("differs only in case"));
+            assertEquals("Service0", storage.readAll().get(0).getService());
+            storage.close();
+            try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE name = 'passwords_v0'")) {
+                assertFalse(rs.next());
+            }
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    /**
+     * Tests that a case-sensitive blind index is rebuilt and case variants are merged.
+     */
+    @Test
+    public void testExactIndexIsConverted() throws Exception {
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        try {
+            DatabasePasswordStorage storage = openDatabase(url, TEST_MASTER_PASSWORD);
+            storage.putAll(List.of(new Password("Gmail", "user1", "pass1"), new Password("Dropbox", "user2", "pass2")));
+            storage.close();
+            // Hashes no lookup can match, like those of exact names, let a case variant in
+            try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+                stmt.execute("UPDATE passwords SET service_hash = randomblob(16)");
+            }
+            storage = openDatabase(url, TEST_MASTER_PASSWORD);
+            storage.put(new Password("GMAIL", "user3", "pass3"));
+            storage.close();
+            try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+                stmt.execute("UPDATE passwords SET service_hash = randomblob(16)");
+                downgrade(stmt, 2);
+            }
+            
+            DatabasePasswordStorage wrong = openDatabase(url, "wrong-master-password");
+            assertTrue(wrong.readAll().isEmpty());
+            assertTrue(outContent.toString().contains("does not open this vault"));
+            wrong.close();
+            
+            DatabasePasswordStorage converted = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertEquals(2, converted.count());
+            assertEquals("pass3", converted.get("gmail").getPassword());
+            assertEquals("pass2", converted.get("DROPBOX").getPassword());
+            assertTrue(outContent.toString().contains("differs from it only in case"));
+            converted.close();
+            try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                assertEquals(DatabasePasswordStorage.SCHEMA_VERSION, rs.getInt(1));
+            }
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    /**
+     * Tests keyset pages in blind index order and streaming across several pages.
+     */
+    @Test
+    public void testReadAfterAndStream() {
+        List<Password> list = new ArrayList<>();
+        for (int i = 0; i < KeysetCursor.PAGE_SIZE + 50; i++) {
+            list.add(new Password("Service" + i, "user" + i, "pass" + i));
+        }
+        database.putAll(list);
+        
+        List<Password> first = database.readAfter(null, 10);
+        assertEquals(10, first.size());
+        List<Password> next = database.readAfter(first.get(9).getService().toUpperCase(), 5);
+        assertEquals(database.readPage(10, 5).toString(), next.toString());
+        assertTrue(database.readAfter(null, 0).isEmpty());
+        
+        Set<String> services = new HashSet<>();
+        List<String> order = new ArrayList<>();
+        try (Stream<Password> entries = database.stream()) {
+            entries.forEach(p -> {
+                services.add(p.getService());
+                order.add(p.getService());
+            });
+        }
+        assertEquals(list.size(), services.size());
+        assertEquals(first.get(0).getService(), order.get(0));
+        String last = order.get(order.size() - 1);
+        assertTrue(database.readAfter(last, 10).isEmpty());
+    }
+
+    /**
+     * Turns a database back into layout version 2 or 3, which have no search index.
+     */
+    private static void downgrade(Statement stmt, int version) throws SQLException {
+        stmt.execute("DROP TABLE service_search");
+        for (String trigger : new String[] { "insert", "delete", "update" }) {
+            stmt.execute("DROP TRIGGER passwords_search_" + trigger);
+        }
+        stmt.execute("ALTER TABLE passwords DROP COLUMN service_grams");
+        stmt.execute("PRAGMA user_version = " + version);
+    }
+
+    /**
+     * Tests finding entries by a fragment of the service name, best matches first.
+     */
+    @Test
+    public void testSearch() throws Exception {
+        database.putAll(List.of(new Password("GitHub", "u1", "p1"), new Password("gitlab-enterprise", "u2", "p2"),
+                new Password("gist", "u3", "p3"), new Password("My Bank", "u4", "p4"),
+                new Password("bank", "u5", "p5"), new Password("abcxbcd", "u6", "p6")));
+        
+        List<Password> hits = database.search("GIT", 10);
+        assertEquals(2, hits.size());
+        assertEquals("GitHub", hits.get(0).getService());
+        assertEquals("gitlab-enterprise", hits.get(1).getService());
+        assertEquals("bank", database.search("bank", 10).get(0).getService());
+        assertEquals(1, database.search("ank", 1).size());
+        assertEquals(3, database.search("gi", 10).size());
+        assertEquals(6, database.search("", 10).size());
+        assertTrue(database.search("tig", 10).isEmpty());
+        assertTrue(database.search("git", 0).isEmpty());
+        // Both runs of the query occur in "abcxbcd", but not next to each other
+        assertTrue(database.search("abcd", 10).isEmpty());
+        assertEquals("p6", database.search("xbc", 10).get(0).getPassword());
+        
+        try (Statement stmt = database.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT group_concat(service_grams, ' ') FROM passwords")) {
+            String tokens = rs.getString(1);
+            assertTrue(tokens.matches("[0-9a-f ]+"));
+            assertFalse(tokens.contains("git"));
+        }
+    }
+
+    /**
+     * Tests that the search index follows inserts, deletes, rewrites and key rotation.
+     */
+    @Test
+    public void testSearchFollowsChanges() {
+        database.put(new Password("GitHub", "u1", "p1"));
+        database.add(new Scanner(new ByteArrayInputStream("gitlab\nu2\np2\n".getBytes())));
+        assertEquals(2, database.search("git", 10).size());
+        
+        assertTrue(database.remove("github"));
+        assertEquals("gitlab", database.search("git", 10).get(0).getService());
+        database.put(new Password("GITLAB", "u3", "p3"));
+        assertEquals(1, database.search("itl", 10).size());
+        
+        List<Password> list = database.readAll();
+        list.add(new Password("bitbucket", "u4", "p4"));
+        database.writeAll(list);
+        assertTrue(database.rotateKey());
+        assertEquals("p4", database.search("bucket", 10).get(0).getPassword());
+        assertEquals("GITLAB", database.search("lab", 10).get(0).getService());
+    }
+
+    /**
+     * Tests that a database without the search index gets one when opened.
+     */
+    @Test
+    public void testSearchIndexIsAdded() throws Exception {
+        File dbFile = File.createTempFile("passwords", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        try {
+            DatabasePasswordStorage storage = openDatabase(url, TEST_MASTER_PASSWORD);
+            storage.putAll(List.of(new Password("GitHub", "u1", "p1"), new Password("Dropbox", "u2", "p2")));
+            storage.close();
+            try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+                downgrade(stmt, 3);
+            }
+            
+            DatabasePasswordStorage converted = openDatabase(url, TEST_MASTER_PASSWORD);
+            assertEquals("p1", converted.search("hub", 10).get(0).getPassword());
+            assertEquals("p2", converted.get("dropbox").getPassword());
+            converted.put(new Password("gitlab", "u3", "p3"));
+            assertEquals(2, converted.search("git", 10).size());
+            converted.close();
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    /**
+     * Tests that concurrent writers share transactions through the writer thread.
+     */
+    @Test
+    public void testConcurrentWritesAreCommittedInGroups() throws Exception {
+        database.setGroupCommit(64, 2_000);
+        int threads = 8;
+        int writes = 40;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < writes; i++) {
+                    database.put(new Password("service" + thread + "-" + i, "user", "pass" + i));
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        
+        assertEquals(threads * writes, database.count());
+        assertEquals("pass7", database.get("SERVICE3-7").getPassword());
+        assertFalse(outContent.toString().contains("Database error"));
+    }
+
+    /**
+     * Tests the asynchronous put and remove calls.
+     */
+    @Test
+    public void testAsyncWrites() {
+        Password gmail = new Password("gmail", "user", "pass");
+        CompletableFuture<Void> put = database.putAsync(gmail);
+        CompletableFuture<Void> putAll = database.putAllAsync(List.of(new Password("dropbox", "u", "p"),
+                new Password("github", "u", "p")));
+        CompletableFuture.allOf(put, putAll).join();
+        assertEquals(3, database.count());
+        assertEquals("pass", database.get("Gmail").getPassword());
+        
+        assertTrue(database.removeAsync("GMAIL").join());
+        assertFalse(database.removeAsync("gmail").join());
+        assertEquals(2, database.count());
+        
+        // Closing waits for queued writes
+        CompletableFuture<Boolean> queued = database.removeAsync("dropbox");
+        database.close();
+        assertTrue(queued.isDone());
+        assertTrue(queued.join());
+    }
 }
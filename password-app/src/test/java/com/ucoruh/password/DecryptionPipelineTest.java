@@ -0,0 +1,132 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for DecryptionPipeline.
+ *
+ * These tests verify ordering, failure reporting, and the sequential fallback.
+ */
+public class DecryptionPipelineTest {
+
+    /**
+     * @brief Returns a source over the given items.
+     */
+    private static <R> DecryptionPipeline.Source<R, RuntimeException> sourceOf(List<R> items) {
+        Iterator<R> it = items.iterator();
+        return () -> it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @brief Creates the numbers 0 to count - 1.
+     */
+    private static List<Integer> numbers(int count) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    /**
+     * @brief Tests that parallel decoding keeps the read order.
+     */
+    @Test
+    public void testParallelKeepsOrder() {
+        DecryptionPipeline pipeline = new DecryptionPipeline(4, 7, 10);
+        Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+
+        List<String> result = pipeline.run(sourceOf(numbers(1000)), n -> {
+            threads.add(Thread.currentThread().getName());
+            return "v" + n;
+        }, (n, e) -> fail("Unexpected failure"));
+
+        assertEquals(1000, result.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("v" + i, result.get(i));
+        }
+        assertFalse(threads.contains(Thread.currentThread().getName()));
+    }
+
+    /**
+     * @brief Tests that failed records are reported in order and left out.
+     */
+    @Test
+    public void testFailuresAreReportedInOrder() {
+        DecryptionPipeline pipeline = new DecryptionPipeline(3, 5, 8);
+        List<Integer> failed = new ArrayList<>();
+
+        List<Integer> result = pipeline.run(sourceOf(numbers(100)), n -> {
+            if (n % 10 == 3) {
+                throw new IllegalStateException("bad record " + n);
+            }
+            return n;
+        }, (n, e) -> {
+            assertEquals("bad record " + n, e.getMessage());
+            failed.add(n);
+        });
+
+        assertEquals(90, result.size());
+        assertEquals(Arrays.asList(3, 13, 23, 33, 43, 53, 63, 73, 83, 93), failed);
+        assertFalse(result.contains(13));
+        assertEquals(Integer.valueOf(99), result.get(89));
+    }
+
+    /**
+     * @brief Tests that small sources and sequential pipelines stay on the calling thread.
+     */
+    @Test
+    public void testSequentialFallback() {
+        String caller = Thread.currentThread().getName();
+        DecryptionPipeline.Decoder<Integer, String> decoder = n -> {
+            assertEquals(caller, Thread.currentThread().getName());
+            return Integer.toString(n);
+        };
+
+        List<String> small = new DecryptionPipeline(4, 10, 50).run(sourceOf(numbers(49)), decoder,
+                (n, e) -> fail("Unexpected failure"));
+        assertEquals(49, small.size());
+
+        DecryptionPipeline sequential = DecryptionPipeline.sequential();
+        assertEquals(1, sequential.getParallelism());
+        List<String> large = sequential.run(sourceOf(numbers(5000)), decoder, (n, e) -> fail("Unexpected failure"));
+        assertEquals(5000, large.size());
+        assertEquals("4999", large.get(4999));
+    }
+
+    /**
+     * @brief Tests that an empty source gives an empty result.
+     */
+    @Test
+    public void testEmptySource() {
+        assertTrue(DecryptionPipeline.defaults().run(sourceOf(new ArrayList<Integer>()), n -> n,
+                (n, e) -> fail("Unexpected failure")).isEmpty());
+        assertSame(DecryptionPipeline.defaults(), DecryptionPipeline.defaults());
+    }
+
+    /**
+     * @brief Tests that a failing source stops the pipeline with its exception.
+     */
+    @Test(expected = IOException.class)
+    public void testSourceFailurePropagates() throws IOException {
+        int[] count = { 0 };
+        new DecryptionPipeline(2, 4, 4).run(() -> {
+            if (count[0]++ == 20) {
+                throw new IOException("read failed");
+            }
+            return count[0];
+        }, n -> n, (n, e) -> fail("Unexpected failure"));
+    }
+
+    /**
+     * @brief Tests that invalid settings are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSettings() {
+        new DecryptionPipeline(0, 10, 10);
+    }
+}
@@ -3,6 +3,7 @@ package com.ucoruh.password;
 import org.junit.*;
 import java.io.*;
 import java.util.*;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -25,6 +26,7 @@ public class FilePasswordStorageTest {
         storage = new FilePasswordStorage("test-master-password");
         File f = new File(TEST_FILE);
         if (f.exists()) f.delete();
+        new File(TEST_FILE + ".key").delete();
         System.setOut(new PrintStream(outContent));
     }
 
@@ -32,6 +34,7 @@ public class FilePasswordStorageTest {
     public void tearDown() {
         File f = new File(TEST_FILE);
         if (f.exists()) f.delete();
+        new File(TEST_FILE + ".key").delete();
         System.setOut(originalOut);
     }
 
@@ -196,4 +199,192 @@ public class FilePasswordStorageTest {
         
         mockFile.setWritable(true);  // Restore write permission for cleanup
     }
+    
+    /**
+     * Tests updating and deleting when the file holds no records.
+     */
+    @Test
+    public void testUpdateAndDeleteWithNoRecords() {
+        storage.update(new Scanner(new ByteArrayInputStream("gmail\n".getBytes())));
+        storage.delete(new Scanner(new ByteArrayInputStream("gmail\n".getBytes())));
+        
+        String output = outContent.toString();
+        assertFalse(output.contains("Service to"));
+        assertTrue(output.contains("No records found"));
+    }
+    
+    /**
+     * Tests a storage on a custom file with a low compaction threshold.
+     */
+    @Test
+    public void testCustomFileWithCompaction() throws IOException {
+        File custom = File.createTempFile("passwords", ".txt");
+        custom.delete();
+        try (FilePasswordStorage customStorage = new FilePasswordStorage("test-master-password", custom.getPath(), 2)) {
+            customStorage.add(new Scanner(new ByteArrayInputStream("gmail\nuser\npass0\n".getBytes())));
+            for (int i = 1; i < 4; i++) {
+                String input = "gmail\n\npass" + i + "\n";
+                customStorage.update(new Scanner(new ByteArrayInputStream(input.getBytes())));
+            }
+            customStorage.close();
+            
+            List<Password> list = customStorage.readAll();
+            assertEquals(1, list.size());
+            assertEquals("pass3", list.get(0).getPassword());
+        } finally {
+            custom.delete();
+        }
+    }
+
+    /**
+     * Tests reading back a larger vault with a parallel decryption pipeline.
+     */
+    @Test
+    public void testReadAllWithParallelPipeline() {
+        List<Password> list = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            list.add(new Password("service" + i, "user" + i, "pass" + i));
+        }
+        storage.writeAll(list);
+        
+        FilePasswordStorage reader = new FilePasswordStorage("test-master-password");
+        reader.setDecryptionPipeline(new DecryptionPipeline(4, 8, 16));
+        List<Password> loaded = reader.readAll();
+        assertEquals(200, loaded.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals("pass" + i, loaded.get(i).getPassword());
+        }
+    }
+
+    /**
+     * Tests the keyed get, put, contains and remove methods.
+     */
+    @Test
+    public void testKeyedMethods() {
+        storage.put(new Password("gmail", "user", "pass"));
+        storage.putAll(List.of(new Password("dropbox", "u2", "p2"), new Password("github", "u3", "p3")));
+        
+        assertTrue(storage.contains("GMAIL"));
+        assertEquals("pass", storage.get("Gmail").getPassword());
+        assertNull(storage.get("missing"));
+        
+        assertTrue(storage.remove("gmail"));
+        assertFalse(storage.remove("gmail"));
+        assertEquals(1, storage.removeAll(List.of("dropbox", "missing")));
+        
+        List<Password> list = new FilePasswordStorage("test-master-password").readAll();
+        assertEquals(1, list.size());
+        assertEquals("github", list.get(0).getService());
+    }
+
+    /**
+     * Tests that the keyed methods report errors when the vault path cannot be used.
+     */
+    @Test
+    public void testKeyedMethodsWithUnreadableVault() throws IOException {
+        File dir = File.createTempFile("passwords", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            FilePasswordStorage broken = new FilePasswordStorage("test-master-password", dir.getPath(), 10);
+            assertNull(broken.get("gmail"));
+            assertFalse(broken.contains("gmail"));
+            broken.put(new Password("gmail", "user", "pass"));
+            broken.putAll(List.of(new Password("dropbox", "user", "pass")));
+            assertFalse(broken.remove("gmail"));
+            assertEquals(0, broken.removeAll(List.of("gmail")));
+            assertTrue(broken.readAll().isEmpty());
+            assertEquals(0, broken.count());
+            assertTrue(broken.readPage(0, 10).isEmpty());
+            assertTrue(broken.readAfter(null, 10).isEmpty());
+            broken.writeAll(new ArrayList<>());
+            assertFalse(broken.changeMasterPassword("new-master-password"));
+            assertFalse(broken.rotateKey());
+            
+            String output = outContent.toString();
+            assertTrue(output.contains("Error reading password file"));
+            assertTrue(output.contains("Error writing to password file"));
+            assertTrue(output.contains("Error writing vault key"));
+            assertTrue(output.contains("Error rotating vault key"));
+        } finally {
+            dir.delete();
+        }
+    }
+
+    /**
+     * Tests that the vault opens with the new master password after a change.
+     */
+    @Test
+    public void testChangeMasterPassword() {
+        storage.put(new Password("gmail", "user", "pass"));
+        
+        assertTrue(storage.changeMasterPassword("new-master-password"));
+        assertEquals("pass", new FilePasswordStorage("new-master-password").get("gmail").getPassword());
+        assertNull(new FilePasswordStorage("test-master-password").get("gmail"));
+    }
+
+    /**
+     * Tests that the vault stays readable after its key is rotated.
+     */
+    @Test
+    public void testRotateKey() {
+        storage.put(new Password("gmail", "user", "pass"));
+        
+        assertTrue(storage.rotateKey());
+        assertEquals("pass", storage.get("gmail").getPassword());
+        assertEquals("user", new FilePasswordStorage("test-master-password").get("gmail").getUsername());
+    }
+
+    /**
+     * Tests counting and paging through the stored entries.
+     */
+    @Test
+    public void testCountAndReadPage() {
+        for (int i = 0; i < 5; i++) {
+            storage.put(new Password("service" + i, "user" + i, "pass" + i));
+        }
+        
+        assertEquals(5, storage.count());
+        List<Password> page = storage.readPage(3, 10);
+        assertEquals(2, page.size());
+        assertEquals("service3", page.get(0).getService());
+        assertEquals("pass4", page.get(1).getPassword());
+    }
+
+    /**
+     * Tests that a sealed password file can be written and read back.
+     */
+    @Test
+    public void testSealedStorage() {
+        FilePasswordStorage sealed = new FilePasswordStorage("test-master-password", TEST_FILE,
+                LogStructuredFileEngine.DEFAULT_COMPACTION_THRESHOLD, true);
+        sealed.add(new Scanner(new ByteArrayInputStream("gmail\nuser\npass\n".getBytes())));
+
+        Password p = new FilePasswordStorage("test-master-password").get("gmail");
+        assertEquals("pass", p.getPassword());
+    }
+
+    /**
+     * Tests keyset pages and streaming in the order of the service names.
+     */
+    @Test
+    public void testReadAfterAndStream() {
+        for (int i = 9; i >= 0; i--) {
+            storage.put(new Password("service" + i, "user" + i, "pass" + i));
+        }
+        
+        List<Password> page = storage.readAfter("Service4", 3);
+        assertEquals(3, page.size());
+        assertEquals("service5", page.get(0).getService());
+        try (Stream<Password> entries = storage.stream()) {
+            assertEquals(10, entries.count());
+        }
+        try (Stream<Password> entries = storage.stream(Comparator.comparing(Password::getPassword).reversed())) {
+            assertEquals("pass9", entries.findFirst().get().getPassword());
+        }
+        
+        storage.view();
+        String output = outContent.toString();
+        assertTrue(output.indexOf("1. Service: service0") < output.indexOf("10. Service: service9"));
+    }
 }
@@ -0,0 +1,184 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for GroupCommitWriter.
+ *
+ * These tests verify that concurrent writes are committed in bounded groups, that a
+ * failing write only fails its own future, and flushing.
+ */
+public class GroupCommitWriterTest {
+
+    /**
+     * @brief Committer that counts transactions and the writes in each.
+     */
+    private static class CountingCommitter implements GroupCommitWriter.Committer {
+        final List<Integer> groups = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger applied = new AtomicInteger();
+        final long commitMillis;
+
+        CountingCommitter(long commitMillis) {
+            this.commitMillis = commitMillis;
+        }
+
+        @Override
+        public void commit(GroupCommitWriter.Work work) throws Exception {
+            int before = applied.get();
+            work.run();
+            // Stands in for the sync of a commit
+            Thread.sleep(commitMillis);
+            groups.add(applied.get() - before);
+        }
+    }
+
+    /**
+     * @brief Tests that writes of many threads share transactions of at most batchSize writes.
+     */
+    @Test
+    public void testConcurrentWritesAreGrouped() throws Exception {
+        CountingCommitter committer = new CountingCommitter(2);
+        GroupCommitWriter writer = new GroupCommitWriter("test-writer", 16, 500, committer);
+        int threads = 8;
+        int writes = 50;
+        List<CompletableFuture<Integer>> futures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < writes; i++) {
+                    int value = i;
+                    futures.add(writer.submit(() -> {
+                        committer.applied.incrementAndGet();
+                        return value;
+                    }));
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (CompletableFuture<Integer> future : futures) {
+            assertNotNull(future.join());
+        }
+
+        assertEquals(threads * writes, committer.applied.get());
+        assertTrue("Writes should share transactions", committer.groups.size() < threads * writes / 4);
+        for (int size : committer.groups) {
+            assertTrue(size <= writer.batchSize());
+        }
+    }
+
+    /**
+     * @brief Tests that a failing write is retried alone and fails only its own future.
+     */
+    @Test
+    public void testFailingWriteFailsOnlyItself() {
+        CountingCommitter committer = new CountingCommitter(0);
+        // A long budget puts all three writes in one group
+        GroupCommitWriter writer = new GroupCommitWriter("test-writer", 3, 5_000_000, committer);
+        CompletableFuture<String> first = writer.submit(() -> "first");
+        CompletableFuture<String> failing = writer.submit(() -> {
+            throw new IllegalStateException("broken write");
+        });
+        CompletableFuture<String> last = writer.submit(() -> "last");
+
+        assertEquals("first", first.join());
+        assertEquals("last", last.join());
+        try {
+            failing.join();
+            fail("The failing write should fail its future");
+        } catch (CompletionException e) {
+            assertEquals("broken write", e.getCause().getMessage());
+        }
+        // The two writes that succeeded, each in a transaction of its own
+        assertEquals(2, committer.groups.size());
+    }
+
+    /**
+     * @brief Tests that an Error on the writer thread fails the pending writes and a new thread takes over.
+     */
+    @Test
+    public void testErrorFailsPendingWritesAndWriterRestarts() throws Exception {
+        CountingCommitter committer = new CountingCommitter(0);
+        GroupCommitWriter writer = new GroupCommitWriter("test-writer", 4, 0, committer);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> broken = writer.submit(() -> {
+            started.countDown();
+            release.await();
+            throw new AssertionError("broken writer");
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = writer.submit(() -> "queued");
+        release.countDown();
+
+        for (CompletableFuture<String> future : List.of(broken, queued)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("A write pending on the dead writer thread should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("broken writer"));
+            }
+        }
+        assertEquals("after", writer.submit(() -> "after").get(5, TimeUnit.SECONDS));
+        writer.flush();
+    }
+
+    /**
+     * @brief Tests that flush waits for queued writes without a transaction of its own.
+     */
+    @Test
+    public void testFlush() {
+        CountingCommitter committer = new CountingCommitter(20);
+        GroupCommitWriter writer = new GroupCommitWriter("test-writer", 4, 0, committer);
+        writer.flush();
+        assertTrue(committer.groups.isEmpty());
+        assertFalse(writer.isWriterThread());
+
+        CompletableFuture<Boolean> onWriter = writer.submit(writer::isWriterThread);
+        writer.flush();
+        assertTrue(onWriter.isDone());
+        assertTrue(onWriter.join());
+        int commits = committer.groups.size();
+        writer.flush();
+        assertEquals(commits, committer.groups.size());
+    }
+
+    /**
+     * @brief Tests that invalid settings are rejected.
+     */
+    @Test
+    public void testInvalidSettings() {
+        try {
+            new GroupCommitWriter("test-writer", 0, 0, work -> work.run());
+            fail("A batch size of 0 should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new GroupCommitWriter("test-writer", 1, -1, work -> work.run());
+            fail("A negative latency budget should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package com.ucoruh.password;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Scanner;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
@@ -49,4 +56,81 @@ public class InterfacePasswordStorageTest {
         Method writeAllMethod = clazz.getMethod("writeAll", List.class);
         assertEquals("Return type of writeAll() must be void", void.class, writeAllMethod.getReturnType());
     }
+
+    /**
+     * @brief Minimal storage that only implements the required methods.
+     */
+    private static class ListStorage implements InterfacePasswordStorage {
+        private List<Password> entries = new ArrayList<>();
+        private int writes;
+
+        public void add(Scanner scanner) { }
+        public void view() { }
+        public void update(Scanner scanner) { }
+        public void delete(Scanner scanner) { }
+        public List<Password> readAll() { return new ArrayList<>(entries); }
+        public void writeAll(List<Password> list) { entries = new ArrayList<>(list); writes++; }
+    }
+
+    /**
+     * @brief Tests the default keyed methods built on readAll and writeAll.
+     */
+    @Test
+    public void testDefaultKeyedMethods() {
+        ListStorage storage = new ListStorage();
+        storage.put(new Password("Gmail", "u1", "p1"));
+        storage.putAll(List.of(new Password("gmail", "u2", "p2"), new Password("Dropbox", "u3", "p3")));
+
+        assertEquals(2, storage.readAll().size());
+        assertEquals("p2", storage.get("GMAIL").getPassword());
+        assertTrue(storage.contains("dropbox"));
+        assertNull(storage.get("missing"));
+
+        assertEquals(0, storage.removeAll(List.of("missing")));
+        assertEquals(2, storage.writes);
+        assertTrue(storage.remove("DROPBOX"));
+        assertFalse(storage.contains("Dropbox"));
+        assertEquals(InterfacePasswordStorage.UNKNOWN_GENERATION, storage.generation());
+    }
+
+    /**
+     * @brief Tests that the default count and readPage slice readAll().
+     */
+    @Test
+    public void testDefaultCountAndReadPage() {
+        ListStorage storage = new ListStorage();
+        storage.putAll(List.of(new Password("a", "u", "p"), new Password("b", "u", "p"), new Password("c", "u", "p")));
+
+        assertEquals(3, storage.count());
+        assertEquals("b", storage.readPage(1, 1).get(0).getService());
+        assertEquals(2, storage.readPage(1, 10).size());
+        assertTrue(storage.readPage(5, 10).isEmpty());
+        assertTrue(storage.readPage(-1, -1).isEmpty());
+    }
+
+    /**
+     * @brief Tests that the default readAfter and stream sort readAll() by service.
+     */
+    @Test
+    public void testDefaultReadAfterAndStream() {
+        ListStorage storage = new ListStorage();
+        storage.putAll(List.of(new Password("c", "u", "p"), new Password("A", "u", "p"), new Password("b", "u", "p")));
+
+        assertEquals("A", storage.readAfter(null, 1).get(0).getService());
+        List<Password> page = storage.readAfter("a", 5);
+        assertEquals(2, page.size());
+        assertEquals("c", page.get(1).getService());
+        assertTrue(storage.readAfter("c", 5).isEmpty());
+        assertEquals("c", storage.readAll().get(0).getService());
+
+        try (Stream<Password> entries = storage.stream()) {
+            assertEquals(List.of("A", "b", "c"), entries.map(Password::getService).collect(Collectors.toList()));
+        }
+        try (Stream<Password> entries = storage.stream(Comparator.comparing(Password::getService))) {
+            assertEquals("A", entries.findFirst().get().getService());
+        }
+        try (Stream<Password> entries = storage.stream(null)) {
+            assertEquals(3, entries.count());
+        }
+    }
 }
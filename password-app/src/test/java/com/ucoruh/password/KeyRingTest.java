@@ -0,0 +1,107 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for KeyRing.
+ *
+ * These tests verify that stored values are tagged with their key version and
+ * decrypted with the key of that version.
+ */
+public class KeyRingTest {
+
+    private static final SessionKey FIRST = SessionKey.forDataKey(new byte[32]);
+    private static final SessionKey SECOND = SessionKey.forDataKey(new byte[] {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+
+    /**
+     * @brief Tests that version 1 values carry no tag and later versions do.
+     */
+    @Test
+    public void testTags() throws Exception {
+        KeyRing first = KeyRing.of(FIRST);
+        String untagged = first.encrypt("secret");
+        assertEquals(FIRST.encrypt("secret"), untagged);
+        assertEquals(KeyRing.FIRST_VERSION, KeyRing.version(untagged));
+        assertEquals(untagged, KeyRing.body(untagged));
+        assertTrue(first.isCurrent(untagged));
+
+        KeyRing both = new KeyRing(Map.of(1, FIRST, 2, SECOND), null);
+        String tagged = both.encrypt("secret");
+        assertEquals("2:" + SECOND.encrypt("secret"), tagged);
+        assertEquals(2, KeyRing.version(tagged));
+        assertEquals(SECOND.encrypt("secret"), KeyRing.body(tagged));
+        assertFalse(both.isCurrent(untagged));
+        assertSame(SECOND, both.currentKey());
+        assertSame(FIRST, both.keyFor(untagged));
+        assertEquals(-1, KeyRing.version("x:abc"));
+    }
+
+    /**
+     * @brief Tests that every version of a rotating ring decrypts.
+     */
+    @Test
+    public void testDecryptsEveryVersion() throws Exception {
+        KeyRing both = new KeyRing(Map.of(1, FIRST, 2, SECOND), null);
+        assertTrue(both.isRotating());
+        assertEquals("one", both.decrypt(FIRST.encrypt("one")));
+        assertEquals("two", both.decrypt(both.encrypt("two")));
+        assertTrue(both.decryptsToText(FIRST.encrypt("one")));
+        assertFalse(both.decryptsToText("3:" + SECOND.encrypt("three")));
+        assertFalse(KeyRing.of(SECOND).decryptsToText(FIRST.encrypt("one")));
+        assertFalse(KeyRing.of(FIRST).isRotating());
+
+        KeyRing checkpointed = both.withCheckpoint("gmail");
+        assertEquals("gmail", checkpointed.checkpoint());
+        assertNull(both.checkpoint());
+    }
+
+    /**
+     * @brief Tests that wrong keys are not taken for the right one by a valid padding.
+     */
+    @Test
+    public void testWrongKeysDoNotDecryptToText() throws Exception {
+        String value = FIRST.encrypt("gmail,user,pass");
+        byte[] bytes = new byte[16];
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < 2000; i++) {
+            random.nextBytes(bytes);
+            assertFalse(KeyRing.of(SessionKey.forDataKey(bytes.clone())).decryptsToText(value));
+        }
+        String binary = java.util.Base64.getEncoder().encodeToString(FIRST.encrypt(new byte[] { 1, 2, 3 }));
+        assertFalse(KeyRing.of(FIRST).decryptsToText(binary));
+    }
+
+    /**
+     * @brief Tests that only rings marked as coming from a checked header are verified.
+     */
+    @Test
+    public void testVerified() {
+        KeyRing ring = new KeyRing(Map.of(1, FIRST, 2, SECOND), null);
+        assertFalse(ring.isVerified());
+        assertFalse(KeyRing.of(FIRST).isVerified());
+        assertTrue(ring.verified().isVerified());
+        assertTrue(ring.verified().withCheckpoint("gmail").isVerified());
+    }
+
+    /**
+     * @brief Tests that a value of an unknown version is rejected.
+     */
+    @Test(expected = GeneralSecurityException.class)
+    public void testUnknownVersion() throws Exception {
+        KeyRing.of(FIRST).decrypt("5:" + FIRST.encrypt("secret"));
+    }
+
+    /**
+     * @brief Tests that a ring needs a key.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyRing() {
+        new KeyRing(Map.of(), null);
+    }
+}
@@ -0,0 +1,117 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for KeysetCursor.
+ *
+ * These tests verify that the cursor reads every entry once, one page at a time, and
+ * stops after a short page.
+ */
+public class KeysetCursorTest {
+
+    /**
+     * @brief Storage that counts the pages read from it.
+     */
+    private static class PagedStorage implements InterfacePasswordStorage {
+        private final List<Password> entries = new ArrayList<>();
+        private int pages;
+
+        PagedStorage(int size) {
+            for (int i = 0; i < size; i++) {
+                entries.add(new Password(String.format("service%03d", i), "user", "pass" + i));
+            }
+        }
+
+        public void add(Scanner scanner) { }
+        public void view() { }
+        public void update(Scanner scanner) { }
+        public void delete(Scanner scanner) { }
+        public List<Password> readAll() { return new ArrayList<>(entries); }
+        public void writeAll(List<Password> list) { }
+
+        @Override
+        public List<Password> readAfter(String after, int limit) {
+            pages++;
+            return InterfacePasswordStorage.super.readAfter(after, limit);
+        }
+    }
+
+    /**
+     * @brief Tests that all entries are read in pages, in key order.
+     */
+    @Test
+    public void testReadsAllPages() {
+        PagedStorage storage = new PagedStorage(25);
+        Iterator<Password> cursor = new KeysetCursor(storage, 10);
+        List<String> services = new ArrayList<>();
+        while (cursor.hasNext()) {
+            services.add(cursor.next().getService());
+        }
+
+        assertEquals(25, services.size());
+        assertEquals("service000", services.get(0));
+        assertEquals("service024", services.get(24));
+        assertEquals(3, storage.pages);
+        assertFalse(cursor.hasNext());
+        assertEquals(3, storage.pages);
+    }
+
+    /**
+     * @brief Tests that a vault that fills its last page ends with an empty page.
+     */
+    @Test
+    public void testFullLastPage() {
+        PagedStorage storage = new PagedStorage(20);
+        Iterator<Password> cursor = new KeysetCursor(storage, 10);
+        int count = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            count++;
+        }
+        assertEquals(20, count);
+        assertEquals(3, storage.pages);
+    }
+
+    /**
+     * @brief Tests the stream over an empty storage and in default pages.
+     */
+    @Test
+    public void testStream() {
+        assertEquals(0, KeysetCursor.stream(new PagedStorage(0)).count());
+        PagedStorage storage = new PagedStorage(KeysetCursor.PAGE_SIZE + 1);
+        try (Stream<Password> entries = KeysetCursor.stream(storage)) {
+            List<String> services = entries.map(Password::getService).collect(Collectors.toList());
+            assertEquals(KeysetCursor.PAGE_SIZE + 1, services.size());
+        }
+        assertEquals(2, storage.pages);
+    }
+
+    /**
+     * @brief Tests that next() past the end and a page size below one are rejected.
+     */
+    @Test
+    public void testInvalidUse() {
+        Iterator<Password> cursor = new KeysetCursor(new PagedStorage(0), 5);
+        try {
+            cursor.next();
+            fail("next() past the end should throw");
+        } catch (NoSuchElementException expected) {
+        }
+        try {
+            new KeysetCursor(new PagedStorage(0), 0);
+            fail("A page size of 0 should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
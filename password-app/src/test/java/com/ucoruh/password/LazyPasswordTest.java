@@ -0,0 +1,68 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for LazyPassword.
+ *
+ * These tests verify deferred decryption, forgetting the cleartext, and replacing
+ * the secret.
+ */
+public class LazyPasswordTest {
+
+    private static final SessionKey KEY = SessionKey.forMasterPassword("lazy-master");
+
+    /**
+     * @brief Tests that the secret is decrypted on read and can be forgotten.
+     */
+    @Test
+    public void testDecryptsOnRead() throws Exception {
+        LazyPassword p = new LazyPassword("gmail", "user", KEY.encrypt("secret".getBytes(StandardCharsets.UTF_8)), KEY);
+
+        assertEquals("gmail", p.getService());
+        assertEquals("user", p.getUsername());
+        assertEquals("secret", p.getPassword());
+
+        p.forgetPassword();
+        assertEquals("secret", p.getPassword());
+        assertTrue(p.toString().contains("Password: secret"));
+    }
+
+    /**
+     * @brief Tests that a new password replaces the stored ciphertext.
+     */
+    @Test
+    public void testSetPasswordReplacesCiphertext() throws Exception {
+        byte[] ciphertext = KEY.encrypt("secret".getBytes(StandardCharsets.UTF_8));
+        LazyPassword p = new LazyPassword("gmail", "user", ciphertext, KEY);
+        assertArrayEquals(ciphertext, p.ciphertextFor(KEY));
+        assertNull(p.ciphertextFor(SessionKey.forMasterPassword("other-lazy-master")));
+
+        p.setPassword("changed");
+        p.forgetPassword();
+        assertEquals("changed", p.getPassword());
+        assertNull(p.ciphertextFor(KEY));
+    }
+
+    /**
+     * @brief Tests that plain entries keep their secret when asked to forget it.
+     */
+    @Test
+    public void testPlainPasswordKeepsSecret() {
+        Password p = new Password("gmail", "user", "secret");
+        p.forgetPassword();
+        assertEquals("secret", p.getPassword());
+        assertNull(p.ciphertextFor(KEY));
+    }
+
+    /**
+     * @brief Tests that a secret that cannot be decrypted fails on read.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testUndecryptableSecret() {
+        new LazyPassword("gmail", "user", new byte[5], KEY).getPassword();
+    }
+}
@@ -0,0 +1,926 @@
+package com.ucoruh.password;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief Unit tests for LogStructuredFileEngine.
+ *
+ * These tests verify appending, replaying, tombstones, compaction, and compatibility
+ * with password files written by earlier versions.
+ */
+public class LogStructuredFileEngineTest {
+
+    private static final String MASTER = "test-master-password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+
+    @Before
+    public void setUp() {
+        file = folder.getRoot().toPath().resolve("vault.txt");
+        System.setOut(new PrintStream(outContent));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    /**
+     * Tests that put entries can be read back and survive a reopen.
+     */
+    @Test
+    public void testPutGetAndReplay() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("dropbox", "u2", "p2"));
+
+        assertEquals("u1", engine.get("GMAIL").getUsername());
+        assertTrue(engine.contains("Dropbox"));
+        assertNull(engine.get("missing"));
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100);
+        List<Password> list = reopened.readAll();
+        assertEquals(2, list.size());
+        assertEquals("gmail", list.get(0).getService());
+        assertEquals("p2", list.get(1).getPassword());
+    }
+
+    /**
+     * Tests that an update appends one record instead of rewriting the file.
+     */
+    @Test
+    public void testUpdateAppendsSingleRecord() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("dropbox", "u2", "p2"));
+        byte[] before = Files.readAllBytes(file);
+
+        engine.put(new Password("Gmail", "u1", "changed"));
+
+        byte[] after = Files.readAllBytes(file);
+        assertEquals(3, records().size());
+        assertArrayEquals(before, Arrays.copyOf(after, before.length));
+        assertEquals(1, engine.deadRecordCount());
+        assertEquals("changed", engine.get("gmail").getPassword());
+        assertEquals(2, engine.size());
+    }
+
+    /**
+     * Tests that tombstones remove entries, also after replay.
+     */
+    @Test
+    public void testRemoveWritesTombstone() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.put(new Password("gmail", "u1", "p1"));
+
+        assertTrue(engine.remove("GMAIL"));
+        assertFalse(engine.remove("gmail"));
+        assertEquals(0, engine.size());
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100);
+        assertTrue(reopened.readAll().isEmpty());
+        assertEquals(2, reopened.deadRecordCount());
+    }
+
+    /**
+     * Tests that compaction drops dead records and keeps live data.
+     */
+    @Test
+    public void testCompaction() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 1000);
+        for (int i = 0; i < 20; i++) {
+            engine.put(new Password("svc", "user", "pass" + i));
+        }
+        engine.put(new Password("other", "user", "pass"));
+        engine.remove("other");
+        assertEquals(21, engine.deadRecordCount());
+
+        engine.compact();
+
+        assertEquals(0, engine.deadRecordCount());
+        assertEquals(1, records().size());
+        assertEquals("pass19", engine.get("svc").getPassword());
+        assertEquals(1, new LogStructuredFileEngine(file, MASTER, 1000).size());
+    }
+
+    /**
+     * Tests that passing the threshold compacts the file in the background.
+     */
+    @Test
+    public void testBackgroundCompaction() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 5);
+        for (int i = 0; i < 6; i++) {
+            engine.put(new Password("svc", "user", "pass" + i));
+        }
+        engine.awaitCompaction();
+
+        assertEquals(0, engine.deadRecordCount());
+        assertEquals(1, records().size());
+        assertEquals("pass5", engine.get("svc").getPassword());
+    }
+
+    /**
+     * Tests that files written by earlier versions are read and extended in place.
+     */
+    @Test
+    public void testReadsLegacyFile() throws Exception {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write(EncryptionUtil.encrypt("gmail,u1,p1", MASTER));
+            writer.write("\r\n");
+            writer.write(EncryptionUtil.encrypt("dropbox,u2,p2", MASTER));
+        }
+
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        assertEquals(2, engine.size());
+        engine.put(new Password("github", "u3", "p3"));
+
+        List<Password> list = new LogStructuredFileEngine(file, MASTER, 100).readAll();
+        assertEquals(3, list.size());
+        assertEquals("p2", list.get(1).getPassword());
+        assertEquals("github", list.get(2).getService());
+        // Converted to the binary format on the way
+        assertEquals(3, records().size());
+    }
+
+    /**
+     * Tests that a text file with records of another master password is not converted.
+     */
+    @Test
+    public void testPartlyReadableLegacyFileStaysText() throws Exception {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write(EncryptionUtil.encrypt("gmail,u1,p1", MASTER));
+            writer.write("\n");
+            writer.write(EncryptionUtil.encrypt("foreign,u2,p2", "other-master"));
+        }
+
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        assertEquals(1, engine.size());
+        engine.put(new Password("github", "u3", "p3"));
+        engine.remove("gmail");
+        engine.compact();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+        assertEquals(2, lines.size());
+        assertEquals(EncryptionUtil.encrypt("foreign,u2,p2", "other-master"), lines.get(0));
+        assertEquals("p3", new LogStructuredFileEngine(file, MASTER, 100).get("github").getPassword());
+    }
+
+    /**
+     * Tests that fields holding commas and line breaks survive the binary format.
+     */
+    @Test
+    public void testFieldsWithSeparators() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.put(new Password("bank, private", "user\nname", "p,a,s,s"));
+
+        Password p = new LogStructuredFileEngine(file, MASTER, 100).get("BANK, PRIVATE");
+        assertEquals("bank, private", p.getService());
+        assertEquals("user\nname", p.getUsername());
+        assertEquals("p,a,s,s", p.getPassword());
+        assertEquals(BinaryRecordCodec.FORMAT_VERSION,
+                BinaryRecordCodec.formatVersion(ByteBuffer.wrap(Files.readAllBytes(file))));
+    }
+
+    /**
+     * Tests that a record cut off by an interrupted write is dropped before the next append.
+     */
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.putAll(List.of(new Password("gmail", "u1", "p1"), new Password("dropbox", "u2", "p2")));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100);
+        assertEquals(1, reopened.size());
+        reopened.put(new Password("github", "u3", "p3"));
+        assertEquals(2, records().size());
+        assertEquals("p3", new LogStructuredFileEngine(file, MASTER, 100).get("github").getPassword());
+    }
+
+    /**
+     * Tests that a file of a newer format version is refused rather than overwritten.
+     */
+    @Test
+    public void testNewerFormatIsRefused() throws IOException {
+        byte[] header = BinaryRecordCodec.header(BinaryRecordCodec.SEALED_FORMAT_VERSION + 1);
+        Files.write(file, header);
+        try {
+            new LogStructuredFileEngine(file, MASTER, 100).size();
+            fail("A newer format should be refused");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("format version"));
+        }
+        assertArrayEquals(header, Files.readAllBytes(file));
+    }
+
+    /**
+     * Tests that records written with another master password survive compaction.
+     */
+    @Test
+    public void testUnreadableRecordsArePreserved() throws IOException {
+        new LogStructuredFileEngine(file, MASTER, 100).put(new Password("svc", "u", "p1"));
+        String foreignHeader = putForeign(new Password("foreign", "u", "p"));
+
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.put(new Password("svc", "u", "p2"));
+        engine.compact();
+
+        assertEquals(1, engine.readAll().size());
+        Files.writeString(folder.getRoot().toPath().resolve("vault.txt.key"), foreignHeader);
+        assertEquals("p", new LogStructuredFileEngine(file, "other-master", 100).get("foreign").getPassword());
+    }
+
+    /**
+     * Tests that changes made by another engine on the same file are picked up.
+     */
+    @Test
+    public void testDetectsExternalChanges() throws IOException {
+        LogStructuredFileEngine first = new LogStructuredFileEngine(file, MASTER, 100);
+        LogStructuredFileEngine second = new LogStructuredFileEngine(file, MASTER, 100);
+        first.put(new Password("gmail", "u1", "p1"));
+        assertTrue(second.contains("gmail"));
+
+        second.replaceAll(List.of(new Password("dropbox", "u2", "p2")));
+        assertFalse(first.contains("gmail"));
+        assertTrue(first.contains("dropbox"));
+    }
+
+    /**
+     * Tests that engines writing and compacting the same file at once keep every write.
+     */
+    @Test
+    public void testConcurrentEnginesKeepEveryWrite() throws Exception {
+        int writers = 4;
+        int entries = 25;
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < writers; t++) {
+                int writer = t;
+                done.add(pool.submit(() -> {
+                    LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 3);
+                    for (int i = 0; i < entries; i++) {
+                        engine.put(new Password("svc" + writer + "-" + i, "user", "pass"));
+                        engine.put(new Password("shared", "user", "pass" + writer));
+                    }
+                    engine.awaitCompaction();
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 1000);
+        assertEquals(writers * entries + 1, reopened.size());
+        assertEquals(writers * entries + 1, reopened.readAll().size());
+    }
+
+    /**
+     * Tests that a compaction writes to a temporary file of its own and removes it.
+     */
+    @Test
+    public void testCompactionUsesOwnTempFile() throws IOException {
+        Path foreign = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(foreign, "someone else's".getBytes(StandardCharsets.UTF_8));
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 1000);
+        engine.put(new Password("svc", "user", "pass1"));
+        engine.put(new Password("svc", "user", "pass2"));
+
+        engine.compact();
+        engine.replaceAll(List.of(new Password("other", "user", "pass")));
+
+        assertEquals("someone else's", new String(Files.readAllBytes(foreign), StandardCharsets.UTF_8));
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(folder.getRoot().toPath(), "*.tmp")) {
+            for (Path temp : temps) {
+                assertEquals(foreign, temp);
+            }
+        }
+        assertEquals("pass", new LogStructuredFileEngine(file, MASTER, 1000).get("other").getPassword());
+    }
+
+    /**
+     * Tests that an invalid compaction threshold is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        new LogStructuredFileEngine(file, MASTER, 0);
+    }
+
+    /**
+     * Tests that writeAll appends only the entries that changed.
+     */
+    @Test
+    public void testWriteAllAppendsOnlyChanges() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.writeAll(List.of(
+                new Password("gmail", "u1", "p1"),
+                new Password("dropbox", "u2", "p2"),
+                new Password("github", "u3", "p3")));
+        assertEquals(3, records().size());
+
+        List<Password> list = new ArrayList<>(engine.readAll());
+        list.get(0).setPassword("changed");
+        list.remove(2);
+        engine.writeAll(list);
+
+        // One put for the change and one tombstone for the removal
+        assertEquals(5, records().size());
+        engine.writeAll(list);
+        assertEquals(5, records().size());
+
+        List<Password> stored = new LogStructuredFileEngine(file, MASTER, 100).readAll();
+        assertEquals(2, stored.size());
+        assertEquals("changed", stored.get(0).getPassword());
+        assertEquals("dropbox", stored.get(1).getService());
+    }
+
+    /**
+     * Tests that entries read before a compaction or a reload still count as unchanged.
+     */
+    @Test
+    public void testWriteAllAfterCompactionAppendsOnlyChanges() throws IOException {
+        for (boolean sealedMode : new boolean[] { false, true }) {
+            Files.deleteIfExists(file);
+            LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100000, sealedMode);
+            List<Password> initial = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                initial.add(new Password("svc" + i, "user" + i, "pass" + i));
+            }
+            engine.putAll(initial);
+            engine.put(new Password("svc0", "user0", "superseded"));
+            List<Password> list = engine.readAll();
+
+            list.get(1).setPassword("changed");
+            engine.compact();
+            long compacted = Files.size(file);
+            engine.writeAll(list);
+            long grown = Files.size(file) - compacted;
+            assertTrue("Appended " + grown + " bytes for one change", grown < compacted / 100);
+
+            // Another engine compacts, so this one reloads the directory from the file
+            LogStructuredFileEngine other = new LogStructuredFileEngine(file, MASTER, 100000, sealedMode);
+            other.put(new Password("svc2", "user2", "other"));
+            other.compact();
+            list.get(3).setPassword("changed too");
+            compacted = Files.size(file);
+            engine.writeAll(list);
+            grown = Files.size(file) - compacted;
+            assertTrue("Appended " + grown + " bytes for two changes", grown < compacted / 100);
+            assertEquals("pass2", engine.get("svc2").getPassword());
+            assertEquals("changed too", new LogStructuredFileEngine(file, MASTER, 100000).get("svc3").getPassword());
+        }
+    }
+
+    /**
+     * Tests that writeAll restores an entry read before a later write of its service.
+     */
+    @Test
+    public void testWriteAllRestoresSupersededEntry() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.put(new Password("gmail", "user", "one"));
+        Password first = engine.readAll().get(0);
+        engine.put(new Password("gmail", "user", "two"));
+        engine.writeAll(List.of(first));
+        assertEquals("one", new LogStructuredFileEngine(file, MASTER, 100).get("gmail").getPassword());
+
+        // Another engine on the same file does not trust entries this one read
+        LogStructuredFileEngine other = new LogStructuredFileEngine(file, MASTER, 100);
+        Password read = other.get("gmail");
+        engine.put(new Password("gmail", "user", "three"));
+        other.writeAll(List.of(read));
+        assertEquals("one", engine.get("gmail").getPassword());
+    }
+
+    /**
+     * Tests that replay and readAll give the same result with a parallel pipeline.
+     */
+    @Test
+    public void testParallelPipeline() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100000);
+        List<Password> list = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            list.add(new Password("svc" + i, "user" + i, "pass" + i));
+        }
+        engine.writeAll(list);
+        for (int i = 0; i < 500; i += 5) {
+            engine.remove("svc" + i);
+        }
+        putForeign(new Password("foreign", "u", "p"));
+        outContent.reset();
+
+        LogStructuredFileEngine parallel = new LogStructuredFileEngine(file, MASTER, 100000);
+        parallel.setDecryptionPipeline(new DecryptionPipeline(4, 16, 32));
+        List<Password> loaded = parallel.readAll();
+
+        assertEquals(400, loaded.size());
+        assertEquals(200, parallel.deadRecordCount());
+        assertEquals("svc1", loaded.get(0).getService());
+        assertEquals("pass499", loaded.get(399).getPassword());
+        assertEquals(1, outContent.toString().split("Could not decrypt", -1).length - 1);
+    }
+
+    /**
+     * Tests that the generation changes on own writes and on external changes only.
+     */
+    @Test
+    public void testGeneration() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        long initial = engine.generation();
+        engine.put(new Password("gmail", "u1", "p1"));
+        long afterPut = engine.generation();
+        assertNotEquals(initial, afterPut);
+        engine.readAll();
+        assertEquals(afterPut, engine.generation());
+
+        new LogStructuredFileEngine(file, MASTER, 100).put(new Password("dropbox", "u2", "p2"));
+        long afterExternal = engine.generation();
+        assertNotEquals(afterPut, afterExternal);
+        assertEquals(afterExternal, engine.generation());
+        assertEquals(2, engine.readAll().size());
+        assertEquals(afterExternal, engine.generation());
+    }
+
+    /**
+     * Tests that putAll and removeAll append all their records at once.
+     */
+    @Test
+    public void testPutAllAndRemoveAll() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.putAll(List.of(
+                new Password("gmail", "u1", "p1"),
+                new Password("dropbox", "u2", "p2"),
+                new Password("Gmail", "u1", "p3")));
+        assertEquals(2, engine.size());
+        assertEquals(1, engine.deadRecordCount());
+        assertEquals("p3", engine.get("gmail").getPassword());
+
+        assertEquals(1, engine.removeAll(List.of("GMAIL", "gmail", "missing")));
+        assertEquals(4, records().size());
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100);
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.contains("dropbox"));
+        // The master-derived key was adopted as the data key
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve("vault.txt.key")));
+    }
+
+    /**
+     * Tests that a master password change rewrites the key file and nothing else.
+     */
+    @Test
+    public void testChangeMasterPassword() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.putAll(List.of(new Password("gmail", "u1", "p1"), new Password("dropbox", "u2", "p2")));
+        byte[] log = Files.readAllBytes(file);
+
+        assertTrue(engine.changeMasterPassword("new-master"));
+        assertArrayEquals(log, Files.readAllBytes(file));
+        engine.put(new Password("github", "u3", "p3"));
+        assertEquals(3, new LogStructuredFileEngine(file, "new-master", 100).readAll().size());
+
+        outContent.reset();
+        LogStructuredFileEngine old = new LogStructuredFileEngine(file, MASTER, 100);
+        try {
+            old.readAll();
+            fail("The old master password should no longer open the log");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("does not open"));
+        }
+        assertFalse(old.changeMasterPassword("other-master"));
+        assertTrue(outContent.toString().contains("does not unlock the vault key"));
+    }
+
+    /**
+     * Tests that a key rotation re-encrypts every record and drops the old key.
+     */
+    @Test
+    public void testRotateKey() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        List<Password> list = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            list.add(new Password("service" + i, "user" + i, "pass" + i));
+        }
+        engine.putAll(list);
+        engine.remove("service3");
+        Path keyFile = folder.getRoot().toPath().resolve("vault.txt.key");
+        String oldHeader = Files.readString(keyFile);
+
+        assertTrue(engine.rotateKey(3));
+        for (byte[] record : records()) {
+            assertEquals(2, BinaryRecordCodec.keyVersion(record));
+        }
+        // The new key and the key check
+        List<String> header = Files.readAllLines(keyFile);
+        assertEquals(2, header.size());
+        assertTrue(header.get(0).startsWith("2:"));
+        assertTrue(header.get(1).startsWith("#:"));
+        assertNotEquals(oldHeader, Files.readString(keyFile));
+        assertEquals(9, new LogStructuredFileEngine(file, MASTER, 100).readAll().size());
+        assertEquals("pass4", engine.get("service4").getPassword());
+
+        assertTrue(engine.rotateKey(100));
+        assertTrue(Files.readString(keyFile).startsWith("3:"));
+        assertEquals("user9", new LogStructuredFileEngine(file, MASTER, 100).get("service9").getUsername());
+    }
+
+    /**
+     * Tests that an interrupted rotation resumes and still covers every record.
+     */
+    @Test
+    public void testRotationResumes() throws Exception {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.putAll(List.of(new Password("a", "u1", "p1"), new Password("b", "u2", "p2"),
+                new Password("c", "u3", "p3")));
+        Path keyFile = folder.getRoot().toPath().resolve("vault.txt.key");
+
+        // Leave a rotation behind that stopped after "b", and a record written with the new key
+        KeyRing ring = VaultKey.parse(Files.readString(keyFile), MASTER);
+        Map<Integer, SessionKey> keys = new TreeMap<>(ring.keys());
+        keys.put(2, SessionKey.forDataKey(new byte[VaultKey.KEY_BYTES]));
+        Files.writeString(keyFile, VaultKey.format(new KeyRing(keys, "b"), MASTER));
+        LogStructuredFileEngine resumed = new LogStructuredFileEngine(file, MASTER, 100);
+        resumed.put(new Password("d", "u4", "p4"));
+
+        assertTrue(resumed.rotateKey(1));
+        for (byte[] record : records()) {
+            assertEquals(2, BinaryRecordCodec.keyVersion(record));
+        }
+        assertEquals(2, Files.readAllLines(keyFile).size());
+        assertEquals(4, new LogStructuredFileEngine(file, MASTER, 100).readAll().size());
+
+        outContent.reset();
+        try {
+            new LogStructuredFileEngine(file, "wrong", 100).rotateKey(1);
+            fail("A wrong master password should not rotate the log");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("does not open"));
+        }
+        assertTrue(outContent.toString().contains("does not unlock the vault key"));
+    }
+
+    /**
+     * Tests that a sealed vault holds no record outside its chunks and survives a reopen.
+     */
+    @Test
+    public void testSealedPutGetAndReplay() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.putAll(List.of(new Password("dropbox", "u2", "p2"), new Password("github", "u3", "p3")));
+        engine.remove("github");
+        assertEquals("p2", engine.get("DROPBOX").getPassword());
+
+        assertEquals(BinaryRecordCodec.SEALED_FORMAT_VERSION,
+                BinaryRecordCodec.formatVersion(ByteBuffer.wrap(Files.readAllBytes(file))));
+        List<byte[]> records = records();
+        assertEquals(BinaryRecordCodec.KEY_CHECK, BinaryRecordCodec.type(records.get(0)));
+        assertEquals(4, records.size());
+        for (byte[] record : records.subList(1, records.size())) {
+            assertEquals(BinaryRecordCodec.LAST_CHUNK, BinaryRecordCodec.type(record));
+        }
+        String content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertFalse(content.contains("gmail"));
+
+        // A sealed vault stays sealed when opened without sealed mode
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100);
+        assertEquals(2, reopened.size());
+        assertEquals("u1", reopened.get("gmail").getUsername());
+        assertNull(reopened.get("github"));
+        reopened.put(new Password("bank", "u4", "p4"));
+        assertEquals(BinaryRecordCodec.LAST_CHUNK, BinaryRecordCodec.type(records().get(4)));
+        assertEquals(3, new LogStructuredFileEngine(file, MASTER, 100, true).readAll().size());
+    }
+
+    /**
+     * Tests that a binary vault opened in sealed mode is converted.
+     */
+    @Test
+    public void testBinaryVaultIsSealed() throws IOException {
+        new LogStructuredFileEngine(file, MASTER, 100).putAll(List.of(new Password("gmail", "u1", "p1"),
+                new Password("dropbox", "u2", "p2")));
+
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        assertEquals(2, engine.readAll().size());
+        List<byte[]> records = records();
+        assertEquals(2, records.size());
+        assertEquals(BinaryRecordCodec.LAST_CHUNK, BinaryRecordCodec.type(records.get(1)));
+        assertEquals("p1", new LogStructuredFileEngine(file, MASTER, 100).get("gmail").getPassword());
+    }
+
+    /**
+     * Tests that a changed chunk is detected and its entries are skipped.
+     */
+    @Test
+    public void testTamperedChunkIsDetected() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("dropbox", "u2", "p2"));
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 20] ^= 1;
+        Files.write(file, bytes);
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100, true);
+        assertEquals(1, reopened.size());
+        assertNull(reopened.get("dropbox"));
+        assertTrue(outContent.toString().contains("Could not decrypt"));
+
+        // The changed chunk is kept as it is
+        List<byte[]> records = records();
+        byte[] changed = records.get(records.size() - 1);
+        reopened.put(new Password("gmail", "u1", "p3"));
+        reopened.compact();
+        assertTrue(records().stream().anyMatch(record -> Arrays.equals(changed, record)));
+        assertEquals("p3", new LogStructuredFileEngine(file, MASTER, 100).get("gmail").getPassword());
+    }
+
+    /**
+     * Tests that two chunks that trade places no longer open.
+     */
+    @Test
+    public void testSwappedChunksAreDetected() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("yahoo", "u2", "p2"));
+        List<byte[]> records = records();
+        assertEquals(records.get(1).length, records.get(2).length);
+
+        writeRecords(records.get(0), records.get(2), records.get(1));
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100, true);
+        assertEquals(0, reopened.size());
+        assertEquals(2, outContent.toString().split("Could not decrypt", -1).length - 1);
+    }
+
+    /**
+     * Tests that a chunk repeated at the end of the log does not bring back an old entry.
+     */
+    @Test
+    public void testDuplicatedChunkIsDetected() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("gmail", "u1", "p2"));
+        List<byte[]> records = records();
+
+        writeRecords(records.get(0), records.get(1), records.get(2), records.get(1));
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100, true);
+        assertEquals("p2", reopened.get("gmail").getPassword());
+        assertTrue(outContent.toString().contains("Could not decrypt"));
+    }
+
+    /**
+     * Tests that a chunk left out of the log makes the chunks after it fail to open.
+     */
+    @Test
+    public void testDroppedChunkIsDetected() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("dropbox", "u2", "p2"));
+        engine.put(new Password("github", "u3", "p3"));
+        List<byte[]> records = records();
+
+        writeRecords(records.get(0), records.get(1), records.get(3));
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100, true);
+        assertEquals(1, reopened.size());
+        assertNull(reopened.get("github"));
+        assertTrue(outContent.toString().contains("Could not decrypt"));
+    }
+
+    /**
+     * Tests that the chunks of a write whose last chunk is missing are skipped and later dropped.
+     */
+    @Test
+    public void testUnfinishedWriteIsSkipped() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        engine.put(new Password("gmail", "u1", "p1"));
+        String padding = "x".repeat(1000);
+        List<Password> batch = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            batch.add(new Password("service" + i, "user" + i, padding + i));
+        }
+        engine.putAll(batch);
+        List<byte[]> records = records();
+        assertTrue(records.size() > 3);
+        assertEquals(BinaryRecordCodec.CHUNK, BinaryRecordCodec.type(records.get(2)));
+        assertEquals(BinaryRecordCodec.LAST_CHUNK, BinaryRecordCodec.type(records.get(records.size() - 1)));
+
+        writeRecords(records.subList(0, records.size() - 1).toArray(new byte[0][]));
+
+        LogStructuredFileEngine reopened = new LogStructuredFileEngine(file, MASTER, 100, true);
+        assertEquals(1, reopened.size());
+        assertTrue(outContent.toString().contains("unfinished write"));
+        reopened.put(new Password("dropbox", "u2", "p2"));
+        assertEquals(3, records().size());
+        assertEquals(2, new LogStructuredFileEngine(file, MASTER, 100).readAll().size());
+    }
+
+    /**
+     * Tests that compaction packs the live records of a sealed vault into full chunks.
+     */
+    @Test
+    public void testSealedCompactionAndLargeVault() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 10_000, true);
+        engine.setDecryptionPipeline(new DecryptionPipeline(3, 2, 2));
+        String padding = "x".repeat(1000);
+        for (int i = 0; i < 150; i++) {
+            engine.put(new Password("service" + i, "user" + i, padding + i));
+        }
+        engine.remove("service7");
+        assertEquals(152, records().size());
+
+        engine.compact();
+        List<byte[]> records = records();
+        assertTrue(records.size() >= 3 && records.size() < 10);
+        assertEquals(149, engine.readAll().size());
+        assertEquals(padding + 149, engine.get("service149").getPassword());
+        List<Password> page = new LogStructuredFileEngine(file, MASTER, 100).readPage(140, 20);
+        assertEquals(9, page.size());
+        assertEquals(padding + 141, page.get(0).getPassword());
+    }
+
+    /**
+     * Tests that a key rotation seals every chunk with the new key.
+     */
+    @Test
+    public void testSealedRotateKey() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("dropbox", "u2", "p2"));
+
+        assertTrue(engine.rotateKey(1));
+        List<byte[]> records = records();
+        assertEquals(2, records.size());
+        assertEquals(2, BinaryRecordCodec.keyVersion(records.get(0)));
+        assertEquals(2, BinaryRecordCodec.keyVersion(records.get(1)));
+        Path keyFile = folder.getRoot().toPath().resolve("vault.txt.key");
+        assertEquals(2, Files.readAllLines(keyFile).size());
+        assertEquals("p2", new LogStructuredFileEngine(file, MASTER, 100).get("dropbox").getPassword());
+    }
+
+    /**
+     * Tests that a batch size below one is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRotationBatchSize() throws IOException {
+        new LogStructuredFileEngine(file, MASTER, 100).rotateKey(0);
+    }
+
+    /**
+     * Appends a record that MASTER cannot read.
+     * It is written under a vault key header of another master password, and the
+     * header of MASTER is put back afterwards.
+     *
+     * @return The header the record was written under.
+     */
+    private String putForeign(Password password) throws IOException {
+        Path keyFile = folder.getRoot().toPath().resolve("vault.txt.key");
+        String header = Files.readString(keyFile);
+        String foreign = VaultKey.format(KeyRing.of(SessionKey.forDataKey(new byte[VaultKey.KEY_BYTES])), "other-master");
+        Files.writeString(keyFile, foreign);
+        new LogStructuredFileEngine(file, "other-master", 100).put(password);
+        Files.writeString(keyFile, header);
+        return foreign;
+    }
+
+    /**
+     * Replaces the records of the binary test file, keeping its header.
+     */
+    private void writeRecords(byte[]... records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Files.readAllBytes(file), 0, BinaryRecordCodec.HEADER_LENGTH);
+        for (byte[] record : records) {
+            out.write(record);
+        }
+        Files.write(file, out.toByteArray());
+    }
+
+    /**
+     * Reads the records of the binary test file.
+     */
+    private List<byte[]> records() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(BinaryRecordCodec.HEADER_LENGTH);
+            BinaryRecordCodec.Reader reader = new BinaryRecordCodec.Reader(channel, BinaryRecordCodec.HEADER_LENGTH);
+            for (byte[] record = reader.next(); record != null; record = reader.next()) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Tests that pages follow the order of readAll.
+     */
+    @Test
+    public void testReadPage() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        List<Password> list = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            list.add(new Password("service" + i, "user" + i, "pass" + i));
+        }
+        engine.putAll(list);
+        engine.remove("service3");
+
+        List<Password> page = engine.readPage(10, 10);
+        assertEquals(10, page.size());
+        assertEquals("service11", page.get(0).getService());
+        assertEquals(engine.readAll().subList(20, 24).toString(), engine.readPage(20, 10).toString());
+        assertTrue(engine.readPage(24, 10).isEmpty());
+        assertTrue(engine.readPage(0, 0).isEmpty());
+    }
+
+    /**
+     * Tests keyset pages in the order of the normalized service names.
+     */
+    @Test
+    public void testReadAfter() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        assertTrue(engine.readAfter(null, 10).isEmpty());
+        engine.putAll(List.of(new Password("Dropbox", "u", "p1"), new Password("bank", "u", "p2"),
+                new Password("gmail", "u", "p3"), new Password("Apple", "u", "p4")));
+
+        List<Password> page = engine.readAfter(null, 2);
+        assertEquals("Apple", page.get(0).getService());
+        assertEquals("bank", page.get(1).getService());
+        page = engine.readAfter("BANK", 10);
+        assertEquals(2, page.size());
+        assertEquals("Dropbox", page.get(0).getService());
+        assertEquals("p3", page.get(1).getPassword());
+        assertEquals("gmail", engine.readAfter("cloud", 2).get(1).getService());
+        assertTrue(engine.readAfter("gmail", 10).isEmpty());
+        assertTrue(engine.readAfter(null, 0).isEmpty());
+    }
+
+    /**
+     * Tests that pages follow entries added and removed between them, here and by another engine.
+     */
+    @Test
+    public void testReadAfterFollowsChanges() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100);
+        engine.putAll(List.of(new Password("a", "u", "p"), new Password("c", "u", "p"),
+                new Password("e", "u", "p")));
+        assertEquals("a", engine.readAfter(null, 1).get(0).getService());
+
+        engine.put(new Password("b", "u", "p"));
+        engine.remove("c");
+        List<Password> page = engine.readAfter("a", 2);
+        assertEquals("b", page.get(0).getService());
+        assertEquals("e", page.get(1).getService());
+
+        new LogStructuredFileEngine(file, MASTER, 100).put(new Password("d", "u", "p"));
+        page = engine.readAfter("b", 10);
+        assertEquals(2, page.size());
+        assertEquals("d", page.get(0).getService());
+    }
+
+    /**
+     * Tests that chained pages of a sealed vault cover every entry once, in key order.
+     */
+    @Test
+    public void testSealedReadAfterCoversAllEntries() throws IOException {
+        LogStructuredFileEngine engine = new LogStructuredFileEngine(file, MASTER, 100, true);
+        List<Password> list = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            list.add(new Password("service" + (i * 7 % 50), "user", "pass" + i));
+        }
+        engine.putAll(list);
+
+        List<String> services = new ArrayList<>();
+        String after = null;
+        for (List<Password> page = engine.readAfter(after, 8); !page.isEmpty(); page = engine.readAfter(after, 8)) {
+            for (Password p : page) {
+                services.add(p.getService());
+            }
+            after = page.get(page.size() - 1).getService();
+        }
+        List<String> expected = new ArrayList<>();
+        for (Password p : list) {
+            expected.add(p.getService());
+        }
+        Collections.sort(expected);
+        assertEquals(expected, services);
+    }
+}
@@ -0,0 +1,141 @@
+package com.ucoruh.password;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief Unit tests for MappedPasswordStorage class.
+ *
+ * These tests verify adding, viewing, updating, and deleting passwords through the
+ * memory-mapped vault, and the messages printed when the vault file cannot be used.
+ */
+public class MappedPasswordStorageTest {
+
+    private static final String MASTER = "test-master-password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String fileName;
+    private MappedPasswordStorage storage;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+
+    @Before
+    public void setUp() {
+        fileName = new File(folder.getRoot(), "passwords.vault").getPath();
+        storage = new MappedPasswordStorage(MASTER, fileName);
+        System.setOut(new PrintStream(outContent));
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+        System.setOut(originalOut);
+    }
+
+    private static Scanner input(String text) {
+        return new Scanner(new ByteArrayInputStream(text.getBytes()));
+    }
+
+    /**
+     * Tests the interactive add, update, view and delete.
+     */
+    @Test
+    public void testInteractiveOperations() {
+        storage.view();
+        storage.update(input("gmail\n"));
+        assertTrue(outContent.toString().contains("No records found"));
+
+        storage.add(input("gmail\nuser\npass\n"));
+        storage.add(input("GMAIL\nother\nother\n"));
+        assertTrue(outContent.toString().contains("already exists"));
+
+        storage.update(input("gmail\nnewuser\n\n"));
+        storage.update(input("missing\n"));
+        Password p = new MappedPasswordStorage(MASTER, fileName).get("gmail");
+        assertEquals("newuser", p.getUsername());
+        assertEquals("pass", p.getPassword());
+
+        storage.view();
+        assertTrue(outContent.toString().contains("1. "));
+
+        storage.delete(input("missing\n"));
+        assertTrue(outContent.toString().contains("Service not found"));
+        storage.delete(input("gmail\n"));
+        assertTrue(outContent.toString().contains("Password deleted successfully"));
+        assertEquals(0, storage.count());
+        storage.delete(input("gmail\n"));
+    }
+
+    /**
+     * Tests the keyed methods, paging and writeAll().
+     */
+    @Test
+    public void testKeyedMethods() {
+        storage.put(new Password("gmail", "user", "pass"));
+        storage.putAll(List.of(new Password("dropbox", "u2", "p2"), new Password("github", "u3", "p3")));
+        storage.setDecryptionPipeline(new DecryptionPipeline(2, 1, 1));
+
+        assertTrue(storage.contains("GITHUB"));
+        assertEquals("p2", storage.get("Dropbox").getPassword());
+        assertEquals(3, storage.count());
+        List<Password> page = storage.readPage(1, 5);
+        assertEquals(2, page.size());
+        assertEquals("github", page.get(0).getService());
+
+        assertTrue(storage.remove("gmail"));
+        assertEquals(1, storage.removeAll(List.of("github", "missing")));
+        List<Password> list = storage.readAll();
+        list.add(new Password("bank", "u4", "p4"));
+        storage.writeAll(list);
+        assertEquals(2, storage.count());
+        assertNotEquals(InterfacePasswordStorage.UNKNOWN_GENERATION, storage.generation());
+    }
+
+    /**
+     * Tests changing the master password and rotating the vault key.
+     */
+    @Test
+    public void testChangeMasterPasswordAndRotateKey() {
+        storage.put(new Password("gmail", "user", "pass"));
+
+        assertTrue(storage.changeMasterPassword("new-master-password"));
+        assertTrue(storage.rotateKey());
+        assertEquals("pass", new MappedPasswordStorage("new-master-password", fileName).get("gmail").getPassword());
+    }
+
+    /**
+     * Tests that every method reports an error when the vault path is a directory.
+     */
+    @Test
+    public void testMethodsWithUnreadableVault() throws IOException {
+        File dir = folder.newFolder("broken");
+        MappedPasswordStorage broken = new MappedPasswordStorage(MASTER, dir.getPath());
+        assertNull(broken.get("gmail"));
+        assertFalse(broken.contains("gmail"));
+        broken.put(new Password("gmail", "user", "pass"));
+        broken.putAll(List.of(new Password("dropbox", "user", "pass")));
+        assertFalse(broken.remove("gmail"));
+        assertEquals(0, broken.removeAll(List.of("gmail")));
+        assertTrue(broken.readAll().isEmpty());
+        assertEquals(0, broken.count());
+        broken.writeAll(new ArrayList<>());
+        assertEquals(InterfacePasswordStorage.UNKNOWN_GENERATION, broken.generation());
+        assertFalse(broken.changeMasterPassword("new-master-password"));
+        assertFalse(broken.rotateKey());
+        broken.add(input("gmail\nuser\npass\n"));
+        broken.update(input("gmail\n"));
+        broken.delete(input("gmail\n"));
+
+        String output = outContent.toString();
+        assertTrue(output.contains("Error reading vault file"));
+        assertTrue(output.contains("Error writing to vault file"));
+        assertTrue(output.contains("Error writing vault key"));
+        assertTrue(output.contains("Error rotating vault key"));
+    }
+}
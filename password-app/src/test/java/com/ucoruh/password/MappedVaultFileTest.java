@@ -0,0 +1,330 @@
+package com.ucoruh.password;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief Unit tests for MappedVaultFile.
+ *
+ * These tests verify index lookups, in-place and relocated updates, index growth,
+ * compaction, key changes, and that changes by another engine are noticed.
+ */
+public class MappedVaultFileTest {
+
+    private static final String MASTER = "test-master-password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+
+    @Before
+    public void setUp() {
+        file = folder.getRoot().toPath().resolve("vault.mmap");
+        System.setOut(new PrintStream(outContent));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    /**
+     * Tests that entries can be looked up and survive a reopen.
+     */
+    @Test
+    public void testPutGetAndReopen() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        assertNull(engine.get("gmail"));
+        assertEquals(0, engine.size());
+        assertFalse(Files.exists(file));
+
+        engine.put(new Password("gmail", "u1", "p1"));
+        engine.put(new Password("Dropbox", "u2", "p2"));
+        assertEquals("u1", engine.get("GMAIL").getUsername());
+        assertTrue(engine.contains("dropbox"));
+        assertNull(engine.get("missing"));
+        engine.close();
+
+        MappedVaultFile reopened = new MappedVaultFile(file, MASTER);
+        List<Password> list = reopened.readAll();
+        assertEquals(2, list.size());
+        assertEquals("Dropbox", list.get(0).getService());
+        assertEquals("p1", list.get(1).getPassword());
+        assertEquals(2, reopened.size());
+    }
+
+    /**
+     * Tests that entries are listed in the order of their Password.key().
+     */
+    @Test
+    public void testReadAllOrder() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        // "\u0130a" has the key "i\u0307a", which sorts after "ib"
+        engine.put(new Password("\u0130a", "u1", "p1"));
+        engine.put(new Password("ib", "u2", "p2"));
+        engine.put(new Password("Gmail", "u3", "p3"));
+
+        List<Password> list = engine.readAll();
+        List<Password> expected = new ArrayList<>(list);
+        expected.sort(Password.BY_SERVICE);
+        assertEquals(expected, list);
+        assertEquals("ib", list.get(1).getService());
+        engine.close();
+    }
+
+    /**
+     * Tests that service names and secrets do not appear in the file.
+     */
+    @Test
+    public void testFileHoldsNoPlaintext() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        engine.put(new Password("verysecretservice", "someuser", "somepassword"));
+
+        String content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertFalse(content.contains("verysecretservice"));
+        assertFalse(content.contains("someuser"));
+        assertFalse(content.contains("somepassword"));
+    }
+
+    /**
+     * Tests that an update that fits its slot is written in place and a larger one moves.
+     */
+    @Test
+    public void testUpdateInPlaceAndRelocated() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        engine.put(new Password("gmail", "user", "pass1"));
+        engine.put(new Password("dropbox", "user", "pass2"));
+        long length = Files.size(file);
+
+        engine.put(new Password("Gmail", "user", "pass3"));
+        assertEquals(length, Files.size(file));
+        assertEquals(0, engine.deadBytes());
+        assertEquals("pass3", engine.get("gmail").getPassword());
+
+        engine.put(new Password("gmail", "user", "a much longer password than before, which needs a new slot"));
+        assertTrue(engine.deadBytes() > 0);
+        assertEquals(2, engine.size());
+        assertEquals("a much longer password than before, which needs a new slot",
+                new MappedVaultFile(file, MASTER).get("gmail").getPassword());
+        assertEquals("pass2", engine.get("dropbox").getPassword());
+    }
+
+    /**
+     * Tests removing entries.
+     */
+    @Test
+    public void testRemove() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        assertFalse(engine.remove("gmail"));
+        engine.putAll(List.of(new Password("gmail", "u", "p"), new Password("dropbox", "u", "p"),
+                new Password("github", "u", "p")));
+
+        assertTrue(engine.remove("GMAIL"));
+        assertFalse(engine.remove("gmail"));
+        assertEquals(1, engine.removeAll(List.of("github", "missing")));
+        assertEquals(1, engine.size());
+        assertFalse(engine.contains("gmail"));
+        assertTrue(engine.deadBytes() > 0);
+        assertEquals("dropbox", new MappedVaultFile(file, MASTER).readAll().get(0).getService());
+    }
+
+    /**
+     * Tests that a full index is rewritten with room for more entries, and compaction.
+     */
+    @Test
+    public void testIndexGrowthAndCompaction() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        int count = MappedVaultFile.INITIAL_INDEX_CAPACITY * 3;
+        for (int i = 0; i < count; i++) {
+            engine.put(new Password("service" + i, "user" + i, "pass" + i));
+        }
+        assertEquals(count, engine.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("pass" + i, engine.get("SERVICE" + i).getPassword());
+        }
+
+        engine.removeAll(List.of("service0", "service1", "service2"));
+        assertTrue(engine.deadBytes() > 0);
+        engine.compact();
+        assertEquals(0, engine.deadBytes());
+        assertEquals(count - 3, new MappedVaultFile(file, MASTER).readAll().size());
+        assertEquals("pass3", engine.get("service3").getPassword());
+    }
+
+    /**
+     * Tests that outgrown slots are compacted away once they outweigh the live ones.
+     */
+    @Test
+    public void testAutomaticCompaction() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        String password = "";
+        for (int i = 0; i < 40; i++) {
+            password += "x".repeat(64);
+            engine.put(new Password("gmail", "user", password));
+        }
+        assertTrue(engine.deadBytes() < MappedVaultFile.COMPACTION_MIN_BYTES);
+        assertEquals(password, engine.get("gmail").getPassword());
+    }
+
+    /**
+     * Tests that writeAll() applies only the differences.
+     */
+    @Test
+    public void testWriteAll() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        engine.writeAll(new ArrayList<>());
+        assertFalse(Files.exists(file));
+
+        engine.writeAll(List.of(new Password("gmail", "u", "p1"), new Password("dropbox", "u", "p2"),
+                new Password("github", "u", "p3")));
+        List<Password> list = engine.readAll();
+        long generation = engine.generation();
+        engine.writeAll(list);
+        assertEquals(generation, engine.generation());
+
+        list.get(0).setPassword("changed");
+        list.remove(1);
+        engine.writeAll(list);
+        assertEquals(2, engine.size());
+        assertEquals("changed", engine.get("dropbox").getPassword());
+        assertFalse(engine.contains("github"));
+    }
+
+    /**
+     * Tests that writeAll restores an entry read before a later write of its service.
+     */
+    @Test
+    public void testWriteAllRestoresSupersededEntry() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        engine.put(new Password("gmail", "user", "one"));
+        Password first = engine.readAll().get(0);
+        // Fits the slot, so it is written in place
+        engine.put(new Password("gmail", "user", "two"));
+        engine.writeAll(List.of(first));
+        assertEquals("one", new MappedVaultFile(file, MASTER).get("gmail").getPassword());
+
+        MappedVaultFile other = new MappedVaultFile(file, MASTER);
+        Password read = other.get("gmail");
+        engine.put(new Password("gmail", "user", "three"));
+        other.writeAll(List.of(read));
+        assertEquals("one", engine.get("gmail").getPassword());
+    }
+
+    /**
+     * Tests that changes by another engine on the same file are seen.
+     */
+    @Test
+    public void testChangesByAnotherEngine() throws IOException {
+        MappedVaultFile first = new MappedVaultFile(file, MASTER);
+        MappedVaultFile second = new MappedVaultFile(file, MASTER);
+        first.put(new Password("gmail", "u", "p1"));
+
+        long generation = second.generation();
+        assertEquals("p1", second.get("gmail").getPassword());
+        first.put(new Password("gmail", "u", "p2"));
+        assertNotEquals(generation, second.generation());
+        assertEquals("p2", second.get("gmail").getPassword());
+
+        // A rewrite replaces the file
+        first.compact();
+        generation = second.generation();
+        first.put(new Password("dropbox", "u", "p3"));
+        assertNotEquals(generation, second.generation());
+        assertEquals(2, second.size());
+
+        Files.delete(file);
+        assertEquals(0, second.size());
+        assertNull(second.get("gmail"));
+    }
+
+    /**
+     * Tests changing the master password and rotating the data key.
+     */
+    @Test
+    public void testChangeMasterPasswordAndRotateKey() throws IOException {
+        MappedVaultFile engine = new MappedVaultFile(file, MASTER);
+        engine.put(new Password("gmail", "u", "p1"));
+        engine.put(new Password("dropbox", "u", "p2"));
+        assertTrue(engine.changeMasterPassword("new-master"));
+        assertEquals("p1", new MappedVaultFile(file, "new-master").get("gmail").getPassword());
+        assertFalse(new MappedVaultFile(file, MASTER).changeMasterPassword("other"));
+
+        byte[] before = Files.readAllBytes(file);
+        assertTrue(engine.rotateKey());
+        assertFalse(Arrays.equals(before, Files.readAllBytes(file)));
+        String header = new String(Files.readAllBytes(Paths.get(file + ".key")), StandardCharsets.US_ASCII);
+        assertTrue(header.startsWith("2:"));
+        assertFalse(header.contains("\n1:"));
+
+        MappedVaultFile reopened = new MappedVaultFile(file, "new-master");
+        assertEquals("p2", reopened.get("DROPBOX").getPassword());
+        assertEquals(2, reopened.readAll().size());
+        assertFalse(new MappedVaultFile(file, MASTER).rotateKey());
+    }
+
+    /**
+     * Tests that a file that is not a mapped vault is refused.
+     */
+    @Test
+    public void testForeignFileIsRefused() throws IOException {
+        Files.write(file, "kmS0oVBo8ATLO7cX\n".getBytes(StandardCharsets.US_ASCII));
+        try {
+            new MappedVaultFile(file, MASTER).get("gmail");
+            fail("A text file should not be read as a mapped vault");
+        } catch (IOException expected) {
+        }
+
+        byte[] vault = new byte[MappedVaultFile.HEADER_LENGTH];
+        vault[0] = (byte) 0x89;
+        vault[1] = 'P';
+        vault[2] = 'W';
+        vault[3] = 'M';
+        vault[4] = (byte) (MappedVaultFile.FORMAT_VERSION + 1);
+        Files.write(file, vault);
+        try {
+            new MappedVaultFile(file, MASTER).size();
+            fail("A newer format version should be refused");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Tests that a master password that does not open the vault can neither read nor change it.
+     */
+    @Test
+    public void testWrongMasterPassword() throws IOException {
+        new MappedVaultFile(file, MASTER).put(new Password("gmail", "u", "p"));
+        byte[] vault = Files.readAllBytes(file);
+
+        MappedVaultFile other = new MappedVaultFile(file, "wrong");
+        try {
+            other.readAll();
+            fail("A vault the master password does not open should not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("does not open"));
+        }
+        try {
+            other.put(new Password("dropbox", "u", "p"));
+            fail("A vault the master password does not open should not be written");
+        } catch (IOException expected) {
+        }
+        try {
+            other.remove("gmail");
+            fail("A vault the master password does not open should not be changed");
+        } catch (IOException expected) {
+        }
+        other.close();
+
+        assertArrayEquals(vault, Files.readAllBytes(file));
+        assertEquals("p", new MappedVaultFile(file, MASTER).get("gmail").getPassword());
+    }
+}
@@ -8,7 +8,10 @@ import static org.junit.Assert.assertNull;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Scanner;
 
 import org.junit.Test;
@@ -146,4 +149,47 @@ public class PasswordManagerTest {
         // Don't assert on specific output details since they might change
         // Just check that the method completes
     }
+
+    /**
+     * Tests that lookups reuse the loaded credentials until the storage changes.
+     */
+    @Test
+    public void testCredentialCacheFollowsGeneration() throws IOException {
+        File file = File.createTempFile("passwords", ".txt");
+        file.delete();
+        int[] reads = { 0 };
+        FilePasswordStorage inner = new FilePasswordStorage("dummyMaster", file.getPath(), 100);
+        InterfacePasswordStorage counting = new InterfacePasswordStorage() {
+            public void add(Scanner scanner) { inner.add(scanner); }
+            public void view() { inner.view(); }
+            public void update(Scanner scanner) { inner.update(scanner); }
+            public void delete(Scanner scanner) { inner.delete(scanner); }
+            public List<Password> readAll() { reads[0]++; return inner.readAll(); }
+            public void writeAll(List<Password> list) { inner.writeAll(list); }
+            public long generation() { return inner.generation(); }
+        };
+        try {
+            PasswordManager pm = new PasswordManager("dummyMaster", counting);
+            pm.addCredential("Gmail", "first");
+            int afterAdd = reads[0];
+            
+            for (int i = 0; i < 10; i++) {
+                assertEquals("first", pm.getCredential("Gmail"));
+            }
+            assertEquals("Lookups should not reload", afterAdd, reads[0]);
+            
+            // A change made through another storage on the same file is picked up
+            new FilePasswordStorage("dummyMaster", file.getPath(), 100)
+                    .writeAll(List.of(new Password("Gmail", "user", "second")));
+            assertEquals("second", pm.getCredential("Gmail"));
+            assertEquals(afterAdd + 1, reads[0]);
+            
+            pm.addCredential("gmail", "third");
+            assertEquals("third", pm.getCredential("Gmail"));
+            assertEquals("third", pm.getCredential("gmail"));
+            assertEquals("third", pm.getCredential("GMAIL"));
+        } finally {
+            file.delete();
+        }
+    }
 }
@@ -38,6 +38,17 @@ public class PasswordStorageFactoryTest {
                    storage instanceof DatabasePasswordStorage);
     }
 
+    /**
+     * @brief Tests that create() returns a MappedPasswordStorage instance when given StorageType.MMAP.
+     */
+    @Test
+    public void testCreateMappedStorage() {
+        InterfacePasswordStorage storage = PasswordStorageFactory.create(StorageType.MMAP, TEST_MASTER_PASSWORD);
+        assertNotNull("Factory should not return null for MMAP type", storage);
+        assertTrue("The created storage should be an instance of MappedPasswordStorage",
+                   storage instanceof MappedPasswordStorage);
+    }
+
     /**
      * @brief Tests that create() handles all defined StorageType enum values.
      *
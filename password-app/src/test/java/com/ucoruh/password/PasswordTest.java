@@ -35,4 +35,21 @@ public class PasswordTest {
         assertTrue(result.contains("dev"));
         assertTrue(result.contains("secure"));
     }
+
+    @Test
+    public void testChangeTracking() {
+        Password password = new Password("service", "user", "pass");
+        Object origin = "storage";
+        assertFalse(password.isStoredIn(origin));
+
+        password.markStored(origin);
+        assertTrue(password.isStoredIn(origin));
+        assertFalse(password.isStoredIn("other-storage"));
+
+        password.setPassword("newpass");
+        assertFalse(password.isStoredIn(origin));
+        password.markStored(origin);
+        password.setUsername("newuser");
+        assertFalse(password.isStoredIn(origin));
+    }
 }
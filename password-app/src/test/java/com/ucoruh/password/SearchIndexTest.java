@@ -0,0 +1,116 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for SearchIndex.
+ *
+ * These tests verify substring matching on both fields, result order, and that the
+ * index follows additions, replacements and removals.
+ */
+public class SearchIndexTest {
+
+    private SearchIndex index;
+
+    @Before
+    public void setUp() {
+        index = new SearchIndex();
+        index.addAll(List.of(
+                new Password("Gmail", "alice@example.com", "p1"),
+                new Password("github", "alice", "p2"),
+                new Password("Dropbox", "bob@example.com", "p3"),
+                new Password("bank", "carol", "p4")));
+    }
+
+    private static String services(List<Password> list) {
+        List<String> names = new ArrayList<>();
+        for (Password p : list) {
+            names.add(p.getService());
+        }
+        return names.toString();
+    }
+
+    /**
+     * @brief Tests matching on service names and usernames, ignoring case.
+     */
+    @Test
+    public void testSearch() {
+        assertEquals("[github, Gmail]", services(index.search("G")));
+        assertEquals("[github, Gmail]", services(index.search("ALICE")));
+        assertEquals("[Dropbox, Gmail]", services(index.search("example")));
+        assertEquals("[bank]", services(index.search("aro")));
+        assertEquals("[bank, Dropbox, github, Gmail]", services(index.search("")));
+        assertTrue(index.search("xyz").isEmpty());
+        assertTrue(index.search("ailalice").isEmpty());
+        assertEquals(4, index.size());
+    }
+
+    /**
+     * @brief Tests that replaced and removed entries are no longer found.
+     */
+    @Test
+    public void testMaintenance() {
+        index.add(new Password("GMAIL", "dave", "p5"));
+        assertEquals(4, index.size());
+        assertEquals("[github]", services(index.search("alice")));
+        assertEquals("[GMAIL]", services(index.search("dav")));
+
+        index.remove("github");
+        index.remove("missing");
+        assertTrue(index.search("alice").isEmpty());
+        assertTrue(index.search("hub").isEmpty());
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(index.search("").isEmpty());
+    }
+
+    /**
+     * @brief Tests that entries are matched and ordered by Password.key(), like in the storages.
+     */
+    @Test
+    public void testOrderFollowsPasswordKey() {
+        SearchIndex mixed = new SearchIndex();
+        // "\u0130" lowercases to "i\u0307", and the final sigma "\u03c2" stays a key of its own
+        mixed.addAll(List.of(
+                new Password("\u0130a_bank", "owner", "p"),
+                new Password("ib_bank", "owner", "p"),
+                new Password("\u03bf\u03c3", "owner", "p"),
+                new Password("\u03bf\u03c2", "owner", "p"),
+                new Password("mybank", "owner", "p"),
+                new Password("my_bank", "owner", "p")));
+        String expected = "[ib_bank, \u0130a_bank, my_bank, mybank, \u03bf\u03c2, \u03bf\u03c3]";
+        assertEquals(expected, services(mixed.search("")));
+
+        for (int i = 0; i < 100; i++) {
+            mixed.add(new Password("filler" + i, "user" + i, "p"));
+        }
+        // Few candidates, so the matches are sorted instead of scanned
+        assertEquals(expected, services(mixed.search("owner")));
+
+        mixed.add(new Password("i\u0307a_bank", "owner", "changed"));
+        assertEquals(106, mixed.size());
+        assertEquals("[i\u0307a_bank]", services(mixed.search("a_ba")));
+    }
+
+    /**
+     * @brief Tests that selective queries on a large index only return true matches, in order.
+     */
+    @Test
+    public void testSelectiveQueryOnLargeIndex() {
+        SearchIndex large = new SearchIndex();
+        for (int i = 0; i < 2000; i++) {
+            large.add(new Password("service" + i, "user" + i + "@example.com", "p"));
+        }
+        assertEquals("[service1234]", services(large.search("ice1234")));
+        assertEquals(11, large.search("vice199").size());
+        assertEquals("service1990", large.search("vice199").get(1).getService());
+        assertEquals(2000, large.search("example").size());
+    }
+}
@@ -0,0 +1,159 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for SessionKey.
+ *
+ * These tests verify key caching, compatibility with EncryptionUtil, and use from
+ * several threads.
+ */
+public class SessionKeyTest {
+
+    /**
+     * @brief Tests that the same master password returns the cached key.
+     */
+    @Test
+    public void testKeyIsCached() {
+        SessionKey first = SessionKey.forMasterPassword("cached-master");
+        SessionKey second = SessionKey.forMasterPassword(new String("cached-master"));
+        assertSame(first, second);
+
+        SessionKey other = SessionKey.forMasterPassword("other-master");
+        assertNotSame(first, other);
+        assertSame(other, SessionKey.forMasterPassword("other-master"));
+    }
+
+    /**
+     * @brief Tests that the session key produces the same ciphertext as EncryptionUtil.
+     */
+    @Test
+    public void testCompatibleWithEncryptionUtil() throws Exception {
+        SessionKey key = SessionKey.forMasterPassword("compat-master");
+        String encrypted = key.encrypt("gmail,user,pass");
+
+        assertEquals(EncryptionUtil.encrypt("gmail,user,pass", "compat-master"), encrypted);
+        assertEquals("gmail,user,pass", EncryptionUtil.decrypt(encrypted, key));
+        assertEquals("gmail,user,pass", key.decrypt(EncryptionUtil.encrypt("gmail,user,pass", key)));
+    }
+
+    /**
+     * @brief Tests that the reused Ciphers give correct results on several threads.
+     */
+    @Test
+    public void testConcurrentUse() throws Exception {
+        SessionKey key = SessionKey.forMasterPassword("thread-master");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String data = "entry-" + thread + "-" + i;
+                        if (!data.equals(key.decrypt(key.encrypt(data)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @brief Tests that data keys are cached by their bytes.
+     */
+    @Test
+    public void testDataKey() throws Exception {
+        byte[] bytes = new byte[32];
+        Arrays.fill(bytes, (byte) 7);
+        SessionKey key = SessionKey.forDataKey(bytes);
+        assertSame(key, SessionKey.forDataKey(bytes.clone()));
+        assertEquals("secret", key.decrypt(key.encrypt("secret")));
+
+        bytes[0] = 8;
+        assertNotSame(key, SessionKey.forDataKey(bytes));
+        assertNotSame(key, SessionKey.forMasterPassword("data-master"));
+    }
+
+    /**
+     * @brief Tests that sealed data opens only unchanged and with the same associated data.
+     */
+    @Test
+    public void testSealAndOpen() throws Exception {
+        SessionKey key = SessionKey.forMasterPassword("seal-master");
+        byte[] data = "some records".getBytes(StandardCharsets.UTF_8);
+        byte[] aad = { 1, 2, 3 };
+        byte[] sealed = key.seal(data, 0, data.length, aad);
+        assertEquals(SessionKey.NONCE_BYTES + data.length + SessionKey.TAG_BYTES, sealed.length);
+        assertArrayEquals(data, key.open(sealed, 0, sealed.length, aad));
+        assertFalse(Arrays.equals(sealed, key.seal(data, 0, data.length, aad)));
+
+        byte[][] failures = { Arrays.copyOf(sealed, sealed.length - 1), sealed.clone(), new byte[4] };
+        failures[1][SessionKey.NONCE_BYTES] ^= 1;
+        for (byte[] bad : failures) {
+            try {
+                key.open(bad, 0, bad.length, aad);
+                fail("Changed data should not open");
+            } catch (GeneralSecurityException expected) {
+            }
+        }
+        try {
+            key.open(sealed, 0, sealed.length, new byte[] { 1, 2 });
+            fail("Other associated data should not open");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    /**
+     * @brief Tests that decrypting with the wrong key fails.
+     */
+    @Test(expected = Exception.class)
+    public void testWrongKeyFails() throws Exception {
+        String encrypted = SessionKey.forMasterPassword("right-master").encrypt("secret");
+        SessionKey.forMasterPassword("wrong-master").decrypt(encrypted);
+    }
+
+    /**
+     * @brief Tests that decrypts() predicts whether decrypt() succeeds.
+     */
+    @Test
+    public void testDecrypts() throws Exception {
+        SessionKey key = SessionKey.forMasterPassword("check-master");
+        byte[] encrypted = key.encrypt("a secret longer than one block".getBytes(StandardCharsets.UTF_8));
+        assertTrue(key.decrypts(encrypted));
+
+        // The first block of a full block of zeros ends in zeros, which is not a valid padding
+        byte[] badPadding = Arrays.copyOf(key.encrypt(new byte[16]), 16);
+        assertFalse(key.decrypts(badPadding));
+        try {
+            key.decrypt(badPadding);
+            fail("Decrypting a block without padding should fail");
+        } catch (GeneralSecurityException expected) {
+        }
+        assertFalse(key.decrypts(Arrays.copyOf(encrypted, encrypted.length - 1)));
+        assertFalse(key.decrypts(new byte[0]));
+    }
+
+    /**
+     * @brief Tests that a null master password is rejected.
+     */
+    @Test(expected = NullPointerException.class)
+    public void testNullMasterPassword() {
+        SessionKey.forMasterPassword(null);
+    }
+}
@@ -0,0 +1,81 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @brief Unit tests for SqliteProfile.
+ *
+ * These tests verify that each profile sets the expected pragmas and that the
+ * profile can be selected with a system property.
+ */
+public class SqliteProfileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @brief Reads one pragma value as text.
+     */
+    private static String pragma(Connection conn, String name) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA " + name)) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    /**
+     * @brief Tests the pragmas of every profile on a file database.
+     */
+    @Test
+    public void testApply() throws Exception {
+        String[] synchronous = { "2", "1", "0" };
+        for (SqliteProfile profile : SqliteProfile.values()) {
+            File db = new File(folder.getRoot(), profile + ".db");
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getPath())) {
+                profile.apply(conn);
+                assertEquals("wal", pragma(conn, "journal_mode"));
+                assertEquals(synchronous[profile.ordinal()], pragma(conn, "synchronous"));
+                assertEquals(String.valueOf(profile.busyTimeoutMillis()), pragma(conn, "busy_timeout"));
+            }
+        }
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + new File(folder.getRoot(), "fast.db"))) {
+            SqliteProfile.FAST.apply(conn);
+            assertEquals("-32768", pragma(conn, "cache_size"));
+            assertEquals("2", pragma(conn, "temp_store"));
+        }
+    }
+
+    /**
+     * @brief Tests selecting the profile with the system property.
+     */
+    @Test
+    public void testConfigured() {
+        PrintStream originalOut = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out));
+        try {
+            System.clearProperty(SqliteProfile.PROFILE_PROPERTY);
+            assertEquals(SqliteProfile.BALANCED, SqliteProfile.configured());
+            System.setProperty(SqliteProfile.PROFILE_PROPERTY, " fast ");
+            assertEquals(SqliteProfile.FAST, SqliteProfile.configured());
+            System.setProperty(SqliteProfile.PROFILE_PROPERTY, "turbo");
+            assertEquals(SqliteProfile.BALANCED, SqliteProfile.configured());
+            assertTrue(out.toString().contains("Unknown SQLite profile"));
+        } finally {
+            System.clearProperty(SqliteProfile.PROFILE_PROPERTY);
+            System.setOut(originalOut);
+        }
+    }
+}
@@ -12,11 +12,11 @@ import org.junit.Test;
 public class StorageTypeTest {
 
     /**
-     * @brief Tests that StorageType enum contains exactly FILE and SQLITE.
+     * @brief Tests that StorageType enum contains exactly FILE, SQLITE and MMAP.
      */
     @Test
     public void testEnumValues() {
-        StorageType[] expected = { StorageType.FILE, StorageType.SQLITE };
+        StorageType[] expected = { StorageType.FILE, StorageType.SQLITE, StorageType.MMAP };
         StorageType[] actual = StorageType.values();
         assertArrayEquals("StorageType values should match expected order and values", expected, actual);
     }
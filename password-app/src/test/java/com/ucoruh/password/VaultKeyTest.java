@@ -0,0 +1,241 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for VaultKey.
+ *
+ * These tests verify that data keys are created, adopted from vaults written before
+ * data keys existed, and re-wrapped without touching the entries.
+ */
+public class VaultKeyTest {
+
+    private static final String MASTER = "vault-key-master";
+
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+
+    @Before
+    public void setUp() {
+        System.setOut(new PrintStream(outContent));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    /**
+     * @brief Header kept in memory, with one sample record.
+     */
+    private static class MemoryHeader implements VaultKey.Header<RuntimeException> {
+        private String header;
+        private String sample;
+        private int saves;
+
+        public String load() { return header; }
+        public void save(String header) { this.header = header; saves++; }
+        public String sampleRecord() { return sample; }
+    }
+
+    /**
+     * @brief Tests that an empty vault gets a random key that later unlocks reuse.
+     */
+    @Test
+    public void testNewVaultGetsRandomKey() throws Exception {
+        MemoryHeader header = new MemoryHeader();
+        KeyRing key = VaultKey.unlock(header, MASTER);
+        assertEquals(1, header.saves);
+        assertEquals(VaultKey.KEY_BYTES, VaultKey.parse(header.header, MASTER).currentKey().keyBytes().length);
+        assertNotSame(SessionKey.forMasterPassword(MASTER), key.currentKey());
+
+        header.sample = key.encrypt("gmail,user,pass");
+        assertEquals("gmail,user,pass", VaultKey.unlock(header, MASTER).decrypt(header.sample));
+        assertEquals(1, header.saves);
+
+        MemoryHeader other = new MemoryHeader();
+        VaultKey.unlock(other, MASTER);
+        assertNotEquals(header.header, other.header);
+    }
+
+    /**
+     * @brief Tests that a vault without a header adopts the master-derived key.
+     */
+    @Test
+    public void testLegacyVaultIsAdopted() throws Exception {
+        MemoryHeader header = new MemoryHeader();
+        header.sample = EncryptionUtil.encrypt("gmail,user,pass", MASTER);
+
+        KeyRing key = VaultKey.unlock(header, MASTER);
+        assertEquals("gmail,user,pass", key.decrypt(header.sample));
+        assertNotNull(header.header);
+        assertEquals(16, VaultKey.parse(header.header, MASTER).currentKey().keyBytes().length);
+    }
+
+    /**
+     * @brief Tests that a wrong master password leaves the vault and its header alone.
+     */
+    @Test
+    public void testWrongMasterPassword() throws Exception {
+        MemoryHeader header = new MemoryHeader();
+        header.sample = VaultKey.unlock(header, MASTER).encrypt("gmail,user,pass");
+        String stored = header.header;
+
+        assertNull(VaultKey.unlock(header, "wrong"));
+        assertEquals(stored, header.header);
+        assertTrue(outContent.toString().contains("does not unlock the vault key"));
+        assertFalse(VaultKey.rewrap(header, "wrong", "new"));
+
+        // A legacy vault written with another password is not adopted either
+        MemoryHeader foreign = new MemoryHeader();
+        foreign.sample = EncryptionUtil.encrypt("gmail,user,pass", "other");
+        VaultKey.unlock(foreign, MASTER);
+        assertNull(foreign.header);
+    }
+
+    /**
+     * @brief Tests that re-wrapping changes only the header.
+     */
+    @Test
+    public void testRewrap() throws Exception {
+        MemoryHeader header = new MemoryHeader();
+        header.sample = VaultKey.unlock(header, MASTER).encrypt("gmail,user,pass");
+
+        assertTrue(VaultKey.rewrap(header, MASTER, "new-master"));
+        assertEquals("gmail,user,pass", VaultKey.unlock(header, "new-master").decrypt(header.sample));
+        try {
+            VaultKey.parse(header.header, MASTER);
+            fail("The old master password should no longer unwrap the key");
+        } catch (java.security.GeneralSecurityException expected) {
+        }
+
+        // A legacy vault gets its header on the way
+        MemoryHeader legacy = new MemoryHeader();
+        legacy.sample = EncryptionUtil.encrypt("gmail,user,pass", MASTER);
+        assertTrue(VaultKey.rewrap(legacy, MASTER, "new-master"));
+        assertEquals("gmail,user,pass", VaultKey.unlock(legacy, "new-master").decrypt(legacy.sample));
+
+        // An empty vault without a header has nothing to re-wrap
+        MemoryHeader empty = new MemoryHeader();
+        assertTrue(VaultKey.rewrap(empty, MASTER, "new-master"));
+        assertEquals(0, empty.saves);
+    }
+
+    /**
+     * @brief Tests headers that do not belong to the vault they sit next to.
+     */
+    @Test
+    public void testStaleHeaders() throws Exception {
+        // Left over from an emptied vault of another master password
+        MemoryHeader emptied = new MemoryHeader();
+        VaultKey.unlock(emptied, "other");
+        KeyRing key = VaultKey.unlock(emptied, MASTER);
+        emptied.sample = key.encrypt("gmail,user,pass");
+        assertEquals("gmail,user,pass", VaultKey.unlock(emptied, MASTER).decrypt(emptied.sample));
+
+        // Next to records the header's keys do not read, the header that opens is kept
+        MemoryHeader restored = new MemoryHeader();
+        VaultKey.unlock(restored, MASTER);
+        String stored = restored.header;
+        restored.sample = EncryptionUtil.encrypt("gmail,user,pass", MASTER);
+        KeyRing kept = VaultKey.unlock(restored, MASTER);
+        assertTrue(kept.isVerified());
+        assertEquals(stored, restored.header);
+        assertEquals(1, restored.saves);
+    }
+
+    /**
+     * @brief Tests the key check of the header.
+     */
+    @Test
+    public void testKeyCheck() throws Exception {
+        MemoryHeader header = new MemoryHeader();
+        KeyRing ring = VaultKey.unlock(header, MASTER);
+        assertTrue(ring.isVerified());
+        assertTrue(header.header.contains("\n#:"));
+        KeyRing rotating = VaultKey.beginRotation(header, MASTER);
+        VaultKey.saveCheckpoint(header, rotating, "gmail", MASTER);
+        assertTrue(VaultKey.parse(header.header, MASTER).isVerified());
+
+        // Swapping the versions of the keys keeps every key wrap intact but fails the check
+        String[] lines = header.header.split("\n");
+        String swapped = "1" + lines[1].substring(1) + "\n2" + lines[0].substring(1) + "\n" + lines[2] + "\n" + lines[3];
+        try {
+            VaultKey.parse(swapped, MASTER);
+            fail("A changed header should fail its check");
+        } catch (java.security.GeneralSecurityException expected) {
+        }
+
+        // Headers written before the check still open
+        String unchecked = header.header.substring(0, header.header.lastIndexOf("\n#:"));
+        assertEquals("gmail", VaultKey.parse(unchecked, MASTER).checkpoint());
+    }
+
+    /**
+     * @brief Tests that a legacy vault is not adopted when its record does not decrypt to text.
+     */
+    @Test
+    public void testLegacyVaultNeedsText() throws Exception {
+        MemoryHeader header = new MemoryHeader();
+        header.sample = java.util.Base64.getEncoder().encodeToString(
+                SessionKey.forMasterPassword(MASTER).encrypt(new byte[] { 0, 1, 2, 3 }));
+        assertNull(VaultKey.unlock(header, MASTER));
+        assertNull(header.header);
+    }
+
+    /**
+     * @brief Tests that a header in an unknown format is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownHeaderFormat() throws Exception {
+        VaultKey.parse("garbage", MASTER);
+    }
+
+    /**
+     * @brief Tests that a rotation adds a key version, keeps its checkpoint and ends
+     * with the new key alone.
+     */
+    @Test
+    public void testRotation() throws Exception {
+        MemoryHeader header = new MemoryHeader();
+        String old = VaultKey.unlock(header, MASTER).encrypt("gmail,user,pass");
+        header.sample = old;
+
+        KeyRing rotating = VaultKey.beginRotation(header, MASTER);
+        assertTrue(rotating.isRotating());
+        assertEquals(2, rotating.currentVersion());
+        assertNull(rotating.checkpoint());
+        assertArrayEquals(rotating.currentKey().keyBytes(),
+                VaultKey.beginRotation(header, MASTER).currentKey().keyBytes());
+
+        String rotated = rotating.encrypt("gmail,user,pass");
+        assertTrue(rotated.startsWith("2:"));
+        VaultKey.saveCheckpoint(header, rotating, "gmail", MASTER);
+        KeyRing resumed = VaultKey.unlock(header, MASTER);
+        assertEquals("gmail", resumed.checkpoint());
+        assertEquals("gmail,user,pass", resumed.decrypt(old));
+        assertEquals("gmail,user,pass", resumed.decrypt(rotated));
+        assertTrue(VaultKey.rewrap(header, MASTER, "new-master"));
+        assertEquals("gmail", VaultKey.unlock(header, "new-master").checkpoint());
+
+        header.sample = rotated;
+        KeyRing finished = VaultKey.finishRotation(header, resumed, "new-master");
+        assertFalse(finished.isRotating());
+        assertEquals("gmail,user,pass", VaultKey.unlock(header, "new-master").decrypt(rotated));
+        try {
+            VaultKey.unlock(header, "new-master").decrypt(old);
+            fail("The old key should be gone");
+        } catch (java.security.GeneralSecurityException expected) {
+        }
+
+        // A rotation cannot start with the wrong master password
+        assertNull(VaultKey.beginRotation(header, MASTER));
+    }
+}
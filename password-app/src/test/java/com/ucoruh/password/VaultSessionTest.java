@@ -0,0 +1,227 @@
+package com.ucoruh.password;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @brief Unit tests for VaultSession.
+ *
+ * These tests verify that reads are served from the index, that writes keep the
+ * index and the storage in step, and that external changes and listeners are handled.
+ */
+public class VaultSessionTest {
+
+    private static final String MASTER = "session-master-password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+    private String vault;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setOut(new PrintStream(outContent));
+        vault = folder.newFile("passwords.txt").getPath();
+        System.clearProperty(VaultSession.STORAGE_PROPERTY);
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+        System.clearProperty(VaultSession.STORAGE_PROPERTY);
+    }
+
+    /**
+     * @brief File storage that counts full reads.
+     */
+    private static class CountingStorage extends FilePasswordStorage {
+        private int reads;
+
+        CountingStorage(String fileName) {
+            super(MASTER, fileName, 100);
+        }
+
+        @Override
+        public List<Password> readAll() {
+            reads++;
+            return super.readAll();
+        }
+    }
+
+    /**
+     * @brief Tests that the vault is read once and then served from memory.
+     */
+    @Test
+    public void testReadsAreServedFromIndex() {
+        CountingStorage storage = new CountingStorage(vault);
+        storage.putAll(List.of(new Password("gmail", "u1", "p1"), new Password("Dropbox", "u2", "p2")));
+        VaultSession session = new VaultSession(storage);
+
+        assertTrue(session.refresh());
+        assertFalse(session.refresh());
+        assertEquals(2, session.count());
+        assertTrue(session.contains("GMAIL"));
+        assertEquals("p2", session.get("dropbox").getPassword());
+        assertEquals("Dropbox", session.readPage(0, 1).get(0).getService());
+        assertEquals(2, session.readAll().size());
+        assertEquals(1, storage.reads);
+
+        session.put(new Password("github", "u3", "p3"));
+        session.put(new Password("GMAIL", "u1", "changed"));
+        assertEquals(1, session.removeAll(List.of("dropbox", "DROPBOX", "missing")));
+        assertEquals(0, session.removeAll(List.of("missing")));
+        assertEquals("[github, GMAIL]", services(session.readPage(0, 10)));
+        assertEquals(1, storage.reads);
+        assertEquals(storage.generation(), session.generation());
+
+        List<Password> stored = new FilePasswordStorage(MASTER, vault, 100).readAll();
+        assertEquals(2, stored.size());
+        assertEquals("changed", new FilePasswordStorage(MASTER, vault, 100).get("gmail").getPassword());
+        session.close();
+    }
+
+    /**
+     * @brief Tests that changes made outside the session are picked up by refresh.
+     */
+    @Test
+    public void testRefreshPicksUpExternalChanges() throws Exception {
+        VaultSession session = new VaultSession(new FilePasswordStorage(MASTER, vault, 100));
+        assertEquals(0, session.count());
+
+        Thread.sleep(10);
+        new FilePasswordStorage(MASTER, vault, 100).put(new Password("gmail", "user", "pass"));
+        assertTrue(session.refresh());
+        assertEquals(1, session.count());
+        assertFalse(session.refresh());
+    }
+
+    /**
+     * @brief Tests that listeners hear about every change until they are removed.
+     */
+    @Test
+    public void testListeners() {
+        VaultSession session = new VaultSession(new FilePasswordStorage(MASTER, vault, 100));
+        AtomicInteger changes = new AtomicInteger();
+        VaultSession.Listener listener = changed -> {
+            assertSame(session, changed);
+            changes.incrementAndGet();
+        };
+        session.addListener(listener);
+
+        session.refresh();
+        session.put(new Password("gmail", "user", "pass"));
+        session.remove("gmail");
+        session.writeAll(new ArrayList<>(List.of(new Password("dropbox", "user", "pass"))));
+        assertEquals(4, changes.get());
+
+        session.removeListener(listener);
+        session.remove("dropbox");
+        assertEquals(4, changes.get());
+        assertEquals(0, session.count());
+    }
+
+    /**
+     * @brief Tests that search follows writes made through the session.
+     */
+    @Test
+    public void testSearch() {
+        VaultSession session = new VaultSession(new FilePasswordStorage(MASTER, vault, 100));
+        session.putAll(List.of(new Password("gmail", "alice", "p1"), new Password("github", "bob", "p2")));
+
+        assertEquals("[github, gmail]", services(session.search("g")));
+        session.put(new Password("mailbox", "alice", "p3"));
+        session.remove("gmail");
+        assertEquals("[mailbox]", services(session.search("ALI")));
+        session.writeAll(new ArrayList<>(List.of(new Password("bank", "alice", "p4"))));
+        assertEquals("[bank]", services(session.search("alice")));
+    }
+
+    /**
+     * @brief Tests that the session identifies services by Password.key(), like the storage.
+     */
+    @Test
+    public void testServicesMatchTheStorage() {
+        FilePasswordStorage storage = new FilePasswordStorage(MASTER, vault, 100);
+        VaultSession session = new VaultSession(storage);
+        session.put(new Password("\u03bf\u03c3", "u1", "p1"));
+        session.put(new Password("\u03bf\u03c2", "u2", "p2"));
+        session.put(new Password("\u0130x", "u3", "p3"));
+        session.put(new Password("i\u0307x", "u4", "p4"));
+
+        assertEquals(3, session.count());
+        List<Password> stored = storage.readAll();
+        stored.sort(Password.BY_SERVICE);
+        assertEquals(services(stored), services(session.readAll()));
+        assertEquals("p4", session.get("\u0130X").getPassword());
+        assertEquals("p1", session.get("\u03bf\u03c3").getPassword());
+        assertEquals("[i\u0307x]", services(session.search("x")));
+    }
+
+    /**
+     * @brief Tests the interactive methods and the unknown-generation fallback.
+     */
+    @Test
+    public void testInteractiveMethods() {
+        InterfacePasswordStorage plain = new InterfacePasswordStorage() {
+            private List<Password> entries = new ArrayList<>();
+            public void add(Scanner scanner) { entries.add(new Password(scanner.nextLine(), "user", "pass")); }
+            public void view() { }
+            public void update(Scanner scanner) { entries.get(0).setUsername(scanner.nextLine()); }
+            public void delete(Scanner scanner) { entries.remove(0); }
+            public List<Password> readAll() { return new ArrayList<>(entries); }
+            public void writeAll(List<Password> list) { entries = new ArrayList<>(list); }
+        };
+        VaultSession session = new VaultSession(plain);
+
+        session.view();
+        assertTrue(outContent.toString().contains("No records found."));
+
+        session.add(new Scanner("gmail\n"));
+        assertTrue(session.contains("gmail"));
+        session.update(new Scanner("someone\n"));
+        assertEquals("someone", session.get("gmail").getUsername());
+        session.put(new Password("dropbox", "user", "pass"));
+        assertEquals(2, session.count());
+        session.view();
+        assertTrue(outContent.toString().contains("2. Service: gmail"));
+        session.delete(new Scanner("\n"));
+        assertEquals("[dropbox]", services(session.readAll()));
+        assertTrue(session.refresh());
+    }
+
+    /**
+     * @brief Tests the storage type selected with the system property.
+     */
+    @Test
+    public void testConfiguredStorageType() {
+        assertEquals(StorageType.FILE, VaultSession.configuredStorageType());
+        System.setProperty(VaultSession.STORAGE_PROPERTY, " sqlite ");
+        assertEquals(StorageType.SQLITE, VaultSession.configuredStorageType());
+        System.setProperty(VaultSession.STORAGE_PROPERTY, "cloud");
+        assertEquals(StorageType.FILE, VaultSession.configuredStorageType());
+        assertTrue(outContent.toString().contains("Unknown storage type 'cloud'"));
+    }
+
+    private static String services(List<Password> list) {
+        List<String> names = new ArrayList<>();
+        for (Password p : list) {
+            names.add(p.getService());
+        }
+        return names.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.ucoruh.password.gui;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @brief Unit tests for the VaultWorker class.
+ */
+public class VaultWorkerTest {
+
+    /**
+     * Runs Swing without a display; the tests open no dialog.
+     */
+    @BeforeClass
+    public static void setUpHeadless() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    /**
+     * Tests that the result of a cancelled task is closed instead of being dropped.
+     */
+    @Test
+    public void testCancelledResultIsClosed() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        AtomicBoolean delivered = new AtomicBoolean();
+        VaultWorker<AutoCloseable> worker = new VaultWorker<>(null, "Working...", "Error", () -> {
+            started.countDown();
+            release.await();
+            return closed::countDown;
+        }, result -> delivered.set(true), true);
+        worker.execute();
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(worker.requestCancel());
+        release.countDown();
+
+        assertTrue("The discarded result should be closed", closed.await(5, TimeUnit.SECONDS));
+        assertFalse(delivered.get());
+    }
+
+    /**
+     * Tests that a task that changes the vault cannot be cancelled and delivers its result.
+     */
+    @Test
+    public void testChangeCannotBeCancelled() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch delivered = new CountDownLatch(1);
+        VaultWorker<String> worker = new VaultWorker<>(null, "Working...", "Error", () -> {
+            release.await();
+            return "changed";
+        }, result -> delivered.countDown(), false);
+        worker.execute();
+
+        assertFalse(worker.requestCancel());
+        release.countDown();
+
+        assertEquals("changed", worker.get(5, TimeUnit.SECONDS));
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertFalse(worker.isCancelled());
+    }
+}
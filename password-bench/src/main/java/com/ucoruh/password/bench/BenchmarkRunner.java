@@ -0,0 +1,43 @@
+package com.ucoruh.password.bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @file BenchmarkRunner.java
+ * @class BenchmarkRunner
+ * @brief Runs the JMH benchmarks and writes the results as JSON
+ * @details Accepts the usual JMH command line options, for example a benchmark regex,
+ * -p entries=10,1000 or -f 0. Unless -rf or -rff is given, the results are written to
+ * jmh-results/&lt;timestamp&gt;.json so that runs can be compared over time.
+ */
+public class BenchmarkRunner {
+    /**
+     * @brief Directory that collects the result files
+     */
+    private static final String RESULT_DIR = "jmh-results";
+
+    /**
+     * @brief Runs the benchmarks
+     *
+     * @param args JMH command line options
+     * @throws Exception If the options are invalid or a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue() && !cmd.getResult().hasValue()) {
+            new File(RESULT_DIR).mkdirs();
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            builder.resultFormat(ResultFormatType.JSON)
+                    .result(RESULT_DIR + File.separator + stamp + ".json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
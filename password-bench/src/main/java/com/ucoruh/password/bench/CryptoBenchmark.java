@@ -0,0 +1,113 @@
+package com.ucoruh.password.bench;
+
+import com.ucoruh.password.EncryptionUtil;
+import com.ucoruh.password.SessionKey;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @file CryptoBenchmark.java
+ * @class CryptoBenchmark
+ * @brief Throughput of EncryptionUtil and SessionKey
+ * @details Measures encryption and decryption with the master password, where the key
+ * is looked up per call, and with an already derived SessionKey, as well as hashString.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CryptoBenchmark {
+    /**
+     * @brief Master password used by all benchmarks
+     */
+    private static final String MASTER = "benchmark-master-password";
+
+    /**
+     * @brief Length of the plaintext in characters
+     */
+    @Param({"16", "64", "1024"})
+    public int size;
+
+    /**
+     * @brief Plaintext of the configured size
+     */
+    private String plaintext;
+
+    /**
+     * @brief Ciphertext of the plaintext
+     */
+    private String ciphertext;
+
+    /**
+     * @brief Key derived once for the session benchmarks
+     */
+    private SessionKey key;
+
+    /**
+     * @brief Prepares the plaintext, ciphertext and key
+     *
+     * @throws Exception If encryption fails
+     */
+    @Setup
+    public void setUp() throws Exception {
+        plaintext = "x".repeat(size);
+        key = SessionKey.forMasterPassword(MASTER);
+        ciphertext = key.encrypt(plaintext);
+    }
+
+    /**
+     * @brief Encrypts with the master password
+     *
+     * @return String The ciphertext
+     * @throws Exception If encryption fails
+     */
+    @Benchmark
+    public String encrypt() throws Exception {
+        return EncryptionUtil.encrypt(plaintext, MASTER);
+    }
+
+    /**
+     * @brief Decrypts with the master password
+     *
+     * @return String The plaintext
+     * @throws Exception If decryption fails
+     */
+    @Benchmark
+    public String decrypt() throws Exception {
+        return EncryptionUtil.decrypt(ciphertext, MASTER);
+    }
+
+    /**
+     * @brief Encrypts with the session key
+     *
+     * @return String The ciphertext
+     * @throws Exception If encryption fails
+     */
+    @Benchmark
+    public String encryptWithSessionKey() throws Exception {
+        return key.encrypt(plaintext);
+    }
+
+    /**
+     * @brief Decrypts with the session key
+     *
+     * @return String The plaintext
+     * @throws Exception If decryption fails
+     */
+    @Benchmark
+    public String decryptWithSessionKey() throws Exception {
+        return key.decrypt(ciphertext);
+    }
+
+    /**
+     * @brief Hashes the plaintext with SHA-256
+     *
+     * @return String The hex digest
+     */
+    @Benchmark
+    public String hashString() {
+        return EncryptionUtil.hashString(plaintext);
+    }
+}
@@ -0,0 +1,74 @@
+package com.ucoruh.password.bench;
+
+import com.ucoruh.password.PasswordGenerator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @file GeneratorBenchmark.java
+ * @class GeneratorBenchmark
+ * @brief Throughput of PasswordGenerator at several lengths and character sets
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GeneratorBenchmark {
+    /**
+     * @brief Length of the generated password
+     */
+    @Param({"8", "16", "32", "128"})
+    public int length;
+
+    /**
+     * @brief Character sets to draw from: ALL, ALPHANUMERIC, LOWERCASE or DIGITS
+     */
+    @Param({"ALL", "ALPHANUMERIC", "LOWERCASE", "DIGITS"})
+    public String charset;
+
+    /**
+     * @brief Whether uppercase letters are included
+     */
+    private boolean upper;
+
+    /**
+     * @brief Whether lowercase letters are included
+     */
+    private boolean lower;
+
+    /**
+     * @brief Whether digits are included
+     */
+    private boolean digits;
+
+    /**
+     * @brief Whether special characters are included
+     */
+    private boolean special;
+
+    /**
+     * @brief Maps the character set name to the generator flags
+     */
+    @Setup
+    public void setUp() {
+        switch (charset) {
+            case "ALL" -> { upper = true; lower = true; digits = true; special = true; }
+            case "ALPHANUMERIC" -> { upper = true; lower = true; digits = true; }
+            case "LOWERCASE" -> lower = true;
+            case "DIGITS" -> digits = true;
+            default -> throw new IllegalArgumentException("Unknown charset: " + charset);
+        }
+    }
+
+    /**
+     * @brief Generates one password
+     *
+     * @return String The generated password
+     */
+    @Benchmark
+    public String generatePassword() {
+        return PasswordGenerator.generatePassword(length, upper, lower, digits, special);
+    }
+}
@@ -0,0 +1,69 @@
+package com.ucoruh.password.bench;
+
+import com.ucoruh.password.Password;
+import com.ucoruh.password.SearchIndex;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @file SearchBenchmark.java
+ * @class SearchBenchmark
+ * @brief Search-as-you-type queries against the trigram SearchIndex
+ * @details The queries cover a selective one answered from a posting set, a broad
+ * one that most entries match, and a short one below the trigram length that scans.
+ * A GUI keystroke should stay well under 10 ms at 100k entries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SearchBenchmark {
+    /**
+     * @brief Number of indexed entries
+     */
+    @Param({"1000", "100000"})
+    public int entries;
+
+    /**
+     * @brief The text typed into the search field
+     */
+    @Param({"vice4242", "example", "42"})
+    public String query;
+
+    /**
+     * @brief The index under test
+     */
+    private SearchIndex index;
+
+    /**
+     * @brief Builds the index
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        index = new SearchIndex();
+        for (int i = 0; i < entries; i++) {
+            index.add(new Password("service" + i, "user" + i + "@example.com", "Secret#" + i));
+        }
+    }
+
+    /**
+     * @brief Runs one query
+     *
+     * @return List The matches
+     */
+    @Benchmark
+    public List<Password> search() {
+        return index.search(query);
+    }
+
+    /**
+     * @brief Replaces one entry, as a put through a VaultSession does
+     */
+    @Benchmark
+    public void replaceEntry() {
+        index.add(new Password("service7", "changed@example.com", "Secret#7"));
+    }
+}
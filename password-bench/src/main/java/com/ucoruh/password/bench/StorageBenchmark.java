@@ -0,0 +1,215 @@
+package com.ucoruh.password.bench;
+
+import com.ucoruh.password.DatabasePasswordStorage;
+import com.ucoruh.password.FilePasswordStorage;
+import com.ucoruh.password.InterfacePasswordStorage;
+import com.ucoruh.password.LogStructuredFileEngine;
+import com.ucoruh.password.MappedPasswordStorage;
+import com.ucoruh.password.Password;
+import com.ucoruh.password.StorageType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @file StorageBenchmark.java
+ * @class StorageBenchmark
+ * @brief Whole-vault and single-entry operations of every StorageType
+ * @details Each trial fills a fresh vault in a temporary directory with synthetic
+ * entries. Every StorageType is covered because the type parameter has no explicit
+ * values, so JMH runs all enum constants. The 1M case takes a while to set up; pass
+ * for example -p entries=10,1000 to the runner to skip it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class StorageBenchmark {
+    /**
+     * @brief Master password used by all benchmarks
+     */
+    private static final String MASTER = "benchmark-master-password";
+
+    /**
+     * @brief The storage implementation under test
+     */
+    @Param
+    public StorageType type;
+
+    /**
+     * @brief Number of entries in the vault
+     */
+    @Param({"10", "1000", "100000", "1000000"})
+    public int entries;
+
+    /**
+     * @brief Directory that holds the vault of this trial
+     */
+    private Path dir;
+
+    /**
+     * @brief The storage under test
+     */
+    private InterfacePasswordStorage storage;
+
+    /**
+     * @brief Entries as loaded from the storage, used for writeAll
+     */
+    private List<Password> loaded;
+
+    /**
+     * @brief Counter that picks the entry touched by the next single-entry operation
+     */
+    private int next;
+
+    /**
+     * @brief Creates and fills the vault
+     *
+     * @throws IOException If the temporary directory cannot be created
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("password-bench");
+        storage = open(type, dir);
+        List<Password> list = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            list.add(new Password(service(i), "user" + i + "@example.com", "Secret#" + i));
+        }
+        storage.putAll(list);
+        loaded = storage.readAll();
+    }
+
+    /**
+     * @brief Closes the storage and deletes the vault
+     *
+     * @throws IOException If the vault cannot be deleted
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * @brief Opens a storage of the given type inside a directory
+     *
+     * @param type The storage type
+     * @param dir The directory that holds the vault
+     * @return InterfacePasswordStorage The opened storage
+     */
+    static InterfacePasswordStorage open(StorageType type, Path dir) {
+        switch (type) {
+            case FILE:
+                return new FilePasswordStorage(MASTER, dir.resolve("passwords.txt").toString(),
+                        LogStructuredFileEngine.DEFAULT_COMPACTION_THRESHOLD);
+            case SQLITE:
+                String url = "jdbc:sqlite:" + dir.resolve("passwords.db");
+                return new DatabasePasswordStorage(MASTER) {
+                    @Override
+                    protected String getDatabaseUrl() {
+                        return url;
+                    }
+                };
+            case MMAP:
+                return new MappedPasswordStorage(MASTER, dir.resolve("passwords.vault").toString());
+            default:
+                throw new IllegalArgumentException("Unsupported storage type: " + type);
+        }
+    }
+
+    /**
+     * @brief Returns the service name of the i-th synthetic entry
+     *
+     * @param i The entry index
+     * @return String The service name
+     */
+    private static String service(int i) {
+        return "service-" + i;
+    }
+
+    /**
+     * @brief Returns the index of the entry touched by the next single-entry operation
+     *
+     * @return int The entry index
+     */
+    private int nextIndex() {
+        next = (next + 7919) % entries;
+        return next;
+    }
+
+    /**
+     * @brief Reads and decrypts the whole vault through the open storage
+     *
+     * @return List The entries
+     */
+    @Benchmark
+    public List<Password> readAll() {
+        return storage.readAll();
+    }
+
+    /**
+     * @brief Opens the vault with a new storage object and reads it
+     *
+     * @return List The entries
+     * @throws Exception If the storage cannot be closed
+     */
+    @Benchmark
+    public List<Password> openAndReadAll() throws Exception {
+        try (InterfacePasswordStorage fresh = open(type, dir)) {
+            return fresh.readAll();
+        }
+    }
+
+    /**
+     * @brief Writes the whole vault back after changing one entry
+     */
+    @Benchmark
+    public void writeAllOneChanged() {
+        loaded.get(nextIndex()).setPassword("Changed#" + next);
+        storage.writeAll(loaded);
+    }
+
+    /**
+     * @brief Reads one entry
+     *
+     * @return String The decrypted password
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String getOne() {
+        return storage.get(service(nextIndex())).getPassword();
+    }
+
+    /**
+     * @brief Replaces one entry
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void putOne() {
+        int i = nextIndex();
+        storage.put(new Password(service(i), "user" + i + "@example.com", "Changed#" + i));
+    }
+
+    /**
+     * @brief Removes one entry and stores it again
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void removeAndPutOne() {
+        int i = nextIndex();
+        storage.remove(service(i));
+        storage.put(new Password(service(i), "user" + i + "@example.com", "Secret#" + i));
+    }
+}